@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.detector.api.TextFormat.RAW;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LintFix;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Project;
+import com.android.utils.SdkUtils;
+import com.google.common.annotations.Beta;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A reporter which writes lint results in a compact binary format, intended to be
+ * combined with the results of other lint runs (for example, runs over different
+ * modules or on different machines) with {@link LintCliClient#mergeResults} rather
+ * than read by people.
+ * <p>
+ * The file starts with {@link #MAGIC} and a byte of flags, followed by the (optionally
+ * GZIP compressed) statistics and the warnings, in the order given to
+ * {@link #write(Stats, List)}. Each warning is a length-prefixed record. Strings, issues
+ * and projects are written in full the first time they are referenced and by index
+ * afterwards. Integers are written as variable length quantities.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public class BinaryReporter extends Reporter {
+    /** The bytes at the beginning of every binary results file, including the version */
+    static final byte[] MAGIC = {'L', 'I', 'N', 'T', 'R', 'E', 'S', 2};
+
+    /** Flag set if the rest of the file is GZIP compressed */
+    static final int FLAG_COMPRESSED = 1;
+
+    /** Reference to a null string, issue or project */
+    static final int REF_NULL = 0;
+    /** Reference to a string, issue or project written in full where it is referenced */
+    static final int REF_NEW = 1;
+    /** The first reference to a previously written string, issue or project */
+    static final int REF_FIRST_INDEX = 2;
+
+    static final int FIX_NONE = 0;
+    static final int FIX_OTHER = 1;
+    static final int FIX_REPLACE_STRING = 2;
+    static final int FIX_SET_ATTRIBUTE = 3;
+    static final int FIX_GROUP = 4;
+
+    private final boolean compressed;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Issue, Integer> issues = new IdentityHashMap<>();
+    private final Map<Project, Integer> projects = new IdentityHashMap<>();
+    /** The record being written, and the strings defined in it */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+
+    /**
+     * Constructs a new {@link BinaryReporter}
+     *
+     * @param client the client
+     * @param output the output file
+     * @param compressed whether the results should be compressed
+     */
+    public BinaryReporter(@NonNull LintCliClient client, @NonNull File output,
+            boolean compressed) {
+        super(client, output);
+        this.compressed = compressed;
+    }
+
+    @Override
+    public void write(@NonNull Stats stats, List<Warning> issues) throws IOException {
+        writeResults(stats, issues);
+
+        if (!client.getFlags().isQuiet() && (stats.errorCount > 0 || stats.warningCount > 0)) {
+            String url = SdkUtils.fileToUrlString(output.getAbsoluteFile());
+            System.out.println(String.format("Wrote binary results to %1$s", url));
+        }
+    }
+
+    /** Writes the results file, like {@link #write(Stats, List)} but silently */
+    void writeResults(@NonNull Stats stats, @NonNull List<Warning> issues) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            out.write(MAGIC);
+            out.write(compressed ? FLAG_COMPRESSED : 0);
+            OutputStream stream = compressed ? new GZIPOutputStream(out, 64 * 1024) : out;
+            writeInt(stream, stats.errorCount);
+            writeInt(stream, stats.warningCount);
+            writeInt(stream, stats.baselineErrorCount);
+            writeInt(stream, stats.baselineWarningCount);
+            writeInt(stream, stats.baselineFixedCount);
+            writeInt(stream, issues.size());
+            for (Warning warning : issues) {
+                record.reset();
+                writeWarning(record, warning);
+                writeInt(stream, record.size());
+                record.writeTo(stream);
+            }
+            if (stream != out) {
+                ((GZIPOutputStream) stream).finish();
+            }
+        }
+    }
+
+    private void writeWarning(@NonNull OutputStream out, @NonNull Warning warning)
+            throws IOException {
+        writeIssue(out, warning.issue);
+        writeString(out, warning.severity.name());
+        writeString(out, warning.message);
+        writeProject(out, warning.project);
+        writeString(out, warning.file != null ? warning.file.getPath() : null);
+        writeString(out, warning.path);
+        writeInt(out, warning.line);
+        writeInt(out, warning.offset);
+        writeInt(out, warning.endOffset);
+        writeString(out, warning.errorLine);
+
+        int count = 0;
+        for (Location l = warning.location; l != null; l = l.getSecondary()) {
+            count++;
+        }
+        writeInt(out, count);
+        for (Location l = warning.location; l != null; l = l.getSecondary()) {
+            writeLocation(out, l);
+        }
+
+        writeFix(out, warning.quickfixData);
+    }
+
+    private void writeLocation(@NonNull OutputStream out, @NonNull Location location)
+            throws IOException {
+        writeString(out, location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        writeString(out, location.getMessage());
+        out.write(location.getVisible() ? 1 : 0);
+    }
+
+    private static void writePosition(@NonNull OutputStream out, @Nullable Position position)
+            throws IOException {
+        if (position == null) {
+            out.write(0);
+            return;
+        }
+        out.write(1);
+        writeInt(out, position.getLine());
+        writeInt(out, position.getColumn());
+        writeInt(out, position.getOffset());
+    }
+
+    private void writeFix(@NonNull OutputStream out, @Nullable LintFix fix) throws IOException {
+        if (fix == null) {
+            out.write(FIX_NONE);
+        } else if (fix instanceof LintFix.ReplaceString) {
+            LintFix.ReplaceString replace = (LintFix.ReplaceString) fix;
+            out.write(FIX_REPLACE_STRING);
+            writeString(out, replace.displayName);
+            writeString(out, replace.oldString);
+            writeString(out, replace.oldPattern);
+            writeString(out, replace.replacement);
+            out.write((replace.shortenNames ? 1 : 0) | (replace.reformat ? 2 : 0));
+            if (replace.range != null) {
+                out.write(1);
+                writeLocation(out, replace.range);
+            } else {
+                out.write(0);
+            }
+        } else if (fix instanceof LintFix.SetAttribute) {
+            LintFix.SetAttribute set = (LintFix.SetAttribute) fix;
+            out.write(FIX_SET_ATTRIBUTE);
+            writeString(out, set.displayName);
+            writeString(out, set.namespace);
+            writeString(out, set.attribute);
+            writeString(out, set.value);
+            writeInt(out, set.dot);
+            writeInt(out, set.mark);
+        } else if (fix instanceof LintFix.LintFixGroup) {
+            LintFix.LintFixGroup group = (LintFix.LintFixGroup) fix;
+            out.write(FIX_GROUP);
+            writeString(out, group.displayName);
+            writeString(out, group.type.name());
+            writeInt(out, group.fixes.size());
+            for (LintFix child : group.fixes) {
+                writeFix(out, child);
+            }
+        } else {
+            // Arbitrary data maps can't be written; keep just the name
+            out.write(FIX_OTHER);
+            writeString(out, fix.displayName);
+        }
+    }
+
+    private void writeIssue(@NonNull OutputStream out, @NonNull Issue issue)
+            throws IOException {
+        Integer index = issues.get(issue);
+        if (index != null) {
+            writeInt(out, index);
+            return;
+        }
+        issues.put(issue, REF_FIRST_INDEX + issues.size());
+        writeInt(out, REF_NEW);
+        writeString(out, issue.getId());
+        writeString(out, issue.getBriefDescription(RAW));
+        writeString(out, issue.getExplanation(RAW));
+        writeCategory(out, issue.getCategory());
+        writeInt(out, issue.getPriority());
+        writeString(out, issue.getDefaultSeverity().name());
+        List<String> moreInfo = issue.getMoreInfo();
+        writeInt(out, moreInfo.size());
+        for (String url : moreInfo) {
+            writeString(out, url);
+        }
+    }
+
+    private void writeCategory(@NonNull OutputStream out, @NonNull Category category)
+            throws IOException {
+        writeString(out, category.getFullName());
+        writeInt(out, category.getPriority());
+        Category parent = category.getParent();
+        if (parent != null) {
+            out.write(1);
+            writeCategory(out, parent);
+        } else {
+            out.write(0);
+        }
+    }
+
+    private void writeProject(@NonNull OutputStream out, @Nullable Project project)
+            throws IOException {
+        if (project == null) {
+            writeInt(out, REF_NULL);
+            return;
+        }
+        Integer index = projects.get(project);
+        if (index != null) {
+            writeInt(out, index);
+            return;
+        }
+        projects.put(project, REF_FIRST_INDEX + projects.size());
+        writeInt(out, REF_NEW);
+        writeString(out, project.getDir().getPath());
+        writeString(out, project.getReferenceDir().getPath());
+    }
+
+    private void writeString(@NonNull OutputStream out, @Nullable String s)
+            throws IOException {
+        if (s == null) {
+            writeInt(out, REF_NULL);
+            return;
+        }
+        Integer index = strings.get(s);
+        if (index != null) {
+            writeInt(out, index);
+            return;
+        }
+        strings.put(s, REF_FIRST_INDEX + strings.size());
+        writeInt(out, REF_NEW);
+        byte[] bytes = s.getBytes(UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes the given integer as a variable length quantity: 7 bits per byte, least
+     * significant first, with the high bit set on all but the last byte. Small negative
+     * numbers such as -1 are zigzag encoded to keep them short.
+     */
+    static void writeInt(@NonNull OutputStream out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.BinaryReporter.FIX_GROUP;
+import static com.android.tools.lint.BinaryReporter.FIX_NONE;
+import static com.android.tools.lint.BinaryReporter.FIX_OTHER;
+import static com.android.tools.lint.BinaryReporter.FIX_REPLACE_STRING;
+import static com.android.tools.lint.BinaryReporter.FIX_SET_ATTRIBUTE;
+import static com.android.tools.lint.BinaryReporter.FLAG_COMPRESSED;
+import static com.android.tools.lint.BinaryReporter.MAGIC;
+import static com.android.tools.lint.BinaryReporter.REF_FIRST_INDEX;
+import static com.android.tools.lint.BinaryReporter.REF_NEW;
+import static com.android.tools.lint.BinaryReporter.REF_NULL;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.Reporter.Stats;
+import com.android.tools.lint.client.api.IssueRegistry;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LintFix;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the warnings written by a {@link BinaryReporter}, one at a time.
+ * <p>
+ * Issues are looked up in the given registry by id. Issues which are not in the
+ * registry, such as issues from custom rules that were not loaded, are recreated from
+ * the metadata stored in the file.
+ */
+class BinaryResultsReader implements Closeable {
+    /**
+     * The objects recreated from results files, shared between the readers of files
+     * which are combined such that they have one instance of each: projects by directory,
+     * and issues and categories which aren't in the registry by id and full name
+     */
+    static final class SharedObjects {
+        final Map<File, Project> projects = new HashMap<>();
+        final Map<String, Issue> issues = new HashMap<>();
+        final Map<String, Category> categories = new HashMap<>();
+    }
+
+    private final LintCliClient client;
+    private final IssueRegistry registry;
+    private final File file;
+    private final InputStream in;
+    private final SharedObjects shared;
+    private final List<String> strings = new ArrayList<>();
+    private final List<Issue> issues = new ArrayList<>();
+    private final List<Project> projects = new ArrayList<>();
+    private final Stats stats;
+    private int remaining;
+    private byte[] buffer = new byte[256];
+
+    /**
+     * Opens the given results file, and reads its statistics
+     *
+     * @param client     the client
+     * @param registry   the registry to look up issues in
+     * @param file       the results file
+     * @param shared     the objects to reuse; new objects are added
+     * @throws IOException if the file could not be read or is not a results file
+     */
+    BinaryResultsReader(@NonNull LintCliClient client, @NonNull IssueRegistry registry,
+            @NonNull File file, @NonNull SharedObjects shared) throws IOException {
+        this.client = client;
+        this.registry = registry;
+        this.file = file;
+        this.shared = shared;
+
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            readFully(stream, magic, magic.length);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException(file + " is not a lint results file, or was "
+                            + "written by a different version of lint");
+                }
+            }
+            int flags = readByte(stream);
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                stream = new GZIPInputStream(stream, 64 * 1024);
+            }
+            in = stream;
+            int errorCount = readInt(in);
+            int warningCount = readInt(in);
+            int baselineErrorCount = readInt(in);
+            int baselineWarningCount = readInt(in);
+            int baselineFixedCount = readInt(in);
+            stats = new Stats(errorCount, warningCount, baselineErrorCount,
+                    baselineWarningCount, baselineFixedCount);
+            remaining = readInt(in);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /** Returns the statistics of the run which wrote the results */
+    @NonNull
+    Stats getStats() {
+        return stats;
+    }
+
+    /** Returns the results file */
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the next warning
+     *
+     * @return the next warning, or null if all the warnings have been read
+     * @throws IOException if the file could not be read or is corrupt
+     */
+    @Nullable
+    Warning read() throws IOException {
+        if (remaining == 0) {
+            return null;
+        }
+        remaining--;
+        int length = readInt(in);
+        if (length < 0) {
+            throw new IOException("Corrupt lint results file " + file);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+        }
+        readFully(in, buffer, length);
+        ByteArrayInputStream record = new ByteArrayInputStream(buffer, 0, length);
+        Warning warning = readWarning(record);
+        if (record.available() != 0) {
+            throw new IOException("Corrupt lint results file " + file);
+        }
+        return warning;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @NonNull
+    private Warning readWarning(@NonNull InputStream in) throws IOException {
+        Issue issue = readIssue(in);
+        Severity severity = Severity.valueOf(readNonNullString(in));
+        String message = readNonNullString(in);
+        Project project = readProject(in);
+        Warning warning = new Warning(issue, message, severity, project);
+        String path = readString(in);
+        warning.file = path != null ? new File(path) : null;
+        warning.path = readString(in);
+        warning.line = readInt(in);
+        warning.offset = readInt(in);
+        warning.endOffset = readInt(in);
+        warning.errorLine = readString(in);
+
+        int count = readInt(in);
+        Location last = null;
+        for (int i = 0; i < count; i++) {
+            Location location = readLocation(in);
+            if (last == null) {
+                // Share the file instance, as the reporters expect
+                warning.location = location;
+                warning.file = location.getFile();
+            } else {
+                last.setSecondary(location);
+            }
+            last = location;
+        }
+
+        warning.quickfixData = readFix(in);
+        return warning;
+    }
+
+    @NonNull
+    private Location readLocation(@NonNull InputStream in) throws IOException {
+        File file = new File(readNonNullString(in));
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null
+                ? Location.create(file, start, end) : Location.create(file);
+        location.setMessage(readString(in));
+        location.setVisible(readByte(in) != 0);
+        return location;
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull InputStream in) throws IOException {
+        if (readByte(in) == 0) {
+            return null;
+        }
+        int line = readInt(in);
+        int column = readInt(in);
+        int offset = readInt(in);
+        return new DefaultPosition(line, column, offset);
+    }
+
+    @Nullable
+    private LintFix readFix(@NonNull InputStream in) throws IOException {
+        int kind = readByte(in);
+        switch (kind) {
+            case FIX_NONE:
+                return null;
+            case FIX_REPLACE_STRING: {
+                LintFix.ReplaceStringBuilder builder =
+                        LintFix.create().name(readString(in)).replace();
+                String oldString = readString(in);
+                String oldPattern = readString(in);
+                if (oldString != null) {
+                    builder.text(oldString);
+                } else if (oldPattern != null) {
+                    builder.pattern(oldPattern);
+                }
+                builder.with(readNonNullString(in));
+                int flags = readByte(in);
+                if ((flags & 1) != 0) {
+                    builder.shortenNames();
+                }
+                builder.reformat((flags & 2) != 0);
+                if (readByte(in) != 0) {
+                    builder.range(readLocation(in));
+                }
+                return builder.build();
+            }
+            case FIX_SET_ATTRIBUTE: {
+                LintFix.SetAttributeBuilder builder =
+                        LintFix.create().name(readString(in)).set();
+                builder.namespace(readString(in));
+                builder.attribute(readNonNullString(in));
+                builder.value(readString(in));
+                int dot = readInt(in);
+                int mark = readInt(in);
+                if (dot != Integer.MIN_VALUE || mark != Integer.MIN_VALUE) {
+                    if (dot == mark) {
+                        builder.caret(dot);
+                    } else {
+                        builder.select(mark, dot);
+                    }
+                }
+                return builder.build();
+            }
+            case FIX_GROUP: {
+                LintFix.GroupBuilder builder = LintFix.create().name(readString(in)).group();
+                builder.type(LintFix.GroupType.valueOf(readNonNullString(in)));
+                int count = readInt(in);
+                for (int i = 0; i < count; i++) {
+                    LintFix fix = readFix(in);
+                    if (fix != null) {
+                        builder.add(fix);
+                    }
+                }
+                return builder.build();
+            }
+            case FIX_OTHER:
+                return LintFix.create().name(readString(in)).map().build();
+            default:
+                throw new IOException("Corrupt lint results file " + file);
+        }
+    }
+
+    @NonNull
+    private Issue readIssue(@NonNull InputStream in) throws IOException {
+        int ref = readInt(in);
+        if (ref != REF_NEW) {
+            int index = ref - REF_FIRST_INDEX;
+            if (index < 0 || index >= issues.size()) {
+                throw new IOException("Corrupt lint results file " + file);
+            }
+            return issues.get(index);
+        }
+
+        String id = readNonNullString(in);
+        String brief = readNonNullString(in);
+        String explanation = readNonNullString(in);
+        Category category = readCategory(in);
+        int priority = readInt(in);
+        Severity severity = Severity.valueOf(readNonNullString(in));
+        int urlCount = readInt(in);
+        List<String> moreInfo = new ArrayList<>(urlCount);
+        for (int i = 0; i < urlCount; i++) {
+            moreInfo.add(readNonNullString(in));
+        }
+
+        Issue issue = registry.getIssue(id);
+        if (issue == null) {
+            // Warnings are sorted and compared by issue, so use the same instance for
+            // all the warnings of the issue, across files
+            issue = shared.issues.computeIfAbsent(id, k -> {
+                Issue created = Issue.create(id, brief, explanation, category, priority,
+                        severity, new Implementation(Detector.class,
+                                EnumSet.noneOf(Scope.class)));
+                for (String url : moreInfo) {
+                    created.addMoreInfo(url);
+                }
+                return created;
+            });
+        }
+        issues.add(issue);
+        return issue;
+    }
+
+    @NonNull
+    private Category readCategory(@NonNull InputStream in) throws IOException {
+        String fullName = readNonNullString(in);
+        int priority = readInt(in);
+        Category parent = readByte(in) != 0 ? readCategory(in) : null;
+        for (Category category : registry.getCategories()) {
+            if (category.getFullName().equals(fullName)) {
+                return category;
+            }
+        }
+        String name = parent != null
+                ? fullName.substring(fullName.lastIndexOf(':') + 1) : fullName;
+        return shared.categories.computeIfAbsent(fullName,
+                k -> Category.create(parent, name, priority));
+    }
+
+    @Nullable
+    private Project readProject(@NonNull InputStream in) throws IOException {
+        int ref = readInt(in);
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref != REF_NEW) {
+            int index = ref - REF_FIRST_INDEX;
+            if (index < 0 || index >= projects.size()) {
+                throw new IOException("Corrupt lint results file " + file);
+            }
+            return projects.get(index);
+        }
+
+        File dir = new File(readNonNullString(in));
+        File referenceDir = new File(readNonNullString(in));
+        Project project = shared.projects.computeIfAbsent(dir,
+                k -> Project.create(client, dir, referenceDir));
+        projects.add(project);
+        return project;
+    }
+
+    @NonNull
+    private String readNonNullString(@NonNull InputStream in) throws IOException {
+        String s = readString(in);
+        if (s == null) {
+            throw new IOException("Corrupt lint results file " + file);
+        }
+        return s;
+    }
+
+    @Nullable
+    private String readString(@NonNull InputStream in) throws IOException {
+        int ref = readInt(in);
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref != REF_NEW) {
+            int index = ref - REF_FIRST_INDEX;
+            if (index < 0 || index >= strings.size()) {
+                throw new IOException("Corrupt lint results file " + file);
+            }
+            return strings.get(index);
+        }
+
+        int length = readInt(in);
+        if (length < 0) {
+            throw new IOException("Corrupt lint results file " + file);
+        }
+        byte[] bytes = new byte[length];
+        readFully(in, bytes, length);
+        String s = new String(bytes, UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    /** Reads an integer written by {@link BinaryReporter#writeInt} */
+    static int readInt(@NonNull InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte(in);
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed integer in lint results file");
+    }
+
+    private static int readByte(@NonNull InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of lint results file");
+        }
+        return b;
+    }
+
+    private static void readFully(@NonNull InputStream in, @NonNull byte[] bytes, int length)
+            throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(bytes, offset, length - offset);
+            if (n == -1) {
+                throw new EOFException("Unexpected end of lint results file");
+            }
+            offset += n;
+        }
+    }
+}
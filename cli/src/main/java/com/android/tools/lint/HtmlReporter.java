@@ -23,6 +23,7 @@ import static com.android.tools.lint.detector.api.LintUtils.describeCounts;
 import static com.android.tools.lint.detector.api.LintUtils.endsWith;
 import static com.android.tools.lint.detector.api.TextFormat.HTML;
 import static com.android.tools.lint.detector.api.TextFormat.RAW;
+import static com.android.utils.CharSequences.indexOf;
 
 import com.android.annotations.NonNull;
 import com.android.tools.lint.checks.BuiltinIssueRegistry;
@@ -758,9 +759,16 @@ public class HtmlReporter extends Reporter {
             throws IOException {
         int max = lineno + 3;
         int min = lineno - 3;
+        int lineOffset = -1;
         for (int l = min; l < max; l++) {
             if (l >= 0) {
-                int lineOffset = LintCliClient.getLineOffset(contents, l);
+                if (lineOffset == -1) {
+                    lineOffset = LintCliClient.getLineOffset(contents, l);
+                } else {
+                    // Continue from the previous line rather than the start of the file
+                    int newline = indexOf(contents, '\n', lineOffset);
+                    lineOffset = newline != -1 ? newline + 1 : -1;
+                }
                 if (lineOffset == -1) {
                     break;
                 }
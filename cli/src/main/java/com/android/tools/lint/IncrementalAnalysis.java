@@ -0,0 +1,944 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.ANDROID_MANIFEST_XML;
+import static com.android.SdkConstants.DOT_JAVA;
+import static com.android.SdkConstants.DOT_KT;
+import static com.android.SdkConstants.DOT_XML;
+import static com.android.SdkConstants.FN_BUILD_GRADLE;
+import static com.android.SdkConstants.PROJECT_PROPERTIES;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.resources.ResourceFolderType;
+import com.android.tools.lint.Reporter.Stats;
+import com.android.tools.lint.client.api.DefaultConfiguration;
+import com.android.tools.lint.client.api.IssueRegistry;
+import com.android.tools.lint.client.api.LintDriver;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Support for analyzing only the files which changed since an earlier run
+ * ({@code --changed-since} and {@code --changed-files}), reusing the results of the
+ * earlier run for the other files.
+ * <p>
+ * The first run on a set of projects analyzes everything, and stores the results in the
+ * lint cache directory, along with an index of the resources and classes each source,
+ * resource and manifest file defines and references. Later runs analyze the changed
+ * files, plus the files referencing anything the changed files define (such as the
+ * layouts including a changed layout, or the code referencing a changed string), and
+ * the files referencing those in turn, since the checks on those files may depend on
+ * the changes. The results of the checks which
+ * can only run on all the files of a kind, such as the unused resources check, are
+ * taken from the earlier run, as long as the changes don't add or remove any of the
+ * resources, classes or references in the index; otherwise everything is analyzed again.
+ * <p>
+ * The index is built by scanning the text of the files rather than parsing them, so this
+ * is an approximation: a change can affect the results for files which aren't analyzed
+ * again, for example through a constant inlined from another class, and those results
+ * are then out of date until the next full run.
+ * <p>
+ * Only full runs store results, such that they always describe one revision: files
+ * which changed since that revision according to git are analyzed along with the
+ * requested ones.
+ */
+final class IncrementalAnalysis {
+    private static final String INDEX_HEADER = "lint-incremental-index 2";
+    private static final String INDEX_FILE = "index.txt";
+    private static final String RESULTS_FILE = "results.bin";
+
+    private static final String INDEX_REVISION = "revision";
+    private static final String INDEX_CHANGED = "changed";
+    private static final String INDEX_FILE_KEYS = "file";
+    private static final String INDEX_RULES = "rules";
+
+    /**
+     * Files which configure the analysis of a whole project; when one of these changes,
+     * everything is analyzed again
+     */
+    private static final Set<String> CONFIGURATION_FILES = Sets.newHashSet(
+            DefaultConfiguration.CONFIG_FILE_NAME, FN_BUILD_GRADLE, PROJECT_PROPERTIES);
+
+    /** Prefix of the index keys for the resources and classes a file defines */
+    @VisibleForTesting
+    static final char DEFINES = '+';
+
+    private static final Pattern PACKAGE = Pattern.compile(
+            "^\\s*package\\s+([\\w.]+)", Pattern.MULTILINE);
+    private static final Pattern IMPORT = Pattern.compile(
+            "^\\s*import\\s+(?:static\\s+)?([\\w.]*\\w)", Pattern.MULTILINE);
+    private static final Pattern QUALIFIED_NAME = Pattern.compile(
+            "(?<![\\w.])((?:[a-z_]\\w*\\.)+[A-Z]\\w*)");
+    private static final Pattern R_FIELD = Pattern.compile("(?<![\\w.])R\\.(\\w+)\\.(\\w+)");
+    private static final Pattern RESOURCE_URL = Pattern.compile("@(\\+?)(\\w+)/([\\w.]+)");
+    private static final Pattern VIEW_TAG = Pattern.compile("<(\\w+(?:\\.\\w+)+)[\\s/>]");
+    private static final Pattern CLASS_NAME = Pattern.compile(
+            "\\bandroid:name\\s*=\\s*\"([\\w.$]+)\"");
+    private static final Pattern MANIFEST_PACKAGE = Pattern.compile(
+            "\\bpackage\\s*=\\s*\"([\\w.]+)\"");
+    private static final Pattern VALUE_TAG = Pattern.compile(
+            "<([\\w-]+)\\s([^>]*?)\\bname\\s*=\\s*\"([\\w.]+)\"([^>]*)>");
+    private static final Pattern TYPE_ATTRIBUTE = Pattern.compile(
+            "\\btype\\s*=\\s*\"(\\w+)\"");
+
+    private final LintCliClient client;
+    private final LintCliFlags flags;
+    private File cacheDir;
+    /** The head revision of each git repository containing the analyzed projects */
+    private final Map<File, String> revisions = new LinkedHashMap<>();
+    /** The files in the repositories which differ from their head revision */
+    private final Set<File> uncommittedFiles = new HashSet<>();
+    /** The changed files, or null when analyzing everything */
+    @Nullable private Set<File> changedFiles;
+    /** The changed files and the files depending on them */
+    @Nullable private Set<File> analyzedFiles;
+    /** The index of the previous run: the keys of each file */
+    @Nullable private Map<File, Set<String>> index;
+    /** The analyzed projects, including libraries */
+    private final Set<Project> projects = Sets.newIdentityHashSet();
+    private final Map<File, File> canonicalFiles = new HashMap<>();
+    @Nullable private EnumSet<Scope> scope;
+    @Nullable private Stats previousStats;
+    /** The fingerprint of the custom rules of the analyzed projects in this run */
+    @Nullable private String rules;
+    /** The fingerprint of the custom rules of the analyzed projects in the previous run */
+    @Nullable private String previousRules;
+
+    IncrementalAnalysis(@NonNull LintCliClient client) {
+        this.client = client;
+        this.flags = client.getFlags();
+    }
+
+    /** Returns true if everything is analyzed, because there are no earlier results */
+    boolean isFullRun() {
+        return changedFiles == null;
+    }
+
+    /**
+     * Looks up the results of the previous run on the given files, and the files which
+     * changed since
+     *
+     * @param files the files to analyze, as passed to {@link LintCliClient#run}
+     * @throws IOException if the changes since the requested revision can't be computed
+     */
+    void prepare(@NonNull List<File> files) throws IOException {
+        List<File> roots = new ArrayList<>(files.size());
+        Set<File> repositories = new TreeSet<>();
+        for (File file : files) {
+            File root = canonicalize(file);
+            roots.add(root);
+            File repository = findRepository(root);
+            if (repository != null) {
+                repositories.add(repository);
+            }
+        }
+        Collections.sort(roots);
+
+        String changedSince = flags.getChangedSince();
+        if (changedSince != null && repositories.isEmpty()) {
+            throw new IOException("Can't analyze the changes since " + changedSince
+                    + ": " + roots + " is not in a git repository");
+        }
+
+        File dir = client.getCacheDir("incremental", true);
+        if (dir == null) {
+            throw new IOException("Can't create the cache directory for the lint results");
+        }
+        cacheDir = new File(dir, computeCacheKey(roots));
+
+        Set<File> changed = new HashSet<>();
+        for (File repository : repositories) {
+            try {
+                revisions.put(repository, git(repository, "rev-parse", "HEAD").get(0));
+                addGitFiles(repository, uncommittedFiles, "diff", "--name-only", "HEAD");
+            } catch (IOException e) {
+                // No commits yet: everything is uncommitted
+                revisions.remove(repository);
+            }
+            addGitFiles(repository, uncommittedFiles, "ls-files", "--others",
+                    "--exclude-standard");
+            if (changedSince != null) {
+                addGitFiles(repository, changed, "diff", "--name-only", changedSince);
+            }
+        }
+
+        Map<File, String> previousRevisions = new HashMap<>();
+        File resultsFile = new File(cacheDir, RESULTS_FILE);
+        Map<File, Set<String>> index = resultsFile.isFile()
+                ? readIndex(new File(cacheDir, INDEX_FILE), previousRevisions, changed)
+                : null;
+        if (index == null) {
+            if (!flags.isQuiet()) {
+                System.out.println("No earlier results to reuse; analyzing all files");
+            }
+            return;
+        }
+
+        for (Map.Entry<File, String> entry : previousRevisions.entrySet()) {
+            File repository = entry.getKey();
+            if (!entry.getValue().equals(revisions.get(repository))) {
+                try {
+                    addGitFiles(repository, changed, "diff", "--name-only", entry.getValue());
+                } catch (IOException e) {
+                    // The revision is gone, for example after a rebase: the stored results
+                    // can't be brought up to date
+                    if (!flags.isQuiet()) {
+                        System.out.println("Earlier results are out of date; analyzing all "
+                                + "files");
+                    }
+                    return;
+                }
+            }
+        }
+        changed.addAll(uncommittedFiles);
+        List<File> changedFiles = flags.getChangedFiles();
+        if (changedFiles != null) {
+            for (File file : changedFiles) {
+                changed.add(canonicalize(file));
+            }
+        }
+
+        if (affectsProjectChecks(changed, index, roots)) {
+            if (!flags.isQuiet()) {
+                System.out.println("The changes may affect checks on whole projects; "
+                        + "analyzing all files");
+            }
+            return;
+        }
+
+        this.index = index;
+        this.changedFiles = changed;
+    }
+
+    /**
+     * Restricts the analysis of the given projects to the changed files and the files
+     * depending on them, unless everything is analyzed. Called once the projects have
+     * been created, before they are analyzed.
+     */
+    void initializeProjects(@NonNull Collection<? extends Project> knownProjects,
+            @NonNull LintDriver driver) {
+        for (Project project : knownProjects) {
+            projects.add(project);
+            projects.addAll(project.getAllLibraries());
+        }
+        rules = computeRulesKey();
+
+        Set<File> changed = changedFiles;
+        Map<File, Set<String>> index = this.index;
+        if (changed == null || index == null) {
+            return;
+        }
+        if (!rules.equals(previousRules)) {
+            // The stored results were found by different checks
+            if (!flags.isQuiet()) {
+                System.out.println("The custom lint rules changed; analyzing all files");
+            }
+            changedFiles = null;
+            this.index = null;
+            return;
+        }
+
+        Set<File> analyzed = new HashSet<>(changed);
+        analyzed.addAll(findDependents(changed, index));
+        analyzedFiles = analyzed;
+
+        // Assign each file to the innermost project containing it
+        Map<Project, List<File>> subsets = new IdentityHashMap<>();
+        Map<Project, String> projectDirs = new IdentityHashMap<>();
+        for (Project project : projects) {
+            subsets.put(project, new ArrayList<>());
+            projectDirs.put(project, canonicalize(project.getDir()).getPath() + File.separator);
+        }
+        List<File> sorted = new ArrayList<>(analyzed);
+        Collections.sort(sorted);
+        EnumSet<Scope> scope = EnumSet.noneOf(Scope.class);
+        int count = 0;
+        for (File file : sorted) {
+            if (!file.isFile()) {
+                continue;
+            }
+            Project owner = null;
+            int ownerLength = 0;
+            String path = file.getPath();
+            for (Map.Entry<Project, String> entry : projectDirs.entrySet()) {
+                String dir = entry.getValue();
+                if (path.startsWith(dir) && dir.length() > ownerLength) {
+                    owner = entry.getKey();
+                    ownerLength = dir.length();
+                }
+            }
+            if (owner != null) {
+                subsets.get(owner).add(file);
+                count++;
+                if (file.getName().endsWith(DOT_KT)) {
+                    // Not handled by Scope.infer
+                    scope.add(Scope.JAVA_FILE);
+                }
+            }
+        }
+        for (Map.Entry<Project, List<File>> entry : subsets.entrySet()) {
+            entry.getKey().setSubset(entry.getValue());
+        }
+
+        scope.addAll(Scope.infer(projects));
+        if (scope.contains(Scope.JAVA_FILE)) {
+            scope.add(Scope.TEST_SOURCES);
+        }
+        driver.setScope(scope);
+        this.scope = scope;
+
+        if (!flags.isQuiet()) {
+            System.out.println(String.format("Analyzing %1$d changed or dependent files", count));
+        }
+    }
+
+    /**
+     * Returns true if the stored results of the checks which need to see all the files
+     * of a kind, such as the unused resources check, may be affected by the given
+     * changes. These checks can't run on just the changed files, so their stored results
+     * are only reused when the changes don't add or remove any of the resources, classes
+     * or references in the index, and don't touch a file configuring a whole project.
+     *
+     * @param changed the changed files, which may include files outside the projects
+     * @param index   the index of the previous run
+     * @param roots   the analyzed files and directories
+     */
+    @VisibleForTesting
+    boolean affectsProjectChecks(@NonNull Set<File> changed,
+            @NonNull Map<File, Set<String>> index, @NonNull List<File> roots) {
+        for (File file : changed) {
+            Set<String> previous = index.get(file);
+            if (previous == null) {
+                if (!isInside(file, roots)) {
+                    continue;
+                }
+                if (CONFIGURATION_FILES.contains(file.getName())) {
+                    return true;
+                }
+                // A new file, unless it's not a kind of file in the index
+                if (file.isFile() && !scan(file).isEmpty()) {
+                    return true;
+                }
+            } else if (!file.isFile() || !previous.equals(scan(file))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(@NonNull File file, @NonNull List<File> roots) {
+        String path = file.getPath();
+        for (File root : roots) {
+            String rootPath = root.getPath();
+            if (path.equals(rootPath) || path.startsWith(rootPath + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the files in the index which reference any of the resources or classes
+     * the given files define, before or after the change, along with the files
+     * referencing anything those files define in turn, and so on.
+     */
+    @VisibleForTesting
+    @NonNull
+    Set<File> findDependents(@NonNull Set<File> changed,
+            @NonNull Map<File, Set<String>> index) {
+        Set<String> defined = new HashSet<>();
+        for (File file : changed) {
+            Set<String> keys = index.get(file);
+            if (keys != null) {
+                addDefinitions(keys, defined);
+            }
+            if (file.isFile()) {
+                addDefinitions(scan(file), defined);
+            }
+        }
+
+        Set<File> dependents = new HashSet<>();
+        if (defined.isEmpty()) {
+            return dependents;
+        }
+        Map<String, List<File>> references = new HashMap<>();
+        for (Map.Entry<File, Set<String>> entry : index.entrySet()) {
+            for (String key : entry.getValue()) {
+                if (key.charAt(0) != DEFINES) {
+                    references.computeIfAbsent(key, k -> new ArrayList<>()).add(entry.getKey());
+                }
+            }
+        }
+        List<String> pending = new ArrayList<>(defined);
+        while (!pending.isEmpty()) {
+            String key = pending.remove(pending.size() - 1);
+            List<File> files = references.get(key);
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (dependents.add(file)) {
+                    for (String dependentKey : index.get(file)) {
+                        if (dependentKey.charAt(0) == DEFINES
+                                && defined.add(dependentKey.substring(1))) {
+                            pending.add(dependentKey.substring(1));
+                        }
+                    }
+                }
+            }
+        }
+        return dependents;
+    }
+
+    private static void addDefinitions(@NonNull Set<String> keys, @NonNull Set<String> defined) {
+        for (String key : keys) {
+            if (key.charAt(0) == DEFINES) {
+                defined.add(key.substring(1));
+            }
+        }
+    }
+
+    /**
+     * Combines the results of this run with those of the previous run: the warnings
+     * found in the analyzed files replace those of the previous run, except for the
+     * issues which couldn't be checked on just these files
+     *
+     * @param registry the registry to look up the previously reported issues in
+     * @param warnings the warnings found in this run
+     * @return the combined warnings, sorted
+     * @throws IOException if the previous results can't be read
+     */
+    @NonNull
+    List<Warning> mergeResults(@NonNull IssueRegistry registry,
+            @NonNull List<Warning> warnings) throws IOException {
+        Set<File> analyzed = analyzedFiles;
+        EnumSet<Scope> scope = this.scope;
+        assert analyzed != null && scope != null;
+
+        // Warnings without a file, or in files which weren't analyzed (such as the
+        // build files of the projects), are also reported by the previous run
+        List<Warning> merged = new ArrayList<>(warnings);
+        Set<Warning> current = new HashSet<>(warnings);
+
+        BinaryResultsReader.SharedObjects shared = new BinaryResultsReader.SharedObjects();
+        for (Project project : projects) {
+            shared.projects.put(project.getDir(), project);
+        }
+        try (BinaryResultsReader reader = new BinaryResultsReader(client, registry,
+                new File(cacheDir, RESULTS_FILE), shared)) {
+            previousStats = reader.getStats();
+            for (Warning warning = reader.read(); warning != null; warning = reader.read()) {
+                if (warning.file != null) {
+                    File file = canonicalize(warning.file);
+                    if (analyzed.contains(file)
+                            && (!file.exists()
+                                || warning.issue.getImplementation().isAdequate(scope))) {
+                        continue;
+                    }
+                }
+                if (!current.contains(warning)) {
+                    merged.add(warning);
+                }
+            }
+        }
+
+        Collections.sort(merged);
+        return merged;
+    }
+
+    /** Returns the statistics of the previous run, once read by {@link #mergeResults} */
+    @Nullable
+    Stats getPreviousStats() {
+        return previousStats;
+    }
+
+    /**
+     * Stores the results of a full run, along with the index of the analyzed files, for
+     * later runs to reuse
+     */
+    void saveResults(@NonNull Stats stats, @NonNull List<Warning> warnings)
+            throws IOException {
+        assert isFullRun() && rules != null;
+        Map<File, Set<String>> index = new TreeMap<>();
+        for (Project project : projects) {
+            List<File> folders = new ArrayList<>(project.getJavaSourceFolders());
+            folders.addAll(project.getTestSourceFolders());
+            folders.addAll(project.getResourceFolders());
+            for (File folder : folders) {
+                addFiles(folder, index);
+            }
+            for (File manifest : project.getManifestFiles()) {
+                index.put(canonicalize(manifest), scan(manifest));
+            }
+        }
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Can't create " + cacheDir);
+        }
+        // Remove the index first, such that the results aren't used if writing them fails
+        File indexFile = new File(cacheDir, INDEX_FILE);
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Can't delete " + indexFile);
+        }
+        new BinaryReporter(client, new File(cacheDir, RESULTS_FILE), true)
+                .writeResults(stats, warnings);
+        writeIndex(indexFile, index);
+    }
+
+    private void addFiles(@NonNull File file, @NonNull Map<File, Set<String>> index) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    addFiles(child, index);
+                }
+            }
+        } else if (file.isFile()) {
+            index.put(canonicalize(file), scan(file));
+        }
+    }
+
+    /**
+     * Returns the index keys of the given file: the resources and classes it references,
+     * such as {@code string/app_name} or {@code class/com.example.MyView}, and the ones
+     * it defines, prefixed with {@link #DEFINES}. Source files also define and
+     * reference their package, such that the files in a package depend on each other,
+     * since they can use each other's classes without imports. The keys are found by
+     * scanning the text rather than parsing it, so they may include false references
+     * (causing extra files to be analyzed) and miss some references.
+     */
+    @VisibleForTesting
+    @NonNull
+    Set<String> scan(@NonNull File file) {
+        Set<String> keys = new HashSet<>();
+        String name = file.getName();
+        if (name.endsWith(DOT_JAVA) || name.endsWith(DOT_KT)) {
+            scanSource(client.readFile(file), name, keys);
+        } else if (name.equals(ANDROID_MANIFEST_XML)) {
+            scanManifest(client.readFile(file), keys);
+        } else {
+            File parent = file.getParentFile();
+            ResourceFolderType folderType = parent != null
+                    ? ResourceFolderType.getFolderType(parent.getName()) : null;
+            if (folderType == ResourceFolderType.VALUES) {
+                if (name.endsWith(DOT_XML)) {
+                    CharSequence contents = client.readFile(file);
+                    scanValues(contents, keys);
+                    scanXml(contents, keys);
+                }
+            } else if (folderType != null) {
+                int dot = name.indexOf('.');
+                keys.add(DEFINES + folderType.getName() + '/'
+                        + (dot != -1 ? name.substring(0, dot) : name));
+                if (name.endsWith(DOT_XML)) {
+                    scanXml(client.readFile(file), keys);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static void scanSource(@NonNull CharSequence source, @NonNull String fileName,
+            @NonNull Set<String> keys) {
+        Matcher matcher = PACKAGE.matcher(source);
+        String className = fileName.substring(0, fileName.lastIndexOf('.'));
+        if (matcher.find()) {
+            String pkg = matcher.group(1);
+            keys.add(DEFINES + "class/" + pkg + '.' + className);
+            keys.add(DEFINES + "package/" + pkg);
+            keys.add("package/" + pkg);
+        } else {
+            keys.add(DEFINES + "class/" + className);
+        }
+
+        matcher = IMPORT.matcher(source);
+        while (matcher.find()) {
+            keys.add("class/" + matcher.group(1));
+        }
+        // Fully qualified references
+        matcher = QUALIFIED_NAME.matcher(source);
+        while (matcher.find()) {
+            keys.add("class/" + matcher.group(1));
+        }
+        matcher = R_FIELD.matcher(source);
+        while (matcher.find()) {
+            keys.add(matcher.group(1) + '/' + matcher.group(2));
+        }
+    }
+
+    private static void scanXml(@NonNull CharSequence contents, @NonNull Set<String> keys) {
+        Matcher matcher = RESOURCE_URL.matcher(contents);
+        while (matcher.find()) {
+            // Resource names with dots, such as styles, become underscores in R fields
+            String key = matcher.group(2) + '/' + matcher.group(3).replace('.', '_');
+            keys.add(key);
+            if (!matcher.group(1).isEmpty()) {
+                keys.add(DEFINES + key);
+            }
+        }
+        matcher = VIEW_TAG.matcher(contents);
+        while (matcher.find()) {
+            keys.add("class/" + matcher.group(1));
+        }
+        // Fragments and the like
+        matcher = CLASS_NAME.matcher(contents);
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            if (name.indexOf('.') != -1) {
+                keys.add("class/" + name.replace('$', '.'));
+            }
+        }
+    }
+
+    private static void scanManifest(@NonNull CharSequence contents,
+            @NonNull Set<String> keys) {
+        Matcher matcher = MANIFEST_PACKAGE.matcher(contents);
+        String pkg = matcher.find() ? matcher.group(1) : "";
+        matcher = RESOURCE_URL.matcher(contents);
+        while (matcher.find()) {
+            keys.add(matcher.group(2) + '/' + matcher.group(3).replace('.', '_'));
+        }
+        matcher = CLASS_NAME.matcher(contents);
+        while (matcher.find()) {
+            String name = matcher.group(1).replace('$', '.');
+            if (name.startsWith(".")) {
+                name = pkg + name;
+            } else if (name.indexOf('.') == -1) {
+                name = pkg + '.' + name;
+            }
+            keys.add("class/" + name);
+        }
+    }
+
+    private static void scanValues(@NonNull CharSequence contents, @NonNull Set<String> keys) {
+        Matcher matcher = VALUE_TAG.matcher(contents);
+        while (matcher.find()) {
+            String type;
+            String tag = matcher.group(1);
+            switch (tag) {
+                case "string-array":
+                case "integer-array":
+                    type = "array";
+                    break;
+                case "declare-styleable":
+                    type = "styleable";
+                    break;
+                case "item": {
+                    Matcher typeMatcher = TYPE_ATTRIBUTE.matcher(
+                            matcher.group(2) + matcher.group(4));
+                    if (!typeMatcher.find()) {
+                        // An item in a style, array etc
+                        continue;
+                    }
+                    type = typeMatcher.group(1);
+                    break;
+                }
+                case "string":
+                case "color":
+                case "dimen":
+                case "bool":
+                case "integer":
+                case "fraction":
+                case "style":
+                case "attr":
+                case "array":
+                case "plurals":
+                case "drawable":
+                case "id":
+                    type = tag;
+                    break;
+                default:
+                    continue;
+            }
+            keys.add(DEFINES + type + '/' + matcher.group(3).replace('.', '_'));
+        }
+    }
+
+    /**
+     * Reads the index written by {@link #writeIndex}, and the fingerprint of the custom
+     * rules stored with it
+     *
+     * @param file      the index file
+     * @param revisions the map to add the revision of each repository to
+     * @param changed   the set to add the files which were uncommitted at the time to
+     * @return the keys of each file, or null if there is no valid index
+     */
+    @Nullable
+    private Map<File, Set<String>> readIndex(@NonNull File file,
+            @NonNull Map<File, String> revisions, @NonNull Set<File> changed) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Map<File, Set<String>> index = new HashMap<>();
+        try (BufferedReader reader = Files.newReader(file, UTF_8)) {
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2 && fields[0].equals(INDEX_FILE_KEYS)) {
+                    Set<String> keys = new HashSet<>();
+                    if (fields.length > 2) {
+                        Collections.addAll(keys, fields[2].split(" "));
+                    }
+                    index.put(new File(fields[1]), keys);
+                } else if (fields.length == 3 && fields[0].equals(INDEX_REVISION)) {
+                    revisions.put(new File(fields[1]), fields[2]);
+                } else if (fields.length == 2 && fields[0].equals(INDEX_CHANGED)) {
+                    changed.add(new File(fields[1]));
+                } else if (fields.length == 2 && fields[0].equals(INDEX_RULES)) {
+                    previousRules = fields[1];
+                } else {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return index;
+    }
+
+    private void writeIndex(@NonNull File file, @NonNull Map<File, Set<String>> index)
+            throws IOException {
+        try (Writer writer = Files.newWriter(file, UTF_8)) {
+            writer.write(INDEX_HEADER);
+            writer.write('\n');
+            writer.write(INDEX_RULES + '\t' + rules + '\n');
+            for (Map.Entry<File, String> entry : revisions.entrySet()) {
+                writer.write(INDEX_REVISION + '\t' + entry.getKey().getPath() + '\t'
+                        + entry.getValue() + '\n');
+            }
+            // Uncommitted files are analyzed again even if they are reverted
+            for (File uncommitted : new TreeSet<>(uncommittedFiles)) {
+                writer.write(INDEX_CHANGED + '\t' + uncommitted.getPath() + '\n');
+            }
+            for (Map.Entry<File, Set<String>> entry : index.entrySet()) {
+                writer.write(INDEX_FILE_KEYS + '\t' + entry.getKey().getPath() + '\t');
+                writer.write(String.join(" ", new TreeSet<>(entry.getValue())));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the cache directory for the given files: the results depend
+     * on the analyzed files, the options selecting the issues to check and the contents
+     * of the configuration and baseline files, and on the version of lint and of the
+     * custom rules loaded into it
+     */
+    @NonNull
+    private String computeCacheKey(@NonNull List<File> roots) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (File root : roots) {
+            hasher.putString(root.getPath(), UTF_8).putChar('\n');
+        }
+        Set<String> checked = flags.getExactCheckedIds();
+        File configuration = flags.getDefaultConfiguration();
+        File baseline = flags.getBaselineFile();
+        hasher.putString(new TreeSet<>(flags.getSuppressedIds()).toString(), UTF_8)
+                .putString(new TreeSet<>(flags.getEnabledIds()).toString(), UTF_8)
+                .putString(String.valueOf(checked != null ? new TreeSet<>(checked) : null),
+                        UTF_8)
+                .putString(new TreeMap<>(flags.getSeverityOverrides()).toString(), UTF_8)
+                .putString(String.valueOf(configuration), UTF_8)
+                .putString(String.valueOf(baseline), UTF_8)
+                .putBoolean(flags.isCheckAllWarnings())
+                .putBoolean(flags.isIgnoreWarnings())
+                .putBoolean(flags.isWarningsAsErrors())
+                .putBoolean(flags.isCheckTestSources())
+                .putBoolean(flags.isCheckGeneratedSources())
+                .putBoolean(flags.isCheckDependencies())
+                .putBoolean(flags.isFatalOnly());
+        hashFile(hasher, configuration);
+        hashFile(hasher, baseline);
+        for (File root : roots) {
+            hashFile(hasher, new File(root, DefaultConfiguration.CONFIG_FILE_NAME));
+        }
+
+        hasher.putString(String.valueOf(client.getClientRevision()), UTF_8);
+        // Development builds all have the same revision, so also use the lint jar itself
+        // (which is too large to read on each run)
+        File lintJar = findLintJar();
+        if (lintJar != null) {
+            hasher.putString(lintJar.getPath(), UTF_8)
+                    .putLong(lintJar.length())
+                    .putLong(lintJar.lastModified());
+        }
+        for (File jar : client.findGlobalRuleJars()) {
+            hashFile(hasher, jar);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns a fingerprint of the custom rules of the analyzed projects, which are only
+     * known once the projects have been created
+     */
+    @NonNull
+    private String computeRulesKey() {
+        Set<File> jars = new TreeSet<>();
+        for (Project project : projects) {
+            jars.addAll(client.findRuleJars(project));
+        }
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (File jar : jars) {
+            hashFile(hasher, jar);
+        }
+        return hasher.hash().toString();
+    }
+
+    /** Adds the path and contents of the given file, if it exists, to the given hash */
+    private void hashFile(@NonNull Hasher hasher, @Nullable File file) {
+        if (file == null || !file.isFile()) {
+            hasher.putChar('\n');
+            return;
+        }
+        hasher.putString(file.getPath(), UTF_8).putChar('\n');
+        try {
+            hasher.putBytes(client.readBytes(file));
+        } catch (IOException e) {
+            hasher.putLong(file.lastModified());
+        }
+    }
+
+    /** Returns the jar file containing lint, if it is running from one */
+    @Nullable
+    private static File findLintJar() {
+        try {
+            CodeSource source = IncrementalAnalysis.class.getProtectionDomain()
+                    .getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                File file = new File(source.getLocation().toURI());
+                return file.isFile() ? file : null;
+            }
+        } catch (URISyntaxException | SecurityException ignore) {
+            // Can't tell where lint was loaded from
+        }
+        return null;
+    }
+
+    @NonNull
+    private File canonicalize(@NonNull File file) {
+        return canonicalFiles.computeIfAbsent(file, f -> {
+            try {
+                return f.getCanonicalFile();
+            } catch (IOException e) {
+                return f.getAbsoluteFile();
+            }
+        });
+    }
+
+    /** Returns the root of the git repository containing the given file, if any */
+    @Nullable
+    private File findRepository(@NonNull File file) {
+        File dir = file.isDirectory() ? file : file.getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        try {
+            List<String> output = git(dir, "rev-parse", "--show-toplevel");
+            return output.isEmpty() ? null : canonicalize(new File(output.get(0)));
+        } catch (IOException e) {
+            // Not in a git repository, or git isn't installed
+            return null;
+        }
+    }
+
+    /** Adds the files listed by the given git command, run in the repository root */
+    private void addGitFiles(@NonNull File repository, @NonNull Set<File> files,
+            @NonNull String... args) throws IOException {
+        for (String path : git(repository, args)) {
+            if (!path.isEmpty()) {
+                files.add(canonicalize(new File(repository, path)));
+            }
+        }
+    }
+
+    /**
+     * Runs git with the given arguments in the given directory, and returns its output
+     *
+     * @throws IOException if git can't be run or fails
+     */
+    @NonNull
+    private static List<String> git(@NonNull File dir, @NonNull String... args)
+            throws IOException {
+        List<String> command = new ArrayList<>(args.length + 3);
+        command.add("git");
+        // List non-ASCII paths as is rather than quoted
+        command.add("-c");
+        command.add("core.quotepath=off");
+        Collections.addAll(command, args);
+
+        File errors = File.createTempFile("lint-git", ".txt");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .directory(dir)
+                    .redirectError(errors)
+                    .start();
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    lines.add(line);
+                }
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(String.join(" ", command) + " failed: "
+                        + Files.toString(errors, UTF_8).trim());
+            }
+            return lines;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running git");
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            errors.delete();
+        }
+    }
+}
@@ -38,6 +38,7 @@ import com.android.manifmerger.MergingReport;
 import com.android.manifmerger.XmlDocument;
 import com.android.sdklib.IAndroidTarget;
 import com.android.tools.lint.Reporter.Stats;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
 import com.android.tools.lint.checks.HardcodedValuesDetector;
 import com.android.tools.lint.client.api.Configuration;
 import com.android.tools.lint.client.api.DefaultConfiguration;
@@ -48,6 +49,7 @@ import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.client.api.LintDriver;
 import com.android.tools.lint.client.api.LintListener;
 import com.android.tools.lint.client.api.LintRequest;
+import com.android.tools.lint.client.api.MemoryGovernor;
 import com.android.tools.lint.client.api.UastParser;
 import com.android.tools.lint.client.api.XmlParser;
 import com.android.tools.lint.detector.api.Category;
@@ -74,6 +76,7 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.roots.LanguageLevelProjectExtension;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.PsiManager;
 import com.intellij.util.lang.UrlClassLoader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -88,6 +91,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Set;
 import javax.xml.parsers.ParserConfigurationException;
@@ -122,6 +126,9 @@ public class LintCliClient extends LintClient {
     protected final LintCliFlags flags;
     private Configuration configuration;
     private boolean validatedIds;
+    @Nullable private IncrementalAnalysis incremental;
+    /** Watches the heap usage during {@link #run}, if enabled in the flags */
+    @Nullable private MemoryGovernor memoryGovernor;
 
     /** Creates a CLI driver */
     public LintCliClient() {
@@ -144,8 +151,30 @@ public class LintCliClient extends LintClient {
      */
     public int run(@NonNull IssueRegistry registry, @NonNull List<File> files) throws IOException {
         assert !flags.getReporters().isEmpty();
+        // Watch the heap from the start, such that the project setup and the reports
+        // can scale back as well
+        double threshold = flags.getLowMemoryThreshold();
+        memoryGovernor = threshold > 0 ? new MemoryGovernor(threshold) : null;
+        try {
+            return analyze(registry, files);
+        } finally {
+            if (memoryGovernor != null) {
+                memoryGovernor.dispose();
+                memoryGovernor = null;
+            }
+        }
+    }
+
+    private int analyze(@NonNull IssueRegistry registry, @NonNull List<File> files)
+            throws IOException {
         this.registry = registry;
 
+        incremental = flags.getChangedFiles() != null || flags.getChangedSince() != null
+                ? new IncrementalAnalysis(this) : null;
+        if (incremental != null) {
+            incremental.prepare(files);
+        }
+
         LintRequest lintRequest = createLintRequest(files);
         driver = createDriver(registry, lintRequest);
 
@@ -170,6 +199,161 @@ public class LintCliClient extends LintClient {
         Stats stats = new Stats(errorCount, warningCount,
                 baselineErrorCount, baselineWarningCount, fixedCount);
 
+        if (incremental != null) {
+            if (incremental.isFullRun()) {
+                incremental.saveResults(stats, warnings);
+            } else {
+                // Report the results of this run along with those of the previous run for
+                // the files which weren't analyzed again
+                List<Warning> merged = incremental.mergeResults(registry, warnings);
+                warnings.clear();
+                hasErrors = false;
+                errorCount = 0;
+                warningCount = 0;
+                for (Warning warning : merged) {
+                    addMergedWarning(warning);
+                }
+                Stats previous = incremental.getPreviousStats();
+                assert previous != null;
+                stats = new Stats(errorCount, warningCount, previous.baselineErrorCount,
+                        previous.baselineWarningCount, previous.baselineFixedCount);
+            }
+        }
+
+        return writeReports(stats);
+    }
+
+    /**
+     * Combines the results written by {@link BinaryReporter}s in earlier runs, such as
+     * runs over different modules or on different machines, and writes them with the
+     * reporters in the command line flags.
+     * <p>
+     * The warnings in each results file are already sorted, so they are combined with a
+     * k-way merge rather than sorted again. Warnings found by more than one of the runs,
+     * such as warnings in a library analyzed along with each of the modules depending
+     * on it, are only included once.
+     *
+     * @param registry the registry to look up the issues in
+     * @param files    the results files
+     * @return the exit code
+     * @throws IOException if a results file could not be read
+     */
+    public int mergeResults(@NonNull IssueRegistry registry, @NonNull List<File> files)
+            throws IOException {
+        assert !flags.getReporters().isEmpty();
+        this.registry = registry;
+
+        int baselineErrorCount = 0;
+        int baselineWarningCount = 0;
+        int fixedCount = 0;
+
+        BinaryResultsReader.SharedObjects shared = new BinaryResultsReader.SharedObjects();
+        List<BinaryResultsReader> readers = new ArrayList<>(files.size());
+        PriorityQueue<MergeEntry> queue = new PriorityQueue<>(Math.max(1, files.size()));
+        try {
+            for (File file : files) {
+                BinaryResultsReader reader = new BinaryResultsReader(this, registry, file,
+                        shared);
+                readers.add(reader);
+                Stats stats = reader.getStats();
+                baselineErrorCount += stats.baselineErrorCount;
+                baselineWarningCount += stats.baselineWarningCount;
+                fixedCount += stats.baselineFixedCount;
+                Warning warning = reader.read();
+                if (warning != null) {
+                    queue.add(new MergeEntry(warning, readers.size() - 1));
+                }
+            }
+
+            // The merged warnings which compare equal to the current one; the queue can
+            // return these in any order, so a duplicate isn't necessarily adjacent to the
+            // warning it duplicates
+            List<MergeEntry> equivalent = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                MergeEntry entry = queue.poll();
+                Warning warning = entry.warning;
+                if (!equivalent.isEmpty()
+                        && equivalent.get(0).warning.compareTo(warning) != 0) {
+                    equivalent.clear();
+                }
+                if (!isDuplicate(entry, equivalent)) {
+                    addMergedWarning(warning);
+                    equivalent.add(entry);
+                }
+                Warning next = readers.get(entry.index).read();
+                if (next != null) {
+                    queue.add(new MergeEntry(next, entry.index));
+                }
+            }
+        } finally {
+            for (BinaryResultsReader reader : readers) {
+                reader.close();
+            }
+        }
+
+        File baselineFile = flags.getBaselineFile();
+        if (baselineFile != null && baselineFile.isFile()) {
+            // Each of the merged runs, such as the shards of a project, only matched the
+            // baseline entries in its part of the analysis, so count the fixed entries
+            // from the combined matches instead
+            int total = new LintBaseline(this, baselineFile).getTotalCount();
+            fixedCount = Math.max(0, total - baselineErrorCount - baselineWarningCount);
+        }
+
+        Stats stats = new Stats(errorCount, warningCount,
+                baselineErrorCount, baselineWarningCount, fixedCount);
+
+        return writeReports(stats);
+    }
+
+    /**
+     * Returns true if the given warning was already merged from another results file,
+     * given the merged warnings which compare equal to it
+     */
+    private static boolean isDuplicate(@NonNull MergeEntry entry,
+            @NonNull List<MergeEntry> equivalent) {
+        for (MergeEntry merged : equivalent) {
+            // Warnings within one results file are all distinct
+            if (merged.index != entry.index && merged.warning.equals(entry.warning)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addMergedWarning(@NonNull Warning warning) {
+        if (warning.severity.isError()) {
+            hasErrors = true;
+            errorCount++;
+        } else {
+            warningCount++;
+        }
+        if (warning.fileContents == null && warning.file != null && warning.line >= 0
+                && warning.file.isFile()) {
+            warning.fileContents = getContents(warning.file);
+        }
+        warnings.add(warning);
+    }
+
+    /** A warning read from the results file with the given index, for merging */
+    private static final class MergeEntry implements Comparable<MergeEntry> {
+        final Warning warning;
+        final int index;
+
+        MergeEntry(@NonNull Warning warning, int index) {
+            this.warning = warning;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(@NonNull MergeEntry other) {
+            int delta = warning.compareTo(other.warning);
+            return delta != 0 ? delta : Integer.compare(index, other.index);
+        }
+    }
+
+    /** Writes the warnings with the reporters, and returns the exit code */
+    private int writeReports(@NonNull Stats stats) throws IOException {
         boolean hasConsoleOutput = false;
         for (Reporter reporter : flags.getReporters()) {
             reporter.write(stats, warnings);
@@ -180,7 +364,8 @@ public class LintCliClient extends LintClient {
 
         File baselineFile = flags.getBaselineFile();
         if (!flags.isQuiet() && !hasConsoleOutput) {
-            if (baselineErrorCount > 0 || baselineWarningCount > 0) {
+            if (baselineFile != null
+                    && (stats.baselineErrorCount > 0 || stats.baselineWarningCount > 0)) {
                 if (errorCount == 0 && warningCount == 1) {
                     // the warning is the warning about baseline issues having been filtered
                     // out, don't list this as "1 warning"
@@ -190,7 +375,6 @@ public class LintCliClient extends LintClient {
                             LintUtils.describeCounts(errorCount, Math.max(0, warningCount - 1),
                                     true, false)));
                 }
-                assert baselineFile != null;
                 System.out.print(String.format(" (%1$s filtered by baseline %2$s)",
                         LintUtils.describeCounts(stats.baselineErrorCount,
                                 stats.baselineWarningCount, true, true),
@@ -259,6 +443,11 @@ public class LintCliClient extends LintClient {
         driver.setCheckGeneratedSources(flags.isCheckGeneratedSources());
         driver.setFatalOnlyMode(flags.isFatalOnly());
         driver.setCheckDependencies(flags.isCheckDependencies());
+        driver.setShardCount(flags.getShardCount());
+        driver.setShardIndex(flags.getShardIndex());
+        driver.setDetectorTimeBudget(flags.getDetectorTimeBudget());
+        driver.setQuarantineSlowDetectors(flags.isQuarantineSlowDetectors());
+        driver.setMemoryGovernor(memoryGovernor);
 
         File baselineFile = flags.getBaselineFile();
         if (baselineFile != null) {
@@ -268,6 +457,9 @@ public class LintCliClient extends LintClient {
                 baseline.setWriteOnClose(true);
                 baseline.setRemoveFixed(true);
             }
+            if (flags.isPartialAnalysis()) {
+                baseline.setPartialAnalysis(true);
+            }
         }
 
         return driver;
@@ -325,6 +517,25 @@ public class LintCliClient extends LintClient {
         return mFileContents.computeIfAbsent(file, k -> readFile(file));
     }
 
+    /**
+     * Returns true if the heap is running low (see
+     * {@link LintCliFlags#getLowMemoryThreshold()}), in which case parallel work and caches
+     * should be scaled back
+     */
+    public boolean isLowOnMemory() {
+        MemoryGovernor governor = memoryGovernor;
+        return governor != null && governor.isLowOnMemory();
+    }
+
+    @Override
+    public void trimMemory() {
+        mFileContents.clear();
+        if (ideaProject != null) {
+            PsiManager.getInstance(ideaProject).dropResolveCaches();
+        }
+        LintCoreApplicationEnvironment.clearAccessorCache();
+    }
+
     @Override
     public JavaParser getJavaParser(@Nullable Project project) {
         return new EcjParser(this, project);
@@ -680,7 +891,11 @@ public class LintCliClient extends LintClient {
     private void validateIssueIds(@Nullable Project project) {
         if (driver != null) {
             IssueRegistry registry = driver.getRegistry();
-            if (!registry.isIssueId(HardcodedValuesDetector.ISSUE.getId())) {
+            // When only checking specific issues, the registry only has those of the
+            // builtin issues; the others are looked up in the index instead
+            boolean restricted = this.registry instanceof BuiltinIssueRegistry
+                    && ((BuiltinIssueRegistry) this.registry).isRestricted();
+            if (!restricted && !registry.isIssueId(HardcodedValuesDetector.ISSUE.getId())) {
                 // This should not be necessary, but there have been some strange
                 // reports where lint has reported some well known builtin issues
                 // to not exist:
@@ -699,18 +914,20 @@ public class LintCliClient extends LintClient {
                 return;
             }
             validatedIds = true;
-            validateIssueIds(project, registry, flags.getExactCheckedIds());
-            validateIssueIds(project, registry, flags.getEnabledIds());
-            validateIssueIds(project, registry, flags.getSuppressedIds());
-            validateIssueIds(project, registry, flags.getSeverityOverrides().keySet());
+            validateIssueIds(project, registry, restricted, flags.getExactCheckedIds());
+            validateIssueIds(project, registry, restricted, flags.getEnabledIds());
+            validateIssueIds(project, registry, restricted, flags.getSuppressedIds());
+            validateIssueIds(project, registry, restricted,
+                    flags.getSeverityOverrides().keySet());
         }
     }
 
     private void validateIssueIds(@Nullable Project project, @NonNull IssueRegistry registry,
-            @Nullable Collection<String> ids) {
+            boolean restricted, @Nullable Collection<String> ids) {
         if (ids != null) {
             for (String id : ids) {
-                if (registry.getIssue(id) == null) {
+                if (registry.getIssue(id) == null
+                        && !(restricted && BuiltinIssueRegistry.isBuiltinIssueId(id))) {
                     reportNonExistingIssueId(project, id);
                 }
             }
@@ -920,6 +1137,10 @@ public class LintCliClient extends LintClient {
 
     @Override
     public void initializeProjects(@NonNull Collection<? extends Project> knownProjects) {
+        if (incremental != null) {
+            incremental.initializeProjects(knownProjects, driver);
+        }
+
         // Initialize the associated idea project to use
 
         LintCoreApplicationEnvironment appEnv = LintCoreApplicationEnvironment.get();
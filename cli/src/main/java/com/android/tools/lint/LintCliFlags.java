@@ -67,6 +67,14 @@ public class LintCliFlags {
     private boolean showAll;
     private boolean removedFixedBaselineIssues;
     private boolean writeBaselineIfMissing = true;
+    private int shardIndex;
+    private int shardCount = 1;
+    private List<File> changedFiles;
+    private String changedSince;
+    private long detectorTimeBudget;
+    private boolean quarantineSlowDetectors;
+    private double lowMemoryThreshold;
+    private boolean partialAnalysis;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -563,4 +571,168 @@ public class LintCliFlags {
     public void setWriteBaselineIfMissing(boolean writeBaselineIfMissing) {
         this.writeBaselineIfMissing = writeBaselineIfMissing;
     }
+
+    /**
+     * Returns the (0-based) shard of the project to analyze, when the analysis is split
+     * into {@link #getShardCount()} shards
+     *
+     * @return the shard to analyze
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Returns the number of shards the analysis is split into, such that separate lint
+     * runs (for example on different machines) each analyze part of the project and
+     * their results are merged afterwards. The default is 1: analyze everything.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the shard of the project to analyze
+     *
+     * @see #getShardCount()
+     * @param shardIndex the (0-based) shard to analyze
+     * @param shardCount the number of shards
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        assert shardIndex >= 0 && shardIndex < shardCount : shardIndex;
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Returns the files which changed since the previous run, if only those (and the
+     * files depending on them) should be analyzed, with the results of the previous
+     * run used for the other files
+     *
+     * @return the changed files, or null
+     */
+    @Nullable
+    public List<File> getChangedFiles() {
+        return changedFiles;
+    }
+
+    /**
+     * Sets the files which changed since the previous run
+     *
+     * @see #getChangedFiles()
+     * @param changedFiles the changed files, or null
+     */
+    public void setChangedFiles(@Nullable List<File> changedFiles) {
+        this.changedFiles = changedFiles;
+    }
+
+    /**
+     * Returns the version control (git) revision to analyze the changes since, if only
+     * the files changed since that revision (and the files depending on them) should be
+     * analyzed, with the results of the previous run used for the other files
+     *
+     * @return the revision, or null
+     */
+    @Nullable
+    public String getChangedSince() {
+        return changedSince;
+    }
+
+    /**
+     * Sets the version control revision to analyze the changes since
+     *
+     * @see #getChangedSince()
+     * @param changedSince the revision, or null
+     */
+    public void setChangedSince(@Nullable String changedSince) {
+        this.changedSince = changedSince;
+    }
+
+    /**
+     * Returns the maximum number of milliseconds a single detector may spend analyzing a
+     * single file before the analysis of the file is canceled, or 0 for no limit
+     *
+     * @return the time budget in milliseconds, or 0
+     */
+    public long getDetectorTimeBudget() {
+        return detectorTimeBudget;
+    }
+
+    /**
+     * Sets the maximum number of milliseconds a single detector may spend analyzing a
+     * single file
+     *
+     * @see #getDetectorTimeBudget()
+     * @param detectorTimeBudget the time budget in milliseconds, or 0 for no limit
+     */
+    public void setDetectorTimeBudget(long detectorTimeBudget) {
+        this.detectorTimeBudget = detectorTimeBudget;
+    }
+
+    /**
+     * Returns whether a detector exceeding the {@link #getDetectorTimeBudget() time budget}
+     * should be disabled for the rest of the run
+     *
+     * @return true to disable slow detectors
+     */
+    public boolean isQuarantineSlowDetectors() {
+        return quarantineSlowDetectors;
+    }
+
+    /**
+     * Sets whether a detector exceeding the time budget should be disabled for the rest of
+     * the run
+     *
+     * @see #isQuarantineSlowDetectors()
+     * @param quarantineSlowDetectors true to disable slow detectors
+     */
+    public void setQuarantineSlowDetectors(boolean quarantineSlowDetectors) {
+        this.quarantineSlowDetectors = quarantineSlowDetectors;
+    }
+
+    /**
+     * Returns the fraction of the maximum heap size which, when still in use after a
+     * garbage collection, makes lint release the memory it can recompute, or 0 to never
+     * do so
+     *
+     * @return the threshold, between 0 and 1
+     */
+    public double getLowMemoryThreshold() {
+        return lowMemoryThreshold;
+    }
+
+    /**
+     * Sets the fraction of the maximum heap size above which lint releases memory
+     *
+     * @see #getLowMemoryThreshold()
+     * @param lowMemoryThreshold the threshold, between 0 and 1, or 0 to turn this off
+     */
+    public void setLowMemoryThreshold(double lowMemoryThreshold) {
+        this.lowMemoryThreshold = lowMemoryThreshold;
+    }
+
+    /**
+     * Returns whether this run only analyzes part of the projects whose results are
+     * reported together, such as a worker process of a run with several workers. The
+     * baseline entries which aren't found are then not counted as fixed, since they may
+     * be found by the other parts; the run combining the results counts them.
+     *
+     * @return true if only part of the analysis is performed
+     */
+    public boolean isPartialAnalysis() {
+        return partialAnalysis;
+    }
+
+    /**
+     * Sets whether this run only analyzes part of the projects whose results are
+     * reported together
+     *
+     * @see #isPartialAnalysis()
+     * @param partialAnalysis true if only part of the analysis is performed
+     */
+    public void setPartialAnalysis(boolean partialAnalysis) {
+        this.partialAnalysis = partialAnalysis;
+    }
 }
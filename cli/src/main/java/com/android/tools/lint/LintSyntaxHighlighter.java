@@ -28,13 +28,8 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.LintUtils;
 import com.android.utils.HtmlBuilder;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Map;
 
 public class LintSyntaxHighlighter {
     private static final int STYLE_PLAIN_TEXT = 1;
@@ -55,13 +50,20 @@ public class LintSyntaxHighlighter {
 
     private final String source;
 
-    // Map from offset to STYLE_ constant
-    private final Map<Integer,Integer> styles;
-    // Map from line start offset to line number
-    private final HashBiMap<Integer,Integer> lineNumbers;
+    // Sorted offsets where the style changes, and the STYLE_ constant from each offset on.
+    // These are not modified after tokenization, so a highlighter can be used to generate
+    // HTML for any number of ranges, from any thread.
+    private int[] offsets;
+    private int[] offsetStyles;
+    // Start offset of each line, indexed by line number
+    private int[] lineStarts;
     private int lineCount;
 
-    private List<Integer> sortedOffsets;
+    // Style changes recorded during tokenization, in the order they were set.
+    // Later entries for the same offset take precedence.
+    private int[] tokenOffsets;
+    private int[] tokenStyles;
+    private int tokenCount;
 
     private boolean forceSingleLineRange = true;
 
@@ -71,10 +73,10 @@ public class LintSyntaxHighlighter {
 
     public LintSyntaxHighlighter(@NonNull String fileName, @NonNull String source) {
         this.source = source;
-        int estimatedLineCount = Math.min(10, source.length() / 50);
-        lineNumbers = HashBiMap.create(estimatedLineCount);
         // Estimate at least 5 spans per line
-        styles = Maps.newHashMapWithExpectedSize(5 * estimatedLineCount);
+        int estimatedSpanCount = Math.max(16, source.length() / 10);
+        tokenOffsets = new int[estimatedSpanCount];
+        tokenStyles = new int[estimatedSpanCount];
 
         initializeLineNumberMap();
 
@@ -82,8 +84,8 @@ public class LintSyntaxHighlighter {
     }
 
     private void tokenizeFile(@NonNull String fileName) {
-        styles.put(0, STYLE_PLAIN_TEXT);
-        styles.put(source.length(), STYLE_PLAIN_TEXT);
+        setStyle(0, STYLE_PLAIN_TEXT);
+        setStyle(source.length(), STYLE_PLAIN_TEXT);
 
         if (endsWithIgnoreCase(fileName, DOT_XML)) {
             tokenizeXml();
@@ -97,8 +99,7 @@ public class LintSyntaxHighlighter {
             tokenizeJavaLikeLanguage(LintSyntaxHighlighter::isAidlKeyword);
         } // else: plaintext: no need to tokenize
 
-        updateSortedOffsets();
-        removeRepeatedStyleSpans();
+        sortStyleOffsets();
     }
 
     @SuppressWarnings("unused")
@@ -176,7 +177,7 @@ public class LintSyntaxHighlighter {
                         continue;
                     } else if (c == '"') {
                         state = STATE_STRING_DOUBLE_QUOTE;
-                        styles.put(offset, STYLE_STRING);
+                        setStyle(offset, STYLE_STRING);
                         // Look for triple-quoted strings (Groovy and Kotlin)
                         if (source.startsWith("\"\"\"", offset)) {
                             state = STATE_STRING_TRIPLE_DOUBLE_QUOTE;
@@ -185,7 +186,7 @@ public class LintSyntaxHighlighter {
                         }
                     } else if (c == '\'') {
                         state = STATE_STRING_SINGLE_QUOTE;
-                        styles.put(offset, STYLE_STRING);
+                        setStyle(offset, STYLE_STRING);
                         // Look for triple-quoted strings (Groovy and Kotlin)
                         if (source.startsWith("'''", offset)) {
                             state = STATE_STRING_TRIPLE_SINGLE_QUOTE;
@@ -194,7 +195,7 @@ public class LintSyntaxHighlighter {
                         }
                     } else if (Character.isDigit(c)) {
                         state = STATE_NUMBER;
-                        styles.put(offset, STYLE_NUMBER);
+                        setStyle(offset, STYLE_NUMBER);
                     } else if (Character.isJavaIdentifierStart(c)) {
                         state = STATE_IDENTIFIER;
                         identifierStart = offset;
@@ -213,7 +214,7 @@ public class LintSyntaxHighlighter {
                         offset++;
                         continue;
                     }
-                    styles.put(offset, STYLE_PLAIN_TEXT);
+                    setStyle(offset, STYLE_PLAIN_TEXT);
                     state = STATE_INITIAL;
                     continue;
                 }
@@ -227,11 +228,11 @@ public class LintSyntaxHighlighter {
                     // See if the identifier was a keyword, and if so highlight it
                     String identifier = source.substring(identifierStart, offset);
                     if (keywordLookup.isKeyword(identifier)) {
-                        styles.put(identifierStart, STYLE_KEYWORD);
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(identifierStart, STYLE_KEYWORD);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                     } else if (identifierStart > 0 && source.charAt(identifierStart - 1) == '@') {
-                        styles.put(identifierStart - 1, STYLE_ANNOTATION);
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(identifierStart - 1, STYLE_ANNOTATION);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                     }
 
                     state = STATE_INITIAL;
@@ -242,14 +243,14 @@ public class LintSyntaxHighlighter {
                 case STATE_SLASH: {
                     if (c == '/') {
                         state = STATE_LINE_COMMENT;
-                        styles.put(offset - 1, STYLE_COMMENT);
+                        setStyle(offset - 1, STYLE_COMMENT);
                     } else if (c == '*') {
                         state = STATE_BLOCK_COMMENT;
                         if (offset < source.length() - 1 && source.charAt(offset + 1) == '*') {
-                            styles.put(offset - 1, STYLE_JAVADOC_COMMENT);
+                            setStyle(offset - 1, STYLE_JAVADOC_COMMENT);
                             offset++;
                         } else {
-                            styles.put(offset - 1, STYLE_COMMENT);
+                            setStyle(offset - 1, STYLE_COMMENT);
                         }
                     } else {
                         state = STATE_INITIAL;
@@ -262,7 +263,7 @@ public class LintSyntaxHighlighter {
                 case STATE_LINE_COMMENT: {
                     if (c == '\n') {
                         state = STATE_INITIAL;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                     }
                     offset++;
                     continue;
@@ -273,7 +274,7 @@ public class LintSyntaxHighlighter {
                             source.charAt(offset + 1) == '/') {
                         state = STATE_INITIAL;
                         offset += 2;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         continue;
                     }
                     offset++;
@@ -287,7 +288,7 @@ public class LintSyntaxHighlighter {
                     } else if (c == '"') {
                         state = STATE_INITIAL;
                         offset++;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         continue;
                     }
 
@@ -304,7 +305,7 @@ public class LintSyntaxHighlighter {
                     } else if (c == '\'') {
                         state = STATE_INITIAL;
                         offset++;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         continue;
                     }
 
@@ -315,7 +316,7 @@ public class LintSyntaxHighlighter {
                 case STATE_STRING_TRIPLE_DOUBLE_QUOTE: {
                     if (c == '"' && source.startsWith("\"\"\"", offset)) {
                         offset += 3;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         state = STATE_INITIAL;
                         continue;
                     }
@@ -326,7 +327,7 @@ public class LintSyntaxHighlighter {
                 case STATE_STRING_TRIPLE_SINGLE_QUOTE: {
                     if (c == '\'' && source.startsWith("'''", offset)) {
                         offset += 3;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         state = STATE_INITIAL;
                         continue;
                     }
@@ -458,21 +459,21 @@ public class LintSyntaxHighlighter {
                 case STATE_SLASH: {
                     if (c == '!') {
                         if (source.startsWith("!--", offset)) {
-                            styles.put(offset - 1, STYLE_COMMENT);
+                            setStyle(offset - 1, STYLE_COMMENT);
                             // Comment
                             int end = source.indexOf("-->", offset + 3);
                             if (end == -1) {
                                 offset = length;
-                                styles.put(offset, STYLE_PLAIN_TEXT);
+                                setStyle(offset, STYLE_PLAIN_TEXT);
                                 break;
                             }
                             offset = end + 3;
-                            styles.put(offset, STYLE_PLAIN_TEXT);
+                            setStyle(offset, STYLE_PLAIN_TEXT);
                             state = STATE_TEXT;
                             continue;
                         } else if (source.startsWith("![CDATA[", offset)) {
                             // TODO: Syntax higlight this better
-                            //styles.put(offset - 1, STYLE_COMMENT);
+                            //setStyle(offset - 1, STYLE_COMMENT);
 
                             // Skip CDATA text content; HTML text is irrelevant to this tokenizer
                             // anyway
@@ -486,12 +487,12 @@ public class LintSyntaxHighlighter {
                             continue;
                         }
                     } else if (c == '/') {
-                        styles.put(offset - 1, STYLE_TAG);
+                        setStyle(offset - 1, STYLE_TAG);
                         state = STATE_CLOSE_TAG;
                         offset++;
                         continue;
                     } else if (c == '?') {
-                        styles.put(offset - 1, STYLE_PROLOGUE);
+                        setStyle(offset - 1, STYLE_PROLOGUE);
                         // XML Prologue
                         int end = source.indexOf('>', offset + 2);
                         if (end == -1) {
@@ -500,18 +501,18 @@ public class LintSyntaxHighlighter {
                             break;
                         }
                         offset = end + 1;
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                         continue;
                     }
-                    styles.put(offset - 1, STYLE_TAG);
+                    setStyle(offset - 1, STYLE_TAG);
                     state = STATE_IN_TAG;
                     break;
                 }
 
                 case STATE_CLOSE_TAG: {
                     if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     }
                     offset++;
@@ -521,12 +522,12 @@ public class LintSyntaxHighlighter {
                 case STATE_IN_TAG: {
                     if (Character.isWhitespace(c)) {
                         state = STATE_BEFORE_ATTRIBUTE;
-                        styles.put(offset, STYLE_ATTRIBUTE);
+                        setStyle(offset, STYLE_ATTRIBUTE);
                     } else if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     } else if (c == '/') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_ENDING_TAG;
                     }
                     offset++;
@@ -543,13 +544,13 @@ public class LintSyntaxHighlighter {
 
                 case STATE_BEFORE_ATTRIBUTE: {
                     if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     } else //noinspection StatementWithEmptyBody
                         if (c == '/') {
                             // we expect an '>' next to close the tag
                         } else if (!Character.isWhitespace(c)) {
-                            styles.put(offset, STYLE_ATTRIBUTE);
+                            setStyle(offset, STYLE_ATTRIBUTE);
                             state = STATE_ATTRIBUTE_NAME;
                             attributeStart = offset;
                         }
@@ -558,17 +559,17 @@ public class LintSyntaxHighlighter {
                 }
                 case STATE_ATTRIBUTE_NAME: {
                     if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     } else if (c == '=') {
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         state = STATE_ATTRIBUTE_AFTER_EQUALS;
                     } else if (Character.isWhitespace(c)) {
-                        styles.put(offset, STYLE_PLAIN_TEXT);
+                        setStyle(offset, STYLE_PLAIN_TEXT);
                         state = STATE_ATTRIBUTE_BEFORE_EQUALS;
                     } else if (c == ':') {
-                        styles.put(attributeStart, STYLE_PREFIX);
-                        styles.put(offset + 1, STYLE_ATTRIBUTE);
+                        setStyle(attributeStart, STYLE_PREFIX);
+                        setStyle(offset + 1, STYLE_ATTRIBUTE);
                     }
                     offset++;
                     break;
@@ -577,7 +578,7 @@ public class LintSyntaxHighlighter {
                     if (c == '=') {
                         state = STATE_ATTRIBUTE_AFTER_EQUALS;
                     } else if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     } else if (!Character.isWhitespace(c)) {
                         // Attribute value not specified (used for some boolean attributes)
@@ -591,15 +592,15 @@ public class LintSyntaxHighlighter {
                 case STATE_ATTRIBUTE_AFTER_EQUALS: {
                     if (c == '\'') {
                         // a='b'
-                        styles.put(offset, STYLE_VALUE);
+                        setStyle(offset, STYLE_VALUE);
                         state = STATE_ATTRIBUTE_VALUE_SINGLE;
                     } else if (c == '"') {
                         // a="b"
-                        styles.put(offset, STYLE_VALUE);
+                        setStyle(offset, STYLE_VALUE);
                         state = STATE_ATTRIBUTE_VALUE_DOUBLE;
                     } else if (!Character.isWhitespace(c)) {
                         // a=b
-                        styles.put(offset, STYLE_VALUE);
+                        setStyle(offset, STYLE_VALUE);
                         state = STATE_ATTRIBUTE_VALUE_NONE;
                     }
                     offset++;
@@ -608,7 +609,7 @@ public class LintSyntaxHighlighter {
 
                 case STATE_ATTRIBUTE_VALUE_SINGLE: {
                     if (c == '\'') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_BEFORE_ATTRIBUTE;
                     }
                     offset++;
@@ -616,7 +617,7 @@ public class LintSyntaxHighlighter {
                 }
                 case STATE_ATTRIBUTE_VALUE_DOUBLE: {
                     if (c == '"') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_BEFORE_ATTRIBUTE;
                     }
                     offset++;
@@ -624,10 +625,10 @@ public class LintSyntaxHighlighter {
                 }
                 case STATE_ATTRIBUTE_VALUE_NONE: {
                     if (c == '>') {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_TEXT;
                     } else if (Character.isWhitespace(c)) {
-                        styles.put(offset + 1, STYLE_PLAIN_TEXT);
+                        setStyle(offset + 1, STYLE_PLAIN_TEXT);
                         state = STATE_BEFORE_ATTRIBUTE;
                     }
                     offset++;
@@ -639,89 +640,92 @@ public class LintSyntaxHighlighter {
         }
     }
 
-    private void removeRepeatedStyleSpans() {
+    private void setStyle(int offset, int style) {
+        if (tokenCount == tokenOffsets.length) {
+            int capacity = 2 * tokenCount;
+            tokenOffsets = Arrays.copyOf(tokenOffsets, capacity);
+            tokenStyles = Arrays.copyOf(tokenStyles, capacity);
+        }
+        tokenOffsets[tokenCount] = offset;
+        tokenStyles[tokenCount] = style;
+        tokenCount++;
+    }
+
+    /**
+     * Sorts the style changes recorded during tokenization, keeping only the last style
+     * set for each offset, and removes the changes which repeat the previous style
+     */
+    private void sortStyleOffsets() {
+        // Sort by offset, and then by the order in which the styles were set
+        long[] keys = new long[tokenCount];
+        for (int i = 0; i < tokenCount; i++) {
+            keys[i] = ((long) tokenOffsets[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
         int length = source.length();
-        // Remove repeated entries
+        int[] sortedOffsets = new int[tokenCount];
+        int[] sortedStyles = new int[tokenCount];
+        int count = 0;
         int prevStyle = -1;
-        for (Integer o : sortedOffsets) {
-            int style = styles.get(o);
-            if (prevStyle == style && length != o) {
-                styles.remove(o);
-            } else {
-                prevStyle = style;
+        for (int i = 0; i < tokenCount; i++) {
+            int offset = (int) (keys[i] >> 32);
+            if (i < tokenCount - 1 && (int) (keys[i + 1] >> 32) == offset) {
+                // Replaced by a later style at the same offset
+                continue;
+            }
+            int style = tokenStyles[(int) keys[i]];
+            if (prevStyle == style && length != offset) {
+                continue;
             }
+            sortedOffsets[count] = offset;
+            sortedStyles[count] = style;
+            count++;
+            prevStyle = style;
         }
-        updateSortedOffsets();
-    }
 
-    private void updateSortedOffsets() {
-        sortedOffsets = Lists.newArrayList(styles.keySet());
-        Collections.sort(sortedOffsets);
+        offsets = Arrays.copyOf(sortedOffsets, count);
+        offsetStyles = Arrays.copyOf(sortedStyles, count);
+        tokenOffsets = null;
+        tokenStyles = null;
+        tokenCount = 0;
     }
 
     public void initializeLineNumberMap() {
-        lineNumbers.put(0, 0);
-
-        int lineNumber = 0;
-        for (int offset = 0; offset < source.length(); offset++) {
+        int length = source.length();
+        int[] starts = new int[Math.max(16, length / 40)];
+        int count = 0;
+        starts[count++] = 0;
+        for (int offset = 0; offset < length; offset++) {
             char c = source.charAt(offset);
             if (c == '\n') {
-                lineNumber++;
-                lineNumbers.put(offset + 1, lineNumber);
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * count);
+                }
+                starts[count++] = offset + 1;
             }
         }
-        lineCount = lineNumber + 1;
+        lineStarts = Arrays.copyOf(starts, count);
+        lineCount = count;
     }
 
-    private int getLineNumber(int offset) {
-        int lineStart = findLineStartOffset(offset);
-        Integer line = lineNumbers.get(lineStart);
-        assert line != null : lineStart;
-        return line;
+    /** Returns the index of the last element in the sorted array which is at most key */
+    private static int floorIndex(@NonNull int[] sorted, int key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index : -index - 2;
     }
 
-    private void insertRedundantMarker(int offset) {
-        for (int o = 1; o < sortedOffsets.size(); o++) {
-            int begin = sortedOffsets.get(o - 1);
-            int end = sortedOffsets.get(o);
-            if (offset == begin || offset == end) {
-                return;
-            } else if (offset < end) {
-                int style = styles.get(begin);
-                styles.put(offset, style);
-                return;
-            }
-        }
+    private int getLineNumber(int offset) {
+        return Math.max(0, floorIndex(lineStarts, offset));
     }
 
     private int findLineStartOffset(int offset) {
-        if (offset < 0) {
-            return 0;
-        }
-        if (offset >= source.length()) {
-            offset = source.length();
-        }
-        while (--offset >= 0) {
-            char c = source.charAt(offset);
-            if (c == '\n') {
-                break;
-            }
-        }
-
-        return offset + 1;
+        return lineStarts[getLineNumber(offset)];
     }
 
     private int findLineEndOffset(int offset) {
-        int length = source.length();
-        while (offset < length) {
-            char c = source.charAt(offset);
-            if (c == '\n') {
-                break;
-            }
-            offset++;
-        }
-
-        return Math.min(offset, length);
+        int line = getLineNumber(offset);
+        return line + 1 < lineCount ? lineStarts[line + 1] - 1 : source.length();
     }
 
     public int computeDedent(int fromOffset, int toOffset) {
@@ -778,12 +782,15 @@ public class LintSyntaxHighlighter {
             int startHighlightOffset,
             int endHighlightOffset,
             boolean error) {
-        // From previous highlight runs
-        removeRepeatedStyleSpans();
+        // Redundant markers around offsets and highlights ensures that we will have
+        // span breakpoints where we need them (e.g. to insert a span around the error
+        // range, and to have line numbers inserted at each new line
+        int[] markers = new int[2 * CODE_WINDOW_SIZE + 5];
+        int markerCount = 0;
 
         int caretLineOffset = findLineStartOffset(startHighlightOffset);
         int caretLineEndOffset = findLineEndOffset(startHighlightOffset);
-        insertRedundantMarker(caretLineEndOffset);
+        markers[markerCount++] = caretLineEndOffset;
 
         if (endHighlightOffset == -1) {
             endHighlightOffset = caretLineEndOffset;
@@ -794,31 +801,54 @@ public class LintSyntaxHighlighter {
             endHighlightOffset = caretLineEndOffset;
         }
 
-        // Redundant markers around offsets and highlights ensures that we will have
-        // span breakpoints where we need them (e.g. to insert a span around the error
-        // range, and to have line numbers inserted at each new line
-        insertRedundantMarker(startHighlightOffset);
-        insertRedundantMarker(endHighlightOffset);
+        markers[markerCount++] = startHighlightOffset;
+        markers[markerCount++] = endHighlightOffset;
 
         // Figure out window offsets
         int beginOffset = findLineStartOffset(startHighlightOffset);
         int endOffset = findLineEndOffset(endHighlightOffset);
 
-        insertRedundantMarker(beginOffset);
-        insertRedundantMarker(endOffset + 1);
+        markers[markerCount++] = beginOffset;
+        markers[markerCount++] = endOffset + 1;
 
         for (int i = 0; i < CODE_WINDOW_SIZE; i++) {
             beginOffset = findLineStartOffset(beginOffset - 1);
-            insertRedundantMarker(beginOffset);
+            markers[markerCount++] = beginOffset;
         }
         for (int i = 0; i < CODE_WINDOW_SIZE; i++) {
             endOffset = findLineEndOffset(endOffset + 1);
-            insertRedundantMarker(endOffset + 1);
+            markers[markerCount++] = endOffset + 1;
         }
 
         int currentLine = getLineNumber(beginOffset) + 1; // display as 1-based instead of 0-based
         int lineWidth = (int) (Math.log10(lineCount)) + 1;
-        updateSortedOffsets();
+
+        // Split the style spans overlapping the window at the markers
+        Arrays.sort(markers, 0, markerCount);
+        int first = floorIndex(offsets, beginOffset);
+        int last = floorIndex(offsets, endOffset);
+        if (offsets[last] < endOffset && last < offsets.length - 1) {
+            last++;
+        }
+        int[] spanOffsets = new int[last - first + 1 + markerCount];
+        int[] spanStyles = new int[spanOffsets.length];
+        int spanCount = 0;
+        int m = 0;
+        for (int i = first; i <= last; i++) {
+            int style = offsetStyles[i];
+            spanOffsets[spanCount] = offsets[i];
+            spanStyles[spanCount] = style;
+            spanCount++;
+            int next = i < last ? offsets[i + 1] : offsets[i];
+            while (m < markerCount && markers[m] < next) {
+                int marker = markers[m++];
+                if (marker > spanOffsets[spanCount - 1]) {
+                    spanOffsets[spanCount] = marker;
+                    spanStyles[spanCount] = style;
+                    spanCount++;
+                }
+            }
+        }
 
         builder.beginPre("errorlines");
 
@@ -832,9 +862,9 @@ public class LintSyntaxHighlighter {
 
         int spanBalance = 0;
 
-        for (int o = 1; o < sortedOffsets.size(); o++) {
-            int begin = sortedOffsets.get(o - 1);
-            int end = sortedOffsets.get(o);
+        for (int o = 1; o < spanCount; o++) {
+            int begin = spanOffsets[o - 1];
+            int end = spanOffsets[o];
 
             if (end <= beginOffset || begin >= endOffset) {
                 continue;
@@ -878,7 +908,7 @@ public class LintSyntaxHighlighter {
                 }
             }
 
-            int style = styles.get(begin);
+            int style = spanStyles[o - 1];
 
             if (begin == startHighlightOffset) {
                 builder.beginClassSpan(error ? "error" : "warning");
@@ -927,7 +957,7 @@ public class LintSyntaxHighlighter {
 
         builder.endPre();
 
-        int lastOffset = sortedOffsets.get(sortedOffsets.size() - 1);
+        int lastOffset = offsets[offsets.length - 1];
         add(builder, lastOffset, source.length());
     }
 
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.DOT_CLASS;
+import static com.android.SdkConstants.DOT_JAVA;
+import static com.android.SdkConstants.DOT_KT;
+import static com.android.SdkConstants.DOT_XML;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.client.api.LintClient;
+import com.android.tools.lint.detector.api.Project;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs lint on a set of projects in several worker processes, each analyzing some
+ * of the projects. The analysis of a project isn't thread safe (and the parser
+ * environment is shared by the whole process), so rather than analyzing projects on
+ * several threads, they are distributed over separate JVMs. Each worker writes its
+ * results with a {@link BinaryReporter}, to be combined with
+ * {@link LintCliClient#mergeResults}.
+ */
+final class LintWorkerPool {
+    private final List<String> workerArgs;
+    private final int workerCount;
+
+    /**
+     * Creates a new worker pool
+     *
+     * @param workerArgs  the arguments to pass to each worker, other than the projects
+     *                    and the results file
+     * @param workerCount the number of workers to run
+     */
+    LintWorkerPool(@NonNull List<String> workerArgs, int workerCount) {
+        this.workerArgs = workerArgs;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Returns the project directories in or below the given files, which are distributed
+     * over the workers. Files which are not in a project directory are returned as is.
+     */
+    @NonNull
+    static List<File> findProjects(@NonNull LintClient client, @NonNull List<File> files) {
+        List<File> projects = new ArrayList<>();
+        for (File file : files) {
+            int count = projects.size();
+            addProjects(client, file.getAbsoluteFile(), projects);
+            if (projects.size() == count) {
+                projects.add(file.getAbsoluteFile());
+            }
+        }
+        return projects;
+    }
+
+    private static void addProjects(@NonNull LintClient client, @NonNull File dir,
+            @NonNull List<File> projects) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        if (client.isProjectDirectory(dir)) {
+            projects.add(dir);
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                addProjects(client, file, projects);
+            }
+        }
+    }
+
+    /**
+     * Groups the given projects such that projects which depend on each other are in the
+     * same group, as far as lint's project model knows about the dependencies (for example
+     * through the library references in project.properties). An app and the libraries it
+     * uses are analyzed by the same worker, since lint analyzes the libraries along with
+     * the app and some checks need to see both; apps sharing a library are then also
+     * grouped together. Dependencies which lint can't see, such as those only declared in
+     * Gradle build files, don't group projects.
+     *
+     * @param client   the client to look up the projects with
+     * @param projects the projects, as returned by {@link #findProjects}
+     * @return the groups, each in the original order of the projects
+     */
+    @NonNull
+    static List<List<File>> groupProjects(@NonNull LintClient client,
+            @NonNull List<File> projects) {
+        int[] parents = new int[projects.size()];
+        Map<File, Integer> owners = new HashMap<>();
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+            owners.putIfAbsent(getCanonicalFile(projects.get(i)), i);
+        }
+        for (int i = 0; i < parents.length; i++) {
+            File dir = projects.get(i);
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            for (Project library : client.getProject(dir, dir).getAllLibraries()) {
+                Integer owner = owners.putIfAbsent(getCanonicalFile(library.getDir()), i);
+                if (owner != null) {
+                    parents[find(parents, i)] = find(parents, owner);
+                }
+            }
+        }
+
+        Map<Integer, List<File>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < parents.length; i++) {
+            groups.computeIfAbsent(find(parents, i), k -> new ArrayList<>())
+                    .add(projects.get(i));
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int find(@NonNull int[] parents, int index) {
+        while (parents[index] != index) {
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    @NonNull
+    private static File getCanonicalFile(@NonNull File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Distributes the given projects over the workers, keeping the projects which depend
+     * on each other together (see {@link #groupProjects}) and balancing the estimated
+     * cost per worker (see {@link #assign})
+     *
+     * @param client   the client to look up the projects with
+     * @param projects the projects, as returned by {@link #findProjects}
+     * @return the projects of each worker
+     */
+    @NonNull
+    List<List<File>> assignProjects(@NonNull LintClient client, @NonNull List<File> projects) {
+        List<List<File>> groups = groupProjects(client, projects);
+        int[] costs = new int[groups.size()];
+        for (int i = 0; i < costs.length; i++) {
+            for (File project : groups.get(i)) {
+                costs[i] += estimateCost(project);
+            }
+        }
+        List<List<File>> result = new ArrayList<>();
+        for (List<List<File>> assigned : assign(groups, costs)) {
+            List<File> files = new ArrayList<>();
+            for (List<File> group : assigned) {
+                files.addAll(group);
+            }
+            result.add(files);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the estimated cost of analyzing the given project: the number of
+     * source, resource and class files in it
+     */
+    static int estimateCost(@NonNull File file) {
+        if (file.isDirectory()) {
+            if (file.getName().startsWith(".")) {
+                return 0;
+            }
+            int cost = 0;
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    cost += estimateCost(child);
+                }
+            }
+            return cost;
+        }
+
+        String name = file.getName();
+        return name.endsWith(DOT_JAVA) || name.endsWith(DOT_KT) || name.endsWith(DOT_XML)
+                || name.endsWith(DOT_CLASS) ? 1 : 0;
+    }
+
+    /**
+     * Distributes the given projects (or groups of projects) over at most
+     * {@code workerCount} workers, balancing the estimated cost per worker: the most
+     * expensive projects are assigned first, each to the worker with the least work so far.
+     *
+     * @param projects the projects to analyze
+     * @param costs    the estimated cost of each project
+     * @return the projects of each worker, in their original order
+     */
+    @NonNull
+    <T> List<List<T>> assign(@NonNull List<T> projects, @NonNull int[] costs) {
+        Integer[] order = new Integer[projects.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Integer.compare(costs[i2], costs[i1]));
+
+        int count = Math.min(workerCount, projects.size());
+        long[] loads = new long[count];
+        List<List<Integer>> assigned = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            assigned.add(new ArrayList<>());
+        }
+        for (int project : order) {
+            int worker = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[worker]) {
+                    worker = i;
+                }
+            }
+            // Count every project a little, since each has a fixed setup cost
+            loads[worker] += costs[project] + 1;
+            assigned.get(worker).add(project);
+        }
+
+        List<List<T>> result = new ArrayList<>(count);
+        for (List<Integer> indices : assigned) {
+            Collections.sort(indices);
+            List<T> files = new ArrayList<>(indices.size());
+            for (int index : indices) {
+                files.add(projects.get(index));
+            }
+            result.add(files);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a worker for each of the given lists of projects, and returns the results
+     * files they wrote, which the caller should delete when done with them
+     *
+     * @param assignments the projects of each worker, as returned by {@link #assign}
+     * @return the results file of each worker
+     * @throws IOException if a worker could not be started or failed
+     */
+    @NonNull
+    List<File> run(@NonNull List<List<File>> assignments) throws IOException {
+        List<Process> processes = new ArrayList<>(assignments.size());
+        List<File> results = new ArrayList<>(assignments.size());
+        boolean ok = false;
+        try {
+            for (List<File> projects : assignments) {
+                File output = File.createTempFile("lint-results", ".bin");
+                results.add(output);
+                ProcessBuilder builder = new ProcessBuilder(createCommand(projects, output));
+                builder.inheritIO();
+                processes.add(builder.start());
+            }
+
+            for (int i = 0; i < processes.size(); i++) {
+                int exitCode = processes.get(i).waitFor();
+                if (exitCode != 0) {
+                    throw new IOException(String.format(
+                            "Lint worker analyzing %1$s failed with exit code %2$d",
+                            assignments.get(i), exitCode));
+                }
+            }
+            ok = true;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lint workers");
+        } finally {
+            if (!ok) {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                for (File output : results) {
+                    //noinspection ResultOfMethodCallIgnored
+                    output.delete();
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private List<String> createCommand(@NonNull List<File> projects, @NonNull File output) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"),
+                "bin" + File.separator + "java").getPath());
+        // Run the workers with the same heap size, system properties etc as this process,
+        // except for debugger agents which would compete for the same port
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(workerArgs);
+        command.add(Main.ARG_QUIET);
+        command.add(Main.ARG_WORKER);
+        command.add(Main.ARG_BINARY);
+        command.add(output.getPath());
+        for (File project : projects) {
+            command.add(project.getPath());
+        }
+        return command;
+    }
+}
@@ -56,6 +56,7 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -83,7 +84,7 @@ public class Main {
     private static final String ARG_IGNORE     = "--ignore";
     private static final String ARG_LIST_IDS   = "--list";
     private static final String ARG_SHOW       = "--show";
-    private static final String ARG_QUIET      = "--quiet";
+    static final String ARG_QUIET              = "--quiet";
     private static final String ARG_FULL_PATH  = "--fullpath";
     private static final String ARG_SHOW_ALL   = "--showall";
     private static final String ARG_HELP       = "--help";
@@ -105,6 +106,17 @@ public class Main {
     private static final String ARG_BUILD_API  = "--compile-sdk-version";
     private static final String ARG_BASELINE   = "--baseline";
     private static final String ARG_REMOVE_FIXED = "--remove-fixed";
+    static final String ARG_BINARY             = "--binary";
+    private static final String ARG_MERGE_RESULTS = "--merge-results";
+    private static final String ARG_SHARD      = "--shard";
+    private static final String ARG_WORKERS    = "--workers";
+    private static final String ARG_CHANGED_SINCE = "--changed-since";
+    private static final String ARG_CHANGED_FILES = "--changed-files";
+    private static final String ARG_DETECTOR_TIMEOUT = "--detector-timeout";
+    private static final String ARG_QUARANTINE_SLOW = "--quarantine-slow-detectors";
+    private static final String ARG_TRAIN_STARTUP = "--train-startup";
+    /** Internal: passed to the worker processes of a run with {@link #ARG_WORKERS} */
+    static final String ARG_WORKER             = "--worker";
 
     private static final String ARG_NO_WARN_2  = "--nowarn";
     // GCC style flag names for options
@@ -113,6 +125,13 @@ public class Main {
     private static final String ARG_ALL_ERROR  = "-Werror";
 
     private static final String PROP_WORK_DIR = "com.android.tools.lint.workdir";
+    /**
+     * System property which can be set to the percentage of the maximum heap size which,
+     * when still in use after a garbage collection, makes lint release the memory it can
+     * recompute and scale back its parallel work. Unset (or 0) by default, since this sets
+     * usage thresholds on the JVM's memory pools.
+     */
+    private static final String PROP_LOW_MEMORY = "lint.memory.threshold";
     private final LintCliFlags flags = new LintCliFlags();
     private IssueRegistry globalIssueRegistry;
     @Nullable private File sdkHome;
@@ -350,7 +369,20 @@ public class Main {
         // Mapping from file path prefix to URL. Applies only to HTML reports
         String urlMap = null;
 
+        // Whether the files are results to merge rather than projects to analyze
+        boolean mergeResults = false;
+
+        // The number of worker processes to analyze the projects with, if any
+        int workers = 0;
+
+        // Whether to record the classes loaded by the analysis into a startup archive
+        boolean trainStartup = false;
+
+        flags.setLowMemoryThreshold(getLowMemoryThreshold());
+
         List<File> files = new ArrayList<>();
+        // The indices of the arguments naming the files to analyze
+        BitSet fileArgs = new BitSet(args.length);
         for (int index = 0; index < args.length; index++) {
             String arg = args[index];
 
@@ -541,6 +573,30 @@ public class Main {
                     log(e, null);
                     exit(ERRNO_INVALID_ARGS);
                 }
+            } else if (arg.equals(ARG_BINARY)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing binary results output file name");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                File output = getOutArgumentPath(args[++index]);
+                // Get an absolute path such that we can ask its parent directory for
+                // write permission etc.
+                output = output.getAbsoluteFile();
+
+                if (output.exists()) {
+                    boolean delete = output.delete();
+                    if (!delete) {
+                        System.err.println("Could not delete old " + output);
+                        exit(ERRNO_EXISTS);
+                    }
+                }
+                if (output.getParentFile() != null && !output.getParentFile().canWrite()) {
+                    System.err.println("Cannot write binary results file " + output);
+                    exit(ERRNO_EXISTS);
+                }
+                flags.getReporters().add(new BinaryReporter(client, output, true));
+            } else if (arg.equals(ARG_MERGE_RESULTS)) {
+                mergeResults = true;
             } else if (arg.equals(ARG_TEXT)) {
                 if (index == args.length - 1) {
                     System.err.println("Missing text output file name");
@@ -644,9 +700,14 @@ public class Main {
                     checkedIds = new HashSet<>();
                     flags.setExactCheckedIds(checkedIds);
                 }
-                IssueRegistry registry = getGlobalRegistry(client);
                 String[] ids = args[++index].split(",");
                 for (String id : ids) {
+                    if (BuiltinIssueRegistry.isBuiltinIssueId(id)) {
+                        // Don't initialize every detector just to validate a builtin id
+                        checkedIds.add(id);
+                        continue;
+                    }
+                    IssueRegistry registry = getGlobalRegistry(client);
                     if (registry.isCategoryName(id)) {
                         // Check all issues with the given category
                         String category = id;
@@ -795,6 +856,90 @@ public class Main {
                 flags.setBaselineFile(input);
             } else if (arg.equals(ARG_REMOVE_FIXED)) {
                 flags.setRemovedFixedBaselineIssues(true);
+            } else if (arg.equals(ARG_SHARD)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing shard, such as 1/4");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String shard = args[++index];
+                int slash = shard.indexOf('/');
+                int shardNumber = -1;
+                int shardCount = -1;
+                if (slash != -1) {
+                    try {
+                        shardNumber = Integer.parseInt(shard.substring(0, slash));
+                        shardCount = Integer.parseInt(shard.substring(slash + 1));
+                    } catch (NumberFormatException e) {
+                        shardCount = -1;
+                    }
+                }
+                if (shardCount < 1 || shardNumber < 1 || shardNumber > shardCount) {
+                    System.err.println("Invalid shard " + shard + "; should be N/M where "
+                            + "1 <= N <= M, such as 1/4");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                flags.setShard(shardNumber - 1, shardCount);
+            } else if (arg.equals(ARG_WORKERS)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing number of workers");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String count = args[++index];
+                try {
+                    workers = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    workers = -1;
+                }
+                if (workers < 1) {
+                    System.err.println("Invalid number of workers " + count);
+                    exit(ERRNO_INVALID_ARGS);
+                }
+            } else if (arg.equals(ARG_CHANGED_SINCE)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing revision");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                flags.setChangedSince(args[++index]);
+            } else if (arg.equals(ARG_CHANGED_FILES)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing list of changed files");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String paths = args[++index];
+                for (String path : LintUtils.splitPath(paths)) {
+                    // Deleted files are changed files too, so they don't have to exist
+                    File input = getInArgumentPath(path).getAbsoluteFile();
+                    List<File> changed = flags.getChangedFiles();
+                    if (changed == null) {
+                        changed = new ArrayList<>();
+                        flags.setChangedFiles(changed);
+                    }
+                    changed.add(input);
+                }
+            } else if (arg.equals(ARG_DETECTOR_TIMEOUT)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing detector timeout");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String timeout = args[++index];
+                long budget;
+                try {
+                    budget = Long.parseLong(timeout);
+                } catch (NumberFormatException e) {
+                    budget = -1;
+                }
+                if (budget < 1) {
+                    System.err.println("Invalid detector timeout " + timeout);
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                flags.setDetectorTimeBudget(budget);
+            } else if (arg.equals(ARG_QUARANTINE_SLOW)) {
+                flags.setQuarantineSlowDetectors(true);
+            } else if (arg.equals(ARG_TRAIN_STARTUP)) {
+                trainStartup = true;
+            } else if (arg.equals(ARG_WORKER)) {
+                // The coordinating process counts the fixed baseline issues
+                flags.setPartialAnalysis(true);
             } else if (arg.startsWith("--")) {
                 System.err.println("Invalid argument " + arg + "\n");
                 printUsage(System.err);
@@ -808,6 +953,7 @@ public class Main {
                     exit(ERRNO_EXISTS);
                 }
                 files.add(file);
+                fileArgs.set(index);
             }
         }
 
@@ -823,6 +969,33 @@ public class Main {
                   "The %1$s, %2$s, %3$s and %4$s arguments can only be used with a single project",
                   ARG_SOURCES, ARG_CLASSES, ARG_LIBRARIES, ARG_RESOURCES));
             exit(ERRNO_INVALID_ARGS);
+        } else if (workers > 0 && (mergeResults || flags.getProjectDescriptorOverride() != null
+                || flags.isRemoveFixedBaselineIssues())) {
+            System.err.println(String.format(
+                    "The %1$s argument can't be combined with %2$s, %3$s or %4$s",
+                    ARG_WORKERS, ARG_MERGE_RESULTS, ARG_PROJECT, ARG_REMOVE_FIXED));
+            exit(ERRNO_INVALID_ARGS);
+        } else if ((flags.getChangedFiles() != null || flags.getChangedSince() != null)
+                && (mergeResults || workers > 0 || flags.getShardCount() > 1)) {
+            System.err.println(String.format(
+                    "The %1$s and %2$s arguments can't be combined with %3$s, %4$s or %5$s",
+                    ARG_CHANGED_SINCE, ARG_CHANGED_FILES, ARG_MERGE_RESULTS, ARG_WORKERS,
+                    ARG_SHARD));
+            exit(ERRNO_INVALID_ARGS);
+        } else if (flags.getShardCount() > 1 && flags.isRemoveFixedBaselineIssues()) {
+            // A shard can't tell which baseline entries were fixed in the other shards
+            System.err.println(String.format("The %1$s argument can't be combined with %2$s",
+                    ARG_REMOVE_FIXED, ARG_SHARD));
+            exit(ERRNO_INVALID_ARGS);
+        } else if (trainStartup && (mergeResults || workers > 0)) {
+            System.err.println(String.format(
+                    "The %1$s argument can't be combined with %2$s or %3$s",
+                    ARG_TRAIN_STARTUP, ARG_MERGE_RESULTS, ARG_WORKERS));
+            exit(ERRNO_INVALID_ARGS);
+        }
+
+        if (trainStartup) {
+            exit(trainStartup(args));
         }
 
         List<Reporter> reporters = flags.getReporters();
@@ -870,7 +1043,20 @@ public class Main {
         try {
             // Not using globalIssueRegistry; LintClient will do its own registry merging
             // also including project rules.
-            int exitCode = client.run(new BuiltinIssueRegistry(), files);
+            // When only checking specific issues, only initialize those detectors
+            Set<String> checkedIds = flags.getExactCheckedIds();
+            BuiltinIssueRegistry registry = checkedIds != null
+                    ? new BuiltinIssueRegistry(checkedIds) : new BuiltinIssueRegistry();
+            int exitCode;
+            List<File> projects = workers > 1
+                    ? LintWorkerPool.findProjects(client, files) : Collections.emptyList();
+            if (projects.size() > 1) {
+                exitCode = runWorkers(client, registry, args, fileArgs, workers, projects);
+            } else if (mergeResults) {
+                exitCode = client.mergeResults(registry, files);
+            } else {
+                exitCode = client.run(registry, files);
+            }
             exit(exitCode);
         } catch (IOException e) {
             log(e, null);
@@ -878,6 +1064,88 @@ public class Main {
         }
     }
 
+    /**
+     * Runs the analysis given by the other arguments in a separate process, and creates
+     * a startup archive from the classes it loaded in the lib folder of the lint
+     * installation; see {@link StartupTrainer}
+     */
+    private static int trainStartup(@NonNull String[] args) {
+        File binDir = LintClient.getLintBinDir();
+        if (binDir == null || !binDir.isDirectory()) {
+            System.err.println(String.format(
+                    "The %1$s argument requires running lint with its launch script",
+                    ARG_TRAIN_STARTUP));
+            return ERRNO_INVALID_ARGS;
+        }
+        File archive = new File(binDir, "lib" + File.separator + StartupTrainer.ARCHIVE_NAME);
+
+        List<String> analysisArgs = new ArrayList<>(args.length);
+        for (String arg : args) {
+            if (!arg.equals(ARG_TRAIN_STARTUP)) {
+                analysisArgs.add(arg);
+            }
+        }
+        analysisArgs.add(ARG_QUIET);
+
+        try {
+            new StartupTrainer(archive).train(analysisArgs);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return ERRNO_ERRORS;
+        }
+        System.out.println("Wrote startup archive " + archive);
+        return ERRNO_SUCCESS;
+    }
+
+    /**
+     * Analyzes the given projects in separate worker processes, and writes the combined
+     * results with the reporters of this process
+     */
+    private int runWorkers(@NonNull LintCliClient client, @NonNull IssueRegistry registry,
+            @NonNull String[] args, @NonNull BitSet fileArgs, int workers,
+            @NonNull List<File> projects) throws IOException {
+        LintWorkerPool pool = new LintWorkerPool(getWorkerArgs(args, fileArgs), workers);
+        List<File> results = pool.run(pool.assignProjects(client, projects));
+        try {
+            return client.mergeResults(registry, results);
+        } finally {
+            for (File file : results) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the arguments to pass on to the worker processes: all the arguments except
+     * the files to analyze and the options about the reports, which are only written by
+     * this process. The baseline is only passed on if it exists, to filter the results of
+     * each worker; the fixed baseline issues are counted from the combined results here
+     * (see {@link LintCliClient#mergeResults}), as is a baseline which doesn't exist yet.
+     */
+    @NonNull
+    private List<String> getWorkerArgs(@NonNull String[] args, @NonNull BitSet fileArgs) {
+        List<String> workerArgs = new ArrayList<>(args.length);
+        for (int index = 0; index < args.length; index++) {
+            String arg = args[index];
+            if (fileArgs.get(index)
+                    || arg.equals(ARG_QUIET) || arg.equals("-q") || arg.equals(ARG_EXIT_CODE)) {
+                continue;
+            }
+            if (arg.equals(ARG_HTML) || arg.equals(ARG_SIMPLE_HTML) || arg.equals(ARG_XML)
+                    || arg.equals(ARG_TEXT) || arg.equals(ARG_BINARY) || arg.equals(ARG_URL)
+                    || arg.equals(ARG_WORKERS)
+                    || arg.equals(ARG_BASELINE) && (flags.getBaselineFile() == null
+                        || !flags.getBaselineFile().exists())) {
+                // Skip the option and its value
+                index++;
+                continue;
+            }
+            workerArgs.add(arg);
+        }
+        return workerArgs;
+    }
+
     private IssueRegistry getGlobalRegistry(LintCliClient client) {
         if (globalIssueRegistry == null) {
             globalIssueRegistry = client.addCustomLintRules(new BuiltinIssueRegistry());
@@ -960,6 +1228,23 @@ public class Main {
         return null;
     }
 
+    /**
+     * Returns the fraction of the maximum heap size above which lint releases memory,
+     * from {@link #PROP_LOW_MEMORY}, or 0 if it is not set
+     */
+    private static double getLowMemoryThreshold() {
+        int percent = 0;
+        String property = System.getProperty(PROP_LOW_MEMORY);
+        if (property != null) {
+            try {
+                percent = Integer.parseInt(property.trim());
+            } catch (NumberFormatException ignore) {
+                // Leave it off
+            }
+        }
+        return percent > 0 && percent < 100 ? percent / 100.0 : 0;
+    }
+
     private static void printHelpTopicSuppress() {
         System.out.println(wrap(TextFormat.RAW.convertTo(getSuppressHelp(), TextFormat.TEXT)));
     }
@@ -1191,6 +1476,32 @@ public class Main {
                     "determine whether issues are enabled or disabled. If a project contains " +
                     "a lint.xml file, then this config file will be used as a fallback.",
             ARG_BASELINE, "Use (or create) the given baseline file to filter out known issues.",
+            ARG_WORKERS + " <count>", "Analyze the projects in the given number of separate " +
+                "processes, distributing the projects over them by size, and write the " +
+                "combined results.",
+            ARG_SHARD + " N/M", "Only analyze part N of M of the project, for example to split " +
+                "the analysis across M machines. Checks which look at individual Java, " +
+                "resource and class files are split by file; all other checks run as part " +
+                "of shard 1. Combine with " + ARG_BINARY + " and " + ARG_MERGE_RESULTS + " to " +
+                "produce a single report; when using " + ARG_BASELINE + ", pass it to the " +
+                ARG_MERGE_RESULTS + " run as well to count the fixed baseline issues.",
+            ARG_CHANGED_SINCE + " <revision>", "Only analyze the files which changed since " +
+                "the given git revision, along with the files referencing the resources and " +
+                "classes they define. The results for the other files are taken from the " +
+                "last full run, which is stored in the lint cache directory; if there is " +
+                "no earlier run, everything is analyzed.",
+            ARG_CHANGED_FILES + " <path>", "Like " + ARG_CHANGED_SINCE + ", but only " +
+                "analyze the given changed files (and the files changed since the last full " +
+                "run according to git, if any).",
+            ARG_DETECTOR_TIMEOUT + " <ms>", "Cancel the analysis of a file when a single " +
+                "check spends more than the given number of milliseconds on it, and report " +
+                "the check and file as a lint error.",
+            ARG_QUARANTINE_SLOW, "Together with " + ARG_DETECTOR_TIMEOUT + ", disable a " +
+                "check for the rest of the run once it has exceeded the timeout.",
+            ARG_TRAIN_STARTUP, "Analyze the given files in a separate process to record the " +
+                "classes lint loads, and create a class data sharing archive from them " +
+                "(requires Java 11 or later). The lint launch scripts use the archive when " +
+                "it matches the Java command they run, which speeds up lint startup.",
 
 
             "", "\nOutput Options:",
@@ -1210,6 +1521,11 @@ public class Main {
                 "to files, use " + ARG_URL + " " + VALUE_NONE,
             ARG_SIMPLE_HTML + " <filename>", "Create a simple HTML report",
             ARG_XML + " <filename>", "Create an XML report instead.",
+            ARG_BINARY + " <filename>", "Write the results in a compact binary format, which " +
+                "can be combined with the results of other runs using " + ARG_MERGE_RESULTS + ".",
+            ARG_MERGE_RESULTS, "Treat the given files as binary results written with " +
+                ARG_BINARY + " by earlier runs, such as runs on different machines, and " +
+                "write them combined into the requested reports instead of running lint.",
 
             "", "\nProject Options:",
             ARG_PROJECT + " <file>", "Use the given project layout descriptor file to describe " +
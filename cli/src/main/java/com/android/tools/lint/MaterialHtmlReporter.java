@@ -51,12 +51,14 @@ import com.google.common.io.Files;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -485,13 +487,34 @@ public class MaterialHtmlReporter extends Reporter {
             + "   padding-bottom: 5px;\n"
             + "}\n";
 
+    /**
+     * The size of the report text buffered in {@link #sb} beyond which it is written to
+     * the {@link #writer}, such that the memory used by the report does not grow with the
+     * number of warnings
+     */
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    /**
+     * The number of files whose tokenized contents are kept while writing the report.
+     * Warnings are sorted by issue rather than by file, so the same files tend to come
+     * up repeatedly with others in between.
+     */
+    private static final int HIGHLIGHTER_CACHE_SIZE = 16;
+
     protected final Writer writer;
     protected final LintCliFlags flags;
     private HtmlBuilder builder;
     @SuppressWarnings("StringBufferField")
     private StringBuilder sb;
-    private String highlightedFile;
-    private LintSyntaxHighlighter highlighter;
+    /** Highlighters of the most recently shown files, keyed by path, least recent first */
+    private final Map<String, LintSyntaxHighlighter> highlighters =
+            new LinkedHashMap<String, LintSyntaxHighlighter>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, LintSyntaxHighlighter> eldest) {
+                    return size() > HIGHLIGHTER_CACHE_SIZE;
+                }
+            };
 
     /**
      * Creates a new {@link MaterialHtmlReporter}
@@ -512,6 +535,20 @@ public class MaterialHtmlReporter extends Reporter {
 
     @Override
     public void write(@NonNull Stats stats, List<Warning> issues) throws IOException {
+        try {
+            writeIssues(stats, issues);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (!client.getFlags().isQuiet()
+                && (stats.errorCount > 0 || stats.warningCount > 0)) {
+            String url = SdkUtils.fileToUrlString(output.getAbsoluteFile());
+            System.out.println(String.format("Wrote HTML report to %1$s", url));
+        }
+    }
+
+    private void writeIssues(@NonNull Stats stats, List<Warning> issues) throws IOException {
         Map<Issue, String> missing = computeMissingIssues(issues);
         List<List<Warning>> related = computeIssueLists(issues);
 
@@ -565,22 +602,29 @@ public class MaterialHtmlReporter extends Reporter {
 
         finishReport();
         writeReport();
-
-        if (!client.getFlags().isQuiet()
-                && (stats.errorCount > 0 || stats.warningCount > 0)) {
-            String url = SdkUtils.fileToUrlString(output.getAbsoluteFile());
-            System.out.println(String.format("Wrote HTML report to %1$s", url));
-        }
     }
-    
+
     private void append(@NonNull String s) {
         sb.append(s);
+        if (sb.length() >= FLUSH_THRESHOLD) {
+            flushBuffer();
+        }
     }
 
     private void append(char s) {
         sb.append(s);
     }
 
+    /** Writes the report text buffered so far to the output */
+    private void flushBuffer() {
+        try {
+            writer.append(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sb.setLength(0);
+    }
+
     private void writeSuppressIssuesCard() {
         append("\n<a name=\"SuppressInfo\"></a>\n");
         writeCard(() -> {
@@ -810,7 +854,7 @@ public class MaterialHtmlReporter extends Reporter {
     }
 
     private void startReport(@NonNull Stats stats) {
-        sb = new StringBuilder(1800 * stats.count());
+        sb = new StringBuilder(2 * FLUSH_THRESHOLD);
         builder = new HtmlBuilder(sb);
 
         writeOpenHtmlTag();
@@ -1361,6 +1405,15 @@ public class MaterialHtmlReporter extends Reporter {
     @Override
     public void writeProjectList(@NonNull Stats stats,
             @NonNull List<MultiProjectHtmlReporter.ProjectEntry> projects) throws IOException {
+        try {
+            writeProjects(stats, projects);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeProjects(@NonNull Stats stats,
+            @NonNull List<MultiProjectHtmlReporter.ProjectEntry> projects) throws IOException {
         startReport(stats);
 
         writeNavigationHeader(stats, () -> {
@@ -1414,20 +1467,28 @@ public class MaterialHtmlReporter extends Reporter {
     }
 
     private void writeReport() throws IOException {
-        writer.write(sb.toString());
+        writer.append(sb);
         writer.close();
         sb = null;
         builder = null;
+        highlighters.clear();
     }
 
     @NonNull
     private LintSyntaxHighlighter getHighlighter(@NonNull File file,
             @NonNull CharSequence contents) {
-        if (highlightedFile == null || !highlightedFile.equals(file.getPath())) {
+        String path = file.getPath();
+        LintSyntaxHighlighter highlighter = highlighters.get(path);
+        if (highlighter == null) {
             highlighter = new LintSyntaxHighlighter(file.getName(), contents.toString());
             highlighter.setPadCaretLine(true);
             highlighter.setDedent(true);
-            highlightedFile = file.getPath();
+            if (client.isLowOnMemory()) {
+                // Each highlighter holds a copy of its file, so stop caching them
+                highlighters.clear();
+            } else {
+                highlighters.put(path, highlighter);
+            }
         }
 
         return highlighter;
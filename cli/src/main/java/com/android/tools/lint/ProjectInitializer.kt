@@ -39,10 +39,13 @@ import com.google.common.collect.Multimap
 import org.w3c.dom.Element
 import java.io.File
 import java.util.HashSet
-import java.util.regex.Pattern
+import java.util.LinkedHashMap
+import java.util.LinkedHashSet
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
-/** Regular expression used to match package statements with [ProjectInitializer.findPackage] */
-private val PACKAGE_PATTERN = Pattern.compile("package\\s+([\\S&&[^;]]*)")
 private const val TAG_PROJECT = "project"
 private const val TAG_MODULE = "module"
 private const val TAG_CLASSES = "classes"
@@ -132,6 +135,19 @@ private class ProjectInitializer(val client: LintClient, val file: File,
     /** map from module to a baseline to use for a given module, if any */
     private val baselines = mutableMapOf<Project, File?>()
 
+    /** map from source directory to the source root of the files in it */
+    private val dirToRoot = mutableMapOf<String, File>()
+
+    /**
+     * map from directory to the names of the files in it (or null if it doesn't exist),
+     * such that checking whether the files named in the descriptor exist takes one
+     * listing per directory rather than several lookups per file
+     */
+    private val directoryContents = mutableMapOf<File, Set<String>?>()
+
+    /** Executor used to read the source files to find their roots, if needed */
+    private var executor: ExecutorService? = null
+
     /** Compute a list of lint [Project] instances from the given XML descriptor */
     fun computeMetadata(): ProjectMetadata {
         assert(file.isFile) // should already have been enforced by the driver
@@ -144,7 +160,12 @@ private class ProjectInitializer(val client: LintClient, val file: File,
             return ProjectMetadata()
         }
 
-        return parseModules(document.documentElement)
+        try {
+            return parseModules(document.documentElement)
+        } finally {
+            executor?.shutdown()
+            executor = null
+        }
     }
 
     /** Reports the given error message as an error to lint, with an optional element location */
@@ -398,17 +419,20 @@ private class ProjectInitializer(val client: LintClient, val file: File,
     }
 
     private fun computeSourceRoots(sources: List<File>): MutableList<File> {
-        val sourceRoots = mutableListOf<File>()
+        val sourceRoots = LinkedHashSet<File>()
         if (!sources.isEmpty()) {
-            // Cache for each directory since computing root for a source file is
-            // expensive
-            val dirToRootCache = mutableMapOf<String, File>()
+            // Compute the root once for each directory since computing root for a source
+            // file is expensive: pick the first file in each directory not seen before
+            val dirToFile = LinkedHashMap<String, File>()
             for (file in sources) {
                 val parent = file.parentFile ?: continue
-                val found = dirToRootCache[parent.path]
-                if (found != null) {
-                    continue
+                if (!dirToRoot.containsKey(parent.path) && !dirToFile.containsKey(parent.path)) {
+                    dirToFile.put(parent.path, file)
                 }
+            }
+            val foundRoots = findRoots(dirToFile.values.toList())
+            for ((index, entry) in dirToFile.entries.withIndex()) {
+                val file = entry.value
 
                 // Find the source root for a file. There are several scenarios.
                 // Let's say the original file path is "/a/b/c/d", and findRoot
@@ -421,19 +445,52 @@ private class ProjectInitializer(val client: LintClient, val file: File,
                 // But what if the source file itself was just passed as "Foo.java" ?
                 // In that case it is relative to the pwd, so we get the *absolute*
                 // path of the file instead, and take its parent path.
-                val root = findRoot(file) ?: file.parentFile ?: file.absoluteFile.parentFile ?:
-                        continue
+                val root = foundRoots[index] ?: file.parentFile ?:
+                        file.absoluteFile.parentFile ?: continue
 
-                dirToRootCache.put(parent.path, root)
+                dirToRoot.put(entry.key, root)
+            }
 
-                if (!sourceRoots.contains(root)) {
-                    sourceRoots.add(root)
-                }
+            for (file in sources) {
+                val parent = file.parentFile ?: continue
+                val root = dirToRoot[parent.path] ?: continue
+                sourceRoots.add(root)
+            }
+        }
+        return sourceRoots.toMutableList()
+    }
+
+    /**
+     * Finds the source roots of the given files with [findRoot]. This reads each file,
+     * so for more than a few files, it is done concurrently, unless the heap is running
+     * low.
+     */
+    private fun findRoots(files: List<File>): List<File?> {
+        if (files.size < 2 || isLowOnMemory()) {
+            executor?.shutdown()
+            executor = null
+            return files.map { findRoot(it) }
+        }
+
+        val pool = executor ?: Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors().coerceIn(2, 8)) { runnable ->
+            val thread = Thread(runnable, "Lint project initializer")
+            thread.isDaemon = true
+            thread
+        }.also { executor = it }
+
+        val futures = files.map { file -> pool.submit(Callable { findRoot(file) }) }
+        return futures.map {
+            try {
+                it.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
             }
         }
-        return sourceRoots
     }
 
+    private fun isLowOnMemory(): Boolean = (client as? LintCliClient)?.isLowOnMemory == true
+
     /**
      * Given an element that is expected to have a "file" attribute (or "dir" or "jar"),
      * produces a full path to the file
@@ -447,20 +504,44 @@ private class ProjectInitializer(val client: LintClient, val file: File,
             }
         }
         var source = File(path)
-        if (!source.isAbsolute && !source.exists()) {
+        var exists = exists(source)
+        if (!source.isAbsolute && !exists) {
             source = File(dir, path)
-            if (!source.exists()) {
+            exists = exists(source)
+            if (!exists) {
                 source = File(root, path)
+                exists = exists(source)
             }
         }
 
-        if (!source.exists()) {
+        if (!exists) {
             reportError("$path ${if (!File(path).isAbsolute) "(relative to " +
                     "${dir.canonicalPath}) " else ""}does not exist", child)
         }
         return source
     }
 
+    /**
+     * Returns true if the given file exists. This consults the listing of its directory
+     * (see [directoryContents]), and only looks up the file itself if it isn't listed,
+     * for example because the file system is case insensitive.
+     */
+    private fun exists(file: File): Boolean {
+        val parent = file.absoluteFile.parentFile ?: return file.exists()
+        val names = if (directoryContents.containsKey(parent)) {
+            directoryContents[parent]
+        } else {
+            val list = parent.list()?.toHashSet()
+            directoryContents.put(parent, list)
+            list
+        }
+        return when {
+            names == null -> false
+            names.contains(file.name) -> true
+            else -> file.exists()
+        }
+    }
+
     /**
      * If given a full path to a Java or Kotlin source file, produces the path to
      * the source root if possible.
@@ -476,17 +557,113 @@ private class ProjectInitializer(val client: LintClient, val file: File,
         return null
     }
 
-    /** Finds the package of the given Java/Kotlin source file, if possible */
+    /**
+     * Finds the package of the given Java/Kotlin source file, if possible. The file is
+     * read through the client, which decodes its encoding and may supply unsaved
+     * contents. May be called on any thread.
+     */
     private fun findPackage(file: File): String? {
-        val source = client.readFile(file)
-        val matcher = PACKAGE_PATTERN.matcher(source)
-        val foundPackage = matcher.find()
-        return if (foundPackage) {
-            matcher.group(1).trim { it <= ' ' }
+        val pkg = parsePackage(client.readFile(file))
+        return if (pkg.isEmpty()) null else pkg
+    }
+}
+
+/**
+ * Returns the package declared by the given Java or Kotlin source, or "" if it is in the
+ * default package. Only the beginning of the source is looked at: comments, whitespace
+ * and annotations, such as Kotlin file annotations, followed by the package statement,
+ * if any.
+ */
+private fun parsePackage(source: CharSequence): String {
+    val length = source.length
+    var i = 0
+    while (true) {
+        i = skipSpaceAndComments(source, i)
+        if (i >= length) {
+            return ""
+        }
+        val c = source[i]
+        if (c == '@') {
+            // Annotation, such as @file:JvmName("Foo") or @Deprecated
+            i++
+            while (i < length && (Character.isJavaIdentifierPart(source[i])
+                    || source[i] == '.' || source[i] == ':')) {
+                i++
+            }
+            i = skipSpaceAndComments(source, i)
+            if (i < length && (source[i] == '(' || source[i] == '[')) {
+                i = skipBalanced(source, i)
+            }
+        } else if (source.startsWith("package", i) && (i + 7 == length
+                || !Character.isJavaIdentifierPart(source[i + 7]))) {
+            i = skipSpaceAndComments(source, i + 7)
+            val start = i
+            while (i < length && (Character.isJavaIdentifierPart(source[i])
+                    || source[i] == '.' || source[i] == '`')) {
+                i++
+            }
+            return source.substring(start, i).replace("`", "")
+        } else {
+            return ""
+        }
+    }
+}
+
+/**
+ * Returns the index of the first character at or after [start] which isn't whitespace or
+ * in a comment
+ */
+private fun skipSpaceAndComments(source: CharSequence, start: Int): Int {
+    val length = source.length
+    var i = start
+    while (i < length) {
+        val c = source[i]
+        if (Character.isWhitespace(c) || c == '\uFEFF') {
+            i++
+        } else if (c == '/' && i + 1 < length && source[i + 1] == '/') {
+            while (i < length && source[i] != '\n') {
+                i++
+            }
+        } else if (c == '/' && i + 1 < length && source[i + 1] == '*') {
+            val end = source.indexOf("*/", i + 2)
+            if (end == -1) {
+                return length
+            }
+            i = end + 2
         } else {
-            null
+            break
+        }
+    }
+    return i
+}
+
+/**
+ * Given the index of an opening parenthesis or bracket, returns the index after the
+ * matching closing one, skipping comments and string and character literals, or the
+ * length of the source if there is none
+ */
+private fun skipBalanced(source: CharSequence, start: Int): Int {
+    val length = source.length
+    var depth = 0
+    var i = start
+    while (i < length) {
+        val c = source[i++]
+        when (c) {
+            '(', '[' -> depth++
+            ')', ']' -> if (--depth == 0) return i
+            '/' -> i = skipSpaceAndComments(source, i - 1).coerceAtLeast(i)
+            '"', '\'' -> {
+                while (i < length && source[i] != c) {
+                    if (source[i] == '\\') {
+                        i++
+                    }
+                    i++
+                }
+                i++
+            }
         }
     }
+    return length
 }
 
 /**
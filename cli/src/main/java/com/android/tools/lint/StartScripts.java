@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Adapts the launch scripts generated by Gradle for lint (see lintStartScripts in
+ * build.gradle, which runs this with the paths of the Unix and Windows scripts):
+ * <ul>
+ * <li>The bin dir property, {@code com.android.tools.lint.bindir}, is pointed at the
+ * lint installation.
+ * <li>The scripts use the class data sharing archive created by lint --train-startup
+ * (see {@link StartupTrainer}) when it was created with the Java command they run.
+ * The JVM itself ignores the archive if the class path changed.
+ * </ul>
+ */
+public final class StartScripts {
+    /** The placeholder for the lint installation in the default JVM options */
+    @VisibleForTesting
+    static final String APP_HOME = "MY_APP_HOME";
+
+    /** The command running lint at the end of the Unix script */
+    @VisibleForTesting
+    static final String UNIX_COMMAND = "exec \"$JAVACMD\" \"$@\"";
+
+    private static final String UNIX_STARTUP_ARCHIVE = ""
+            + "# Use the startup archive created by lint --train-startup with this Java command\n"
+            + "LINT_JAVACMD=$JAVACMD\n"
+            + "export LINT_JAVACMD\n"
+            + "STARTUP_ARCHIVE=$APP_HOME/lib/" + StartupTrainer.ARCHIVE_NAME + "\n"
+            + "if [ -f \"$STARTUP_ARCHIVE\" ] && [ -f \"$STARTUP_ARCHIVE"
+            + StartupTrainer.JVM_SUFFIX + "\" ] ; then\n"
+            + "    read -r ARCHIVE_JAVACMD < \"$STARTUP_ARCHIVE" + StartupTrainer.JVM_SUFFIX
+            + "\"\n"
+            + "    JAVA_BINARY=`command -v \"$JAVACMD\"`\n"
+            + "    if [ \"$ARCHIVE_JAVACMD\" = \"$JAVACMD\" ] && "
+            + "[ \"$STARTUP_ARCHIVE\" -nt \"$JAVA_BINARY\" ] ; then\n"
+            + "        set -- -Xshare:auto \"-XX:SharedArchiveFile=$STARTUP_ARCHIVE\" \"$@\"\n"
+            + "    fi\n"
+            + "fi\n"
+            + "\n"
+            + UNIX_COMMAND;
+
+    /** The command running lint in the Windows script */
+    @VisibleForTesting
+    static final String WINDOWS_COMMAND = "\"%JAVA_EXE%\" %DEFAULT_JVM_OPTS%";
+
+    private static final String WINDOWS_STARTUP_ARCHIVE = ""
+            + "@rem Use the startup archive created by lint --train-startup with this Java "
+            + "command\r\n"
+            + "set LINT_JAVACMD=%JAVA_EXE%\r\n"
+            + "set STARTUP_OPTS=\r\n"
+            + "set STARTUP_ARCHIVE=%APP_HOME%\\lib\\" + StartupTrainer.ARCHIVE_NAME + "\r\n"
+            + "if not exist \"%STARTUP_ARCHIVE%\" goto runLint\r\n"
+            + "if not exist \"%STARTUP_ARCHIVE%" + StartupTrainer.JVM_SUFFIX
+            + "\" goto runLint\r\n"
+            + "set /p ARCHIVE_JAVACMD=<\"%STARTUP_ARCHIVE%" + StartupTrainer.JVM_SUFFIX
+            + "\"\r\n"
+            + "if \"%ARCHIVE_JAVACMD%\" == \"%JAVA_EXE%\" set STARTUP_OPTS=-Xshare:auto "
+            + "\"-XX:SharedArchiveFile=%STARTUP_ARCHIVE%\"\r\n"
+            + "\r\n"
+            + ":runLint\r\n"
+            + "\"%JAVA_EXE%\" %STARTUP_OPTS% %DEFAULT_JVM_OPTS%";
+
+    private StartScripts() {
+    }
+
+    /**
+     * Rewrites the given Unix and Windows launch scripts in place
+     *
+     * @param args the paths of the Unix and Windows scripts
+     * @throws IOException if a script can't be read or written
+     */
+    public static void main(@NonNull String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: StartScripts <unix script> "
+                    + "<windows script>");
+        }
+        File unixScript = new File(args[0]);
+        Files.write(rewriteUnixScript(Files.toString(unixScript, Charsets.UTF_8)),
+                unixScript, Charsets.UTF_8);
+        File windowsScript = new File(args[1]);
+        Files.write(rewriteWindowsScript(Files.toString(windowsScript, Charsets.UTF_8)),
+                windowsScript, Charsets.UTF_8);
+    }
+
+    /** Returns the given Unix launch script adapted for lint */
+    @NonNull
+    static String rewriteUnixScript(@NonNull String script) {
+        return insert(script.replace(APP_HOME, "$APP_HOME"), UNIX_COMMAND,
+                UNIX_STARTUP_ARCHIVE);
+    }
+
+    /** Returns the given Windows launch script adapted for lint */
+    @NonNull
+    static String rewriteWindowsScript(@NonNull String script) {
+        return insert(script.replace(APP_HOME, "%~dp0\\.."), WINDOWS_COMMAND,
+                WINDOWS_STARTUP_ARCHIVE);
+    }
+
+    @NonNull
+    private static String insert(@NonNull String script, @NonNull String command,
+            @NonNull String replacement) {
+        // Fail the build rather than silently creating scripts which ignore the archive
+        // if Gradle changes its script templates
+        if (!script.contains(command)) {
+            throw new IllegalArgumentException(
+                    "Could not find `" + command + "` in the lint start script");
+        }
+        return script.replace(command, replacement);
+    }
+}
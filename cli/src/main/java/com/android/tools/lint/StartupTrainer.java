@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates a class data sharing archive of the classes loaded by lint, to speed up
+ * its startup: rather than loading and verifying thousands of classes from the jar
+ * files on each run, the JVM maps them from the archive.
+ * <p>
+ * The classes are recorded by running a representative analysis in a separate
+ * process, and the archive is then dumped by another one. The archive is stored
+ * next to the lint jars, along with the Java command it was created for; the lint
+ * launch scripts only use it with that Java command (see {@link StartScripts}), and
+ * the JVM itself checks that it matches the class path.
+ */
+final class StartupTrainer {
+    /** The name of the archive, in the lib folder of the lint installation */
+    static final String ARCHIVE_NAME = "lint.jsa";
+
+    /**
+     * The suffix of the file recording the Java command the archive was created for,
+     * next to the archive
+     */
+    static final String JVM_SUFFIX = ".jvm";
+
+    /** Environment variable set by the launch scripts to the Java command they run */
+    private static final String ENV_JAVA_COMMAND = "LINT_JAVACMD";
+
+    /**
+     * The first Java version which archives application classes by default. Java 10 can
+     * too, but only with -XX:+UseAppCDS when recording the classes, when dumping the
+     * archive and when using it, and the launch scripts can't tell which version they run.
+     */
+    @VisibleForTesting
+    static final int MIN_JAVA_VERSION = 11;
+
+    private final File archive;
+
+    /**
+     * Creates a new trainer
+     *
+     * @param archive the archive to create
+     */
+    StartupTrainer(@NonNull File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Runs lint with the given arguments to record the classes it loads, and creates
+     * the archive from them
+     *
+     * @param analysisArgs the arguments to run the training analysis with
+     * @throws IOException if the archive could not be created
+     */
+    void train(@NonNull List<String> analysisArgs) throws IOException {
+        String version = System.getProperty("java.specification.version");
+        if (getMajorVersion(version) < MIN_JAVA_VERSION) {
+            throw new IOException(String.format(
+                    "Creating a startup archive requires Java %1$d or later; this is Java %2$s",
+                    MIN_JAVA_VERSION, version));
+        }
+
+        File classList = File.createTempFile("lint-classes", ".lst");
+        File log = File.createTempFile("lint-archive", ".log");
+        File tempArchive = new File(archive.getPath() + ".tmp");
+        try {
+            List<String> command = createCommand();
+            command.add("-Xshare:off");
+            command.add("-XX:DumpLoadedClassList=" + classList.getPath());
+            command.addAll(getJvmArgs());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            command.addAll(analysisArgs);
+            // The exit code reflects the issues found, so ignore it, but not a run which
+            // didn't get as far as loading the detectors
+            int exitCode = run(new ProcessBuilder(command).inheritIO());
+            if (classList.length() == 0) {
+                throw new IOException(String.format(
+                        "The training analysis failed with exit code %1$d", exitCode));
+            }
+
+            command = createCommand();
+            command.add("-Xshare:dump");
+            command.add("-XX:SharedClassListFile=" + classList.getPath());
+            command.add("-XX:SharedArchiveFile=" + tempArchive.getPath());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            // Dumping warns about each class it can't archive (such as the classes of
+            // lambdas), so only show the output if the dump fails
+            exitCode = run(new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(log));
+            if (exitCode != 0 || !tempArchive.isFile()) {
+                throw new IOException(String.format(
+                        "Creating the startup archive failed with exit code %1$d:\n%2$s",
+                        exitCode, Files.toString(log, Charsets.UTF_8)));
+            }
+
+            // Replace any previous archive only once the new one is complete
+            //noinspection ResultOfMethodCallIgnored
+            archive.delete();
+            Files.move(tempArchive, archive);
+            Files.write(getJavaCommand() + System.lineSeparator(), getJvmFile(archive),
+                    Charsets.UTF_8);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            classList.delete();
+            //noinspection ResultOfMethodCallIgnored
+            log.delete();
+            //noinspection ResultOfMethodCallIgnored
+            tempArchive.delete();
+        }
+    }
+
+    /** Returns the file recording the Java command the given archive was created for */
+    @NonNull
+    static File getJvmFile(@NonNull File archive) {
+        return new File(archive.getPath() + JVM_SUFFIX);
+    }
+
+    /**
+     * Returns the Java command the launch script ran lint with, which the archive is
+     * valid for; this is the same JVM as the one running this process
+     */
+    @NonNull
+    private static String getJavaCommand() {
+        String command = System.getenv(ENV_JAVA_COMMAND);
+        return command != null && !command.isEmpty() ? command : getJavaExecutable();
+    }
+
+    @NonNull
+    private static String getJavaExecutable() {
+        return new File(System.getProperty("java.home"),
+                "bin" + File.separator + "java").getPath();
+    }
+
+    @NonNull
+    private static List<String> createCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(getJavaExecutable());
+        return command;
+    }
+
+    /**
+     * Returns the arguments this JVM was started with, such as the heap size and system
+     * properties, except for any previous archive and debugger agents
+     */
+    @NonNull
+    private static List<String> getJvmArgs() {
+        List<String> args = new ArrayList<>();
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-Xshare:") && !arg.startsWith("-XX:SharedArchiveFile=")
+                    && !arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+                args.add(arg);
+            }
+        }
+        return args;
+    }
+
+    private static int run(@NonNull ProcessBuilder builder) throws IOException {
+        Process process = builder.start();
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating the startup archive");
+        }
+    }
+
+    /**
+     * Returns the major version of the given Java specification version, such as 8 for
+     * "1.8" and 11 for "11", or 0 if it can't be parsed
+     */
+    @VisibleForTesting
+    static int getMajorVersion(@NonNull String version) {
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(version.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.android.tools.lint.detector.api.ClassContext;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.ClassScanner;
 import com.google.common.annotations.Beta;
+import com.intellij.openapi.progress.ProgressManager;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -149,7 +150,7 @@ class AsmVisitor {
         for (Detector detector : fullClassChecks) {
             Detector.ClassScanner scanner = (Detector.ClassScanner) detector;
             scanner.checkClass(context, classNode);
-            detector.afterCheckFile(context);
+            context.getDriver().afterCheckFile(detector, context);
         }
 
         if (!methodNameToChecks.isEmpty() || !methodOwnerToChecks.isEmpty() ||
@@ -157,6 +158,7 @@ class AsmVisitor {
             List methodList = classNode.methods;
             for (Object m : methodList) {
                 MethodNode method = (MethodNode) m;
+                ProgressManager.checkCanceled();
                 InsnList nodes = method.instructions;
                 for (int i = 0, n = nodes.size(); i < n; i++) {
                     AbstractInsnNode instruction = nodes.get(i);
@@ -194,7 +196,7 @@ class AsmVisitor {
         }
 
         for (Detector detector : allDetectors) {
-            detector.afterCheckFile(context);
+            context.getDriver().afterCheckFile(detector, context);
         }
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.detector.api.Detector
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressManager
+import java.util.IdentityHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Limits the time each detector can spend analyzing a single file.
+ *
+ * While a file is analyzed (see [run]), the analysis thread is sampled periodically,
+ * and the time since the previous sample is charged to the innermost detector on the
+ * stack. Once a detector has been charged more than the budget for the file, the
+ * analysis of the file is canceled: it runs under a progress indicator which is then
+ * canceled, such that the next [ProgressManager.checkCanceled] call (made by the lint
+ * visitors between callbacks, and by PSI resolution, constant evaluation etc within
+ * them) throws a [ProcessCanceledException]. Cancellation is cooperative: a detector
+ * stuck in code which never checks for cancellation can't be stopped.
+ */
+internal class DetectorWatchdog(budgetMs: Long) {
+    private val budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs)
+
+    private val executor: ScheduledExecutorService =
+            Executors.newSingleThreadScheduledExecutor { runnable ->
+                val thread = Thread(runnable, "Lint detector watchdog")
+                thread.isDaemon = true
+                thread
+            }
+
+    /** The file being analyzed, if any */
+    @Volatile private var current: FileRun? = null
+
+    /** The detectors of the file being analyzed, by class name */
+    @Volatile private var detectorClasses: Map<String, Detector> = emptyMap()
+    private var lastDetectors: List<Detector>? = null
+
+    init {
+        // Sample often enough to notice an overrun within about a tenth of the budget
+        val interval = (budgetMs / 10).coerceIn(5, 1000)
+        executor.scheduleAtFixedRate({ sample() }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /** Whether the analysis of the current file is being canceled for exceeding the budget */
+    val isCanceling: Boolean
+        get() = current?.timedOut != null
+
+    /**
+     * Runs [block], which analyzes a file with the given [detectors], and returns the
+     * detector which exceeded its budget, if any, in which case the rest of [block] was
+     * skipped
+     */
+    fun run(detectors: List<Detector>, block: () -> Unit): Detector? {
+        if (detectors !== lastDetectors) {
+            lastDetectors = detectors
+            val classes = HashMap<String, Detector>(detectors.size)
+            for (detector in detectors) {
+                classes.put(detector.javaClass.name, detector)
+            }
+            detectorClasses = classes
+        }
+
+        val indicator = EmptyProgressIndicator()
+        val run = FileRun(Thread.currentThread(), indicator)
+        current = run
+        try {
+            ProgressManager.getInstance().runProcess(Runnable { block() }, indicator)
+        } catch (e: ProcessCanceledException) {
+            if (run.timedOut == null) {
+                throw e
+            }
+        } finally {
+            current = null
+        }
+        return run.timedOut
+    }
+
+    /** Stops the watchdog thread */
+    fun dispose() {
+        executor.shutdownNow()
+    }
+
+    /** Called periodically on the watchdog thread */
+    private fun sample() {
+        val run = current ?: return
+        val now = System.nanoTime()
+        val elapsed = now - run.lastSample
+        run.lastSample = now
+        if (run.timedOut != null) {
+            return
+        }
+
+        val detector = findDetector(run.thread.stackTrace) ?: return
+        val total = (run.times[detector] ?: 0L) + elapsed
+        run.times.put(detector, total)
+        if (total > budgetNanos) {
+            run.timedOut = detector
+            run.indicator.cancel()
+        }
+    }
+
+    /**
+     * Returns the innermost detector on the given stack, looking at the frames of the
+     * detector classes themselves as well as their inner classes and lambdas (the
+     * detector classes can themselves be nested classes)
+     */
+    private fun findDetector(stack: Array<StackTraceElement>): Detector? {
+        val classes = detectorClasses
+        for (frame in stack) {
+            var name = frame.className
+            while (true) {
+                val detector = classes[name]
+                if (detector != null) {
+                    return detector
+                }
+                val index = name.lastIndexOf('$')
+                if (index == -1) {
+                    break
+                }
+                name = name.substring(0, index)
+            }
+        }
+        return null
+    }
+
+    private class FileRun(val thread: Thread, val indicator: EmptyProgressIndicator) {
+        /** The time charged to each detector so far; only used on the watchdog thread */
+        val times = IdentityHashMap<Detector, Long>()
+        var lastSample = System.nanoTime()
+        @Volatile var timedOut: Detector? = null
+    }
+}
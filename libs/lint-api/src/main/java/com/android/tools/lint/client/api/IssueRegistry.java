@@ -44,14 +44,42 @@ import java.util.Set;
  */
 @Beta
 public abstract class IssueRegistry {
-    private static volatile List<Category> categories;
-    private static volatile Map<String, Issue> idToIssue;
-    private static Map<EnumSet<Scope>, List<Issue>> scopeIssues = Maps.newHashMap();
+    /** Lookup caches computed from the issues of a registry */
+    private static final class Caches {
+        private volatile List<Category> categories;
+        private volatile Map<String, Issue> idToIssue;
+        private final Map<EnumSet<Scope>, List<Issue>> scopeIssues = Maps.newHashMap();
+    }
+
+    /** The caches shared by the registries created with {@link #IssueRegistry()} */
+    private static volatile Caches sharedCaches = new Caches();
+
+    /** The caches of this registry, or null if it uses the shared caches */
+    @Nullable
+    private final Caches caches;
 
     /**
      * Creates a new {@linkplain IssueRegistry}
      */
     protected IssueRegistry() {
+        this(true);
+    }
+
+    /**
+     * Creates a new {@linkplain IssueRegistry}
+     *
+     * @param sharedCaches whether the lookup caches computed from the issues are
+     *            shared with the other registries using shared caches, until the next
+     *            {@link #reset()}. Registries whose issues differ from those of the
+     *            other registries must not share them.
+     */
+    protected IssueRegistry(boolean sharedCaches) {
+        caches = sharedCaches ? null : new Caches();
+    }
+
+    @NonNull
+    private Caches getCaches() {
+        return caches != null ? caches : sharedCaches;
     }
 
     private static final Implementation DUMMY_IMPLEMENTATION = new Implementation(Detector.class,
@@ -187,6 +215,7 @@ public abstract class IssueRegistry {
      */
     @NonNull
     protected List<Issue> getIssuesForScope(@NonNull EnumSet<Scope> scope) {
+        Map<EnumSet<Scope>, List<Issue>> scopeIssues = getCaches().scopeIssues;
         List<Issue> list = scopeIssues.get(scope);
         if (list == null) {
             List<Issue> issues = getIssues();
@@ -324,15 +353,15 @@ public abstract class IssueRegistry {
      *
      * @return an iterator for all the categories, never null
      */
-    @SuppressWarnings("AssignmentToStaticFieldFromInstanceMethod")
     @NonNull
     public List<Category> getCategories() {
-        List<Category> categories = IssueRegistry.categories;
+        Caches caches = getCaches();
+        List<Category> categories = caches.categories;
         if (categories == null) {
             synchronized (IssueRegistry.class) {
-                categories = IssueRegistry.categories;
+                categories = caches.categories;
                 if (categories == null) {
-                    IssueRegistry.categories = categories = Collections.unmodifiableList(createCategoryList());
+                    caches.categories = categories = Collections.unmodifiableList(createCategoryList());
                 }
             }
         }
@@ -357,16 +386,16 @@ public abstract class IssueRegistry {
      * @param id the id to be checked
      * @return the corresponding issue, or null
      */
-    @SuppressWarnings("AssignmentToStaticFieldFromInstanceMethod")
     @Nullable
     public final Issue getIssue(@NonNull String id) {
-        Map<String, Issue> map = idToIssue;
+        Caches caches = getCaches();
+        Map<String, Issue> map = caches.idToIssue;
         if (map == null) {
             synchronized (IssueRegistry.class) {
-                map = idToIssue;
+                map = caches.idToIssue;
                 if (map == null) {
                     map = createIdToIssueMap();
-                    idToIssue = map;
+                    caches.idToIssue = map;
                 }
             }
         }
@@ -399,13 +428,12 @@ public abstract class IssueRegistry {
     }
 
     /**
-     * Reset the registry such that it recomputes its available issues.
+     * Reset the shared registry caches such that they are recomputed from the
+     * available issues.
      */
     protected static void reset() {
         synchronized (IssueRegistry.class) {
-            idToIssue = null;
-            categories = null;
-            scopeIssues = Maps.newHashMap();
+            sharedCaches = new Caches();
         }
     }
 }
@@ -30,6 +30,7 @@ import java.io.IOException
 import java.io.InputStreamReader
 import java.lang.ref.SoftReference
 import java.net.URLClassLoader
+import java.util.EnumSet
 import java.util.HashMap
 import java.util.jar.Attributes
 import java.util.jar.JarFile
@@ -122,14 +123,57 @@ private constructor(
          * It will also deduplicate issue registries, since in Gradle projects with
          * local lint.jar's it's possible for the same lint.jar to be handed back
          * multiple times with different paths through various separate dependencies.
+         *
+         * If a [scope] is specified, jar files whose persisted [LintJarMetadata]
+         * shows that none of their issues can be analyzed in that scope are skipped
+         * without being loaded.
          */
-        fun get(client: LintClient,  jarFiles: Collection<File>): List<JarFileIssueRegistry> {
+        @JvmOverloads
+        fun get(client: LintClient, jarFiles: Collection<File>,
+                scope: EnumSet<Scope>? = null): List<JarFileIssueRegistry> {
+            // Consult the persistent metadata cache first: for jars we've seen before
+            // we already know the registry class and the scopes of its issues
+            val checksums = HashMap<File, String>()
+            val cachedMap = HashMap<String, File>()
+            val legacy = HashSet<String>()
+            val uncached = ArrayList<File>(jarFiles.size)
+            for (jarFile in jarFiles) {
+                val checksum = LintJarMetadata.checksum(jarFile)
+                val metadata = if (checksum != null) {
+                    checksums.put(jarFile, checksum)
+                    LintJarMetadata.read(client, checksum)
+                } else {
+                    null
+                }
+                if (metadata == null) {
+                    uncached.add(jarFile)
+                    continue
+                }
+                if (scope != null && !metadata.isApplicable(scope)) {
+                    continue
+                }
+                val className = metadata.registryClass
+                if (metadata.isLegacy) {
+                    if (cachedMap[className] == null) {
+                        cachedMap[className] = jarFile
+                        legacy.add(className)
+                    }
+                } else if (cachedMap[className] == null || legacy.remove(className)) {
+                    cachedMap[className] = jarFile
+                }
+            }
+
             val registryMap = try {
-                findRegistries(client, jarFiles)
+                findRegistries(client, uncached, legacy)
             } catch (e: IOException) {
                 client.log(e, "Could not load custom lint check jar files: ${e.message}")
                 return emptyList()
             }
+            for ((className, jarFile) in cachedMap) {
+                if (registryMap[className] == null) {
+                    registryMap[className] = jarFile
+                }
+            }
 
             if (registryMap.isEmpty()) {
                 return emptyList()
@@ -142,6 +186,11 @@ private constructor(
                 try {
                     val registry = get(client, registryClass, jarFile) ?: continue
                     registries.add(registry)
+                    val checksum = checksums[jarFile]
+                    if (checksum != null && !cachedMap.containsKey(registryClass)) {
+                        LintJarMetadata.write(client, checksum, registryClass,
+                                legacy.contains(registryClass), registry.issues)
+                    }
                 } catch (e: Throwable) {
                     client.log(e, "Could not load custom lint check jar file %1\$s", jarFile)
                 }
@@ -216,11 +265,13 @@ private constructor(
 
         /**
          * Returns a map from issue registry qualified name to the corresponding jar file
-         * that contains it
+         * that contains it. Registries found via the older manifest key are added
+         * to [legacy].
          */
         private fun findRegistries(
                 client: LintClient,
-                jarFiles: Collection<File>): Map<String,File> {
+                jarFiles: Collection<File>,
+                legacy: MutableSet<String>): MutableMap<String,File> {
             val registryClassToJarFile = HashMap<String,File>()
             for (jarFile in jarFiles) {
                 JarFile(jarFile).use { file ->
@@ -247,6 +298,11 @@ private constructor(
                         // been found, or if it's a v2 version (e.g. not legacy)
                         if (!isLegacy || registryClassToJarFile[className] == null) {
                             registryClassToJarFile[className] = jarFile
+                            if (isLegacy) {
+                                legacy.add(className)
+                            } else {
+                                legacy.remove(className)
+                            }
                         }
                     } else {
                         // Load service keys. We're reading it manually instead of using
@@ -322,7 +322,7 @@ public class JavaPsiVisitor {
 
                 client.runReadAction(() -> {
                     for (VisitingDetector v : allDetectors) {
-                        v.getDetector().afterCheckFile(context);
+                        context.getDriver().afterCheckFile(v.getDetector(), context);
                     }
                 });
             } finally {
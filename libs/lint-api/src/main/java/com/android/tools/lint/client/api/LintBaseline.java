@@ -105,6 +105,13 @@ public class LintBaseline {
      */
     private boolean removeFixed;
 
+    /**
+     * Whether only part of the project is analyzed, such as one shard of it. The baseline
+     * entries which weren't matched may then belong to the other parts, so they are not
+     * counted or reported as fixed.
+     */
+    private boolean partialAnalysis;
+
     /**
      * The file to read the baselines from, and if {@link #writeOnClose} is set, to write
      * to when the baseline is {@link #close()}'ed.
@@ -313,9 +320,13 @@ public class LintBaseline {
 
     /**
      * Returns the number of issues that appear to have been fixed (e.g. are present
-     * in the baseline but have not been matched
+     * in the baseline but have not been matched), or 0 when only part of the project
+     * is analyzed; see {@link #setPartialAnalysis(boolean)}
      */
     public int getFixedCount() {
+        if (partialAnalysis) {
+            return 0;
+        }
         return baselineIssueCount - foundErrorCount - foundWarningCount;
     }
 
@@ -474,6 +485,19 @@ public class LintBaseline {
         this.removeFixed = skipFixed;
     }
 
+    /** Returns whether only part of the project is analyzed */
+    public boolean isPartialAnalysis() {
+        return partialAnalysis;
+    }
+
+    /**
+     * Sets whether only part of the project is analyzed, such as one shard of it, in
+     * which case the unmatched entries are not reported as fixed
+     */
+    public void setPartialAnalysis(boolean partialAnalysis) {
+        this.partialAnalysis = partialAnalysis;
+    }
+
     /** Finishes writing the baseline */
     public void close() {
         if (writeOnClose) {
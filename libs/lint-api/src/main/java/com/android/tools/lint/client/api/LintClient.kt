@@ -1481,6 +1481,14 @@ abstract class LintClient {
      */
     open fun runReadAction(runnable: Runnable) = runnable.run()
 
+    /**
+     * Called by the lint driver between files when the heap is running low (see
+     * [LintDriver.memoryGovernor]). Clients should release the memory they can
+     * recompute on demand, such as cached file contents.
+     */
+    open fun trimMemory() {
+    }
+
     /** Returns a repository logger used by this client.  */
     open fun getRepositoryLogger(): ProgressIndicator = RepoLogger()
 
@@ -1513,7 +1521,7 @@ abstract class LintClient {
          *
          * @return A new File corresponding to [LintClient.PROP_BIN_DIR] or null.
          */
-        private val lintBinDir: File?
+        @JvmStatic val lintBinDir: File?
             get() {
                 // First check the Java properties (e.g. set using "java -jar ... -Dname=value")
                 // If not found, check environment variables.
@@ -20,6 +20,7 @@ import com.android.SdkConstants.ATTR_IGNORE
 import com.android.SdkConstants.CLASS_CONSTRUCTOR
 import com.android.SdkConstants.CONSTRUCTOR_NAME
 import com.android.SdkConstants.DOT_CLASS
+import com.android.SdkConstants.DOT_GRADLE
 import com.android.SdkConstants.DOT_JAR
 import com.android.SdkConstants.DOT_JAVA
 import com.android.SdkConstants.DOT_KT
@@ -45,6 +46,8 @@ import com.android.sdklib.repository.AndroidSdkHandler
 import com.android.tools.lint.client.api.LintListener.EventType
 import com.android.tools.lint.detector.api.Category
 import com.android.tools.lint.detector.api.ClassContext
+import com.android.tools.lint.detector.api.ClassHierarchyIndex
+import com.android.tools.lint.detector.api.ConstantEvaluationCache
 import com.android.tools.lint.detector.api.Context
 import com.android.tools.lint.detector.api.Detector
 import com.android.tools.lint.detector.api.Issue
@@ -190,6 +193,12 @@ class LintDriver
 
     private var repeatingDetectors: MutableList<Detector>? = null
     private var repeatScope: EnumSet<Scope>? = null
+    /** Parsed source files kept alive between the passes over the current project */
+    private var retainedUastFiles: RetainedUastFiles? = null
+    /** Whether [retainedUastFiles] has been computed for the current project */
+    private var retainedUastFilesComputed = false
+    /** Class hierarchy indices, computed on demand per project */
+    private val classHierarchyIndices = HashMap<Project, ClassHierarchyIndex<String>>()
     private var currentProjects: Array<Project>? = null
     private var currentProject: Project? = null
 
@@ -214,6 +223,58 @@ class LintDriver
     var baseline: LintBaseline? = null
     /** Whether dependent projects should be checked */
     var checkDependencies = true
+    /** Values computed by constant evaluators during this run, shared between detectors */
+    val constantEvaluationCache = ConstantEvaluationCache()
+    /**
+     * The number of shards the analysis is split into, for example to spread the analysis
+     * of a large project across several machines. See [shardIndex].
+     */
+    var shardCount = 1
+    /**
+     * The (0-based) shard to analyze when [shardCount] is greater than 1. Detectors which
+     * only look at one Java, resource or class file at a time are run on the files assigned
+     * to this shard (see [getShard]); all other detectors are only run in shard 0, which
+     * runs them on all the files.
+     */
+    var shardIndex = 0
+    /** Whether the current pass only visits the files assigned to [shardIndex] */
+    private var shardFiltering = false
+    /**
+     * The maximum time, in milliseconds, a detector may spend analyzing a single file,
+     * or 0 for no limit. When a detector exceeds it, the rest of the analysis of the file
+     * is canceled and reported as an [IssueRegistry.LINT_ERROR]; see [DetectorWatchdog].
+     * The files are analyzed under a progress indicator of their own, so this should not
+     * be used where lint already runs under one, such as in the IDE.
+     */
+    var detectorTimeBudget = 0L
+    /** Whether detectors exceeding [detectorTimeBudget] are skipped for the rest of the run */
+    var quarantineSlowDetectors = false
+    private var watchdog: DetectorWatchdog? = null
+    private val quarantinedDetectors = Sets.newIdentityHashSet<Detector>()
+    /**
+     * While a file is visited again after a detector exceeded its time budget (see
+     * [watch]), the issues reported by the earlier visits, which are not reported again
+     */
+    private var previousReports: Set<String>? = null
+    /** The issues reported by the current watched visit, if any */
+    private var attemptReports: MutableSet<String>? = null
+    /** The detectors which finished the file of the current watched visit, if any */
+    private var finishedDetectors: MutableSet<Detector>? = null
+    /**
+     * Watches the heap usage, if set: when a garbage collection leaves the heap above its
+     * threshold, lint releases the memory it can recompute before analyzing the next file
+     * (see [LintClient.trimMemory]). The governor sets thresholds on the JVM's memory
+     * pools, so this should only be used where lint owns the process, such as on the
+     * command line; whoever creates the governor disposes it.
+     */
+    var memoryGovernor: MemoryGovernor? = null
+
+    /**
+     * Whether the heap is running low, in which case detectors should avoid work which
+     * needs more memory than necessary, such as running tasks in parallel
+     */
+    val isLowOnMemory: Boolean
+        get() = memoryGovernor?.isLowOnMemory == true
 
     /** Cancels the current lint run as soon as possible  */
     fun cancel() {
@@ -365,9 +426,16 @@ class LintDriver
                 baseline = LintBaseline(client, baselineFile)
             }
         }
+        if (shardCount > 1) {
+            // Each shard only finds the baselined issues in its part of the project
+            baseline?.isPartialAnalysis = true
+        }
 
         fireEvent(EventType.STARTING, null)
 
+        if (detectorTimeBudget > 0) {
+            watchdog = DetectorWatchdog(detectorTimeBudget)
+        }
         try {
             for (project in projects) {
                 phase = 1
@@ -382,18 +450,23 @@ class LintDriver
                     continue
                 }
 
-                checkProject(project, main)
+                if (shardCount > 1) {
+                    checkProjectShard(project, main)
+                } else {
+                    checkProjectPhases(project, main)
+                }
                 if (isCanceled) {
                     break
                 }
-
-                runExtraPhases(project, main)
             }
         } catch (throwable: Throwable) {
             // Process canceled etc
             if (!handleDetectorError(null, this, throwable)) {
                 cancel()
             }
+        } finally {
+            watchdog?.dispose()
+            watchdog = null
         }
 
         val baseline = this.baseline
@@ -407,6 +480,250 @@ class LintDriver
         realClient.performDisposeProjects(projects)
     }
 
+    private fun checkProjectPhases(project: Project, main: Project) {
+        try {
+            checkProject(project, main)
+            if (isCanceled) {
+                return
+            }
+
+            runExtraPhases(project, main)
+        } finally {
+            retainedUastFiles?.dispose()
+            retainedUastFiles = null
+            retainedUastFilesComputed = false
+        }
+    }
+
+    /**
+     * Checks the given project as shard [shardIndex] of [shardCount]. This is done in
+     * up to two passes: the first runs the detectors which only look at individual
+     * Java, resource or class files, on the files assigned to this shard. The second
+     * runs all the other detectors (those which need to see all the files of a kind,
+     * or which look at the manifest, build scripts etc), on all the files; it is only
+     * performed in shard 0, such that each issue is reported by exactly one shard.
+     * See [isShardable] for which detectors only look at individual files.
+     */
+    private fun checkProjectShard(project: Project, main: Project) {
+        val detectorScopes = IdentityHashMap<Detector, EnumSet<Scope>>()
+        for ((s, detectors) in scopeDetectors) {
+            for (detector in detectors) {
+                detectorScopes.getOrPut(detector) { EnumSet.noneOf(Scope::class.java) }.add(s)
+            }
+        }
+        val fileDetectors = ArrayList<Detector>()
+        val projectDetectors = ArrayList<Detector>()
+        for (detector in applicableDetectors) {
+            val scopes = detectorScopes[detector]
+            if (scopes != null && isShardable(detector, scopes)) {
+                fileDetectors.add(detector)
+            } else {
+                projectDetectors.add(detector)
+            }
+        }
+
+        val allScopeDetectors = scopeDetectors
+        try {
+            shardFiltering = true
+            setPassDetectors(fileDetectors, allScopeDetectors)
+            checkProjectPhases(project, main)
+        } finally {
+            shardFiltering = false
+        }
+
+        if (shardIndex == 0 && !projectDetectors.isEmpty() && !isCanceled) {
+            phase = 1
+            setPassDetectors(projectDetectors, allScopeDetectors)
+            checkProjectPhases(project, main)
+        }
+    }
+
+    private fun setPassDetectors(detectors: List<Detector>,
+                                 allScopeDetectors: Map<Scope, List<Detector>>) {
+        // Ensure that the current visitor is recomputed
+        currentFolderType = null
+        currentVisitor = null
+        currentXmlDetectors = null
+        currentBinaryDetectors = null
+
+        val detectorSet = Sets.newIdentityHashSet<Detector>()
+        detectorSet.addAll(detectors)
+        val scopeToDetectors = EnumMap<Scope, List<Detector>>(Scope::class.java)
+        for ((s, list) in allScopeDetectors) {
+            val filtered = list.filter { it in detectorSet }
+            if (!filtered.isEmpty()) {
+                scopeToDetectors.put(s, filtered)
+            }
+        }
+        applicableDetectors = detectors
+        scopeDetectors = scopeToDetectors
+        repeatingDetectors = null
+        repeatScope = null
+        if (!quarantinedDetectors.isEmpty()) {
+            removeQuarantinedDetectors()
+        }
+    }
+
+    /**
+     * Runs [visit], which analyzes the file of the given [context] with the given list
+     * of detectors, starting with [detectors], under the [watchdog] if there is one. If
+     * the heap is running low, memory is released first; see [trimMemory].
+     *
+     * When a detector exceeds its time budget, the visit is canceled for all the
+     * detectors, so the file is visited again with the detectors which hadn't finished
+     * it yet (see [afterCheckFile]) other than the slow one, such that they still check
+     * all of it. They start over from [Detector.beforeCheckFile], and issues reported
+     * before the cancellation are not reported again by the repeated visit.
+     */
+    internal fun watch(context: Context, detectors: List<Detector>,
+            visit: (List<Detector>) -> Unit) {
+        if (memoryGovernor?.isUnderPressure() == true) {
+            trimMemory()
+        }
+        val watchdog = watchdog
+        if (watchdog == null) {
+            visit(detectors)
+            return
+        }
+
+        var remaining = detectors
+        val reported = HashSet<String>()
+        while (true) {
+            val attempt = HashSet<String>()
+            val finished = Sets.newIdentityHashSet<Detector>()
+            previousReports = reported
+            attemptReports = attempt
+            finishedDetectors = finished
+            val current = remaining
+            val detector: Detector?
+            try {
+                detector = watchdog.run(current) { visit(current) }
+            } finally {
+                previousReports = null
+                attemptReports = null
+                finishedDetectors = null
+            }
+            if (detector == null) {
+                return
+            }
+            reported.addAll(attempt)
+            remaining = remaining.filter { it !== detector && !finished.contains(it) }
+
+            var message = "`${detector.javaClass.simpleName}` took more than " +
+                    "$detectorTimeBudget ms analyzing this file, so its analysis of the " +
+                    "file was canceled"
+            if (!remaining.isEmpty()) {
+                message += "; the other checks were run on the file again"
+            }
+            if (quarantineSlowDetectors) {
+                message += "; it was disabled for the rest of the run"
+                quarantinedDetectors.add(detector)
+                removeQuarantinedDetectors()
+            }
+            context.report(IssueRegistry.LINT_ERROR, Location.create(context.file), message)
+            if (remaining.isEmpty() || isCanceled) {
+                return
+            }
+        }
+    }
+
+    /**
+     * Calls [Detector.afterCheckFile] on the given [detector]. The visitors call this
+     * rather than the detector itself, such that a file visited again after another
+     * detector exceeded its time budget isn't checked twice by the detectors which had
+     * already finished it (see [watch]).
+     */
+    fun afterCheckFile(detector: Detector, context: Context) {
+        detector.afterCheckFile(context)
+        finishedDetectors?.add(detector)
+    }
+
+    /**
+     * Runs [Detector.run] on the given [detectors] for the file of the given [context],
+     * watching each detector separately (see [watch]) since they don't share a visitor
+     */
+    internal fun runDetectors(context: Context, detectors: List<Detector>,
+            run: (Detector) -> Unit = { it.run(context) }) {
+        for (detector in detectors) {
+            if (detector in quarantinedDetectors) {
+                continue
+            }
+            watch(context, listOf(detector)) {
+                detector.beforeCheckFile(context)
+                run(detector)
+                afterCheckFile(detector, context)
+            }
+            if (isCanceled) {
+                return
+            }
+        }
+    }
+
+    /**
+     * Releases the memory lint can recompute: the parsed files retained for later
+     * passes, the cached constant values, the projects' parsed XML, and the client's
+     * caches
+     */
+    private fun trimMemory() {
+        retainedUastFiles?.dispose()
+        constantEvaluationCache.clear()
+        for (project in projects) {
+            project.trimMemory()
+        }
+        client.trimMemory()
+    }
+
+    /** Removes the [quarantinedDetectors] from the current detectors */
+    private fun removeQuarantinedDetectors() {
+        // Ensure that the current visitor is recomputed
+        currentFolderType = null
+        currentVisitor = null
+        currentXmlDetectors = null
+        currentBinaryDetectors = null
+
+        applicableDetectors = applicableDetectors.filter { it !in quarantinedDetectors }
+        val scopeToDetectors = EnumMap<Scope, List<Detector>>(Scope::class.java)
+        for ((s, list) in scopeDetectors) {
+            val filtered = list.filter { it !in quarantinedDetectors }
+            if (!filtered.isEmpty()) {
+                scopeToDetectors.put(s, filtered)
+            }
+        }
+        scopeDetectors = scopeToDetectors
+        repeatingDetectors?.removeAll(quarantinedDetectors)
+    }
+
+    /** Returns the given detectors, minus the ones quarantined since they were looked up */
+    private fun <T : Detector> withoutQuarantined(detectors: List<T>): List<T> =
+            if (quarantinedDetectors.isEmpty()) detectors
+            else detectors.filter { it !in quarantinedDetectors }
+
+    /**
+     * Returns true if the given file should be visited in the current pass: when
+     * [shardFiltering], only the files assigned to [shardIndex] are
+     */
+    private fun isInShard(project: Project, file: File): Boolean {
+        if (!shardFiltering) {
+            return true
+        }
+        val path = FileUtil.getRelativePath(project.dir, file) ?: file.path
+        return getShard(path.replace('\\', '/'), shardCount) == shardIndex
+    }
+
+    /** Like [isInShard], for class files; inner classes go with their outer class */
+    private fun isInShard(entry: ClassEntry): Boolean {
+        if (!shardFiltering) {
+            return true
+        }
+        var path = FileUtil.getRelativePath(entry.binDir, entry.file) ?: entry.file.path
+        path = path.replace('\\', '/').removeSuffix(DOT_CLASS)
+        val innerClass = path.indexOf('$', path.lastIndexOf('/') + 1)
+        if (innerClass != -1) {
+            path = path.substring(0, innerClass)
+        }
+        return getShard(path, shardCount) == shardIndex
+    }
+
     private fun registerCustomDetectors(projects: Collection<Project>) {
         // Look at the various projects, and if any of them provide a custom
         // lint jar, "add" them (this will replace the issue registry with
@@ -423,7 +740,9 @@ class LintDriver
         jarFiles.addAll(client.findGlobalRuleJars())
 
         if (!jarFiles.isEmpty()) {
-            val extraRegistries = JarFileIssueRegistry.get(client, jarFiles)
+            // Pass in the scope such that rule jars known (from previous runs) to
+            // only contain issues outside of this scope aren't loaded at all
+            val extraRegistries = JarFileIssueRegistry.get(client, jarFiles, scope)
             if (extraRegistries.isNotEmpty()) {
                 val registries = ArrayList<IssueRegistry>(jarFiles.size+1)
                 // Include the builtin checks too
@@ -596,6 +915,9 @@ class LintDriver
         scopeDetectors = EnumMap<Scope, List<Detector>>(Scope::class.java)
         applicableDetectors = registry.createDetectors(client, configuration,
                 scope, scopeDetectors)
+        if (!quarantinedDetectors.isEmpty()) {
+            removeQuarantinedDetectors()
+        }
 
         validateScopeList()
     }
@@ -870,6 +1192,9 @@ class LintDriver
         currentProjects = allProjects.toTypedArray()
 
         currentProject = project
+        // The field values are keyed by class name, and classes in different projects
+        // can have the same name with different constants
+        constantEvaluationCache.clear()
 
         for (check in applicableDetectors) {
             check.beforeCheckProject(projectContext)
@@ -949,7 +1274,11 @@ class LintDriver
                             if (detectors != null) {
                                 val v = ResourceVisitor(parser, detectors, null)
                                 fireEvent(EventType.SCANNING_FILE, context)
-                                v.visitFile(context)
+                                watch(context, detectors) { current ->
+                                    val visitor = if (current === detectors) v
+                                            else ResourceVisitor(parser, current, null)
+                                    visitor.visitFile(context)
+                                }
                             }
                         }
                     } finally {
@@ -1074,14 +1403,16 @@ class LintDriver
     private fun checkBuildScripts(project: Project, main: Project?) {
         val detectors = scopeDetectors[Scope.GRADLE_FILE]
         if (detectors != null) {
-            val files = project.subset ?: project.gradleBuildScripts
+            val files = project.subset?.filter { it.path.endsWith(DOT_GRADLE) }
+                    ?: project.gradleBuildScripts
             for (file in files) {
                 val context = Context(this, project, main, file)
                 fireEvent(EventType.SCANNING_FILE, context)
-                for (detector in detectors) {
-                    detector.beforeCheckFile(context)
-                    detector.visitBuildScript(context, Maps.newHashMap<String, Any>())
-                    detector.afterCheckFile(context)
+                runDetectors(context, detectors) {
+                    it.visitBuildScript(context, Maps.newHashMap<String, Any>())
+                }
+                if (isCanceled) {
+                    return
                 }
             }
         }
@@ -1094,10 +1425,9 @@ class LintDriver
             for (file in files) {
                 val context = Context(this, project, main, file)
                 fireEvent(EventType.SCANNING_FILE, context)
-                for (detector in detectors) {
-                    detector.beforeCheckFile(context)
-                    detector.run(context)
-                    detector.afterCheckFile(context)
+                runDetectors(context, detectors)
+                if (isCanceled) {
+                    return
                 }
             }
         }
@@ -1118,11 +1448,7 @@ class LintDriver
         if (file.exists()) {
             val context = Context(this, project, main, file)
             fireEvent(EventType.SCANNING_FILE, context)
-            for (detector in detectors) {
-                detector.beforeCheckFile(context)
-                detector.run(context)
-                detector.afterCheckFile(context)
-            }
+            runDetectors(context, detectors)
         }
     }
 
@@ -1156,14 +1482,26 @@ class LintDriver
             return true
         }
 
-        if (currentProject != null) {
-            val isSub = client.isSubclassOf(currentProject!!, classNode.name, superClassName)
+        var className: String? = classNode.name
+        val project = currentProject
+        if (project != null) {
+            val isSub = client.isSubclassOf(project, classNode.name, superClassName)
             if (isSub != null) {
                 return isSub
             }
+
+            val index = getClassHierarchyIndex(project)
+            if (index.isSubtypeOf(classNode.name, superClassName)) {
+                return true
+            }
+            // Continue from the topmost known super class, in case the client
+            // knows more super classes than the super class maps
+            val root = index.getRoot(classNode.name)
+            if (root != null) {
+                className = getSuperClass(root)
+            }
         }
 
-        var className: String? = classNode.name
         while (className != null) {
             if (className == superClassName) {
                 return true
@@ -1174,6 +1512,33 @@ class LintDriver
         return false
     }
 
+    /**
+     * Returns an index of the class hierarchy of the given project and its libraries,
+     * as described by their super class maps (see [Project.getSuperClassMap]). Class
+     * names are in VM format (e.g. java/lang/Integer, not java.lang.Integer).
+     *
+     * The index is computed once per project and lint run, and answers subclass queries
+     * in constant time; see [ClassHierarchyIndex.isSubtypeOf].
+     *
+     * @param project the project to look up the classes in
+     *
+     * @return the class hierarchy index
+     */
+    fun getClassHierarchyIndex(project: Project): ClassHierarchyIndex<String> =
+            classHierarchyIndices.getOrPut(project) {
+                val builder = ClassHierarchyIndex.builder<String>()
+                // Same precedence as LintClient.getSuperClass: the project first
+                for ((name, superClass) in project.superClassMap) {
+                    builder.add(name, superClass)
+                }
+                for (library in project.allLibraries) {
+                    for ((name, superClass) in library.superClassMap) {
+                        builder.add(name, superClass)
+                    }
+                }
+                builder.build()
+            }
+
     /** Check the classes in this project (and if applicable, in any library projects  */
     private fun checkClasses(project: Project, main: Project?) {
         val files = project.subset
@@ -1192,14 +1557,17 @@ class LintDriver
         val classFolders = project.javaClassFolders
         val classEntries: List<ClassEntry>
         classEntries = if (classFolders.isEmpty()) {
-            val message = String.format("No `.class` files were found in project \"%1\$s\", "
-                    + "so none of the classfile based checks could be run. "
-                    + "Does the project need to be built first?", project.name)
-            val location = Location.create(project.dir)
-            client.report(Context(this, project, main, project.dir),
-                    IssueRegistry.LINT_ERROR,
-                    project.getConfiguration(this).getSeverity(IssueRegistry.LINT_ERROR),
-                    location, message, TextFormat.RAW, null)
+            // When sharding, only report this in the first pass over the project
+            if (shardCount == 1 || shardFiltering) {
+                val message = String.format("No `.class` files were found in project \"%1\$s\", "
+                        + "so none of the classfile based checks could be run. "
+                        + "Does the project need to be built first?", project.name)
+                val location = Location.create(project.dir)
+                client.report(Context(this, project, main, project.dir),
+                        IssueRegistry.LINT_ERROR,
+                        project.getConfiguration(this).getSeverity(IssueRegistry.LINT_ERROR),
+                        location, message, TextFormat.RAW, null)
+            }
             emptyList()
         } else {
             ClassEntry.fromClassPath(client, classFolders, true)
@@ -1248,12 +1616,15 @@ class LintDriver
      */
     private var outerClasses: Deque<ClassNode>? = null
 
-    private fun runClassDetectors(scope: Scope, entries: List<ClassEntry>,
+    private fun runClassDetectors(scope: Scope, allEntries: List<ClassEntry>,
                                   project: Project, main: Project?) {
         if (this.scope.contains(scope)) {
             val classDetectors = scopeDetectors[scope]
+            val entries = if (shardFiltering) allEntries.filter { isInShard(it) } else allEntries
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                val visitor = AsmVisitor(client, classDetectors)
+                var detectors: List<Detector> = classDetectors
+                var visitor = AsmVisitor(client, detectors)
+                var quarantined = quarantinedDetectors.size
 
                 var sourceContents: CharSequence? = null
                 var sourceName = ""
@@ -1321,8 +1692,18 @@ class LintDriver
                             classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
                             sourceContents)
 
+                    if (quarantinedDetectors.size != quarantined) {
+                        quarantined = quarantinedDetectors.size
+                        detectors = withoutQuarantined(detectors)
+                        visitor = AsmVisitor(client, detectors)
+                    }
                     try {
-                        visitor.runClassDetectors(context)
+                        val v = visitor
+                        watch(context, detectors) { current ->
+                            val asmVisitor = if (current === detectors) v
+                                    else AsmVisitor(client, current)
+                            asmVisitor.runClassDetectors(context)
+                        }
                     } catch (e: Exception) {
                         client.log(e, null)
                     }
@@ -1472,8 +1853,17 @@ class LintDriver
 
     private fun visitJavaFiles(checks: List<Detector>,
                                project: Project,
-                               contexts: List<JavaContext>,
-                               testContexts: List<JavaContext>) {
+                               allSrcContexts: List<JavaContext>,
+                               allTestContexts: List<JavaContext>) {
+        val contexts = if (shardFiltering)
+            allSrcContexts.filter { isInShard(project, it.file) }
+        else
+            allSrcContexts
+        val testContexts = if (shardFiltering)
+            allTestContexts.filter { isInShard(project, it.file) }
+        else
+            allTestContexts
+
         val allContexts: List<JavaContext>
         if (testContexts.isEmpty()) {
             allContexts = contexts
@@ -1492,6 +1882,24 @@ class LintDriver
         }
     }
 
+    /**
+     * Returns the parsed source files to keep alive between the passes over the
+     * current project, if any of the detectors in the first pass declares that it
+     * needs several passes (see [Detector.getSourcePassCount])
+     */
+    private fun getRetainedUastFiles(parser: UastParser, project: Project,
+                                     detectors: List<Detector>): RetainedUastFiles? {
+        if (!retainedUastFilesComputed) {
+            retainedUastFilesComputed = true
+            retainedUastFiles = if (phase == 1) RetainedUastFiles.create(parser, project,
+                    detectors)
+            else null
+        }
+        // Not keyed by parser: clients may create a new parser for each pass
+        val retained = retainedUastFiles
+        return if (retained != null && retained.project === project) retained else null
+    }
+
     private fun visitJavaFiles(checks: List<Detector>,
                                project: Project,
                                allContexts: List<JavaContext>,
@@ -1522,14 +1930,33 @@ class LintDriver
             for (context in allContexts) {
                 context.uastParser = uastParser
             }
-            val uElementVisitor = UElementVisitor(parser, uastScanners)
+            val retainedFiles = getRetainedUastFiles(parser, project, uastScanners)
+            var srcScanners: List<Detector> = uastScanners
+            var uElementVisitor = UElementVisitor(parser, srcScanners)
+            uElementVisitor.setRetainedFiles(retainedFiles)
+            var quarantined = quarantinedDetectors.size
 
             parserErrors = !uElementVisitor.prepare(srcContexts)
 
             for (context in srcContexts) {
+                if (quarantinedDetectors.size != quarantined) {
+                    // A detector was quarantined: continue with a visitor without it. (The
+                    // parser has already been prepared, so this one doesn't need to be.)
+                    quarantined = quarantinedDetectors.size
+                    srcScanners = withoutQuarantined(uastScanners)
+                    uElementVisitor = UElementVisitor(parser, srcScanners)
+                    uElementVisitor.setRetainedFiles(retainedFiles)
+                }
                 fireEvent(EventType.SCANNING_FILE, context)
-                // TODO: Don't hold read lock around the entire process?
-                client.runReadAction(Runnable { uElementVisitor.visitFile(context) })
+                val visitor = uElementVisitor
+                val watched = srcScanners
+                watch(context, watched) { current ->
+                    val v = if (current === watched) visitor
+                            else UElementVisitor(parser, current).also {
+                                it.setRetainedFiles(retainedFiles)
+                            }
+                    client.runReadAction(Runnable { v.visitFile(context) })
+                }
                 if (isCanceled) {
                     return
                 }
@@ -1538,14 +1965,29 @@ class LintDriver
             uElementVisitor.dispose()
 
             if (!testContexts.isEmpty()) {
-                val testScanners = filterTestScanners(uastScanners)
+                var testScanners = filterTestScanners(withoutQuarantined(uastScanners))
                 if (!testScanners.isEmpty()) {
-                    val uTestVisitor = UElementVisitor(parser, testScanners)
+                    var uTestVisitor = UElementVisitor(parser, testScanners)
+                    uTestVisitor.setRetainedFiles(retainedFiles)
+                    quarantined = quarantinedDetectors.size
 
                     for (context in testContexts) {
+                        if (quarantinedDetectors.size != quarantined) {
+                            quarantined = quarantinedDetectors.size
+                            testScanners = withoutQuarantined(testScanners)
+                            uTestVisitor = UElementVisitor(parser, testScanners)
+                            uTestVisitor.setRetainedFiles(retainedFiles)
+                        }
                         fireEvent(EventType.SCANNING_FILE, context)
-                        // TODO: Don't hold read lock around the entire process?
-                        client.runReadAction(Runnable { uTestVisitor.visitFile(context) })
+                        val visitor = uTestVisitor
+                        val watched = testScanners
+                        watch(context, watched) { current ->
+                            val v = if (current === watched) visitor
+                                    else UElementVisitor(parser, current).also {
+                                        it.setRetainedFiles(retainedFiles)
+                                    }
+                            client.runReadAction(Runnable { v.visitFile(context) })
+                        }
                         if (isCanceled) {
                             return
                         }
@@ -1580,37 +2022,56 @@ class LintDriver
                 context.parser = parser
             }
 
-            val visitor = JavaPsiVisitor(parser, scanners)
-            if (runLombokCompatChecks) {
-                visitor.setDisposeUnitsAfterUse(false)
+            fun createVisitor(detectors: List<Detector>): JavaPsiVisitor {
+                val visitor = JavaPsiVisitor(parser, detectors)
+                if (runLombokCompatChecks) {
+                    visitor.setDisposeUnitsAfterUse(false)
+                }
+                return visitor
+            }
+
+            /** Visits the given files, under the watchdog (see [watch]) */
+            fun visitFiles(contexts: List<JavaContext>, detectors: List<Detector>,
+                    visitor: JavaPsiVisitor) {
+                var fileScanners = detectors
+                var fileVisitor = visitor
+                var quarantined = quarantinedDetectors.size
+                for (context in contexts) {
+                    if (quarantinedDetectors.size != quarantined) {
+                        quarantined = quarantinedDetectors.size
+                        fileScanners = withoutQuarantined(detectors)
+                        fileVisitor = createVisitor(fileScanners)
+                    }
+                    fireEvent(EventType.SCANNING_FILE, context)
+                    val v = fileVisitor
+                    val current = fileScanners
+                    watch(context, current) {
+                        (if (it === current) v else createVisitor(it)).visitFile(context)
+                    }
+                    if (isCanceled) {
+                        return
+                    }
+                }
             }
 
+            val visitor = createVisitor(scanners)
+
             parserErrors = !visitor.prepare(allContexts)
 
-            for (context in srcContexts) {
-                fireEvent(EventType.SCANNING_FILE, context)
-                visitor.visitFile(context)
-                if (isCanceled) {
-                    return
-                }
+            visitFiles(srcContexts, scanners, visitor)
+            if (isCanceled) {
+                return
             }
 
             // Run tests separately: most checks aren't going to apply for tests
             var testVisitor: JavaPsiVisitor? = null
             if (!testContexts.isEmpty()) {
-                val testScanners = filterTestScanners(scanners)
+                val testScanners = filterTestScanners(withoutQuarantined(scanners))
                 if (!testScanners.isEmpty()) {
-                    testVisitor = JavaPsiVisitor(parser, testScanners)
-                    if (runLombokCompatChecks) {
-                        testVisitor.setDisposeUnitsAfterUse(false)
-                    }
-
-                    for (context in testContexts) {
-                        fireEvent(EventType.SCANNING_FILE, context)
-                        testVisitor.visitFile(context)
-                        if (isCanceled) {
-                            return
-                        }
+                    testVisitor = createVisitor(testScanners)
+                    visitFiles(testContexts, testScanners, testVisitor)
+                    if (isCanceled) {
+                        return
                     }
                 }
             }
@@ -1775,7 +2236,7 @@ class LintDriver
             // Determine which XML resource detectors apply to the given folder type
             val applicableXmlChecks = ArrayList<ResourceXmlDetector>(checks.size)
             for (check in checks) {
-                if (check.appliesTo(type)) {
+                if (check.appliesTo(type) && check !in quarantinedDetectors) {
                     applicableXmlChecks.add(check)
                 }
             }
@@ -1783,7 +2244,7 @@ class LintDriver
             if (binaryChecks != null) {
                 applicableBinaryChecks = ArrayList(binaryChecks.size)
                 for (check in binaryChecks) {
-                    if (check.appliesTo(type)) {
+                    if (check.appliesTo(type) && check !in quarantinedDetectors) {
                         applicableBinaryChecks.add(check)
                     }
                 }
@@ -1871,19 +2332,26 @@ class LintDriver
             return
         }
 
-        val visitor = getVisitor(type, xmlChecks, binaryChecks)
-        if (visitor != null) { // if not, there are no applicable rules in this folder
-            val parser = visitor.parser
+        if (getVisitor(type, xmlChecks, binaryChecks) != null) {
+            // (if not, there are no applicable rules in this folder)
 
             // Process files in alphabetical order, to ensure stable output
             // (for example for the duplicate resource detector)
             Arrays.sort(files)
             for (file in files) {
+                if (!isInShard(project, file)) {
+                    continue
+                }
+                // Looked up for each file since it changes when detectors are quarantined
+                val visitor = getVisitor(type, xmlChecks, binaryChecks) ?: return
                 if (LintUtils.isXmlFile(file)) {
-                    val context = createXmlContext(project, main, file, type, parser) ?: continue
+                    val context = createXmlContext(project, main, file, type, visitor.parser)
+                            ?: continue
                     try {
                         fireEvent(EventType.SCANNING_FILE, context)
-                        visitor.visitFile(context)
+                        watch(context, visitor.detectors) {
+                            visitor.withDetectors(it).visitFile(context)
+                        }
                     } finally {
                         disposeXmlContext(context)
                     }
@@ -1891,7 +2359,9 @@ class LintDriver
                         (LintUtils.isBitmapFile(file) || type == ResourceFolderType.RAW)) {
                     val context = ResourceContext(this, project, main, file, type, "")
                     fireEvent(EventType.SCANNING_FILE, context)
-                    visitor.visitBinaryResource(context)
+                    watch(context, visitor.detectors) {
+                        visitor.withDetectors(it).visitBinaryResource(context)
+                    }
                 }
                 if (isCanceled) {
                     return
@@ -1946,6 +2416,8 @@ class LintDriver
                     client.log(null, "Unexpected folder %1\$s; should be project, " +
                             "\"res\" folder or resource folder", file.path)
                 }
+            } else if (!isInShard(project, file)) {
+                continue
             } else if (file.isFile && LintUtils.isXmlFile(file)) {
                 // Yes, find out its resource type
                 val folderName = file.parentFile.name
@@ -1958,7 +2430,9 @@ class LintDriver
                         if (context != null) {
                             try {
                                 fireEvent(EventType.SCANNING_FILE, context)
-                                visitor.visitFile(context)
+                                watch(context, visitor.detectors) {
+                                    visitor.withDetectors(it).visitFile(context)
+                                }
                             } finally {
                                 disposeXmlContext(context)
                             }
@@ -1974,7 +2448,9 @@ class LintDriver
                     if (visitor != null) {
                         val context = ResourceContext(this, project, main, file, type, "")
                         fireEvent(EventType.SCANNING_FILE, context)
-                        visitor.visitBinaryResource(context)
+                        watch(context, visitor.detectors) {
+                            visitor.withDetectors(it).visitBinaryResource(context)
+                        }
                         if (isCanceled) {
                             return
                         }
@@ -2074,6 +2550,16 @@ class LintDriver
                 return
             }
 
+            val attempt = attemptReports
+            if (attempt != null) {
+                // Visiting a file again after a detector exceeded its time budget
+                val key = "${issue.id}:${location.file.path}:${location.start?.offset}:$message"
+                if (previousReports?.contains(key) == true) {
+                    return
+                }
+                attempt.add(key)
+            }
+
             if (baseline != null) {
                 val filtered = baseline!!.findAndMark(issue, location, message, severity,
                         context.project)
@@ -2107,6 +2593,8 @@ class LintDriver
 
         override fun runReadAction(runnable: Runnable) = delegate.runReadAction(runnable)
 
+        override fun trimMemory() = delegate.trimMemory()
+
         override fun readFile(file: File): CharSequence = delegate.readFile(file)
 
         @Throws(IOException::class)
@@ -2675,6 +3163,61 @@ class LintDriver
          */
         private const val MAX_PHASES = 3
 
+        /**
+         * The kinds of files whose detectors can be run on a subset of the files when
+         * the analysis is split into shards; see [LintDriver.shardCount]
+         */
+        private val SHARDED_SCOPES: List<EnumSet<Scope>> = listOf(
+                EnumSet.of(Scope.JAVA_FILE, Scope.TEST_SOURCES),
+                EnumSet.of(Scope.RESOURCE_FILE),
+                EnumSet.of(Scope.BINARY_RESOURCE_FILE),
+                EnumSet.of(Scope.CLASS_FILE))
+
+        /**
+         * Returns true if the given detector, whose issues have the given scopes, can be
+         * run on just the files of one shard. That is only the case for detectors which
+         * look at a single kind of file (a detector looking at both layouts and Java
+         * files, such as the one checking onClick handlers, needs to see all of them),
+         * and which don't report from [Detector.afterCheckProject] or
+         * [Detector.afterCheckLibraryProject], where detectors typically report what
+         * they gathered across files.
+         */
+        private fun isShardable(detector: Detector, scopes: EnumSet<Scope>): Boolean {
+            if (SHARDED_SCOPES.none { it.containsAll(scopes) }) {
+                return false
+            }
+            val detectorClass = detector.javaClass
+            return try {
+                detectorClass.getMethod("afterCheckProject", Context::class.java)
+                        .declaringClass == Detector::class.java &&
+                        detectorClass.getMethod("afterCheckLibraryProject",
+                                Context::class.java).declaringClass == Detector::class.java
+            } catch (e: NoSuchMethodException) {
+                false
+            }
+        }
+
+        /**
+         * Returns the (0-based) shard the file with the given path is assigned to when
+         * the analysis is split into the given number of shards. The assignment only
+         * depends on the path, such that separate lint processes agree on it.
+         *
+         * @param path the path of the file, relative to its project (or for class files,
+         * the path of the outer class relative to the class folder, without extension),
+         * using / as the separator
+         * @param shardCount the number of shards
+         */
+        @JvmStatic
+        fun getShard(path: String, shardCount: Int): Int {
+            // String.hashCode is specified, so it is stable across runs; mix its bits
+            // since the low bits of similar paths are correlated
+            var h = path.hashCode()
+            h = h xor (h ushr 16)
+            h *= 0x45d9f3b
+            h = h xor (h ushr 16)
+            return Math.floorMod(h, shardCount)
+        }
+
         private const val SUPPRESS_LINT_VMSIG = "/$SUPPRESS_LINT;"
 
         /** Prefix used by the comment suppress mechanism in Studio/IntelliJ  */
@@ -2712,6 +3255,10 @@ class LintDriver
                     return true
                 }
                 throwable is ProcessCanceledException -> {
+                    if (driver.watchdog?.isCanceling == true) {
+                        // A detector exceeded its time budget; the watchdog reports it
+                        return true
+                    }
                     // Cancelling inspections in the IDE
                     driver.cancel()
                     return false
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.Scope
+import com.google.common.hash.Hashing
+import com.google.common.io.Files
+import java.io.File
+import java.io.IOException
+import java.util.EnumSet
+
+/**
+ * Metadata describing the contents of a custom lint rule jar: the name of
+ * the [IssueRegistry] class it provides, and for each issue its id, scope
+ * and detector class name.
+ *
+ * This is persisted in the lint cache directory, keyed by the checksum of the
+ * jar file, such that on subsequent runs lint can decide whether a given rule
+ * jar is relevant to the current analysis scope without reading its manifest,
+ * creating a class loader or instantiating any of its classes.
+ *
+ * **NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.**
+ */
+class LintJarMetadata(
+        /** The fully qualified name of the issue registry in the jar */
+        val registryClass: String,
+        /** Whether the registry was declared using the older manifest key */
+        val isLegacy: Boolean,
+        /** The issues provided by the registry */
+        val issues: List<IssueMetadata>) {
+
+    /** Metadata for a single issue in a custom lint rule jar */
+    class IssueMetadata(
+            val id: String,
+            val scope: EnumSet<Scope>,
+            val analysisScopes: List<EnumSet<Scope>>,
+            val detectorClass: String) {
+        /**
+         * Returns true if the given scope is adequate for analyzing this issue;
+         * this mirrors [com.android.tools.lint.detector.api.Implementation.isAdequate]
+         */
+        fun isAdequate(scope: EnumSet<Scope>): Boolean {
+            if (scope.containsAll(this.scope)) {
+                return true
+            }
+            return analysisScopes.any { scope.containsAll(it) }
+        }
+    }
+
+    /**
+     * Returns true if at least one issue in this jar can be analyzed with the
+     * given scope; if not, the jar does not need to be loaded at all
+     */
+    fun isApplicable(scope: EnumSet<Scope>): Boolean = issues.any { it.isAdequate(scope) }
+
+    companion object {
+        /** Name of the cache directory (see [LintClient.getCacheDir]) */
+        private const val CACHE_NAME = "lint-jars"
+
+        /** Version of the file format; bump when the format changes */
+        private const val VERSION = "1"
+
+        private const val KEY_VERSION = "version"
+        private const val KEY_REGISTRY = "registry"
+        private const val KEY_LEGACY_REGISTRY = "legacy-registry"
+        private const val KEY_ISSUE = "issue"
+
+        /** Computes the checksum used to key the metadata for the given jar file */
+        @JvmStatic
+        fun checksum(jarFile: File): String? {
+            return try {
+                Files.asByteSource(jarFile).hash(Hashing.sha1()).toString()
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        /**
+         * Reads previously persisted metadata for the jar with the given
+         * checksum, or null if not found or not readable
+         */
+        @JvmStatic
+        fun read(client: LintClient, checksum: String): LintJarMetadata? {
+            val dir = client.getCacheDir(CACHE_NAME, false) ?: return null
+            val file = File(dir, checksum)
+            if (!file.isFile) {
+                return null
+            }
+
+            return try {
+                parse(file.readLines(Charsets.UTF_8))
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        /**
+         * Persists metadata for the given loaded issue registry, keyed by the
+         * given jar checksum
+         */
+        @JvmStatic
+        fun write(client: LintClient, checksum: String, registryClass: String,
+                isLegacy: Boolean, issues: List<Issue>) {
+            val dir = client.getCacheDir(CACHE_NAME, true) ?: return
+            val sb = StringBuilder(100 * (issues.size + 1))
+            sb.append(KEY_VERSION).append('\t').append(VERSION).append('\n')
+            sb.append(if (isLegacy) KEY_LEGACY_REGISTRY else KEY_REGISTRY)
+            sb.append('\t').append(registryClass).append('\n')
+            for (issue in issues) {
+                val implementation = issue.implementation
+                sb.append(KEY_ISSUE).append('\t')
+                sb.append(issue.id).append('\t')
+                sb.append(implementation.detectorClass.name).append('\t')
+                sb.append(encode(implementation.scope))
+                for (analysisScope in implementation.analysisScopes) {
+                    sb.append('\t').append(encode(analysisScope))
+                }
+                sb.append('\n')
+            }
+
+            try {
+                File(dir, checksum).writeText(sb.toString(), Charsets.UTF_8)
+            } catch (e: IOException) {
+                client.log(e, "Could not write custom lint check metadata")
+            }
+        }
+
+        private fun parse(lines: List<String>): LintJarMetadata? {
+            var version: String? = null
+            var registryClass: String? = null
+            var isLegacy = false
+            val issues = ArrayList<IssueMetadata>()
+            for (line in lines) {
+                val fields = line.split('\t')
+                when (fields[0]) {
+                    KEY_VERSION -> version = fields.getOrNull(1)
+                    KEY_REGISTRY -> registryClass = fields.getOrNull(1)
+                    KEY_LEGACY_REGISTRY -> {
+                        registryClass = fields.getOrNull(1)
+                        isLegacy = true
+                    }
+                    KEY_ISSUE -> {
+                        if (fields.size < 4) {
+                            return null
+                        }
+                        val scope = decode(fields[3]) ?: return null
+                        val analysisScopes = ArrayList<EnumSet<Scope>>()
+                        for (i in 4 until fields.size) {
+                            analysisScopes.add(decode(fields[i]) ?: return null)
+                        }
+                        issues.add(IssueMetadata(fields[1], scope, analysisScopes, fields[2]))
+                    }
+                }
+            }
+
+            if (version != VERSION || registryClass == null || registryClass.isEmpty()) {
+                return null
+            }
+
+            return LintJarMetadata(registryClass, isLegacy, issues)
+        }
+
+        private fun encode(scope: EnumSet<Scope>): String = scope.joinToString(",")
+
+        private fun decode(s: String): EnumSet<Scope>? {
+            val scope = EnumSet.noneOf(Scope::class.java)
+            if (s.isEmpty()) {
+                return scope
+            }
+            for (name in s.split(',')) {
+                try {
+                    scope.add(Scope.valueOf(name))
+                } catch (e: IllegalArgumentException) {
+                    // Written by a different version of lint
+                    return null
+                }
+            }
+            return scope
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.lint.client.api
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryNotificationInfo
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+import javax.management.ListenerNotFoundException
+import javax.management.NotificationEmitter
+import javax.management.NotificationListener
+
+/**
+ * Watches the heap usage, to let lint release the memory it can recompute before the
+ * heap fills up.
+ *
+ * The governor sets the collection usage threshold of the long lived heap pools to the
+ * given fraction of their maximum size, and listens for the notifications sent when a
+ * garbage collection leaves more than that in use. The notifications arrive on a JMX
+ * thread, so they only record the pressure; the driver checks [isUnderPressure] between
+ * files and releases memory on the analysis thread. Code running work in parallel, or
+ * caching results, checks [isLowOnMemory] to scale back while the heap stays full.
+ *
+ * The thresholds are shared by the whole JVM, so the governor should only be created
+ * where lint owns the process, such as on the command line, and must be disposed when
+ * done.
+ */
+open class MemoryGovernor(
+        /**
+         * The fraction of the maximum heap size which, when still in use after a garbage
+         * collection, means that memory is running low; 0 to never set any thresholds
+         */
+        threshold: Double) {
+    /** Set when a garbage collection left the heap above the threshold */
+    @Volatile private var pressure = false
+
+    /** The pools whose thresholds were set, along with their previous thresholds */
+    private val pools = ArrayList<Pair<MemoryPoolMXBean, Long>>()
+
+    private val listener = NotificationListener { notification, _ ->
+        if (notification.type == MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED) {
+            pressure = true
+        }
+    }
+
+    init {
+        val candidates = if (threshold > 0) ManagementFactory.getMemoryPoolMXBeans() else
+            emptyList()
+        for (pool in candidates) {
+            // The pools supporting usage thresholds are the long lived ones (the old
+            // generation); the young generation pools are mostly empty after a collection
+            if (pool.type != MemoryType.HEAP || !pool.isUsageThresholdSupported ||
+                    !pool.isCollectionUsageThresholdSupported) {
+                continue
+            }
+            val max = pool.usage?.max ?: continue
+            if (max <= 0) {
+                continue
+            }
+            pools.add(Pair(pool, pool.collectionUsageThreshold))
+            pool.collectionUsageThreshold = (max * threshold).toLong()
+        }
+        if (!pools.isEmpty()) {
+            (ManagementFactory.getMemoryMXBean() as NotificationEmitter)
+                    .addNotificationListener(listener, null, null)
+        }
+    }
+
+    /**
+     * Returns true if the heap was found to be above the threshold since the previous
+     * call, in which case the caller should release memory
+     */
+    open fun isUnderPressure(): Boolean {
+        if (!pressure) {
+            return false
+        }
+        pressure = false
+        return true
+    }
+
+    /**
+     * Returns true if the most recent garbage collection left the heap above the
+     * threshold. Unlike [isUnderPressure], this stays true for as long as the heap is
+     * full; it can be called from any thread.
+     */
+    open val isLowOnMemory: Boolean
+        get() = pools.any { it.first.isCollectionUsageThresholdExceeded }
+
+    /** Stops listening and restores the previous thresholds */
+    fun dispose() {
+        if (pools.isEmpty()) {
+            return
+        }
+        try {
+            (ManagementFactory.getMemoryMXBean() as NotificationEmitter)
+                    .removeNotificationListener(listener)
+        } catch (ignore: ListenerNotFoundException) {
+            // Already removed
+        }
+        for ((pool, previous) in pools) {
+            pool.collectionUsageThreshold = previous
+        }
+        pools.clear()
+    }
+}
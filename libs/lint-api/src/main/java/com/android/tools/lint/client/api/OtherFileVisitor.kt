@@ -20,17 +20,21 @@ import com.android.SdkConstants.DOT_CLASS
 import com.android.SdkConstants.DOT_JAVA
 import com.android.SdkConstants.DOT_XML
 import com.android.SdkConstants.FD_ASSETS
+import com.android.tools.lint.detector.api.BytePatternMatcher
 import com.android.tools.lint.detector.api.Context
 import com.android.tools.lint.detector.api.Detector
 import com.android.tools.lint.detector.api.Detector.OtherFileScanner
+import com.android.tools.lint.detector.api.LintUtils
 import com.android.tools.lint.detector.api.Project
 import com.android.tools.lint.detector.api.Scope
 import com.android.utils.SdkUtils
 import com.google.common.collect.Lists
 import java.io.File
 import java.util.ArrayList
+import java.util.BitSet
 import java.util.EnumMap
 import java.util.EnumSet
+import java.util.HashMap
 
 /**
  * Visitor for "other" files: files that aren't java sources,
@@ -161,13 +165,15 @@ internal class OtherFileVisitor(private val detectors: List<Detector>) {
                 }
             }
             if (!applicable.isEmpty()) {
+                val filter = ContentFilter(applicable)
                 for (file in files) {
+                    // The context, and the contents it reads, are shared by all the detectors
                     val context = Context(driver, project, main, file)
-                    for (detector in applicable) {
-                        detector.beforeCheckFile(context)
-                        detector.run(context)
-                        detector.afterCheckFile(context)
+                    val found = filter.match(context)
+                    val accepted = applicable.filterIndexed { index, _ ->
+                        filter.accepts(index, found)
                     }
+                    driver.runDetectors(context, accepted)
                     if (driver.isCanceled) {
                         return
                     }
@@ -176,6 +182,57 @@ internal class OtherFileVisitor(private val detectors: List<Detector>) {
         }
     }
 
+    /**
+     * Looks for the content patterns of a list of detectors (see
+     * [OtherFileScanner.getApplicableContentPatterns]) in a single pass over each file.
+     */
+    private class ContentFilter(detectors: List<Detector>) {
+        /** The indices of the patterns of each detector, or null to accept all files */
+        private val patternIds = arrayOfNulls<IntArray>(detectors.size)
+        private val matcher: BytePatternMatcher?
+
+        init {
+            val ids = HashMap<String, Int>()
+            val patterns = ArrayList<ByteArray>()
+            for ((index, detector) in detectors.withIndex()) {
+                val strings = (detector as OtherFileScanner).applicableContentPatterns ?: continue
+                patternIds[index] = strings.filter { it.isNotEmpty() }.map {
+                    ids.getOrPut(it) {
+                        patterns.add(it.toByteArray(Charsets.UTF_8))
+                        patterns.size - 1
+                    }
+                }.toIntArray()
+            }
+            matcher = if (patterns.isEmpty()) null else BytePatternMatcher(patterns)
+        }
+
+        /**
+         * Returns the patterns found in the file of the given context, or null if there
+         * are none to look for or the file could not be read. The patterns are matched
+         * against the contents the detectors will see, which may be unsaved edits, or
+         * text decoded from another encoding than UTF-8. Images are not decoded as text;
+         * all their detectors are run.
+         */
+        fun match(context: Context): BitSet? {
+            matcher ?: return null
+            if (LintUtils.isBitmapFile(context.file)) {
+                return null
+            }
+            val contents = context.getContents() ?: return null
+            return matcher.findAll(contents)
+        }
+
+        /** Returns true if the detector at [index] should check a file with [found] patterns. */
+        fun accepts(index: Int, found: BitSet?): Boolean {
+            val ids = patternIds[index] ?: return true
+            if (ids.isEmpty()) {
+                return false
+            }
+            found ?: return true
+            return ids.any { found.get(it) }
+        }
+    }
+
     private fun collectFiles(files: MutableList<File>, file: File) {
         if (file.isDirectory) {
             val children = file.listFiles()
@@ -23,6 +23,7 @@ import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.ResourceContext;
 import com.android.tools.lint.detector.api.XmlContext;
 import com.google.common.annotations.Beta;
+import com.intellij.openapi.progress.ProgressManager;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -69,6 +70,7 @@ class ResourceVisitor {
             new ArrayList<>();
     private final List<? extends Detector> allDetectors;
     private final List<? extends Detector> binaryDetectors;
+    private final List<Detector> detectors;
     private final XmlParser parser;
 
     // Really want this:
@@ -82,6 +84,10 @@ class ResourceVisitor {
         this.parser = parser;
         this.binaryDetectors = binaryDetectors;
         this.allDetectors = allDetectors;
+        detectors = new ArrayList<>(allDetectors);
+        if (binaryDetectors != null) {
+            detectors.addAll(binaryDetectors);
+        }
 
         // TODO: Check appliesTo() for files, and find a quick way to enable/disable
         // rules when running through a full project!
@@ -139,7 +145,7 @@ class ResourceVisitor {
             }
 
             for (Detector check : allDetectors) {
-                check.afterCheckFile(context);
+                context.getDriver().afterCheckFile(check, context);
             }
         } catch (RuntimeException e) {
             LintDriver.handleDetectorError(context, context.getDriver(), e);
@@ -147,6 +153,7 @@ class ResourceVisitor {
     }
 
     private void visitElement(@NonNull XmlContext context, @NonNull Element element) {
+        ProgressManager.checkCanceled();
         List<Detector.XmlScanner> elementChecks = elementToCheck.get(element.getLocalName());
         if (elementChecks != null) {
             assert elementChecks instanceof RandomAccess;
@@ -209,6 +216,39 @@ class ResourceVisitor {
         return parser;
     }
 
+    /** Returns the XML and binary detectors run by this visitor */
+    @NonNull
+    List<Detector> getDetectors() {
+        return detectors;
+    }
+
+    /**
+     * Returns a visitor running the given subset of the {@link #getDetectors() detectors},
+     * or this visitor if the subset is the whole list
+     */
+    @NonNull
+    ResourceVisitor withDetectors(@NonNull List<Detector> subset) {
+        if (subset == detectors) {
+            return this;
+        }
+        List<Detector> xmlDetectors = new ArrayList<>(allDetectors.size());
+        for (Detector detector : allDetectors) {
+            if (subset.contains(detector)) {
+                xmlDetectors.add(detector);
+            }
+        }
+        List<Detector> binary = null;
+        if (binaryDetectors != null) {
+            binary = new ArrayList<>(binaryDetectors.size());
+            for (Detector detector : binaryDetectors) {
+                if (subset.contains(detector)) {
+                    binary.add(detector);
+                }
+            }
+        }
+        return new ResourceVisitor(parser, xmlDetectors, binary);
+    }
+
     public void visitBinaryResource(@NonNull ResourceContext context) {
         if (binaryDetectors == null) {
             return;
@@ -216,7 +256,7 @@ class ResourceVisitor {
         for (Detector check : binaryDetectors) {
             check.beforeCheckFile(context);
             check.checkBinaryResource(context);
-            check.afterCheckFile(context);
+            context.getDriver().afterCheckFile(check, context);
         }
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.JavaContext;
+import com.android.tools.lint.detector.api.Project;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.uast.UFile;
+
+/**
+ * Parsed source files kept alive between the passes over a project, for detectors
+ * which make several passes over the same source files (see
+ * {@link Detector#getSourcePassCount()}), such that each file is only parsed once.
+ * <p>
+ * Files are retained up to a memory budget, estimated from the size of the
+ * source files; files beyond the budget, or offered while the heap is running low
+ * (see {@link LintDriver#isLowOnMemory()}), are disposed as usual and parsed again
+ * in the next pass. Files are released as soon as the last declared pass has
+ * visited them.
+ * <p>
+ * The retained files belong to a single project: clients may hand out a new
+ * {@link UastParser} for each pass (the command line client does), so files are
+ * looked up by project and file rather than by parser. The driver disposes the
+ * retained files when it is done with the project.
+ */
+class RetainedUastFiles {
+    /**
+     * System property which can be used to set the memory budget, in megabytes, for
+     * retained files. Defaults to a quarter of the maximum heap size.
+     */
+    static final String BUDGET_PROPERTY = "lint.uast.retain.mb";
+
+    /**
+     * Rough estimate of the memory used by the PSI and UAST trees for each
+     * byte of source code
+     */
+    private static final int BYTES_PER_SOURCE_BYTE = 40;
+
+    private final UastParser parser;
+    private final Project project;
+    private final int passes;
+    private final long budget;
+    private final Map<File, Retained> files = new HashMap<>();
+    private long used;
+
+    RetainedUastFiles(@NonNull UastParser parser, @NonNull Project project, int passes,
+            long budget) {
+        this.parser = parser;
+        this.project = project;
+        this.passes = passes;
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a new set of retained files for the given project, if any of the given
+     * detectors makes more than one pass over the source files. The files are
+     * disposed with the given parser, which produced them.
+     */
+    @Nullable
+    static RetainedUastFiles create(@NonNull UastParser parser, @NonNull Project project,
+            @NonNull Iterable<Detector> detectors) {
+        int passes = 1;
+        for (Detector detector : detectors) {
+            passes = Math.max(passes, detector.getSourcePassCount());
+        }
+        if (passes <= 1) {
+            return null;
+        }
+
+        return new RetainedUastFiles(parser, project, passes, getDefaultBudget());
+    }
+
+    @VisibleForTesting
+    static long getDefaultBudget() {
+        String property = System.getProperty(BUDGET_PROPERTY);
+        if (property != null) {
+            try {
+                return Long.parseLong(property) * 1024 * 1024;
+            } catch (NumberFormatException ignore) {
+                // Fall through to the default
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /** The project the retained files belong to */
+    @NonNull
+    Project getProject() {
+        return project;
+    }
+
+    /**
+     * Returns the file previously retained for the file of the given context,
+     * or null if it was not retained
+     */
+    @Nullable
+    UFile get(@NonNull JavaContext context) {
+        Retained retained = files.get(context.file);
+        return retained != null ? retained.file : null;
+    }
+
+    /**
+     * Offers the given parsed file for retention until the next pass.
+     *
+     * @param context the context of the file
+     * @param file    the parsed file
+     * @return true if the file was retained, in which case it must not be disposed
+     */
+    boolean retain(@NonNull JavaContext context, @NonNull UFile file) {
+        if (context.getDriver().getPhase() >= passes) {
+            // No more passes which need the file
+            Retained retained = files.remove(context.file);
+            if (retained != null) {
+                used -= retained.cost;
+            }
+            return false;
+        }
+
+        if (files.containsKey(context.file)) {
+            return true;
+        }
+
+        long cost = context.file.length() * BYTES_PER_SOURCE_BYTE;
+        if (used + cost > budget || context.getDriver().isLowOnMemory()) {
+            return false;
+        }
+        used += cost;
+        files.put(context.file, new Retained(context, file, cost));
+        return true;
+    }
+
+    /** Disposes all the files still retained */
+    void dispose() {
+        for (Retained retained : files.values()) {
+            parser.dispose(retained.context, retained.file);
+        }
+        files.clear();
+        used = 0;
+    }
+
+    private static class Retained {
+        private final JavaContext context;
+        private final UFile file;
+        private final long cost;
+
+        private Retained(@NonNull JavaContext context, @NonNull UFile file, long cost) {
+            this.context = context;
+            this.file = file;
+            this.cost = cost;
+        }
+    }
+}
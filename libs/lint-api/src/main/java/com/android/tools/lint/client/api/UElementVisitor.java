@@ -128,6 +128,12 @@ public class UElementVisitor {
     private final UastParser parser;
     private final Map<String, List<VisitingDetector>> superClassDetectors =
             new HashMap<>();
+    /**
+     * The detectors applicable to each class (by qualified name) visited as a super
+     * class, including those applicable to its own super classes and interfaces
+     */
+    private final Map<String, List<VisitingDetector>> superClassMatches = new HashMap<>();
+    @Nullable private RetainedUastFiles retainedFiles;
 
     UElementVisitor(@NonNull UastParser parser, @NonNull List<Detector> detectors) {
         this.parser = parser;
@@ -203,6 +209,14 @@ public class UElementVisitor {
         }
     }
 
+    /**
+     * Sets the files retained from a previous pass over the same sources, which are
+     * used instead of parsing the files again, and which the parsed files are offered to
+     */
+    void setRetainedFiles(@Nullable RetainedUastFiles retainedFiles) {
+        this.retainedFiles = retainedFiles;
+    }
+
     void visitFile(@NonNull final JavaContext context) {
         try {
             UastParser uastParser = context.getUastParser();
@@ -210,7 +224,8 @@ public class UElementVisitor {
                 return;
             }
 
-            UFile uFile = uastParser.parse(context);
+            UFile retained = retainedFiles != null ? retainedFiles.get(context) : null;
+            UFile uFile = retained != null ? retained : uastParser.parse(context);
             if (uFile == null) {
                 // No need to log this; the parser should be reporting
                 // a full warning (such as IssueRegistry#PARSER_ERROR)
@@ -261,11 +276,13 @@ public class UElementVisitor {
                 client.runReadAction(() -> {
                     for (VisitingDetector v : allDetectors) {
                         ProgressManager.checkCanceled();
-                        v.getDetector().afterCheckFile(context);
+                        context.getDriver().afterCheckFile(v.getDetector(), context);
                     }
                 });
             } finally {
-                parser.dispose(context, uFile);
+                if (retainedFiles == null || !retainedFiles.retain(context, uFile)) {
+                    parser.dispose(context, uFile);
+                }
                 context.setJavaFile(null);
                 context.setUastFile(null);
             }
@@ -392,54 +409,64 @@ public class UElementVisitor {
                 return;
             }
 
-            PsiClass cls = node;
-            int depth = 0;
-            while (cls != null) {
-                List<VisitingDetector> list = superClassDetectors.get(cls.getQualifiedName());
-                if (list != null) {
-                    for (VisitingDetector v : list) {
-                        UastScanner uastScanner = v.getUastScanner();
-                        if (uastScanner != null) {
-                            if (uClass != null) {
-                                uastScanner.visitClass(context, uClass);
-                            } else {
-                                assert lambda != null;
-                                uastScanner.visitClass(context, lambda);
-                            }
-                        }
+            for (VisitingDetector v : getMatchingDetectors(node, 0)) {
+                UastScanner uastScanner = v.getUastScanner();
+                if (uastScanner != null) {
+                    if (uClass != null) {
+                        uastScanner.visitClass(context, uClass);
+                    } else {
+                        assert lambda != null;
+                        uastScanner.visitClass(context, lambda);
                     }
                 }
+            }
+        }
 
-                // Check interfaces too
-                Set<String> interfaceNames = getInterfaceNames(null, cls);
-                if (interfaceNames != null) {
-                    for (String name : interfaceNames) {
-                        list = superClassDetectors.get(name);
-                        if (list != null) {
-                            for (VisitingDetector v : list) {
-                                UastScanner uastScanner = v.getUastScanner();
-                                if (uastScanner != null) {
-                                    if (uClass != null) {
-                                        uastScanner.visitClass(context, uClass);
-                                    } else {
-                                        assert lambda != null;
-                                        uastScanner.visitClass(context, lambda);
-                                    }
-                                }
-                            }
-                        }
+        /**
+         * Returns the detectors applicable to the given class, in the order of the
+         * class and its super classes. The result for super classes is shared across
+         * the classes visited, since most classes extend the same few classes.
+         */
+        @NonNull
+        private List<VisitingDetector> getMatchingDetectors(@NonNull PsiClass cls, int depth) {
+            List<VisitingDetector> result = new ArrayList<>();
+            List<VisitingDetector> list = superClassDetectors.get(cls.getQualifiedName());
+            if (list != null) {
+                result.addAll(list);
+            }
+
+            // Check interfaces too
+            Set<String> interfaceNames = getInterfaceNames(null, cls);
+            if (interfaceNames != null) {
+                for (String name : interfaceNames) {
+                    list = superClassDetectors.get(name);
+                    if (list != null) {
+                        result.addAll(list);
                     }
                 }
+            }
+
+            PsiClass superClass = cls.getSuperClass();
+            if (superClass == null || depth == 500) {
+                // The depth check shouldn't be needed in practice; this prevents the
+                // IDE from hanging if the user has accidentally typed in an incorrect
+                // super class which creates a cycle.
+                return result;
+            }
 
-                cls = cls.getSuperClass();
-                depth++;
-                if (depth == 500) {
-                    // Shouldn't happen in practice; this prevents the IDE from
-                    // hanging if the user has accidentally typed in an incorrect
-                    // super class which creates a cycle.
-                    break;
+            String name = superClass.getQualifiedName();
+            List<VisitingDetector> inherited = name != null ? superClassMatches.get(name) : null;
+            if (inherited == null) {
+                inherited = getMatchingDetectors(superClass, depth + 1);
+                if (name != null) {
+                    superClassMatches.put(name, inherited);
                 }
             }
+            if (result.isEmpty()) {
+                return inherited;
+            }
+            result.addAll(inherited);
+            return result;
         }
     }
 
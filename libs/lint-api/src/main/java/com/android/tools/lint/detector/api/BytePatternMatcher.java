@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import com.android.annotations.NonNull;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds occurrences of any of a set of byte patterns in a single pass over the input,
+ * using an Aho-Corasick automaton. The time taken is linear in the size of the input,
+ * independent of the number of patterns.
+ * <p>
+ * Matchers are immutable and may be shared between threads.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+public final class BytePatternMatcher {
+    /** The transitions of the automaton: 256 entries per state, one per byte value */
+    private final int[] next;
+    /** The index of the pattern ending in each state, or -1 */
+    private final int[] patternAt;
+    /**
+     * The nearest state along the failure links of each state in which a pattern ends,
+     * or 0 if there is none
+     */
+    private final int[] outputLink;
+    private final int patternCount;
+
+    /**
+     * Creates a matcher for the given patterns
+     *
+     * @param patterns the non-empty patterns to look for
+     */
+    public BytePatternMatcher(@NonNull List<byte[]> patterns) {
+        this(patterns.toArray(new byte[patterns.size()][]));
+    }
+
+    /**
+     * Creates a matcher for the given patterns
+     *
+     * @param patterns the non-empty patterns to look for
+     */
+    public BytePatternMatcher(@NonNull byte[]... patterns) {
+        patternCount = patterns.length;
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+        int[] next = new int[maxStates << 8];
+        Arrays.fill(next, -1);
+        int[] patternAt = new int[maxStates];
+        Arrays.fill(patternAt, -1);
+
+        // Build the trie of the patterns
+        int states = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            byte[] pattern = patterns[i];
+            assert pattern.length > 0;
+            int state = 0;
+            for (byte b : pattern) {
+                int index = (state << 8) | (b & 0xff);
+                if (next[index] == -1) {
+                    next[index] = states++;
+                }
+                state = next[index];
+            }
+            if (patternAt[state] == -1) {
+                patternAt[state] = i;
+            }
+        }
+
+        // Complete the transitions along the failure links, breadth first
+        int[] fail = new int[states];
+        int[] outputLink = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < 256; c++) {
+            if (next[c] == -1) {
+                next[c] = 0;
+            } else {
+                queue[tail++] = next[c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int failure = fail[state];
+            outputLink[state] = patternAt[failure] != -1 ? failure : outputLink[failure];
+            for (int c = 0; c < 256; c++) {
+                int index = (state << 8) | c;
+                int fallback = next[(failure << 8) | c];
+                if (next[index] == -1) {
+                    next[index] = fallback;
+                } else {
+                    fail[next[index]] = fallback;
+                    queue[tail++] = next[index];
+                }
+            }
+        }
+
+        this.next = Arrays.copyOf(next, states << 8);
+        this.patternAt = Arrays.copyOf(patternAt, states);
+        this.outputLink = outputLink;
+    }
+
+    /** Returns the number of patterns of this matcher */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * Returns the end (exclusive) of the earliest ending occurrence of a pattern which
+     * starts at or after the given index, or -1 if there is none
+     *
+     * @param bytes     the bytes to search
+     * @param fromIndex the index to start searching from
+     * @return the end of the first match, or -1
+     */
+    public int findEnd(@NonNull byte[] bytes, int fromIndex) {
+        int state = 0;
+        for (int i = fromIndex; i < bytes.length; i++) {
+            state = next[(state << 8) | (bytes[i] & 0xff)];
+            if (patternAt[state] != -1 || outputLink[state] != 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the indices of the patterns occurring in the given bytes. If the same
+     * pattern was passed more than once, only its first index is reported.
+     *
+     * @param bytes the bytes to search
+     * @return the set of indices of the patterns found
+     */
+    @NonNull
+    public BitSet findAll(@NonNull byte[] bytes) {
+        BitSet found = new BitSet(patternCount);
+        int state = 0;
+        for (byte b : bytes) {
+            state = next[(state << 8) | (b & 0xff)];
+            if (report(state, found)) {
+                return found;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the indices of the patterns occurring in the UTF-8 encoding of the given
+     * characters. The characters are encoded as they are searched, so this is the same
+     * as searching {@code chars.toString().getBytes(UTF_8)} without the copies.
+     *
+     * @param chars the characters to search
+     * @return the set of indices of the patterns found
+     */
+    @NonNull
+    public BitSet findAll(@NonNull CharSequence chars) {
+        BitSet found = new BitSet(patternCount);
+        byte[] encoded = new byte[4];
+        int state = 0;
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            int count;
+            if (c < 0x80) {
+                encoded[0] = (byte) c;
+                count = 1;
+            } else if (c < 0x800) {
+                encoded[0] = (byte) (0xc0 | (c >> 6));
+                encoded[1] = (byte) (0x80 | (c & 0x3f));
+                count = 2;
+            } else if (!Character.isSurrogate(c)) {
+                encoded[0] = (byte) (0xe0 | (c >> 12));
+                encoded[1] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                encoded[2] = (byte) (0x80 | (c & 0x3f));
+                count = 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                encoded[0] = (byte) (0xf0 | (codePoint >> 18));
+                encoded[1] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                encoded[2] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                encoded[3] = (byte) (0x80 | (codePoint & 0x3f));
+                count = 4;
+            } else {
+                // Unpaired surrogates are replaced, as String.getBytes does
+                encoded[0] = '?';
+                count = 1;
+            }
+            for (int j = 0; j < count; j++) {
+                state = next[(state << 8) | (encoded[j] & 0xff)];
+                if (report(state, found)) {
+                    return found;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the patterns ending in the given state to the found patterns, returning
+     * true once all the patterns have been found
+     */
+    private boolean report(int state, @NonNull BitSet found) {
+        boolean added = false;
+        for (int s = state; s != 0; s = outputLink[s]) {
+            int pattern = patternAt[s];
+            if (pattern != -1 && !found.get(pattern)) {
+                found.set(pattern);
+                added = true;
+            }
+        }
+        return added && found.cardinality() == patternCount;
+    }
+}
@@ -45,7 +45,11 @@ constructor(
          * The name of this category
          */
         val name: String,
-        private val priority: Int) : Comparable<Category> {
+
+        /**
+         * The sorting priority of this category, with higher being more important
+         */
+        val priority: Int) : Comparable<Category> {
 
     /**
      * Returns a full name for this category. For a top level category, this is just
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of a type hierarchy which answers subtype queries in constant
+ * time, independent of the depth of the hierarchy.
+ * <p>
+ * The first super type of each type (typically its super class) forms a forest,
+ * which is numbered in pre and post order such that a type is a subtype of another
+ * along that forest if and only if its interval is contained in the other's. Types
+ * which are also reached along other super types (typically interfaces), and their
+ * super types, are instead given bits, and each type records the set of these
+ * among its super types.
+ * <p>
+ * Cycles, which can only occur in erroneous code, are broken arbitrarily.
+ * <p>
+ * Create an index with {@link #builder()}.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ *
+ * @param <T> the type of the elements of the hierarchy, such as class names
+ */
+public final class ClassHierarchyIndex<T> {
+    private static final int[] NONE = new int[0];
+
+    private final Map<T, Integer> ids;
+    private final List<T> types;
+    /** The ids of the direct subtypes of each type */
+    private final int[][] subtypes;
+    private final int[] pre;
+    private final int[] post;
+    /** The types in pre order, such that the tree descendants of a type are contiguous */
+    private final int[] preOrder;
+    /** The root of the tree of first super types containing each type */
+    private final int[] roots;
+    /** The bit of each type reached along secondary super types, or -1 */
+    private final int[] bits;
+    /** The bits of the super types of each type; shared between types where possible */
+    private final BitSet[] superBits;
+
+    private ClassHierarchyIndex(@NonNull Map<T, Integer> ids, @NonNull List<T> types,
+            @NonNull int[][] supers) {
+        this.ids = ids;
+        this.types = types;
+        int n = types.size();
+
+        // Order the types such that super types come before their subtypes, dropping
+        // the edges which would close a cycle
+        int[] order = new int[n];
+        int count = 0;
+        byte[] state = new byte[n]; // 0: unvisited, 1: in progress, 2: done
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        for (int start = 0; start < n; start++) {
+            if (state[start] != 0) {
+                continue;
+            }
+            int depth = 0;
+            stack[depth++] = start;
+            state[start] = 1;
+            while (depth > 0) {
+                int type = stack[depth - 1];
+                int[] parents = supers[type];
+                if (next[type] < parents.length) {
+                    int parent = parents[next[type]];
+                    if (state[parent] == 1) {
+                        // Cycle: drop the edge
+                        supers[type] = remove(parents, next[type]);
+                    } else {
+                        next[type]++;
+                        if (state[parent] == 0) {
+                            state[parent] = 1;
+                            stack[depth++] = parent;
+                        }
+                    }
+                } else {
+                    state[type] = 2;
+                    order[count++] = type;
+                    depth--;
+                }
+            }
+        }
+
+        // Subtype lists, and the tree formed by the first super types
+        int[] subtypeCounts = new int[n];
+        int[] childCounts = new int[n];
+        for (int type = 0; type < n; type++) {
+            for (int parent : supers[type]) {
+                subtypeCounts[parent]++;
+            }
+            if (supers[type].length > 0) {
+                childCounts[supers[type][0]]++;
+            }
+        }
+        subtypes = new int[n][];
+        int[][] children = new int[n][];
+        for (int type = 0; type < n; type++) {
+            subtypes[type] = subtypeCounts[type] == 0 ? NONE : new int[subtypeCounts[type]];
+            children[type] = childCounts[type] == 0 ? NONE : new int[childCounts[type]];
+        }
+        Arrays.fill(subtypeCounts, 0);
+        Arrays.fill(childCounts, 0);
+        for (int type = 0; type < n; type++) {
+            for (int parent : supers[type]) {
+                subtypes[parent][subtypeCounts[parent]++] = type;
+            }
+            if (supers[type].length > 0) {
+                int parent = supers[type][0];
+                children[parent][childCounts[parent]++] = type;
+            }
+        }
+
+        // Pre and post order numbering of the tree
+        pre = new int[n];
+        post = new int[n];
+        preOrder = new int[n];
+        roots = new int[n];
+        Arrays.fill(next, 0);
+        int preCount = 0;
+        int postCount = 0;
+        for (int root = 0; root < n; root++) {
+            if (supers[root].length > 0) {
+                continue;
+            }
+            int depth = 0;
+            stack[depth++] = root;
+            roots[root] = root;
+            preOrder[preCount] = root;
+            pre[root] = preCount++;
+            while (depth > 0) {
+                int type = stack[depth - 1];
+                if (next[type] < children[type].length) {
+                    int child = children[type][next[type]++];
+                    roots[child] = root;
+                    preOrder[preCount] = child;
+                    pre[child] = preCount++;
+                    stack[depth++] = child;
+                } else {
+                    post[type] = postCount++;
+                    depth--;
+                }
+            }
+        }
+
+        // Types reached along secondary super types, and all their super types
+        BitSet secondary = new BitSet(n);
+        for (int type = 0; type < n; type++) {
+            for (int i = 1; i < supers[type].length; i++) {
+                secondary.set(supers[type][i]);
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            int type = order[i];
+            if (secondary.get(type)) {
+                for (int parent : supers[type]) {
+                    secondary.set(parent);
+                }
+            }
+        }
+        bits = new int[n];
+        int bitCount = 0;
+        for (int type = 0; type < n; type++) {
+            bits[type] = secondary.get(type) ? bitCount++ : -1;
+        }
+
+        superBits = new BitSet[n];
+        BitSet empty = new BitSet(0);
+        for (int i = 0; i < n; i++) {
+            int type = order[i];
+            BitSet result = empty;
+            boolean owned = false;
+            for (int parent : supers[type]) {
+                BitSet parentBits = superBits[parent];
+                int bit = bits[parent];
+                if (bit == -1) {
+                    if (parentBits.isEmpty() || parentBits == result) {
+                        continue;
+                    }
+                    if (result.isEmpty()) {
+                        // Share the bits of the parent unless other parents add to them
+                        result = parentBits;
+                        owned = false;
+                        continue;
+                    }
+                }
+                if (!owned) {
+                    result = (BitSet) result.clone();
+                    owned = true;
+                }
+                result.or(parentBits);
+                if (bit != -1) {
+                    result.set(bit);
+                }
+            }
+            superBits[type] = result;
+        }
+    }
+
+    private static int[] remove(@NonNull int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    /** Returns true if the given type is part of this index */
+    public boolean contains(@NonNull T type) {
+        return ids.containsKey(type);
+    }
+
+    /** Returns the number of types in this index */
+    public int size() {
+        return types.size();
+    }
+
+    /**
+     * Returns true if the given type is the given super type, or one of its direct or
+     * indirect subtypes. Returns false if either type is not part of the index.
+     *
+     * @param type      the type to check
+     * @param superType the super type to compare to
+     * @return true if {@code type} is a subtype of {@code superType}
+     */
+    public boolean isSubtypeOf(@NonNull T type, @NonNull T superType) {
+        Integer id = ids.get(type);
+        Integer superId = ids.get(superType);
+        if (id == null || superId == null) {
+            return false;
+        }
+        return isSubtypeOf(id, superId);
+    }
+
+    private boolean isSubtypeOf(int type, int superType) {
+        if (type == superType) {
+            return true;
+        }
+        int bit = bits[superType];
+        if (bit != -1) {
+            return superBits[type].get(bit);
+        }
+        return pre[superType] <= pre[type] && post[type] <= post[superType];
+    }
+
+    /**
+     * Returns the top of the chain of first super types of the given type, which is the
+     * type itself if it has no known super type, or null if the type is not part of the
+     * index. For a class hierarchy this is the topmost known super class.
+     */
+    @Nullable
+    public T getRoot(@NonNull T type) {
+        Integer id = ids.get(type);
+        return id != null ? types.get(roots[id]) : null;
+    }
+
+    /**
+     * Returns all the direct and indirect subtypes of the given type, not including
+     * the type itself
+     */
+    @NonNull
+    public List<T> getAllSubtypes(@NonNull T type) {
+        Integer id = ids.get(type);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<T> result = new ArrayList<>();
+        if (bits[id] == -1) {
+            // All subtypes are in the tree below the type, which are contiguous in pre order
+            int end = pre[id];
+            while (end + 1 < preOrder.length && isSubtypeOf(preOrder[end + 1], id)) {
+                end++;
+            }
+            for (int i = pre[id] + 1; i <= end; i++) {
+                result.add(types.get(preOrder[i]));
+            }
+            return result;
+        }
+
+        BitSet seen = new BitSet(types.size());
+        int[] queue = new int[8];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = id;
+        seen.set(id);
+        while (head < tail) {
+            for (int subtype : subtypes[queue[head++]]) {
+                if (!seen.get(subtype)) {
+                    seen.set(subtype);
+                    result.add(types.get(subtype));
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = subtype;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns a new builder for an index */
+    @NonNull
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /** Builder for a {@link ClassHierarchyIndex} */
+    public static final class Builder<T> {
+        private final Map<T, List<T>> supers = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a type to the hierarchy, unless already added with its super types
+         *
+         * @param type       the type
+         * @param superTypes the direct super types, with the super class (if any) first
+         * @return this, for chaining
+         */
+        @NonNull
+        public Builder<T> add(@NonNull T type, @NonNull Collection<? extends T> superTypes) {
+            List<T> list = supers.get(type);
+            if (list == null) {
+                supers.put(type, new ArrayList<>(superTypes));
+            } else if (list.isEmpty()) {
+                list.addAll(superTypes);
+            }
+            for (T superType : superTypes) {
+                if (!supers.containsKey(superType)) {
+                    supers.put(superType, new ArrayList<>(2));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds a type with a single super type to the hierarchy, unless already added
+         * with its super types
+         *
+         * @param type      the type
+         * @param superType the direct super type, if any
+         * @return this, for chaining
+         */
+        @NonNull
+        public Builder<T> add(@NonNull T type, @Nullable T superType) {
+            return add(type, superType != null
+                    ? Collections.singletonList(superType)
+                    : Collections.emptyList());
+        }
+
+        /** Builds the index */
+        @NonNull
+        public ClassHierarchyIndex<T> build() {
+            int n = supers.size();
+            Map<T, Integer> ids = new HashMap<>(n * 2);
+            List<T> types = new ArrayList<>(n);
+            for (T type : supers.keySet()) {
+                ids.put(type, types.size());
+                types.add(type);
+            }
+            int[][] superIds = new int[n][];
+            int i = 0;
+            for (List<T> list : supers.values()) {
+                int[] array = new int[list.size()];
+                int count = 0;
+                for (T superType : list) {
+                    int id = ids.get(superType);
+                    if (id != i && !contains(array, count, id)) {
+                        array[count++] = id;
+                    }
+                }
+                superIds[i++] = count == array.length ? array : Arrays.copyOf(array, count);
+            }
+            return new ClassHierarchyIndex<>(ids, types, superIds);
+        }
+
+        private static boolean contains(@NonNull int[] array, int count, int value) {
+            for (int i = 0; i < count; i++) {
+                if (array[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
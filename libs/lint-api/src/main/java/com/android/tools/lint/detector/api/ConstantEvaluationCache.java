@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiField;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Values computed by {@link ConstantEvaluator}s during a lint run, such that
+ * evaluations repeated by several detectors are only done once.
+ * <p>
+ * Field initializer values are kept while a project is analyzed, since constants
+ * are typically referenced from many files. They are keyed by the qualified name
+ * of the class and the name of the field rather than by the field itself, such
+ * that the entries don't retain the PSI of the files they were computed from, and
+ * are found again when the field is resolved from a file parsed later. Fields of
+ * local and anonymous classes are not cached. Values of other expressions are
+ * keyed by element identity, and are only kept while the same file is being
+ * analyzed. Each combination of evaluator options has its own entries.
+ * <p>
+ * The lint driver provides a cache for each run, and clears it before each
+ * project; see
+ * {@link com.android.tools.lint.client.api.LintDriver#getConstantEvaluationCache()}.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+public final class ConstantEvaluationCache {
+    /** Marks values which were evaluated to null */
+    private static final Object NULL = new Object();
+
+    private static final int MODES = 4;
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, Object>[] fieldValues = new Map[MODES];
+    @SuppressWarnings("unchecked")
+    private final Map<Object, Object>[] elementValues = new Map[MODES];
+    /** The file the element values belong to */
+    private Object elementFile;
+
+    public ConstantEvaluationCache() {
+        for (int i = 0; i < MODES; i++) {
+            fieldValues[i] = new HashMap<>();
+            elementValues[i] = new IdentityHashMap<>();
+        }
+    }
+
+    /** Returns the index of the entries for the given evaluator options */
+    static int mode(boolean allowUnknown, boolean allowFieldInitializers) {
+        return (allowUnknown ? 1 : 0) | (allowFieldInitializers ? 2 : 0);
+    }
+
+    /**
+     * Returns the key of the given field in the field values: the qualified name of its
+     * class and its name, or null if its class has no qualified name
+     */
+    @Nullable
+    static String getFieldKey(@NonNull PsiField field) {
+        PsiClass containingClass = field.getContainingClass();
+        String className = containingClass != null ? containingClass.getQualifiedName() : null;
+        if (className == null) {
+            return null;
+        }
+        return className + '#' + field.getName();
+    }
+
+    /**
+     * Returns whether a value has been cached for the initializer of the given field
+     *
+     * @param mode  the evaluator options (see {@link #mode(boolean, boolean)})
+     * @param field the field
+     * @return true if {@link #getFieldValue(int, PsiField)} returns the cached value
+     */
+    boolean hasFieldValue(int mode, @NonNull PsiField field) {
+        String key = getFieldKey(field);
+        return key != null && fieldValues[mode].containsKey(key);
+    }
+
+    /** Returns the cached value of the initializer of the given field, if any */
+    @Nullable
+    Object getFieldValue(int mode, @NonNull PsiField field) {
+        String key = getFieldKey(field);
+        Object value = key != null ? fieldValues[mode].get(key) : null;
+        return value != NULL ? value : null;
+    }
+
+    void putFieldValue(int mode, @NonNull PsiField field, @Nullable Object value) {
+        String key = getFieldKey(field);
+        if (key != null) {
+            fieldValues[mode].put(key, value != null ? value : NULL);
+        }
+    }
+
+    /**
+     * Returns the cached value of the given element, {@link #NULL} if evaluated to null,
+     * or null if not cached
+     *
+     * @param mode    the evaluator options (see {@link #mode(boolean, boolean)})
+     * @param file    the file being analyzed, such as the {@link JavaContext}
+     * @param element the element, such as a UAST or PSI expression
+     * @return the cached value, if any
+     */
+    @Nullable
+    Object getElementValue(int mode, @Nullable Object file, @NonNull Object element) {
+        if (file != elementFile) {
+            return null;
+        }
+        return elementValues[mode].get(element);
+    }
+
+    void putElementValue(int mode, @Nullable Object file, @NonNull Object element,
+            @Nullable Object value) {
+        if (file != elementFile) {
+            for (Map<Object, Object> values : elementValues) {
+                values.clear();
+            }
+            elementFile = file;
+        }
+        elementValues[mode].put(element, value != null ? value : NULL);
+    }
+
+    /** Returns true if the given cached element value represents null */
+    static boolean isNull(@Nullable Object value) {
+        return value == NULL;
+    }
+
+    /** Discards all cached values */
+    public void clear() {
+        for (int i = 0; i < MODES; i++) {
+            fieldValues[i].clear();
+            elementValues[i].clear();
+        }
+        elementFile = null;
+    }
+}
@@ -120,11 +120,28 @@ import org.jetbrains.uast.UastUtils;
 import org.jetbrains.uast.util.UastExpressionUtils;
 import org.jetbrains.uast.visitor.AbstractUastVisitor;
 
-/** Evaluates constant expressions */
+/**
+ * Evaluates constant expressions.
+ * <p>
+ * When created with a context, values are shared with other evaluators in the same
+ * lint run (see {@link ConstantEvaluationCache}). Each evaluation is limited to
+ * {@link #MAX_STEPS} steps and a nesting depth of {@link #MAX_DEPTH}, beyond which
+ * it gives up and returns null.
+ */
 public class ConstantEvaluator {
+    /** The maximum number of elements evaluated for a single top level evaluation */
+    public static final int MAX_STEPS = 10000;
+    /** The maximum nesting depth of a single evaluation */
+    public static final int MAX_DEPTH = 200;
+
     private final JavaContext context;
+    @Nullable private final ConstantEvaluationCache cache;
     private boolean allowUnknown;
     private boolean allowFieldInitializers;
+    private int depth;
+    private int steps;
+    /** Whether the current top level evaluation ran out of budget */
+    private boolean exhausted;
 
     /**
      * Creates a new constant evaluator
@@ -133,6 +150,7 @@ public class ConstantEvaluator {
      */
     public ConstantEvaluator(@Nullable JavaContext context) {
         this.context = context;
+        cache = context != null ? context.getDriver().getConstantEvaluationCache() : null;
     }
 
     /**
@@ -617,7 +635,74 @@ public class ConstantEvaluator {
         if (node == null) {
             return null;
         }
+        if (node instanceof ULiteralExpression) {
+            return ((ULiteralExpression) node).getValue();
+        }
+        return evaluateCached(node);
+    }
+
+    /**
+     * Evaluates the given UAST or PSI element, applying the evaluation budget and
+     * looking up and storing the value in the cache, if any
+     */
+    @Nullable
+    private Object evaluateCached(@NonNull Object node) {
+        if (depth == 0) {
+            steps = 0;
+            exhausted = false;
+        }
+        if (exhausted || ++steps > MAX_STEPS || depth >= MAX_DEPTH) {
+            exhausted = true;
+            return null;
+        }
+
+        int mode = ConstantEvaluationCache.mode(allowUnknown, allowFieldInitializers);
+        if (cache != null) {
+            Object cached = cache.getElementValue(mode, context, node);
+            if (cached != null) {
+                return ConstantEvaluationCache.isNull(cached) ? null : cached;
+            }
+        }
+
+        Object value;
+        depth++;
+        try {
+            value = node instanceof UElement
+                    ? evaluateUncached((UElement) node)
+                    : evaluateUncached((PsiElement) node);
+        } finally {
+            depth--;
+        }
 
+        // Don't cache values computed after running out of budget since they may be
+        // incomplete, or arrays, since they are mutable
+        if (cache != null && !exhausted && (value == null || !value.getClass().isArray())) {
+            cache.putElementValue(mode, context, node, value);
+        }
+        return value;
+    }
+
+    /**
+     * Evaluates the initializer of the given field, looking up and storing the
+     * value in the cache, if any
+     */
+    @Nullable
+    private Object evaluateFieldInitializer(@NonNull PsiField field) {
+        int mode = ConstantEvaluationCache.mode(allowUnknown, allowFieldInitializers);
+        if (cache != null && cache.hasFieldValue(mode, field)) {
+            return cache.getFieldValue(mode, field);
+        }
+        boolean wasExhausted = exhausted;
+        Object value = evaluate(field.getInitializer());
+        if (cache != null && !(exhausted && !wasExhausted)
+                && (value == null || !value.getClass().isArray())) {
+            cache.putFieldValue(mode, field, value);
+        }
+        return value;
+    }
+
+    @Nullable
+    private Object evaluateUncached(@NonNull UElement node) {
         if (node instanceof ULiteralExpression) {
             return ((ULiteralExpression) node).getValue();
         } else if (node instanceof UPrefixExpression) {
@@ -726,7 +811,7 @@ public class ConstantEvaluator {
                     if (field.getInitializer() != null && (allowFieldInitializers
                             || (field.hasModifierProperty(PsiModifier.STATIC)
                             && field.hasModifierProperty(PsiModifier.FINAL)))) {
-                        value = evaluate(field.getInitializer());
+                        value = evaluateFieldInitializer(field);
                         if (value != null) {
                             if (surroundedByVariableCheck(node, field)) {
                                 return null;
@@ -1288,6 +1373,14 @@ public class ConstantEvaluator {
         if (node == null) {
             return null;
         }
+        if (node instanceof PsiLiteral) {
+            return ((PsiLiteral)node).getValue();
+        }
+        return evaluateCached(node);
+    }
+
+    @Nullable
+    private Object evaluateUncached(@NonNull PsiElement node) {
         if (node instanceof PsiLiteral) {
             return ((PsiLiteral)node).getValue();
         } else if (node instanceof PsiPrefixExpression) {
@@ -2403,7 +2496,7 @@ public class ConstantEvaluator {
                 if (field.getInitializer() != null && (allowFieldInitializers
                         || (field.hasModifierProperty(PsiModifier.STATIC)
                         && field.hasModifierProperty(PsiModifier.FINAL)))) {
-                    value = evaluate(field.getInitializer());
+                    value = evaluateFieldInitializer(field);
                     if (value != null) {
                         // See if it looks like the value has been clamped locally
                         PsiIfStatement curr = PsiTreeUtil.getParentOfType(node, PsiIfStatement.class);
@@ -1400,6 +1400,18 @@ public abstract class Detector {
          */
         @NonNull
         EnumSet<Scope> getApplicableFiles();
+
+        /**
+         * Returns strings at least one of which must occur in a file for lint to call
+         * the {@link #run(Context)} method for it, or null to check all the applicable
+         * files. The strings are matched literally against the file contents (see
+         * {@link Context#getContents()}), for all the scanners in a single pass, so
+         * scanners looking for rare content don't each need to search most files.
+         *
+         * @return a list of strings to look for, or null
+         */
+        @Nullable
+        List<String> getApplicableContentPatterns();
     }
 
     /**
@@ -1445,6 +1457,21 @@ public abstract class Detector {
     public void afterCheckProject(@NonNull Context context) {
     }
 
+    /**
+     * Returns the number of passes this detector makes over the Java and Kotlin
+     * source files of a project. A detector which needs more than one pass
+     * requests each additional pass by calling
+     * {@link com.android.tools.lint.client.api.LintDriver#requestRepeat(Detector, EnumSet)}
+     * from {@link #afterCheckProject(Context)}; declaring the number of passes up
+     * front lets lint keep the parsed source files around between the passes
+     * (within a memory budget) instead of parsing every file again for each pass.
+     *
+     * @return the number of passes over the source files, usually 1
+     */
+    public int getSourcePassCount() {
+        return 1;
+    }
+
     /**
      * Analysis is about to begin for the given library project, perform any setup steps.
      *
@@ -1654,6 +1681,11 @@ public abstract class Detector {
         return Scope.OTHER_SCOPE;
     }
 
+    @Nullable
+    public List<String> getApplicableContentPatterns() {
+        return null;
+    }
+
     // ---- Dummy implementations to make implementing an GradleScanner easier: ----
 
     public void visitBuildScript(@NonNull Context context, Map<String, Object> sharedData) {
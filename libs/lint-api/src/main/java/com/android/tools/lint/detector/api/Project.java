@@ -257,6 +257,14 @@ public class Project {
         return mergedManifest;
     }
 
+    /**
+     * Releases the parsed merged manifest, which is parsed again when next requested;
+     * called by the lint driver when the heap is running low
+     */
+    public void trimMemory() {
+        mergedManifest = null;
+    }
+
     /** Creates a new Project. Use one of the factory methods to create. */
     protected Project(
             @NonNull LintClient client,
@@ -417,6 +425,17 @@ public class Project {
         return files;
     }
 
+    /**
+     * Sets the list of files to be checked in this project, replacing any files
+     * added with {@link #addFile(File)}. Unlike with {@link #addFile(File)}, the list
+     * can be empty, in which case none of the files in the project are checked.
+     *
+     * @param files the subset of files to be checked, or null for the whole project
+     */
+    public void setSubset(@Nullable List<File> files) {
+        this.files = files;
+    }
+
     /**
      * Returns the list of source folders for Java source files
      *
@@ -20,9 +20,7 @@ import com.android.tools.lint.detector.api.interprocedural.CallGraph.Node
 import com.android.tools.lint.detector.api.interprocedural.CallTarget.DefaultCtor
 import com.android.tools.lint.detector.api.interprocedural.CallTarget.Lambda
 import com.android.tools.lint.detector.api.interprocedural.CallTarget.Method
-import com.google.common.collect.HashMultimap
 import com.google.common.collect.Lists
-import com.google.common.collect.Multimap
 import com.intellij.psi.PsiElement
 import com.intellij.psi.impl.cache.TypeInfo
 import com.intellij.psi.impl.java.stubs.impl.PsiParameterStubImpl
@@ -44,6 +42,7 @@ import java.io.FileWriter
 import java.io.PrintWriter
 import java.util.ArrayDeque
 import java.util.ArrayList
+import java.util.BitSet
 import java.util.HashMap
 import java.util.HashSet
 import kotlin.collections.set
@@ -205,6 +204,91 @@ fun <T : Any> searchForPaths(
     return res
 }
 
+/**
+ * Returns non-intersecting paths from [sources] to nodes for which [isSink] returns true,
+ * where nodes are identified by non-negative ids and [forEachNeighbor] passes each neighbor
+ * of a node to a consumer. This is the same search as [searchForPaths], using primitive
+ * arrays and bit sets rather than maps and sets of boxed nodes.
+ */
+fun searchForPaths(
+        sources: IntArray,
+        isSink: (Int) -> Boolean,
+        forEachNeighbor: (Int, (Int) -> Unit) -> Unit): List<IntArray> {
+    val res = ArrayList<IntArray>()
+    val seen = BitSet()
+    val used = BitSet() // Nodes already part of a result path.
+    var prev = IntArray(maxOf(16, sources.size)) // Valid for seen nodes only.
+    var queue = IntArray(maxOf(16, sources.size))
+    var head = 0
+    var tail = 0
+    fun enqueue(n: Int, from: Int) {
+        seen.set(n)
+        if (n >= prev.size) {
+            prev = prev.copyOf(maxOf(n + 1, prev.size * 2))
+        }
+        prev[n] = from
+        if (tail == queue.size) {
+            queue = queue.copyOf(queue.size * 2)
+        }
+        queue[tail++] = n
+    }
+
+    sources.forEach { if (!seen[it]) enqueue(it, -1) }
+    val path = IntArrayBuilder()
+    while (head < tail) {
+        val n = queue[head++]
+        if (isSink(n)) {
+            // Keep running time linear by preempting path construction
+            // if it intersects with one already seen.
+            path.clear()
+            var intersects = false
+            var current = n
+            while (true) {
+                path.add(current)
+                if (used[current]) {
+                    intersects = true
+                    break
+                }
+                current = prev[current]
+                if (current == -1) {
+                    break
+                }
+            }
+            if (!intersects)
+                res.add(path.toReversedArray())
+            path.forEach { used.set(it) }
+        } else {
+            forEachNeighbor(n) { if (!seen[it]) enqueue(it, n) }
+        }
+    }
+    return res
+}
+
+/** A growable array of primitive ints. */
+private class IntArrayBuilder {
+    private var array = IntArray(16)
+    private var size = 0
+
+    fun add(value: Int) {
+        if (size == array.size) {
+            array = array.copyOf(size * 2)
+        }
+        array[size++] = value
+    }
+
+    fun clear() {
+        size = 0
+    }
+
+    inline fun forEach(consumer: (Int) -> Unit) {
+        for (i in 0 until size) {
+            consumer(array[i])
+        }
+    }
+
+    fun toReversedArray() = IntArray(size) { array[size - 1 - it] }
+}
+
 /** Describes a parameter specialization tuple, mapping each parameter to one concrete receiver. */
 data class ParamContext(
         val params: List<Pair<UParameter, DispatchReceiver>>,
@@ -251,12 +335,18 @@ data class ContextualEdge(
         val contextualNode: ContextualNode,
         val cause: UElement)
 
-/** Augments the non-contextual receiver evaluator with a parameter context. */
+/**
+ * Augments the non-contextual receiver evaluator with a parameter context. Results are
+ * memoized in [cache], if given.
+ */
 class ContextualDispatchReceiverEvaluator(
         val paramContext: ParamContext,
-        nonContextualEval: IntraproceduralDispatchReceiverEvaluator
+        nonContextualEval: IntraproceduralDispatchReceiverEvaluator,
+        cache: DispatchReceiverCache? = null
 ) : DispatchReceiverEvaluator(nonContextualEval) {
 
+    override val memo = cache?.receiversFor(paramContext)
+
     override fun getOwn(
             element: UElement,
             root: DispatchReceiverEvaluator): Collection<DispatchReceiver> = when (element) {
@@ -339,14 +429,18 @@ fun buildParamContextsFromCall(
     return paramContexts
 }
 
-/** Examines call sites to find contextualized neighbors of a search node. */
+/**
+ * Examines call sites to find contextualized neighbors of a search node. Pass the same
+ * [cache] when computing the edges of many nodes, to share dispatch receiver evaluation.
+ */
 fun ContextualNode.computeEdges(
         callGraph: CallGraph,
-        nonContextualReceiverEval: IntraproceduralDispatchReceiverEvaluator
+        nonContextualReceiverEval: IntraproceduralDispatchReceiverEvaluator,
+        cache: DispatchReceiverCache? = null
 ): Collection<ContextualEdge> {
 
     val contextualReceiverEval =
-            ContextualDispatchReceiverEvaluator(paramContext, nonContextualReceiverEval)
+            ContextualDispatchReceiverEvaluator(paramContext, nonContextualReceiverEval, cache)
 
     // TODO: Kotlin lambda receivers not yet reflected in UAST.
     fun DispatchReceiver.deriveImplicitThisDispatchReceiver() = when (this) {
@@ -379,7 +473,7 @@ fun ContextualNode.computeEdges(
             (edge.kind == Edge.Kind.BASE || edge.kind == Edge.Kind.INVOKE) && edge.call != null -> {
                 // Try to refine the base method to concrete targets.
                 edge.call.getDispatchReceivers(contextualReceiverEval).flatMap { dispatchReceiver ->
-                    val target = edge.call.getTarget(dispatchReceiver)
+                    val target = edge.call.getTarget(dispatchReceiver, cache)
                     if (target == null)
                         emptyList()
                     else {
@@ -411,14 +505,166 @@ interface ContextualCallGraph {
     fun inEdges(n: ContextualNode): Collection<ContextualEdge>
 }
 
+/**
+ * A contextual call graph in which nodes and causes are numbered, and edges are stored in
+ * primitive arrays, such that searches (see [searchForContextualPaths]) run on ids.
+ */
 class MutableContextualCallGraph : ContextualCallGraph {
-    override val contextualNodes = ArrayList<ContextualNode>()
-    val outEdgeMap: Multimap<ContextualNode, ContextualEdge> = HashMultimap.create()
-    val inEdgeMap: Multimap<ContextualNode, ContextualEdge> = HashMultimap.create()
+    private val nodeIds = HashMap<ContextualNode, Int>()
+    private val nodeList = ArrayList<ContextualNode>()
+    private val causeIds = HashMap<UElement, Int>()
+    private val causeList = ArrayList<UElement>()
+
+    // Edge ids are indices into these arrays.
+    private var edgeSources = IntArray(16)
+    private var edgeTargets = IntArray(16)
+    private var edgeCauses = IntArray(16)
+    private var edgeStates = IntArray(16)
+    /** The number of edges in the graph; edges have ids `0 until edgeCount`. */
+    var edgeCount = 0
+        private set
+
+    // Search states (see searchIds) are the distinct (target, cause) pairs of the edges,
+    // like the [ContextualEdge]s the search was defined on: edges from different sources
+    // with the same target and cause are the same state. State ids index these arrays.
+    private val stateIds = HashMap<Long, Int>()
+    private var stateNodes = IntArray(16)
+    private var stateCauses = IntArray(16)
+    private var stateCount = 0
+
+    /** The ids of the out edges of each node, or null if not yet added. */
+    private val outEdgeIds = ArrayList<IntArray?>()
+    /** The ids of the in edges of each node, computed on demand. */
+    private var inEdgeIds: Array<IntArray>? = null
+
+    override val contextualNodes: List<ContextualNode> get() = nodeList
+
+    /** Returns the id of the given node, adding it to the graph if necessary. */
+    fun getId(n: ContextualNode): Int = nodeIds[n] ?: nodeList.size.also {
+        nodeIds[n] = it
+        nodeList.add(n)
+        outEdgeIds.add(null)
+        inEdgeIds = null
+    }
+
+    fun getNode(id: Int): ContextualNode = nodeList[id]
+
+    /** The number of nodes in the graph; nodes have ids `0 until size`. */
+    val size: Int get() = nodeList.size
+
+    operator fun contains(n: ContextualNode): Boolean = n in nodeIds
 
-    override fun outEdges(n: ContextualNode): Collection<ContextualEdge> = outEdgeMap[n]
+    /** Whether the out edges of [n] have been added. */
+    fun hasOutEdges(n: ContextualNode): Boolean = outEdgeIds[getId(n)] != null
 
-    override fun inEdges(n: ContextualNode): Collection<ContextualEdge> = inEdgeMap[n]
+    /** Sets the out edges of [n], which can only be done once per node. */
+    fun setOutEdges(n: ContextualNode, edges: Collection<ContextualEdge>) {
+        assert(!hasOutEdges(n))
+        addOutEdges(n, edges)
+    }
+
+    /** Adds to the out edges of [n], marking them as added. */
+    fun addOutEdges(n: ContextualNode, edges: Collection<ContextualEdge>) {
+        val source = getId(n)
+        val existing = outEdgeIds[source] ?: EMPTY
+        val unique = edges.distinct().let { distinct ->
+            if (existing.isEmpty()) distinct
+            else distinct - existing.map { getEdge(it) }
+        }
+        val ids = existing.copyOf(existing.size + unique.size)
+        unique.forEachIndexed { index, (node, cause) ->
+            val i = existing.size + index
+            if (edgeCount == edgeTargets.size) {
+                val newSize = edgeCount * 2
+                edgeSources = edgeSources.copyOf(newSize)
+                edgeTargets = edgeTargets.copyOf(newSize)
+                edgeCauses = edgeCauses.copyOf(newSize)
+                edgeStates = edgeStates.copyOf(newSize)
+            }
+            val target = getId(node)
+            val causeId = getCauseId(cause)
+            edgeSources[edgeCount] = source
+            edgeTargets[edgeCount] = target
+            edgeCauses[edgeCount] = causeId
+            edgeStates[edgeCount] = getStateId(target, causeId)
+            ids[i] = edgeCount++
+        }
+        outEdgeIds[source] = ids
+        inEdgeIds = null
+    }
+
+    private fun getCauseId(cause: UElement): Int = causeIds[cause] ?: causeList.size.also {
+        causeIds[cause] = it
+        causeList.add(cause)
+    }
+
+    /** Returns the id of the search state reaching node [node] through cause [cause]. */
+    private fun getStateId(node: Int, cause: Int): Int {
+        val key = (node.toLong() shl 32) or (cause.toLong() and 0xffffffffL)
+        return stateIds[key] ?: stateCount.also {
+            if (stateCount == stateNodes.size) {
+                stateNodes = stateNodes.copyOf(stateCount * 2)
+                stateCauses = stateCauses.copyOf(stateCount * 2)
+            }
+            stateNodes[it] = node
+            stateCauses[it] = cause
+            stateIds[key] = it
+            stateCount++
+        }
+    }
+
+    /** Returns the id of the search state of the given edge, adding its node if necessary. */
+    fun getStateId(edge: ContextualEdge): Int =
+            getStateId(getId(edge.contextualNode), getCauseId(edge.cause))
+
+    /** Returns the id of the search state of edge [edge]. */
+    fun edgeState(edge: Int): Int = edgeStates[edge]
+
+    /** Returns the id of the node reached by search state [state]. */
+    fun stateNode(state: Int): Int = stateNodes[state]
+
+    /** Returns the search state with the given id. */
+    fun getState(state: Int): ContextualEdge =
+            ContextualEdge(nodeList[stateNodes[state]], causeList[stateCauses[state]])
+
+    /** Returns the ids of the out edges of node [id], or an empty array if not added. */
+    fun outEdgeIds(id: Int): IntArray = outEdgeIds[id] ?: EMPTY
+
+    /** Returns the id of the target node of edge [edge]. */
+    fun edgeTarget(edge: Int): Int = edgeTargets[edge]
+
+    /** Returns the edge with the given id. */
+    fun getEdge(edge: Int): ContextualEdge =
+            ContextualEdge(nodeList[edgeTargets[edge]], causeList[edgeCauses[edge]])
+
+    override fun outEdges(n: ContextualNode): Collection<ContextualEdge> {
+        val id = nodeIds[n] ?: return emptyList()
+        return outEdgeIds(id).map { getEdge(it) }
+    }
+
+    override fun inEdges(n: ContextualNode): Collection<ContextualEdge> {
+        val id = nodeIds[n] ?: return emptyList()
+        val inEdges = inEdgeIds ?: computeInEdgeIds().also { inEdgeIds = it }
+        return inEdges[id].map { ContextualEdge(nodeList[edgeSources[it]], causeList[edgeCauses[it]]) }
+    }
+
+    private fun computeInEdgeIds(): Array<IntArray> {
+        val counts = IntArray(nodeList.size)
+        for (edge in 0 until edgeCount) {
+            counts[edgeTargets[edge]]++
+        }
+        val result = Array(nodeList.size) { IntArray(counts[it]) }
+        counts.fill(0)
+        for (edge in 0 until edgeCount) {
+            val target = edgeTargets[edge]
+            result[target][counts[target]++] = edge
+        }
+        return result
+    }
+
+    private companion object {
+        val EMPTY = IntArray(0)
+    }
 }
 
 /**
@@ -436,17 +682,15 @@ class MutableContextualCallGraph : ContextualCallGraph {
 fun CallGraph.buildContextualCallGraph(
         nonContextualReceiverEval: IntraproceduralDispatchReceiverEvaluator): ContextualCallGraph {
     val contextualGraph = MutableContextualCallGraph()
-    val allSources = nodes.map { ContextualNode(it, ParamContext.EMPTY) }
+    val cache = DispatchReceiverCache()
+    val allSources = nodes.map { contextualGraph.getId(ContextualNode(it, ParamContext.EMPTY)) }
     searchForPaths(
-            sources = allSources,
-            isSink = { contextualGraph.contextualNodes.add(it); false },
-            getNeighbors = { n ->
-                val edges = n.computeEdges(this, nonContextualReceiverEval)
-                contextualGraph.outEdgeMap.putAll(n, edges)
-                edges.forEach { (nbr, cause) ->
-                    contextualGraph.inEdgeMap.put(nbr, ContextualEdge(n, cause))
-                }
-                edges.map { it.contextualNode }
+            sources = allSources.toIntArray(),
+            isSink = { false },
+            forEachNeighbor = { id, consumer ->
+                val n = contextualGraph.getNode(id)
+                contextualGraph.setOutEdges(n, n.computeEdges(this, nonContextualReceiverEval, cache))
+                contextualGraph.outEdgeIds(id).forEach { consumer(contextualGraph.edgeTarget(it)) }
             })
     return contextualGraph
 }
@@ -460,6 +704,13 @@ fun ContextualCallGraph.searchForContextualPaths(
         contextualSinks: Collection<ContextualNode>
 ): Collection<List<ContextualEdge>> {
 
+    when (this) {
+        is MutableContextualCallGraph ->
+            return searchIds(contextualSources, contextualSinks, expand = {})
+        is LazyContextualCallGraph ->
+            return graph.searchIds(contextualSources, contextualSinks, expand = { expand(it) })
+    }
+
     val searchSources = contextualSources.map { ContextualEdge(it, it.node.target.element) }
     val sinkSet = contextualSinks.toSet()
     return searchForPaths(
@@ -468,6 +719,36 @@ fun ContextualCallGraph.searchForContextualPaths(
             getNeighbors = { outEdges(it.contextualNode) })
 }
 
+/**
+ * Implements [searchForContextualPaths] on node and edge ids, calling [expand] with
+ * the id of each node before its out edges are visited.
+ */
+internal fun MutableContextualCallGraph.searchIds(
+        contextualSources: Collection<ContextualNode>,
+        contextualSinks: Collection<ContextualNode>,
+        expand: (Int) -> Unit
+): Collection<List<ContextualEdge>> {
+    // Search states are (target, cause) pairs rather than nodes, as in the search on
+    // ContextualEdges; the graph numbers them (see getStateId), including the states
+    // of the edges added while searching, if expanded on demand.
+    val sourceStates = contextualSources
+            .map { getStateId(ContextualEdge(it, it.node.target.element)) }
+            .distinct()
+            .toIntArray()
+    val sinks = BitSet()
+    contextualSinks.forEach { sinks.set(getId(it)) }
+
+    val paths = searchForPaths(
+            sources = sourceStates,
+            isSink = { sinks[stateNode(it)] },
+            forEachNeighbor = { state, consumer ->
+                val node = stateNode(state)
+                expand(node)
+                outEdgeIds(node).forEach { consumer(edgeState(it)) }
+            })
+    return paths.map { path -> path.map { getState(it) } }
+}
+
 /** A context-sensitive search for paths from [sources] to [sinks]. */
 fun CallGraph.searchForPaths(
         sources: Collection<Node>,
@@ -475,9 +756,13 @@ fun CallGraph.searchForPaths(
         nonContextualReceiverEval: IntraproceduralDispatchReceiverEvaluator
 ): Collection<List<ContextualEdge>> {
 
-    val contextualGraph = buildContextualCallGraph(nonContextualReceiverEval)
-    val sourceSet = sources.toSet()
+    // Only nodes which may reach a sink matter; explore those on demand
+    // (see buildContextualCallGraph for why we explore from all of them).
     val sinkSet = sinks.toSet()
+    val relevant = nodesReaching { it in sinkSet }
+    val contextualGraph = LazyContextualCallGraph(this, nonContextualReceiverEval, relevant)
+    contextualGraph.explore(relevant)
+    val sourceSet = sources.toSet()
     val searchSources = contextualGraph.contextualNodes.filter { it.node in sourceSet }
     val searchSinks = contextualGraph.contextualNodes.filter { it.node in sinkSet }
     return contextualGraph.searchForContextualPaths(
@@ -55,9 +55,12 @@ class CallGraphVisitor(
         val receiverEval: DispatchReceiverEvaluator,
         val classHierarchy: ClassHierarchy,
         val conservative: Boolean = false) : AbstractUastVisitor() {
-    private val mutableCallGraph: MutableCallGraph = MutableCallGraph()
+    internal val mutableCallGraph: MutableCallGraph = MutableCallGraph()
     val callGraph: CallGraph get() = mutableCallGraph
 
+    /** If set, notified of the edges added while visiting (see [IncrementalCallGraphBuilder]). */
+    internal var recorder: CallGraphRecorder? = null
+
     override fun visitElement(node: UElement): Boolean {
         // Eagerly add nodes to the graph, even if they have no edges;
         // edges may materialize during contextual call path analysis.
@@ -87,12 +90,18 @@ class CallGraphVisitor(
                 val calleeNode = getNode(callee)
                 callers.forEach { getNode(it).edges.add(Edge(calleeNode, /*call*/ null, DIRECT)) }
             }
+            recorder?.let { r -> callers.forEach { r.edge(it, callee, /*call*/ null, DIRECT) } }
         }
         return super.visitClass(node)
     }
 
     // Creates edges from caller to callee due to simple call expressions.
     override fun visitCallExpression(node: UCallExpression): Boolean {
+        addCallEdges(node)
+        return super.visitCallExpression(node)
+    }
+
+    internal fun addCallEdges(node: UCallExpression) {
 
         // Find surrounding context.
         val parent = node.getParentOfType(
@@ -112,25 +121,37 @@ class CallGraphVisitor(
                 // Implicit constructor callers due to class initializer.
                 val decl = parent as UDeclaration
                 if (decl.isStatic) // Ignore static initializers for now.
-                    return super.visitCallExpression(node)
+                    return
                 val containingClass = decl.getContainingUClass()
-                        ?: return super.visitCallExpression(node) // No containing class.
+                        ?: return // No containing class.
                 val ctors = containingClass.constructors()
                 // For default constructors we use the containing class as the caller.
                 if (ctors.isNotEmpty()) ctors else listOf(containingClass)
             }
             else -> {
                 // No caller found; this can happen for, e.g., annotation instantiations.
-                return super.visitCallExpression(node)
+                return
             }
         }
 
         val callerNodes = callers.map { mutableCallGraph.getNode(it) }
 
+        // Edges derived from receiver estimates depend on the whole program, so for those
+        // we only record that the call must be revisited rather than the edges themselves.
+        var evidenced = false
+
         fun addEdge(callee: UElement?, kind: Edge.Kind) {
             val calleeNode = callee?.let { mutableCallGraph.getNode(it) }
             val edge = Edge(calleeNode, node, kind)
             callerNodes.forEach { it.edges.add(edge) }
+            if (!evidenced) {
+                recorder?.let { r -> callers.forEach { r.edge(it, callee, node, kind) } }
+            }
+        }
+
+        fun markEvidenced() {
+            evidenced = true
+            recorder?.revisit(node)
         }
 
         val baseCallee = node.resolve().toUElementOfType<UMethod>()
@@ -139,14 +160,15 @@ class CallGraphVisitor(
                 // Found a call to a default constructor; create an edge to the instantiated class.
                 val constructedClass = node.classReference
                         ?.resolve()?.navigationElement.toUElement() as? UClass
-                        ?: return super.visitCallExpression(node) // Unable to resolve class.
+                        ?: return // Unable to resolve class.
                 addEdge(constructedClass, DIRECT)
             } else if (node.methodName == "invoke") {
                 // This is likely an invocation of a function expression, such as a Kotlin lambda.
+                markEvidenced()
                 addEdge(null, INVOKE)
                 node.getTargets(receiverEval).forEach { addEdge(it.element, TYPE_EVIDENCED) }
             }
-            return super.visitCallExpression(node)
+            return
         }
 
         val overrides = classHierarchy.allOverridesOf(baseCallee).toList()
@@ -168,6 +190,7 @@ class CallGraphVisitor(
             }
             else -> {
                 // Use static analysis to indicate which overriding methods are likely targets.
+                markEvidenced()
                 val evidencedTargets = node.getTargets(receiverEval).map { it.element }
                 evidencedTargets.forEach { addEdge(it, TYPE_EVIDENCED) }
                 // We don't want to lose the edge to the base callee.
@@ -180,8 +203,6 @@ class CallGraphVisitor(
                 }
             }
         }
-
-        return super.visitCallExpression(node)
     }
 
     private fun UClass.constructors() = methods.filter { it.isConstructor }
@@ -222,4 +243,13 @@ class CallGraphVisitor(
 
         override fun visitClass(node: UClass): Boolean = true // Avoid visiting nested classes.
     }
-}
\ No newline at end of file
+}
+
+/** Receives the edges added to a call graph by a [CallGraphVisitor]. */
+internal interface CallGraphRecorder {
+    /** An edge from [caller] to [callee] of type [kind], due to [call] if not null. */
+    fun edge(caller: UElement, callee: UElement?, call: UCallExpression?, kind: Edge.Kind)
+
+    /** The edges due to [call] depend on receiver estimates and cannot be recorded. */
+    fun revisit(call: UCallExpression)
+}
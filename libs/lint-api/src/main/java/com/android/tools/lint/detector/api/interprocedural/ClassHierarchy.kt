@@ -16,11 +16,15 @@
 
 package com.android.tools.lint.detector.api.interprocedural
 
+import com.android.tools.lint.detector.api.ClassHierarchyIndex
 import com.google.common.collect.HashMultimap
+import com.google.common.collect.Multimap
 import org.jetbrains.uast.UClass
 import org.jetbrains.uast.UMethod
 import org.jetbrains.uast.toUElementOfType
 import org.jetbrains.uast.visitor.AbstractUastVisitor
+import java.util.ArrayList
+import java.util.HashMap
 
 /** A precomputed class and overriding method hierarchy. */
 interface ClassHierarchy {
@@ -36,24 +40,67 @@ interface ClassHierarchy {
             directOverridesOf(superMethod).flatMap { allOverridesOf(it) + it }
 }
 
+/**
+ * A [ClassHierarchy] built incrementally. Transitive queries are answered from a
+ * [ClassHierarchyIndex], built when first needed after the hierarchy was last modified.
+ */
 class MutableClassHierarchy : ClassHierarchy {
     private val directInheritors = HashMultimap.create<UClass, UClass>()
     private val directOverrides = HashMultimap.create<UMethod, UMethod>()
+    private var classIndex: ClassHierarchyIndex<UClass>? = null
+    private var methodIndex: ClassHierarchyIndex<UMethod>? = null
 
     override fun directInheritorsOf(superClass: UClass) = directInheritors[superClass].asSequence()
 
     override fun directOverridesOf(superMethod: UMethod) = directOverrides[superMethod].asSequence()
 
-    fun addClass(subClass: UClass) {
-        subClass.supers
-                .mapNotNull { it.navigationElement.toUElementOfType<UClass>() }
-                .forEach { directInheritors.put(it, subClass) }
+    override fun allInheritorsOf(superClass: UClass): Sequence<UClass> {
+        val index = classIndex ?: directInheritors.toIndex().also { classIndex = it }
+        return index.getAllSubtypes(superClass).asSequence()
+    }
+
+    override fun allOverridesOf(superMethod: UMethod): Sequence<UMethod> {
+        val index = methodIndex ?: directOverrides.toIndex().also { methodIndex = it }
+        return index.getAllSubtypes(superMethod).asSequence()
     }
 
-    fun addMethod(subMethod: UMethod) {
-        subMethod.findSuperMethods()
+    /** Adds [subClass] to the hierarchy, returning its direct super classes. */
+    fun addClass(subClass: UClass): List<UClass> {
+        val supers = subClass.supers.mapNotNull { it.navigationElement.toUElementOfType<UClass>() }
+        supers.forEach { directInheritors.put(it, subClass) }
+        classIndex = null
+        return supers
+    }
+
+    /** Adds [subMethod] to the hierarchy, returning the methods it directly overrides. */
+    fun addMethod(subMethod: UMethod): List<UMethod> {
+        val supers = subMethod.findSuperMethods()
                 .mapNotNull { it.navigationElement.toUElementOfType<UMethod>() }
-                .forEach { directOverrides.put(it, subMethod) }
+        supers.forEach { directOverrides.put(it, subMethod) }
+        methodIndex = null
+        return supers
+    }
+
+    fun addInheritor(superClass: UClass, subClass: UClass) {
+        directInheritors.put(superClass, subClass)
+        classIndex = null
+    }
+
+    fun addOverride(superMethod: UMethod, subMethod: UMethod) {
+        directOverrides.put(superMethod, subMethod)
+        methodIndex = null
+    }
+
+    private fun <T : Any> Multimap<T, T>.toIndex(): ClassHierarchyIndex<T> {
+        val supers = HashMap<T, MutableList<T>>()
+        for ((superType, subType) in entries()) {
+            supers.getOrPut(subType) { ArrayList() }.add(superType)
+        }
+        val builder = ClassHierarchyIndex.builder<T>()
+        for ((subType, superTypes) in supers) {
+            builder.add(subType, superTypes)
+        }
+        return builder.build()
     }
 }
 
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.detector.api.interprocedural.CallGraph.Edge
+import com.android.tools.lint.detector.api.interprocedural.CallGraph.Node
+import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.TextRange
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiCompiledElement
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import org.jetbrains.uast.UCallExpression
+import org.jetbrains.uast.UClass
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.ULambdaExpression
+import org.jetbrains.uast.UMethod
+import org.jetbrains.uast.UastContext
+import java.lang.ref.WeakReference
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.IdentityHashMap
+
+/**
+ * A frozen [CallGraph] in compressed sparse row form. Nodes are numbered from 0, and
+ * the edges of node `n` are stored at indices `edgeOffsets[n] until edgeOffsets[n + 1]`
+ * of the primitive edge arrays. Methods, lambdas and calls are referenced through
+ * [UElementPointer]s, so the graph does not keep the PSI of the program alive; the
+ * [Node] and [Edge] views are created on demand.
+ *
+ * Create one from a fully built graph with [freeze].
+ */
+class CompactCallGraph private constructor(
+        private val targets: Array<UElementPointer>,
+        private val edgeOffsets: IntArray,
+        /** The target node of each edge, or [NO_NODE] for unresolved invocations */
+        private val edgeNodes: IntArray,
+        private val edgeKinds: ByteArray,
+        /** The index of the call of each edge in [calls], or [NO_CALL] */
+        private val edgeCalls: IntArray,
+        private val calls: Array<UElementPointer>,
+        private val ids: MutableMap<Any, Int>) : CallGraph {
+
+    /** Nodes looked up by [getNode] which are not part of the graph; these have no edges. */
+    private val extraTargets = ArrayList<UElementPointer>()
+    private val views = ArrayList<CompactNode?>()
+
+    /** The number of nodes in the graph. */
+    val size: Int get() = targets.size + extraTargets.size
+
+    /** The nodes of the graph, except for those whose elements can no longer be resolved */
+    override val nodes: Collection<Node>
+        get() = (0 until size).filter { pointer(it).element != null }.map { node(it) }
+
+    override fun getNode(element: UElement): Node {
+        val key = UElementPointer.keyOf(element)
+        val id = ids[key] ?: size.also {
+            extraTargets.add(UElementPointer.create(element))
+            ids[key] = it
+        }
+        return node(id)
+    }
+
+    /** Returns the id of the node for [element], or -1 if not part of the graph. */
+    fun getId(element: UElement): Int = ids[UElementPointer.keyOf(element)] ?: -1
+
+    /** Returns the view of the node with the given [id]. */
+    fun node(id: Int): Node {
+        while (views.size <= id) {
+            views.add(null)
+        }
+        return views[id] ?: CompactNode(id).also { views[id] = it }
+    }
+
+    /** Calls [consumer] with the target node of each edge of node [id] accepted by [filter]. */
+    inline fun forEachNeighbor(id: Int, filter: (Edge.Kind) -> Boolean, consumer: (Int) -> Unit) {
+        for (edge in edgeStart(id) until edgeEnd(id)) {
+            val target = edgeNode(edge)
+            if (target != NO_NODE && filter(edgeKind(edge))) {
+                consumer(target)
+            }
+        }
+    }
+
+    @PublishedApi internal fun edgeStart(id: Int) = if (id < targets.size) edgeOffsets[id] else 0
+
+    @PublishedApi internal fun edgeEnd(id: Int) = if (id < targets.size) edgeOffsets[id + 1] else 0
+
+    @PublishedApi internal fun edgeNode(edge: Int) = edgeNodes[edge]
+
+    @PublishedApi internal fun edgeKind(edge: Int) = KINDS[edgeKinds[edge].toInt()]
+
+    private fun pointer(id: Int): UElementPointer =
+            if (id < targets.size) targets[id] else extraTargets[id - targets.size]
+
+    private fun target(id: Int): CallTarget {
+        val element = pointer(id).element
+                ?: throw IllegalStateException("The element of node $id can no longer be found")
+        return when (element) {
+            is UMethod -> CallTarget.Method(element)
+            is ULambdaExpression -> CallTarget.Lambda(element)
+            is UClass -> CallTarget.DefaultCtor(element)
+            else -> throw Error("Unexpected UElement type ${element.javaClass}")
+        }
+    }
+
+    private inner class CompactNode(val id: Int) : Node {
+        override val target: CallTarget get() = target(id)
+
+        /**
+         * The edges of the node, except for those whose target or call can no longer be
+         * found, such as after the file declaring it was modified
+         */
+        override val edges: Collection<Edge>
+            get() = (edgeStart(id) until edgeEnd(id)).mapNotNull { edge ->
+                val node = edgeNodes[edge].let {
+                    when {
+                        it == NO_NODE -> null
+                        pointer(it).element == null -> return@mapNotNull null
+                        else -> node(it)
+                    }
+                }
+                val call = edgeCalls[edge].let {
+                    if (it == NO_CALL) null
+                    else calls[it].element as? UCallExpression ?: return@mapNotNull null
+                }
+                Edge(node, call, KINDS[edgeKinds[edge].toInt()])
+            }
+
+        override fun equals(other: Any?) =
+                other is CompactNode && other.id == id && other.graph === graph
+
+        override fun hashCode() = id
+
+        override fun toString() = shortName
+
+        private val graph: CompactCallGraph get() = this@CompactCallGraph
+    }
+
+    override fun toString() = "Compact call graph: $size nodes, ${edgeNodes.size} edges"
+
+    companion object {
+        const val NO_NODE = -1
+        private const val NO_CALL = -1
+        @PublishedApi internal val KINDS = Edge.Kind.values()
+
+        /** Creates a compact copy of the given graph. */
+        @JvmStatic
+        fun freeze(graph: CallGraph): CompactCallGraph {
+            val nodes = graph.nodes.toList()
+            val nodeIds = IdentityHashMap<Node, Int>(nodes.size)
+            val ids = HashMap<Any, Int>(nodes.size * 2)
+            val targets = Array(nodes.size) { i ->
+                val node = nodes[i]
+                nodeIds[node] = i
+                val pointer = UElementPointer.create(node.target.element)
+                ids[pointer.key] = i
+                pointer
+            }
+
+            val offsets = IntArray(nodes.size + 1)
+            nodes.forEachIndexed { i, node -> offsets[i + 1] = offsets[i] + node.edges.size }
+            val edgeCount = offsets[nodes.size]
+            val edgeNodes = IntArray(edgeCount)
+            val edgeKinds = ByteArray(edgeCount)
+            val edgeCalls = IntArray(edgeCount)
+            val callIds = HashMap<Any, Int>()
+            val calls = ArrayList<UElementPointer>()
+            var edge = 0
+            for (node in nodes) {
+                for ((target, call, kind) in node.edges) {
+                    edgeNodes[edge] = if (target == null) NO_NODE else nodeIds[target] ?: NO_NODE
+                    edgeKinds[edge] = kind.ordinal.toByte()
+                    edgeCalls[edge] = if (call == null) NO_CALL else {
+                        val key = UElementPointer.keyOf(call)
+                        callIds[key] ?: calls.size.also {
+                            calls.add(UElementPointer.create(call))
+                            callIds[key] = it
+                        }
+                    }
+                    edge++
+                }
+            }
+
+            return CompactCallGraph(targets, offsets, edgeNodes, edgeKinds, edgeCalls,
+                    calls.toTypedArray(), ids)
+        }
+    }
+}
+
+/** Returns a [CompactCallGraph] copy of this graph. */
+fun CallGraph.freeze(): CompactCallGraph = this as? CompactCallGraph ?: CompactCallGraph.freeze(this)
+
+/**
+ * A pointer to a UAST element which does not keep the element, and the PSI file it belongs to,
+ * alive: the element is re-resolved from its file and range when needed after having been
+ * garbage collected. Elements which are not part of a source file, such as library classes,
+ * are held directly.
+ */
+class UElementPointer private constructor(
+        /** A key identifying the element; equal for pointers to the same element */
+        val key: Any,
+        private val type: Class<out UElement>,
+        private val project: Project?,
+        private val file: VirtualFile?,
+        private val range: TextRange?,
+        private val strong: UElement?) {
+    private var weak: WeakReference<UElement>? = null
+
+    /**
+     * The element, or null if it can no longer be found in its file, such as when the
+     * file was modified or is no longer part of the project
+     */
+    val element: UElement?
+        get() {
+            strong?.let { return it }
+            weak?.get()?.let { return it }
+            val element = resolve() ?: return null
+            weak = WeakReference(element)
+            return element
+        }
+
+    private fun resolve(): UElement? {
+        val project = project ?: return null
+        val file = file ?: return null
+        val range = range ?: return null
+        val psiFile = PsiManager.getInstance(project).findFile(file) ?: return null
+        val uastContext = ServiceManager.getService(project, UastContext::class.java)
+                ?: return null
+        var psi = psiFile.findElementAt(range.startOffset)
+        while (psi != null && psi !is PsiFile) {
+            val psiRange = psi.textRange ?: break
+            if (psiRange == range) {
+                val element = uastContext.convertElementWithParent(psi, type)
+                if (element != null) {
+                    return element
+                }
+            } else if (psiRange.length > range.length) {
+                break
+            }
+            psi = psi.parent
+        }
+        return null
+    }
+
+    private data class SourceKey(
+            val file: VirtualFile,
+            val start: Int,
+            val end: Int,
+            val type: Class<out UElement>)
+
+    companion object {
+        /** Creates a pointer to the given element. */
+        @JvmStatic
+        fun create(element: UElement): UElementPointer {
+            val type = typeOf(element)
+            val key = keyOf(element)
+            if (key !is SourceKey) {
+                return UElementPointer(key, type, null, null, null, element)
+            }
+            val project = element.psi?.project
+            return UElementPointer(key, type, project, key.file,
+                    TextRange(key.start, key.end), null)
+        }
+
+        /** Returns the key a pointer to the given element would have (see [key]). */
+        @JvmStatic
+        fun keyOf(element: UElement): Any {
+            val psi = element.psi ?: return element
+            // Light elements (such as the Java view of Kotlin declarations) cannot be
+            // found again from their range, and several may share a navigation element
+            if (psi is PsiCompiledElement || psi.navigationElement !== psi) {
+                return psi
+            }
+            val file = psi.containingFile?.virtualFile ?: return psi
+            val range = psi.textRange ?: return psi
+            return SourceKey(file, range.startOffset, range.endOffset, typeOf(element))
+        }
+
+        private fun typeOf(element: UElement): Class<out UElement> = when (element) {
+            is UMethod -> UMethod::class.java
+            is ULambdaExpression -> ULambdaExpression::class.java
+            is UClass -> UClass::class.java
+            is UCallExpression -> UCallExpression::class.java
+            else -> element.javaClass
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.android.tools.lint.detector.api.interprocedural
 
+import com.google.common.cache.CacheBuilder
 import com.google.common.collect.HashMultimap
 import com.google.common.collect.Multimap
 import com.intellij.psi.LambdaUtil
@@ -44,6 +45,7 @@ import org.jetbrains.uast.getContainingUMethod
 import org.jetbrains.uast.toUElement
 import org.jetbrains.uast.toUElementOfType
 import org.jetbrains.uast.visitor.AbstractUastVisitor
+import java.util.HashMap
 import kotlin.reflect.full.memberFunctions
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.jvm.isAccessible
@@ -79,11 +81,21 @@ abstract class DispatchReceiverEvaluator(
     operator fun get(
             element: UElement,
             root: DispatchReceiverEvaluator = this): Collection<DispatchReceiver> {
+        val results = if (root === this) memo else null
+        results?.get(element)?.let { return it }
         val ours = getOwn(element, root)
         val theirs = delegate?.get(element, root) ?: emptyList()
-        return ours union theirs
+        val result = ours union theirs
+        results?.put(element, result)
+        return result
     }
 
+    /**
+     * Results of [get] for queries rooted at this evaluator, or null if results are not
+     * memoized (see [DispatchReceiverCache]).
+     */
+    protected open val memo: DispatchReceiverCache.Receivers? get() = null
+
     /** Evaluates potential receivers for `this` separately, since `this` can be implicit. */
     fun getForImplicitThis(): Collection<DispatchReceiver> {
         val ours = getOwnForImplicitThis()
@@ -97,6 +109,69 @@ abstract class DispatchReceiverEvaluator(
     protected abstract fun getOwnForImplicitThis(): Collection<DispatchReceiver>
 }
 
+/**
+ * Memoizes dispatch receiver evaluation over one contextual call graph analysis (see
+ * [ContextualNode.computeEdges]), where the same calls are evaluated repeatedly under
+ * different parameter contexts. Receivers are keyed by parameter context and the PSI of
+ * the element, since elements are often converted to UAST again (such as when resolving
+ * references), which creates new UAST elements for the same PSI. Method refinements
+ * (see [DispatchReceiver.Class.refineToTarget]) are keyed by the class and method PSI.
+ *
+ * The PSI keys are weak and the values soft, so the cache does not keep the PSI of the
+ * analyzed files alive. The analyzed code must not change while a cache is in use.
+ */
+class DispatchReceiverCache {
+    private val receivers = HashMap<ParamContext, Receivers>()
+    private val targets = newCache<PsiElement, MutableMap<PsiElement, Any>>()
+
+    /** Returns the memoized receivers of elements under the given parameter context. */
+    fun receiversFor(paramContext: ParamContext): Receivers =
+            receivers.getOrPut(paramContext) { Receivers() }
+
+    /** Memoizing version of [DispatchReceiver.Class.refineToTarget]. */
+    fun refineToTarget(receiver: DispatchReceiver.Class, method: UMethod): CallTarget.Method? {
+        val classPsi = receiver.element.psi ?: return receiver.refineToTarget(method)
+        val methodPsi = method.psi ?: return receiver.refineToTarget(method)
+        val classTargets = targets.getOrPut(methodPsi) { newCache() }
+        val cached = classTargets[classPsi]
+        if (cached != null) {
+            return cached as? CallTarget.Method
+        }
+        val target = receiver.refineToTarget(method)
+        classTargets[classPsi] = target ?: NO_TARGET
+        return target
+    }
+
+    /** The memoized receivers of elements under one parameter context. */
+    class Receivers {
+        private val receivers = newCache<Any, Entry>()
+
+        operator fun get(element: UElement): Collection<DispatchReceiver>? {
+            val entry = receivers[element.psi ?: element] ?: return null
+            // Different kinds of elements can share their PSI
+            return if (entry.type === element.javaClass) entry.receivers else null
+        }
+
+        fun put(element: UElement, result: Collection<DispatchReceiver>) {
+            receivers[element.psi ?: element] = Entry(element.javaClass, result)
+        }
+
+        private class Entry(val type: Class<*>, val receivers: Collection<DispatchReceiver>)
+    }
+
+    private companion object {
+        /** Marks methods which could not be refined */
+        val NO_TARGET = Any()
+
+        /**
+         * Creates a map with weak keys, compared by identity, and soft values: the values
+         * are only referenced by the cache, and refer to the UAST elements of their keys
+         */
+        fun <K : Any, V : Any> newCache(): MutableMap<K, V> =
+                CacheBuilder.newBuilder().weakKeys().softValues().build<K, V>().asMap()
+    }
+}
+
 /** Represents a potential call handler, such as a class or lambda expression. */
 sealed class DispatchReceiver(open val element: UElement) {
 
@@ -324,8 +399,13 @@ fun UCallExpression.getDispatchReceivers(
     return receiver?.let { receiverEval[it] } ?: receiverEval.getForImplicitThis()
 }
 
-/** Convert this call expression into a list of likely targets given a call dispatch receivers. */
-fun UCallExpression.getTarget(dispatchReceiver: DispatchReceiver): CallTarget? {
+/**
+ * Convert this call expression into a list of likely targets given a call dispatch receivers.
+ * Method refinements are memoized in [cache], if given.
+ */
+fun UCallExpression.getTarget(
+        dispatchReceiver: DispatchReceiver,
+        cache: DispatchReceiverCache? = null): CallTarget? {
 
     // TODO(kotlin-uast-cleanup): See comment in getDispatchReceivers.
     if (methodName == "invoke" && classReference != null) {
@@ -341,7 +421,11 @@ fun UCallExpression.getTarget(dispatchReceiver: DispatchReceiver): CallTarget? {
         return CallTarget.Method(method)
     fun isFunctionalCall() = method.psi == LambdaUtil.getFunctionalInterfaceMethod(receiverType)
     return when (dispatchReceiver) {
-        is DispatchReceiver.Class -> dispatchReceiver.refineToTarget(method)
+        is DispatchReceiver.Class -> {
+            if (cache != null)
+                cache.refineToTarget(dispatchReceiver, method)
+            else dispatchReceiver.refineToTarget(method)
+        }
         is DispatchReceiver.Functional -> {
             if (isFunctionalCall())
                 dispatchReceiver.toTarget()
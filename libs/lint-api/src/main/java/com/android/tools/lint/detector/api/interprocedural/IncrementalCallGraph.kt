@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.detector.api.interprocedural.CallGraph.Edge
+import com.google.common.hash.Hashing
+import com.intellij.openapi.project.Project
+import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiClass
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.search.GlobalSearchScope
+import org.jetbrains.uast.UCallExpression
+import org.jetbrains.uast.UClass
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.UFile
+import org.jetbrains.uast.ULambdaExpression
+import org.jetbrains.uast.UMethod
+import org.jetbrains.uast.toUElementOfType
+import org.jetbrains.uast.visitor.AbstractUastVisitor
+import java.io.File
+import java.io.IOException
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.LinkedHashMap
+
+/**
+ * Builds the [ClassHierarchy] and [CallGraph] used by interprocedural detectors, persisting
+ * the contribution of each source file in [cacheDir] such that subsequent runs only need to
+ * fully analyze the files that changed.
+ *
+ * Contributions are keyed by a hash of the file path and contents, and refer to classes and
+ * methods by signatures that are stable across runs (see [signature]) rather than by UAST
+ * elements; when reused they are mapped back to the elements of the current program. Class
+ * hierarchy edges are only reused when the declarations in the program (including the
+ * supertypes of each class, and the types of its fields and of the methods it returns) and
+ * the [environment] (such as the libraries it depends on) are unchanged, since a change in
+ * one file can change what the unchanged files override or call; call graph edges are
+ * only reused when in addition the class hierarchy is unchanged. Edges derived from dispatch
+ * receiver estimates depend on the whole program and are always recomputed; for those only
+ * the call sites are persisted.
+ *
+ * The builder is used in two passes over the source files, mirroring the non-incremental
+ * [ClassHierarchyVisitor] and [CallGraphVisitor]: first [addToClassHierarchy] for each file
+ * followed by [finishClassHierarchy], then [addToCallGraph] for each file followed by [save].
+ *
+ * **NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.**
+ */
+class IncrementalCallGraphBuilder(
+        private val cacheDir: File?,
+        private val environment: String = "",
+        private val conservative: Boolean = false) {
+    private val mutableClassHierarchy = MutableClassHierarchy()
+    val classHierarchy: ClassHierarchy get() = mutableClassHierarchy
+
+    private var callGraphVisitor: CallGraphVisitor? = null
+    private var frozenCallGraph: CompactCallGraph? = null
+    val callGraph: CallGraph
+        get() = frozenCallGraph ?: callGraphVisitor?.callGraph ?: MutableCallGraph()
+
+    /** All classes and methods in the program by signature; null for ambiguous signatures. */
+    private val declarations = HashMap<String, UElement?>()
+    /** Classes and methods outside the program looked up so far, by signature. */
+    private val libraryDeclarations = HashMap<String, UElement?>()
+    /** The signatures of all classes and methods in the program. */
+    private val signatures = HashMap<PsiElement, String>()
+    private val files = LinkedHashMap<String, FileState>()
+    private var declarationFingerprint = ""
+    private var hierarchyFingerprint = ""
+
+    /** Adds the classes and methods declared in [uFile] to the class hierarchy. */
+    fun addToClassHierarchy(file: File, contents: CharSequence, uFile: UFile) {
+        val path = file.path
+        val key = Hashing.sha1().newHasher()
+                .putString(path, Charsets.UTF_8)
+                .putChar('\n')
+                .putString(contents, Charsets.UTF_8)
+                .hash()
+                .toString()
+        val state = FileState(path, key, uFile.psi.project, readEntry(key))
+        files[path] = state
+
+        val collector = DeclarationCollector(path)
+        uFile.accept(collector)
+        state.classes = collector.classes
+        state.methods = collector.methods
+        state.shapes = collector.shapes
+        for ((signature, element) in collector.declarations) {
+            declarations[signature] = if (declarations.containsKey(signature)) null else element
+            element.psi?.let { signatures[it] = signature }
+        }
+
+        if (state.cached == null) {
+            computeClassHierarchy(state)
+        }
+    }
+
+    /**
+     * Completes the class hierarchy once all files have been added, reusing the cached
+     * contributions of the unchanged files when the declarations in the program allow it.
+     */
+    fun finishClassHierarchy() {
+        declarationFingerprint = fingerprint(environment, files.values.flatMap { it.shapes })
+
+        for (state in files.values) {
+            if (state.hierarchyEdges != null) {
+                continue
+            }
+            val cached = state.cached
+            if (cached != null && cached.declarationFingerprint == declarationFingerprint
+                    && applyClassHierarchy(cached, state.project)) {
+                state.hierarchyEdges = cached.hierarchyEdges
+                state.cacheable = true
+            } else {
+                computeClassHierarchy(state)
+            }
+        }
+
+        // Local signatures include offsets, which shift on unrelated edits
+        // within the same file; leave those out of the fingerprint
+        val edges = files.values.flatMap { state ->
+            state.hierarchyEdges.orEmpty().map { it.replace(LOCAL_OFFSET, "@") }
+        }
+        hierarchyFingerprint = fingerprint("$declarationFingerprint\t$conservative", edges)
+    }
+
+    /**
+     * Adds the call graph edges from [uFile], reusing the cached contribution for
+     * the file if it is still valid.
+     */
+    fun addToCallGraph(file: File, uFile: UFile, receiverEval: DispatchReceiverEvaluator) {
+        val visitor = callGraphVisitor
+                ?: CallGraphVisitor(receiverEval, classHierarchy, conservative)
+                        .also { callGraphVisitor = it }
+        val state = files[file.path]
+        if (state == null) {
+            uFile.accept(visitor)
+            return
+        }
+
+        val cached = state.cached
+        if (cached?.callGraphRecords != null
+                && cached.hierarchyFingerprint == hierarchyFingerprint
+                && applyCallGraph(state, cached.callGraphRecords, uFile, visitor)) {
+            state.callGraphRecords = cached.callGraphRecords
+            return
+        }
+
+        val recorder = FileRecorder(state.path)
+        visitor.recorder = recorder
+        try {
+            uFile.accept(visitor)
+        } finally {
+            visitor.recorder = null
+        }
+        state.callGraphRecords = if (recorder.cacheable) recorder.records else null
+        state.dirty = true
+    }
+
+    /**
+     * Converts the call graph, once all files have been added, into a [CompactCallGraph]
+     * and releases the graph it was built in
+     */
+    fun freezeCallGraph(): CompactCallGraph {
+        frozenCallGraph?.let { return it }
+        val frozen = callGraph.freeze()
+        frozenCallGraph = frozen
+        callGraphVisitor = null
+        return frozen
+    }
+
+    /**
+     * Writes the contributions of all changed files to the cache, and removes the stale
+     * contributions: those of files which no longer exist, and the previous contributions
+     * of the files analyzed in this run. The contributions of other files are kept, since
+     * a run can analyze a subset of the program (such as a single module).
+     */
+    fun save() {
+        val dir = cacheDir ?: return
+        if (!dir.isDirectory && !dir.mkdirs()) {
+            return
+        }
+
+        for (state in files.values) {
+            if (!state.dirty || !state.cacheable) {
+                continue
+            }
+            val hierarchyEdges = state.hierarchyEdges ?: continue
+            val sb = StringBuilder(100 * (hierarchyEdges.size + 3))
+            sb.append(KEY_VERSION).append('\t').append(VERSION).append('\n')
+            sb.append(KEY_PATH).append('\t').append(state.path).append('\n')
+            sb.append(KEY_DECLARATIONS).append('\t').append(declarationFingerprint).append('\n')
+            hierarchyEdges.forEach { sb.append(it).append('\n') }
+            val records = state.callGraphRecords
+            if (records != null) {
+                sb.append(KEY_HIERARCHY).append('\t').append(hierarchyFingerprint).append('\n')
+                records.forEach { sb.append(it).append('\n') }
+            }
+            try {
+                File(dir, state.key).writeText(sb.toString(), Charsets.UTF_8)
+            } catch (ignore: IOException) {
+                // The contribution is recomputed on the next run
+            }
+        }
+
+        val live = files.values.mapTo(HashSet()) { it.key }
+        for (entry in dir.listFiles() ?: return) {
+            if (entry.name in live) {
+                continue
+            }
+            val path = readPath(entry)
+            if (path == null || path in files || !File(path).exists()) {
+                entry.delete()
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the source file whose contribution is in the given cache
+     * [entry], or null if the entry is unreadable or was written by another version
+     */
+    private fun readPath(entry: File): String? {
+        try {
+            entry.bufferedReader(Charsets.UTF_8).use { reader ->
+                if (reader.readLine() != "$KEY_VERSION\t$VERSION") {
+                    return null
+                }
+                val line = reader.readLine() ?: return null
+                return if (line.startsWith("$KEY_PATH\t")) line.substringAfter('\t') else null
+            }
+        } catch (e: IOException) {
+            return null
+        }
+    }
+
+    private fun computeClassHierarchy(state: FileState) {
+        val edges = ArrayList<String>()
+        for (subClass in state.classes) {
+            for (superClass in mutableClassHierarchy.addClass(subClass)) {
+                edges.add(hierarchyEdge(KEY_CLASS, superClass, subClass, state))
+            }
+        }
+        for (subMethod in state.methods) {
+            for (superMethod in mutableClassHierarchy.addMethod(subMethod)) {
+                edges.add(hierarchyEdge(KEY_METHOD, superMethod, subMethod, state))
+            }
+        }
+        state.hierarchyEdges = edges
+        state.dirty = true
+    }
+
+    private fun hierarchyEdge(key: String, superElement: UElement, subElement: UElement,
+            state: FileState): String {
+        val superSignature = signatureOf(superElement, state.path)
+        val subSignature = signatureOf(subElement, state.path)
+        if (superSignature == null || subSignature == null) {
+            state.cacheable = false
+        }
+        return "$key\t$superSignature\t$subSignature"
+    }
+
+    private fun applyClassHierarchy(cached: Entry, project: Project): Boolean {
+        // Resolve all edges before modifying the hierarchy, such that
+        // we can fall back to computing the edges from scratch
+        val classes = ArrayList<Pair<UClass, UClass>>()
+        val methods = ArrayList<Pair<UMethod, UMethod>>()
+        for (edge in cached.hierarchyEdges) {
+            val fields = edge.split('\t')
+            if (fields.size != 3) {
+                return false
+            }
+            when (fields[0]) {
+                KEY_CLASS -> {
+                    val superClass = findDeclaration(fields[1], project) as? UClass
+                            ?: return false
+                    val subClass = declarations[fields[2]] as? UClass ?: return false
+                    classes.add(Pair(superClass, subClass))
+                }
+                KEY_METHOD -> {
+                    val superMethod = findDeclaration(fields[1], project) as? UMethod
+                            ?: return false
+                    val subMethod = declarations[fields[2]] as? UMethod ?: return false
+                    methods.add(Pair(superMethod, subMethod))
+                }
+                else -> return false
+            }
+        }
+
+        classes.forEach { (superClass, subClass) ->
+            mutableClassHierarchy.addInheritor(superClass, subClass)
+        }
+        methods.forEach { (superMethod, subMethod) ->
+            mutableClassHierarchy.addOverride(superMethod, subMethod)
+        }
+        return true
+    }
+
+    private fun applyCallGraph(
+            state: FileState,
+            records: List<String>,
+            uFile: UFile,
+            visitor: CallGraphVisitor): Boolean {
+        val local = LocalElementCollector(state.path)
+        uFile.accept(local)
+        val project = uFile.psi.project
+
+        fun findElement(signature: String): UElement? =
+                local.elements[signature] ?: findDeclaration(signature, project)
+
+        // Resolve all records before modifying the graph, such that
+        // we can fall back to visiting the file from scratch
+        val edges = ArrayList<Any>(records.size)
+        for (record in records) {
+            val fields = record.split('\t')
+            when (fields[0]) {
+                KEY_EDGE -> {
+                    if (fields.size != 5) {
+                        return false
+                    }
+                    val caller = local.elements[fields[1]] ?: return false
+                    val callee = if (fields[2].isEmpty()) null
+                    else findElement(fields[2]) ?: return false
+                    val kind = Edge.Kind.values().firstOrNull { it.name == fields[3] }
+                            ?: return false
+                    val call = if (fields[4].isEmpty()) null
+                    else local.calls[fields[4]] ?: return false
+                    edges.add(RecordedEdge(caller, callee, call, kind))
+                }
+                KEY_REVISIT -> {
+                    if (fields.size != 2) {
+                        return false
+                    }
+                    edges.add(local.calls[fields[1]] ?: return false)
+                }
+                else -> return false
+            }
+        }
+
+        val graph = visitor.mutableCallGraph
+        local.nodes.forEach { graph.getNode(it) }
+        for (edge in edges) {
+            when (edge) {
+                is RecordedEdge -> {
+                    val calleeNode = edge.callee?.let { graph.getNode(it) }
+                    graph.getNode(edge.caller).edges.add(Edge(calleeNode, edge.call, edge.kind))
+                }
+                is UCallExpression -> visitor.addCallEdges(edge)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Looks up the class or method with the given signature, which
+     * may be declared in a library rather than in the program
+     */
+    private fun findDeclaration(signature: String, project: Project): UElement? {
+        if (declarations.containsKey(signature)) {
+            return declarations[signature]
+        }
+        if (signature.isLocalSignature()) {
+            return null
+        }
+        if (libraryDeclarations.containsKey(signature)) {
+            return libraryDeclarations[signature]
+        }
+
+        val className = signature.substringBefore('#')
+        val psiClass = JavaPsiFacade.getInstance(project)
+                .findClass(className, GlobalSearchScope.allScope(project))
+        val element = when {
+            psiClass == null -> null
+            '#' !in signature -> psiClass.toUElementOfType<UClass>()
+            else -> psiClass.methods
+                    .firstOrNull { it.methodSignature(className) == signature }
+                    .toUElementOfType<UMethod>()
+        }
+        libraryDeclarations[signature] = element
+        return element
+    }
+
+    private fun signatureOf(element: UElement, path: String): String? =
+            element.psi?.let { signatures[it] } ?: element.signature(path)
+
+    private fun readEntry(key: String): Entry? {
+        val file = File(cacheDir ?: return null, key)
+        if (!file.isFile) {
+            return null
+        }
+
+        val lines = try {
+            file.readLines(Charsets.UTF_8)
+        } catch (e: IOException) {
+            return null
+        }
+        if (lines.size < 3 || lines[0] != "$KEY_VERSION\t$VERSION"
+                || !lines[1].startsWith("$KEY_PATH\t")
+                || !lines[2].startsWith("$KEY_DECLARATIONS\t")) {
+            return null
+        }
+
+        val declarationFingerprint = lines[2].substringAfter('\t')
+        val hierarchyIndex = lines.indexOfFirst { it.startsWith("$KEY_HIERARCHY\t") }
+        if (hierarchyIndex == -1) {
+            return Entry(declarationFingerprint, lines.subList(3, lines.size), null, null)
+        }
+        return Entry(declarationFingerprint,
+                lines.subList(3, hierarchyIndex),
+                lines[hierarchyIndex].substringAfter('\t'),
+                lines.subList(hierarchyIndex + 1, lines.size))
+    }
+
+    /** The contribution of a single source file to the class hierarchy and call graph. */
+    private class FileState(
+            val path: String,
+            val key: String,
+            val project: Project,
+            val cached: Entry?) {
+        var classes: List<UClass> = emptyList()
+        var methods: List<UMethod> = emptyList()
+        /** The shapes of the non-local declarations in the file, see [DeclarationCollector] */
+        var shapes: List<String> = emptyList()
+        var hierarchyEdges: List<String>? = null
+        var callGraphRecords: List<String>? = null
+        /** Whether all elements involved have signatures, such that the state can be cached */
+        var cacheable = true
+        /** Whether the state differs from the cached state */
+        var dirty = false
+    }
+
+    /** A persisted contribution of a single source file. */
+    private class Entry(
+            val declarationFingerprint: String,
+            val hierarchyEdges: List<String>,
+            val hierarchyFingerprint: String?,
+            val callGraphRecords: List<String>?)
+
+    private class RecordedEdge(
+            val caller: UElement,
+            val callee: UElement?,
+            val call: UCallExpression?,
+            val kind: Edge.Kind)
+
+    /** Records the call graph edges added while visiting a file. */
+    private inner class FileRecorder(private val path: String) : CallGraphRecorder {
+        val records = ArrayList<String>()
+        var cacheable = true
+
+        override fun edge(caller: UElement, callee: UElement?, call: UCallExpression?,
+                kind: Edge.Kind) {
+            val callerSignature = signatureOf(caller, path)
+            val calleeSignature = if (callee != null) signatureOf(callee, path) else ""
+            val callRange = if (call != null) call.rangeKey() else ""
+            if (callerSignature == null || calleeSignature == null || callRange == null) {
+                cacheable = false
+                return
+            }
+            records.add("$KEY_EDGE\t$callerSignature\t$calleeSignature\t${kind.name}\t$callRange")
+        }
+
+        override fun revisit(call: UCallExpression) {
+            val callRange = call.rangeKey()
+            if (callRange == null) {
+                cacheable = false
+                return
+            }
+            records.add("$KEY_REVISIT\t$callRange")
+        }
+    }
+
+    /**
+     * Collects the classes and methods declared in a file, by signature, along with the
+     * shapes of the non-local ones: their signatures together with the supertypes and
+     * field types of classes and the return types of methods, which the overrides and
+     * call targets in other files depend on.
+     */
+    private class DeclarationCollector(private val path: String) : AbstractUastVisitor() {
+        val declarations = ArrayList<Pair<String, UElement>>()
+        val classes = ArrayList<UClass>()
+        val methods = ArrayList<UMethod>()
+        val shapes = ArrayList<String>()
+
+        override fun visitClass(node: UClass): Boolean {
+            classes.add(node)
+            node.signature(path)?.let { signature ->
+                declarations.add(Pair(signature, node))
+                if (!signature.isLocalSignature()) {
+                    val supers = node.superTypes.joinToString(",") { it.canonicalText }
+                    val fields = node.fields.joinToString(",") {
+                        "${it.name}:${it.type.canonicalText}"
+                    }
+                    shapes.add("$signature\t$supers\t$fields")
+                }
+            }
+            return super.visitClass(node)
+        }
+
+        override fun visitMethod(node: UMethod): Boolean {
+            methods.add(node)
+            node.signature(path)?.let { signature ->
+                declarations.add(Pair(signature, node))
+                if (!signature.isLocalSignature()) {
+                    shapes.add("$signature\t${node.returnType?.canonicalText ?: ""}")
+                }
+            }
+            return super.visitMethod(node)
+        }
+    }
+
+    /**
+     * Collects the call graph nodes, classes and call expressions in a file, which is
+     * all that is needed to map a cached contribution back to the elements of the file.
+     */
+    private class LocalElementCollector(private val path: String) : AbstractUastVisitor() {
+        val nodes = ArrayList<UElement>()
+        val elements = HashMap<String, UElement>()
+        val calls = HashMap<String, UCallExpression?>()
+
+        override fun visitElement(node: UElement): Boolean {
+            when (node) {
+                is UMethod, is ULambdaExpression, is UClass -> {
+                    if (node !is UClass) {
+                        nodes.add(node)
+                    }
+                    node.signature(path)?.let { elements[it] = node }
+                }
+                is UCallExpression -> {
+                    // Two calls with the same range cannot be told apart
+                    node.rangeKey()?.let { calls[it] = if (calls.containsKey(it)) null else node }
+                }
+            }
+            return super.visitElement(node)
+        }
+    }
+
+    companion object {
+        /** Version of the file format; bump when the format changes */
+        private const val VERSION = "3"
+
+        private const val KEY_VERSION = "version"
+        private const val KEY_PATH = "path"
+        private const val KEY_DECLARATIONS = "declarations"
+        private const val KEY_HIERARCHY = "hierarchy"
+        private const val KEY_CLASS = "class"
+        private const val KEY_METHOD = "method"
+        private const val KEY_EDGE = "edge"
+        private const val KEY_REVISIT = "revisit"
+
+        private val LOCAL_OFFSET = Regex("@\\d+")
+
+        private fun fingerprint(prefix: String, lines: Collection<String>): String {
+            val hasher = Hashing.sha1().newHasher()
+            hasher.putString(prefix, Charsets.UTF_8).putChar('\n')
+            lines.sorted().forEach { hasher.putString(it, Charsets.UTF_8).putChar('\n') }
+            return hasher.hash().toString()
+        }
+
+        private fun String.isLocalSignature() = '@' in this
+
+        private fun UCallExpression.rangeKey(): String? =
+                psi?.textRange?.let { "${it.startOffset}:${it.endOffset}" }
+    }
+}
+
+/**
+ * Returns a signature for this class, method or lambda which is stable across runs as long as
+ * its declaration does not change, such as `pkg.Outer.Inner#method(int,java.lang.String)`.
+ * Elements without a qualified name (such as anonymous classes and lambdas) are identified
+ * by their offset in the file with the given [path].
+ */
+fun UElement.signature(path: String): String? = when (this) {
+    is UMethod -> containingClass?.classSignature(path)?.let { methodSignature(it) }
+    is UClass -> classSignature(path)
+    is ULambdaExpression -> psi?.textRange?.let { "$path@${it.startOffset}#lambda" }
+    else -> null
+}
+
+private fun PsiClass.classSignature(path: String): String? =
+        qualifiedName ?: textRange?.let { "$path@${it.startOffset}" }
+
+private fun PsiMethod.methodSignature(classSignature: String): String =
+        "$classSignature#$name(" +
+                parameterList.parameters.joinToString(",") { it.type.canonicalText } + ")"
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.detector.api.interprocedural.CallGraph.Edge
+import com.android.tools.lint.detector.api.interprocedural.CallGraph.Node
+import java.util.ArrayDeque
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.HashSet
+
+/**
+ * A [ContextualCallGraph] whose edges are computed on demand (see
+ * [ContextualNode.computeEdges]) and memoized, rather than computed up front for every
+ * reachable contextual node as in [buildContextualCallGraph].
+ *
+ * Edges are only followed into nodes in [relevant], typically the nodes which may reach
+ * the sinks of a search (see [nodesReaching]); edges into other nodes are dropped, and
+ * added back if their target is later marked relevant with [markRelevant]. The number of
+ * materialized contextual nodes is capped at [maxNodes], and the number of parameter
+ * contexts per node at [maxContextsPerNode], beyond which calls are specialized on the
+ * empty parameter context instead. Searches of a graph which hit these budgets may miss
+ * paths; see [droppedEdgeCount] and [generalizedEdgeCount].
+ */
+class LazyContextualCallGraph(
+        private val callGraph: CallGraph,
+        private val receiverEval: IntraproceduralDispatchReceiverEvaluator,
+        relevant: Collection<Node>,
+        val maxNodes: Int = DEFAULT_MAX_NODES,
+        val maxContextsPerNode: Int = DEFAULT_MAX_CONTEXTS_PER_NODE
+) : ContextualCallGraph {
+    internal val graph = MutableContextualCallGraph()
+    private val relevant = HashSet<Node>(relevant)
+    private val contextCounts = HashMap<Node, Int>()
+    private val cache = DispatchReceiverCache()
+    /** Edges dropped because their targets were not relevant, by target node. */
+    private val dropped = HashMap<Node, MutableList<Pair<ContextualNode, ContextualEdge>>>()
+
+    /**
+     * The number of edges (and exploration sources) dropped because the graph already
+     * had [maxNodes] nodes, such that searches don't follow them.
+     */
+    var droppedEdgeCount = 0
+        private set
+
+    /**
+     * The number of edges specialized on the empty parameter context because their
+     * targets already had [maxContextsPerNode] contexts, such that searches follow them
+     * with less precise dispatch receivers.
+     */
+    var generalizedEdgeCount = 0
+        private set
+
+    /** Whether the budgets were hit, such that searches of this graph may miss paths. */
+    val isTruncated: Boolean get() = droppedEdgeCount > 0 || generalizedEdgeCount > 0
+
+    /** The contextual nodes materialized so far. */
+    override val contextualNodes: Collection<ContextualNode> get() = graph.contextualNodes
+
+    override fun outEdges(n: ContextualNode): Collection<ContextualEdge> {
+        expand(graph.getId(n))
+        return graph.outEdges(n)
+    }
+
+    /** Returns the edges into [n] among the edges materialized so far. */
+    override fun inEdges(n: ContextualNode): Collection<ContextualEdge> = graph.inEdges(n)
+
+    /**
+     * Materializes the contextual nodes reachable from [nodes] specialized on the empty
+     * parameter context, which discovers the parameter contexts these nodes pass along
+     * (see [buildContextualCallGraph]).
+     */
+    fun explore(nodes: Collection<Node>) {
+        val sources = nodes
+                .filter { it in relevant }
+                .map { ContextualNode(it, ParamContext.EMPTY) }
+                .filter { it in graph || admit(it) }
+                .map { graph.getId(it) }
+        searchForPaths(
+                sources = sources.toIntArray(),
+                isSink = { false },
+                forEachNeighbor = { id, consumer ->
+                    expand(id)
+                    graph.outEdgeIds(id).forEach { consumer(graph.edgeTarget(it)) }
+                })
+    }
+
+    /** Marks [nodes] as relevant, restoring the edges into them dropped so far. */
+    fun markRelevant(nodes: Collection<Node>) {
+        for (node in nodes) {
+            if (!relevant.add(node)) {
+                continue
+            }
+            val edges = dropped.remove(node) ?: continue
+            for ((source, edge) in edges) {
+                limit(edge)?.let { graph.addOutEdges(source, listOf(it)) }
+            }
+        }
+    }
+
+    /** Computes the out edges of the node with the given id, unless already done. */
+    internal fun expand(id: Int) {
+        val n = graph.getNode(id)
+        if (graph.hasOutEdges(n)) {
+            return
+        }
+        val edges = n.computeEdges(callGraph, receiverEval, cache).mapNotNull { edge ->
+            val target = edge.contextualNode.node
+            if (target in relevant) {
+                limit(edge)
+            } else {
+                dropped.getOrPut(target) { ArrayList() }.add(Pair(n, edge))
+                null
+            }
+        }
+        graph.setOutEdges(n, edges)
+    }
+
+    /** Applies the node and context budgets to [edge]. */
+    private fun limit(edge: ContextualEdge): ContextualEdge? {
+        val target = edge.contextualNode
+        if (target in graph) {
+            return edge
+        }
+        val count = contextCounts[target.node] ?: 0
+        if (count >= maxContextsPerNode && target.paramContext != ParamContext.EMPTY) {
+            val generalized = ContextualNode(target.node, ParamContext.EMPTY)
+            if (generalized in graph || admit(generalized)) {
+                generalizedEdgeCount++
+                return ContextualEdge(generalized, edge.cause)
+            }
+            return null
+        }
+        return if (admit(target)) edge else null
+    }
+
+    /**
+     * Adds [n] to the graph if within budget, returning false (and counting the edge into
+     * it as dropped) otherwise.
+     */
+    private fun admit(n: ContextualNode): Boolean {
+        if (graph.size >= maxNodes) {
+            droppedEdgeCount++
+            return false
+        }
+        contextCounts[n.node] = (contextCounts[n.node] ?: 0) + 1
+        graph.getId(n)
+        return true
+    }
+
+    companion object {
+        const val DEFAULT_MAX_NODES = 200_000
+        const val DEFAULT_MAX_CONTEXTS_PER_NODE = 100
+    }
+}
+
+/**
+ * Returns the nodes which may reach a node for which [isTarget] returns true in the
+ * contextual graph derived from this graph. This is an over-approximation: base method
+ * calls and function invocations may be refined to arbitrary targets during contextual
+ * analysis, so nodes with such edges are treated as reaching targets.
+ */
+fun CallGraph.nodesReaching(isTarget: (Node) -> Boolean): Set<Node> {
+    val callers = HashMap<Node, MutableList<Node>>()
+    val result = HashSet<Node>()
+    val queue = ArrayDeque<Node>()
+    for (node in nodes) {
+        var wildcard = false
+        for ((callee, call, kind) in node.edges) {
+            if ((kind == Edge.Kind.BASE || kind == Edge.Kind.INVOKE) && call != null) {
+                wildcard = true
+            }
+            if (callee != null) {
+                callers.getOrPut(callee) { ArrayList() }.add(node)
+            }
+        }
+        if ((wildcard || isTarget(node)) && result.add(node)) {
+            queue.add(node)
+        }
+    }
+    while (!queue.isEmpty()) {
+        val node = queue.removeFirst()
+        callers[node]?.forEach { if (result.add(it)) queue.add(it) }
+    }
+    return result
+}
@@ -17,22 +17,47 @@
 package com.android.tools.lint.checks;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.lint.client.api.IssueRegistry;
 import com.android.tools.lint.detector.api.Issue;
 import com.android.tools.lint.detector.api.Scope;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 /** Registry which provides a list of checks to be performed on an Android project */
 public class BuiltinIssueRegistry extends IssueRegistry {
-    private static final List<Issue> sIssues;
+    private static volatile List<Issue> sIssues;
+
+    /**
+     * Map from issue id to the detector class name and issue field name, as
+     * read from {@link #INDEX_FILE}
+     */
+    private static volatile Map<String, String[]> sIndex;
+
+    /** Name of the resource file listing the builtin issues */
+    @VisibleForTesting
+    static final String INDEX_FILE = "builtin-issues.txt";
 
     static final int INITIAL_CAPACITY = 313;
 
-    static {
+    /** The issues in this registry, if restricted to a subset of the builtin issues */
+    @Nullable
+    private final List<Issue> restrictedIssues;
+
+    @NonNull
+    private static List<Issue> createIssueList() {
         List<Issue> issues = new ArrayList<>(INITIAL_CAPACITY);
 
         issues.add(AccessibilityDetector.ISSUE);
@@ -349,19 +374,141 @@ public class BuiltinIssueRegistry extends IssueRegistry {
         issues.add(WrongLocationDetector.ISSUE);
         issues.add(WrongThreadInterproceduralDetector.Companion.getISSUE());
 
-        sIssues = Collections.unmodifiableList(issues);
+        return Collections.unmodifiableList(issues);
     }
 
     /**
      * Constructs a new {@link BuiltinIssueRegistry}
      */
     public BuiltinIssueRegistry() {
+        restrictedIssues = null;
+    }
+
+    /**
+     * Constructs a new {@link BuiltinIssueRegistry} which only provides the
+     * builtin issues with the given ids. Unlike the default registry, this
+     * only initializes the detector classes for the given issues, which
+     * considerably speeds up startup when checking just a few issues.
+     * Ids which do not correspond to builtin issues (for example custom
+     * issues) are ignored. The issue lookups of this registry are cached
+     * separately from those of the other registries.
+     *
+     * @param ids the ids of the issues to include
+     */
+    public BuiltinIssueRegistry(@NonNull Collection<String> ids) {
+        super(false);
+        List<Issue> issues = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Issue issue = loadIssue(id);
+            if (issue != null) {
+                issues.add(issue);
+            }
+        }
+        restrictedIssues = Collections.unmodifiableList(issues);
+    }
+
+    /**
+     * Returns true if this registry only provides a subset of the builtin issues
+     * (see {@link #BuiltinIssueRegistry(Collection)}). Use {@link #isBuiltinIssueId}
+     * rather than {@link #isIssueId} to check whether an id is valid.
+     */
+    public boolean isRestricted() {
+        return restrictedIssues != null;
     }
 
     @NonNull
     @Override
     public List<Issue> getIssues() {
-        return sIssues;
+        if (restrictedIssues != null) {
+            return restrictedIssues;
+        }
+
+        List<Issue> issues = sIssues;
+        if (issues == null) {
+            synchronized (BuiltinIssueRegistry.class) {
+                issues = sIssues;
+                if (issues == null) {
+                    sIssues = issues = createIssueList();
+                }
+            }
+        }
+
+        return issues;
+    }
+
+    /**
+     * Returns true if the given id corresponds to a builtin issue. Unlike
+     * {@link #isIssueId(String)} this does not initialize any detector classes.
+     *
+     * @param id the id to look up
+     * @return true if this is the id of a builtin issue
+     */
+    public static boolean isBuiltinIssueId(@NonNull String id) {
+        return getIndex().containsKey(id);
+    }
+
+    /**
+     * Looks up the builtin issue for the given id via the index, initializing
+     * only the corresponding detector class
+     */
+    @Nullable
+    private static Issue loadIssue(@NonNull String id) {
+        String[] entry = getIndex().get(id);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Class<?> detectorClass = Class.forName(entry[0], true,
+                    BuiltinIssueRegistry.class.getClassLoader());
+            // Kotlin detectors store companion object properties in private static fields
+            Field field = detectorClass.getDeclaredField(entry[1]);
+            field.setAccessible(true);
+            return (Issue) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    @NonNull
+    static Map<String, String[]> getIndex() {
+        Map<String, String[]> index = sIndex;
+        if (index == null) {
+            synchronized (BuiltinIssueRegistry.class) {
+                index = sIndex;
+                if (index == null) {
+                    sIndex = index = readIndex();
+                }
+            }
+        }
+
+        return index;
+    }
+
+    @NonNull
+    private static Map<String, String[]> readIndex() {
+        Map<String, String[]> index = Maps.newLinkedHashMapWithExpectedSize(INITIAL_CAPACITY);
+        URL url = BuiltinIssueRegistry.class.getResource(INDEX_FILE);
+        if (url == null) {
+            return index;
+        }
+        String packagePrefix = BuiltinIssueRegistry.class.getPackage().getName() + '.';
+        try {
+            for (String line : Resources.readLines(url, Charsets.UTF_8)) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> fields = Splitter.on('\t').splitToList(line);
+                if (fields.size() == 3) {
+                    index.put(fields.get(0),
+                            new String[] { packagePrefix + fields.get(1), fields.get(2) });
+                }
+            }
+        } catch (IOException ignore) {
+            // Fall back to the full issue list
+        }
+
+        return index;
     }
 
     @Override
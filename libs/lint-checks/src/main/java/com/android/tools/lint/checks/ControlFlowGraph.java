@@ -19,9 +19,10 @@ package com.android.tools.lint.checks;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,9 +58,21 @@ import org.objectweb.asm.tree.analysis.BasicInterpreter;
  * method call throwing a runtime exception.
  */
 public class ControlFlowGraph {
-    /** Map from instructions to nodes */
-    private Map<AbstractInsnNode, Node> mNodeMap;
+    /** Nodes by index of their instruction in the method */
+    private Node[] mInstructionNodes;
+    /** All the nodes, in creation order; the position of each node is its id */
+    private List<Node> mNodes;
     private MethodNode mMethod;
+    /**
+     * For each node id, the ids of the nodes reachable from that node, if computed.
+     * Rows of the reachability matrix are only computed for the nodes queried.
+     */
+    private BitSet[] mReachable;
+    /** The id of the immediate dominator of each node, or -1 if not computed or unreachable */
+    private int[] mDominators;
+    /** The pre and post order numbers of each node in the dominator tree */
+    private int[] mDominatorPre;
+    private int[] mDominatorPost;
 
     /**
      * Creates a new {@link ControlFlowGraph} and populates it with the flow
@@ -84,8 +97,10 @@ public class ControlFlowGraph {
             @NonNull MethodNode method) throws AnalyzerException {
         final ControlFlowGraph graph = initial != null ? initial : new ControlFlowGraph();
         final InsnList instructions = method.instructions;
-        graph.mNodeMap = Maps.newHashMapWithExpectedSize(instructions.size());
+        graph.mInstructionNodes = new Node[instructions.size()];
+        graph.mNodes = new ArrayList<>(instructions.size());
         graph.mMethod = method;
+        graph.invalidate();
 
         // Create a flow control graph using ASM5's analyzer. According to the ASM 4 guide
         // (download.forge.objectweb.org/asm/asm4-guide.pdf) there are faster ways to construct
@@ -122,53 +137,260 @@ public class ControlFlowGraph {
 
     /**
      * Checks whether there is a path from the given source node to the given
-     * destination node
+     * destination node. The nodes reachable from each source node are computed
+     * once, so repeated queries from the same node take constant time.
      */
-    @SuppressWarnings("MethodMayBeStatic")
-    private boolean isConnected(@NonNull Node from,
-            @NonNull Node to, @NonNull Set<Node> seen) {
+    public boolean isConnected(@NonNull Node from, @NonNull Node to) {
         if (from == to) {
             return true;
-        } else if (seen.contains(from)) {
+        } else if (from.mId == -1 || to.mId == -1) {
+            // Not part of this graph
             return false;
         }
-        seen.add(from);
+        return getReachable(from.mId).get(to.mId);
+    }
 
-        List<Node> successors = from.successors;
-        List<Node> exceptions = from.exceptions;
-        if (exceptions != null) {
-            for (Node successor : exceptions) {
-                if (isConnected(successor, to, seen)) {
-                    return true;
-                }
-            }
+    @NonNull
+    private BitSet getReachable(int id) {
+        if (mReachable == null) {
+            mReachable = new BitSet[mNodes.size()];
         }
-
-        if (successors != null) {
-            for (Node successor : successors) {
-                if (isConnected(successor, to, seen)) {
-                    return true;
+        BitSet reachable = mReachable[id];
+        if (reachable == null) {
+            reachable = new BitSet(mNodes.size());
+            int[] queue = new int[mNodes.size()];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = id;
+            reachable.set(id);
+            while (head < tail) {
+                Node node = mNodes.get(queue[head++]);
+                for (Node successor : node.exceptions) {
+                    if (!reachable.get(successor.mId)) {
+                        reachable.set(successor.mId);
+                        queue[tail++] = successor.mId;
+                    }
+                }
+                for (Node successor : node.successors) {
+                    if (!reachable.get(successor.mId)) {
+                        reachable.set(successor.mId);
+                        queue[tail++] = successor.mId;
+                    }
                 }
             }
+            mReachable[id] = reachable;
         }
+        return reachable;
+    }
 
-        return false;
+    /**
+     * Checks whether there is a path from the given instruction to the given
+     * instruction node
+     */
+    public boolean isConnected(@NonNull AbstractInsnNode from, @NonNull AbstractInsnNode to) {
+        return isConnected(getNode(from), getNode(to));
     }
 
     /**
-     * Checks whether there is a path from the given source node to the given
-     * destination node
+     * Returns the immediate dominator of the given node: the closest node which
+     * is part of every path from the first instruction of the method to the
+     * given node. Both normal and exception flow are considered.
+     *
+     * @param node the node to look up the immediate dominator for
+     * @return the immediate dominator, or null for the first instruction, or for
+     *         nodes which cannot be reached from the first instruction
      */
-    public boolean isConnected(@NonNull Node from, @NonNull Node to) {
-        return isConnected(from, to, Sets.newIdentityHashSet());
+    @Nullable
+    public Node getImmediateDominator(@NonNull Node node) {
+        if (node.mId == -1) {
+            return null;
+        }
+        computeDominators();
+        int dominator = mDominators[node.mId];
+        return dominator == -1 || dominator == node.mId ? null : mNodes.get(dominator);
     }
 
     /**
-     * Checks whether there is a path from the given instruction to the given
-     * instruction node
+     * Checks whether the given dominator node is part of every path from the first
+     * instruction of the method to the given node. Every reachable node dominates
+     * itself.
+     *
+     * @param dominator the potential dominator
+     * @param node the node to check
+     * @return true if {@code dominator} dominates {@code node}
      */
-    public boolean isConnected(@NonNull AbstractInsnNode from, @NonNull AbstractInsnNode to) {
-        return isConnected(getNode(from), getNode(to));
+    public boolean dominates(@NonNull Node dominator, @NonNull Node node) {
+        if (dominator.mId == -1 || node.mId == -1) {
+            return false;
+        }
+        computeDominators();
+        if (mDominators[dominator.mId] == -1 || mDominators[node.mId] == -1) {
+            return false;
+        }
+        return mDominatorPre[dominator.mId] <= mDominatorPre[node.mId]
+                && mDominatorPost[node.mId] <= mDominatorPost[dominator.mId];
+    }
+
+    /**
+     * Computes the dominator tree, using the iterative algorithm in "A Simple, Fast
+     * Dominance Algorithm" by Cooper, Harvey and Kennedy
+     */
+    private void computeDominators() {
+        if (mDominators != null) {
+            return;
+        }
+        int n = mNodes.size();
+        int[] dominators = new int[n];
+        Arrays.fill(dominators, -1);
+        mDominators = dominators;
+        mDominatorPre = new int[n];
+        mDominatorPost = new int[n];
+        AbstractInsnNode first = mMethod.instructions.getFirst();
+        Node entry = first != null ? mInstructionNodes[mMethod.instructions.indexOf(first)] : null;
+        if (entry == null) {
+            return;
+        }
+
+        // Post order numbering of the nodes reachable from the entry
+        int[] postOrder = new int[n]; // node ids by post order number
+        int[] postNumber = new int[n];
+        int count = 0;
+        Arrays.fill(postNumber, -1);
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        int depth = 0;
+        stack[depth++] = entry.mId;
+        visited[entry.mId] = true;
+        while (depth > 0) {
+            int id = stack[depth - 1];
+            Node node = mNodes.get(id);
+            int index = next[id]++;
+            int exceptionCount = node.exceptions.size();
+            if (index < exceptionCount + node.successors.size()) {
+                Node successor = index < exceptionCount
+                        ? node.exceptions.get(index)
+                        : node.successors.get(index - exceptionCount);
+                if (!visited[successor.mId]) {
+                    visited[successor.mId] = true;
+                    stack[depth++] = successor.mId;
+                }
+            } else {
+                postNumber[id] = count;
+                postOrder[count++] = id;
+                depth--;
+            }
+        }
+
+        // Predecessors among the reachable nodes
+        int[] predecessorCounts = new int[n];
+        for (Node node : mNodes) {
+            if (postNumber[node.mId] != -1) {
+                for (Node successor : node.exceptions) {
+                    predecessorCounts[successor.mId]++;
+                }
+                for (Node successor : node.successors) {
+                    predecessorCounts[successor.mId]++;
+                }
+            }
+        }
+        int[][] predecessors = new int[n][];
+        for (int id = 0; id < n; id++) {
+            predecessors[id] = new int[predecessorCounts[id]];
+        }
+        Arrays.fill(predecessorCounts, 0);
+        for (Node node : mNodes) {
+            if (postNumber[node.mId] != -1) {
+                for (Node successor : node.exceptions) {
+                    predecessors[successor.mId][predecessorCounts[successor.mId]++] = node.mId;
+                }
+                for (Node successor : node.successors) {
+                    predecessors[successor.mId][predecessorCounts[successor.mId]++] = node.mId;
+                }
+            }
+        }
+
+        dominators[entry.mId] = entry.mId;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // Reverse post order, skipping the entry
+            for (int i = count - 2; i >= 0; i--) {
+                int id = postOrder[i];
+                int dominator = -1;
+                for (int predecessor : predecessors[id]) {
+                    if (dominators[predecessor] == -1) {
+                        continue;
+                    }
+                    if (dominator == -1) {
+                        dominator = predecessor;
+                    } else {
+                        // Intersect
+                        int a = predecessor;
+                        int b = dominator;
+                        while (a != b) {
+                            while (postNumber[a] < postNumber[b]) {
+                                a = dominators[a];
+                            }
+                            while (postNumber[b] < postNumber[a]) {
+                                b = dominators[b];
+                            }
+                        }
+                        dominator = a;
+                    }
+                }
+                if (dominators[id] != dominator) {
+                    dominators[id] = dominator;
+                    changed = true;
+                }
+            }
+        }
+
+        // Pre and post order numbering of the dominator tree, for constant time queries
+        int[] childCounts = new int[n];
+        for (int i = 0; i < count; i++) {
+            int id = postOrder[i];
+            if (id != entry.mId) {
+                childCounts[dominators[id]]++;
+            }
+        }
+        int[][] children = new int[n][];
+        for (int id = 0; id < n; id++) {
+            children[id] = new int[childCounts[id]];
+        }
+        Arrays.fill(childCounts, 0);
+        for (int i = 0; i < count; i++) {
+            int id = postOrder[i];
+            if (id != entry.mId) {
+                int parent = dominators[id];
+                children[parent][childCounts[parent]++] = id;
+            }
+        }
+        Arrays.fill(next, 0);
+        int preCount = 0;
+        int postCount = 0;
+        depth = 0;
+        stack[depth++] = entry.mId;
+        mDominatorPre[entry.mId] = preCount++;
+        while (depth > 0) {
+            int id = stack[depth - 1];
+            if (next[id] < children[id].length) {
+                int child = children[id][next[id]++];
+                mDominatorPre[child] = preCount++;
+                stack[depth++] = child;
+            } else {
+                mDominatorPost[id] = postCount++;
+                depth--;
+            }
+        }
+    }
+
+    /** Discards the reachability and dominator information, after the graph changed */
+    private void invalidate() {
+        mReachable = null;
+        mDominators = null;
+        mDominatorPre = null;
+        mDominatorPost = null;
     }
 
     /** A {@link Node} is a node in the control flow graph for a method, pointing to
@@ -184,6 +406,9 @@ public class ControlFlowGraph {
         /** A tag for use during depth-first-search iteration of the graph etc */
         public int visit;
 
+        /** The id of this node in its graph, or -1 if not part of a graph */
+        private int mId = -1;
+
         /**
          * Constructs a new control graph node
          *
@@ -263,6 +488,7 @@ public class ControlFlowGraph {
     /** Adds an exception flow to this graph */
     protected void add(@NonNull AbstractInsnNode from, @NonNull AbstractInsnNode to) {
         getNode(from).addSuccessor(getNode(to));
+        invalidate();
     }
 
     /** Adds an exception flow to this graph */
@@ -281,6 +507,7 @@ public class ControlFlowGraph {
         // Add exception edges for all method calls in the range
         AbstractInsnNode curr = start;
         Node handlerNode = getNode(tcb.handler);
+        invalidate();
         while (curr != end && curr != null) {
             // A method can throw can exception, or a throw instruction directly
             if (curr.getType() == AbstractInsnNode.METHOD_INSN
@@ -306,10 +533,14 @@ public class ControlFlowGraph {
      */
     @NonNull
     public Node getNode(@NonNull AbstractInsnNode instruction) {
-        Node node = mNodeMap.get(instruction);
+        int index = mMethod.instructions.indexOf(instruction);
+        Node node = mInstructionNodes[index];
         if (node == null) {
             node = new Node(instruction);
-            mNodeMap.put(instruction, node);
+            node.mId = mNodes.size();
+            mNodes.add(node);
+            mInstructionNodes[index] = node;
+            invalidate();
         }
 
         return node;
@@ -330,18 +561,15 @@ public class ControlFlowGraph {
         if (start != null) {
             curr = start.instruction;
         } else {
-            if (mNodeMap.isEmpty()) {
+            if (mNodes.isEmpty()) {
                 return "<empty>";
             } else {
-                curr = mNodeMap.keySet().iterator().next();
-                while (curr.getPrevious() != null) {
-                    curr = curr.getPrevious();
-                }
+                curr = mMethod.instructions.getFirst();
             }
         }
 
         while (curr != null) {
-            Node node = mNodeMap.get(curr);
+            Node node = mInstructionNodes[mMethod.instructions.indexOf(curr)];
             if (node != null) {
                 sb.append(node.toString(true));
             }
@@ -398,11 +626,12 @@ public class ControlFlowGraph {
         AbstractInsnNode instruction = mMethod.instructions.getFirst();
 
         // Special start node
-        sb.append("  start -> ").append(getId(mNodeMap.get(instruction))).append(";\n");
+        sb.append("  start -> ").append(getId(mInstructionNodes[mMethod.instructions.indexOf(instruction)]))
+                .append(";\n");
         sb.append("  start [shape=plaintext];\n");
 
         while (instruction != null) {
-            Node node = mNodeMap.get(instruction);
+            Node node = mInstructionNodes[mMethod.instructions.indexOf(instruction)];
             if (node != null) {
                 if (node.successors != null) {
                     for (Node to : node.successors) {
@@ -433,7 +662,7 @@ public class ControlFlowGraph {
 
         // Labels
         sb.append("\n");
-        for (Node node : mNodeMap.values()) {
+        for (Node node : mNodes) {
             instruction = node.instruction;
             sb.append("  ").append(getId(node)).append(" ");
             sb.append("[label=\"").append(dotDescribe(node)).append("\"");
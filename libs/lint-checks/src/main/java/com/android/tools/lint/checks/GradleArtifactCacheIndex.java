@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.repository.GradleVersion;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * An index of the artifact versions available in the local Gradle artifact cache
+ * ($GRADLE_USER_HOME/caches/modules-2/files-2.1), used by the {@link GradleDetector}
+ * to look for newer versions of dependencies.
+ * <p>
+ * The index maps each {@code group:artifact} to the version folders found in the
+ * cache, along with the modification time of the artifact folder. It is persisted
+ * in the lint cache directory, and an entry is only recomputed when the timestamp
+ * of its artifact folder changes (which happens when Gradle downloads a new version),
+ * so repeated lookups cost a single stat rather than a directory listing.
+ */
+class GradleArtifactCacheIndex {
+    /** Name of the index file in the lint cache directory */
+    static final String FILE_NAME = "gradle-artifact-index.txt";
+
+    /** Version of the file format; bump when the format changes */
+    private static final String VERSION = "1";
+
+    private final File cacheHome;
+    @Nullable private final File indexFile;
+    private final Map<String, Entry> entries;
+    private boolean modified;
+
+    private GradleArtifactCacheIndex(@NonNull File cacheHome, @Nullable File indexFile,
+            @NonNull Map<String, Entry> entries) {
+        this.cacheHome = cacheHome;
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates an index for the given artifact cache, initialized from the given
+     * index file if it exists and was computed for the same artifact cache
+     *
+     * @param cacheHome the Gradle artifact cache directory
+     * @param indexFile the file to persist the index to, or null to keep it in memory only
+     * @return a new index
+     */
+    @NonNull
+    static GradleArtifactCacheIndex create(@NonNull File cacheHome, @Nullable File indexFile) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (indexFile != null && indexFile.isFile()) {
+            try {
+                List<String> lines = Files.readLines(indexFile, UTF_8);
+                if (lines.size() >= 2 && lines.get(0).equals(VERSION)
+                        && lines.get(1).equals(cacheHome.getPath())) {
+                    Splitter tabs = Splitter.on('\t');
+                    Splitter commas = Splitter.on(',').omitEmptyStrings();
+                    for (int i = 2, n = lines.size(); i < n; i++) {
+                        List<String> fields = tabs.splitToList(lines.get(i));
+                        if (fields.size() != 3) {
+                            continue;
+                        }
+                        long timestamp = Long.parseLong(fields.get(1));
+                        List<String> versions = commas.splitToList(fields.get(2));
+                        entries.put(fields.get(0), new Entry(timestamp, versions));
+                    }
+                }
+            } catch (IOException | NumberFormatException ignore) {
+                // Corrupt or unreadable index: start over
+                entries.clear();
+            }
+        }
+
+        return new GradleArtifactCacheIndex(cacheHome, indexFile, entries);
+    }
+
+    /**
+     * Returns the highest version of the given artifact available in the cache
+     *
+     * @param groupId      the group id
+     * @param artifactId   the artifact id
+     * @param filter       an optional filter the version must match
+     * @param allowPreview whether preview versions are allowed
+     * @return the highest matching version, or null if none was found
+     */
+    @Nullable
+    GradleVersion findHighestVersion(@NonNull String groupId, @NonNull String artifactId,
+            @Nullable Predicate<GradleVersion> filter, boolean allowPreview) {
+        Entry entry = getEntry(groupId, artifactId);
+        if (entry == null) {
+            return null;
+        }
+
+        GradleVersion max = null;
+        for (String name : entry.versions) {
+            GradleVersion version = GradleVersion.tryParse(name);
+            if (version == null || (!allowPreview && version.isPreview())
+                    || (filter != null && !filter.test(version))) {
+                continue;
+            }
+            if (max == null || version.compareTo(max) > 0) {
+                max = version;
+            }
+        }
+
+        return max;
+    }
+
+    @Nullable
+    private Entry getEntry(@NonNull String groupId, @NonNull String artifactId) {
+        String key = groupId + ':' + artifactId;
+        File dir = new File(cacheHome, groupId + File.separator + artifactId);
+        long timestamp = dir.lastModified();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.timestamp == timestamp) {
+            return entry;
+        }
+
+        modified = true;
+        if (timestamp == 0L) {
+            entries.remove(key);
+            return null;
+        }
+
+        File[] files = dir.listFiles();
+        List<String> versions;
+        if (files == null || files.length == 0) {
+            versions = Collections.emptyList();
+        } else {
+            versions = new ArrayList<>(files.length);
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.isEmpty() && Character.isDigit(name.charAt(0))
+                        && file.isDirectory()) {
+                    versions.add(name);
+                }
+            }
+        }
+        entry = new Entry(timestamp, versions);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /** Writes the index back to disk, if it has changed since it was read */
+    void save() throws IOException {
+        if (!modified || indexFile == null) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(64 * (entries.size() + 2));
+        sb.append(VERSION).append('\n');
+        sb.append(cacheHome.getPath()).append('\n');
+        Joiner commas = Joiner.on(',');
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            sb.append(entry.getKey()).append('\t');
+            sb.append(entry.getValue().timestamp).append('\t');
+            commas.appendTo(sb, entry.getValue().versions);
+            sb.append('\n');
+        }
+        // Written next to the index and then moved into place, such that other lint
+        // processes sharing the index never read a partially written file
+        File temp = File.createTempFile(FILE_NAME, ".tmp", indexFile.getParentFile());
+        try {
+            Files.write(sb.toString(), temp, UTF_8);
+            try {
+                java.nio.file.Files.move(temp.toPath(), indexFile.toPath(), ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(temp.toPath(), indexFile.toPath(), REPLACE_EXISTING);
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+        modified = false;
+    }
+
+    private static class Entry {
+        /** Timestamp of the artifact folder when the versions were computed */
+        private final long timestamp;
+        /** The names of the version folders */
+        private final List<String> versions;
+
+        private Entry(long timestamp, @NonNull List<String> versions) {
+            this.timestamp = timestamp;
+            this.versions = versions;
+        }
+    }
+}
@@ -1103,7 +1103,8 @@ public class GradleDetector extends Detector implements Detector.GradleScanner {
         }
 
         // Compare with what's in the Gradle cache.
-        newerVersion = GradleVersion.max(newerVersion, findCachedNewerVersion(dependency, filter));
+        newerVersion = GradleVersion.max(newerVersion,
+                findCachedNewerVersion(context.getClient(), dependency, filter));
 
         // Compare with IDE's repository cache, if available.
         newerVersion = GradleVersion.max(newerVersion, getHighestKnownVersion(context.getClient(),
@@ -1219,17 +1220,32 @@ public class GradleDetector extends Detector implements Detector.GradleScanner {
         return artifactCacheHome;
     }
 
+    private GradleArtifactCacheIndex artifactCacheIndex;
+
+    @NonNull
+    private GradleArtifactCacheIndex getArtifactCacheIndex(@NonNull LintClient client) {
+        if (artifactCacheIndex == null) {
+            File cacheDir = client.getCacheDir(null, true);
+            File indexFile = cacheDir != null
+                    ? new File(cacheDir, GradleArtifactCacheIndex.FILE_NAME) : null;
+            artifactCacheIndex = GradleArtifactCacheIndex.create(getArtifactCacheHome(),
+                    indexFile);
+        }
+
+        return artifactCacheIndex;
+    }
+
     @Nullable
-    private GradleVersion findCachedNewerVersion(GradleCoordinate dependency,
+    private GradleVersion findCachedNewerVersion(@NonNull LintClient client,
+            @NonNull GradleCoordinate dependency,
             @Nullable Predicate<GradleVersion> filter) {
-        File versionDir = new File(getArtifactCacheHome(),
-                dependency.getGroupId() + File.separator + dependency.getArtifactId());
-        if (versionDir.exists()) {
-            return MavenRepositories.getHighestVersion(versionDir, filter,
-                    MavenRepositories.isPreview(dependency), FileOpUtils.create());
+        String groupId = dependency.getGroupId();
+        String artifactId = dependency.getArtifactId();
+        if (groupId == null || artifactId == null) {
+            return null;
         }
-
-        return null;
+        return getArtifactCacheIndex(client).findHighestVersion(groupId, artifactId, filter,
+                MavenRepositories.isPreview(dependency));
     }
 
     private void ensureTargetCompatibleWithO(@NonNull Context context,
@@ -1905,6 +1921,14 @@ public class GradleDetector extends Detector implements Detector.GradleScanner {
 
         // Check for blacklisted dependencies
         checkBlacklistedDependencies(context, project);
+
+        if (artifactCacheIndex != null) {
+            try {
+                artifactCacheIndex.save();
+            } catch (IOException e) {
+                context.getClient().log(e, "Could not write Gradle artifact cache index");
+            }
+        }
     }
 
     /**
@@ -78,6 +78,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiElement;
 import java.awt.Dimension;
@@ -96,6 +98,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -104,6 +107,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
@@ -631,10 +635,11 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
                 }
             }
 
-            // Map from file to actual byte contents of the file.
+            // Map from file to a digest of the contents of the file, such that we only
+            // hold one file's contents in memory at a time.
             // We store this in a map such that for repeated files, such as noSize files
             // which can appear in multiple buckets, we only need to read them once
-            Map<File, byte[]> fileContents = new HashMap<>();
+            Map<File, HashCode> fileDigests = new HashMap<>();
 
             // Now we're ready for the final check where we actually check the
             // bits. We have to partition the files into buckets of files that
@@ -644,13 +649,12 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
                     continue;
                 }
 
-                // Read all files in this set and store in map
+                // Digest all files in this set and store in map
                 for (File file : set) {
-                    byte[] bits = fileContents.get(file);
-                    if (bits == null) {
+                    if (!fileDigests.containsKey(file)) {
                         try {
-                            bits = context.getClient().readBytes(file);
-                            fileContents.put(file, bits);
+                            fileDigests.put(file, Hashing.sha256().hashBytes(
+                                    context.getClient().readBytes(file)));
                         } catch (IOException e) {
                             context.log(e, null);
                         }
@@ -671,28 +675,13 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
                     for (int j = i + 1; j < files.size(); j++) {
                         File file1 = files.get(i);
                         File file2 = files.get(j);
-                        byte[] contents1 = fileContents.get(file1);
-                        byte[] contents2 = fileContents.get(file2);
-                        if (contents1 == null || contents2 == null) {
+                        HashCode digest1 = fileDigests.get(file1);
+                        HashCode digest2 = fileDigests.get(file2);
+                        if (digest1 == null || digest2 == null) {
                             // File couldn't be read: ignore
                             continue;
                         }
-                        if (contents1.length != contents2.length) {
-                            // Sizes differ: not identical.
-                            // This shouldn't happen since we've already partitioned based
-                            // on File.length(), but just make sure here since the file
-                            // system could have lied, or cached a value that has changed
-                            // if the file was just overwritten
-                            continue;
-                        }
-                        boolean same = true;
-                        for (int k = 0; k < contents1.length; k++) {
-                            if (contents1[k] != contents2[k]) {
-                                same = false;
-                                break;
-                            }
-                        }
-                        if (same) {
+                        if (digest1.equals(digest2)) {
                             equal.put(file1, file2);
                         }
                     }
@@ -1344,16 +1333,30 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
         return file.getName().contains("-nodpi");
     }
 
-    private Map<File, BufferedImage> imageCache;
+    /**
+     * Maximum number of bytes of decoded pixel data to keep in {@link #imageCache}.
+     * Decoded images are large (4 bytes per pixel), so folders with many big
+     * bitmaps would otherwise require a large heap.
+     */
+    private static final long MAX_IMAGE_CACHE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Number of images decoded concurrently (and therefore held in memory
+     * simultaneously) by {@link #decodeImages(List)}
+     */
+    private static final int IMAGE_DECODE_BATCH_SIZE =
+            Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** Cache of decoded images, in access order, bounded by {@link #MAX_IMAGE_CACHE_BYTES} */
+    private LinkedHashMap<File, BufferedImage> imageCache;
+    private long imageCacheBytes;
 
     @Nullable
     private BufferedImage getImage(@Nullable File file) throws IOException {
         if (file == null) {
             return null;
         }
-        if (imageCache == null) {
-            imageCache = Maps.newHashMap();
-        } else {
+        if (imageCache != null) {
             BufferedImage image = imageCache.get(file);
             if (image != null) {
                 return image;
@@ -1361,11 +1364,67 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
         }
 
         BufferedImage image = ImageIO.read(file);
-        imageCache.put(file, image);
+        cacheImage(file, image);
 
         return image;
     }
 
+    private void cacheImage(@NonNull File file, @Nullable BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        if (imageCache == null) {
+            imageCache = new LinkedHashMap<>(16, 0.75f, true);
+            imageCacheBytes = 0;
+        }
+        BufferedImage old = imageCache.put(file, image);
+        if (old != null) {
+            imageCacheBytes -= getImageBytes(old);
+        }
+        imageCacheBytes += getImageBytes(image);
+
+        // Evict least recently used images, but always keep the image just added
+        Iterator<BufferedImage> iterator = imageCache.values().iterator();
+        while (imageCacheBytes > MAX_IMAGE_CACHE_BYTES && imageCache.size() > 1) {
+            BufferedImage evicted = iterator.next();
+            iterator.remove();
+            imageCacheBytes -= getImageBytes(evicted);
+        }
+    }
+
+    private static long getImageBytes(@NonNull BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Decodes the given image files on a worker pool and adds them to the
+     * image cache. Reporting stays on the calling thread; this only performs
+     * the expensive decoding ahead of time.
+     */
+    private void decodeImages(@NonNull List<File> files) {
+        List<File> missing = new ArrayList<>(files.size());
+        for (File file : files) {
+            if (imageCache == null || !imageCache.containsKey(file)) {
+                missing.add(file);
+            }
+        }
+        if (missing.size() < 2) {
+            return; // Not worth spinning up parallel work; decoded on demand
+        }
+
+        BufferedImage[] images = new BufferedImage[missing.size()];
+        IntStream.range(0, images.length).parallel().forEach(i -> {
+            try {
+                images[i] = ImageIO.read(missing.get(i));
+            } catch (IOException | RuntimeException ignore) {
+                // Pass: decoded (and reported, if applicable) on demand instead
+            }
+        });
+        for (int i = 0; i < images.length; i++) {
+            cacheImage(missing.get(i), images[i]);
+        }
+    }
+
     private void checkDrawableDir(Context context, File folder, File[] files,
             Map<File, Dimension> pixelSizes, Map<File, Long> fileSizes) {
         String folderName = folder.getName();
@@ -1412,6 +1471,11 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
             }
         }
 
+        // Only the color and launcher shape checks need to look at the actual pixels.
+        // Find the images they need up front such that these can be decoded in parallel.
+        Map<File, Boolean> colorFiles = new HashMap<>();
+        Set<File> launcherFiles = new HashSet<>();
+        List<File> decode = new ArrayList<>();
         if (context.isEnabled(ICON_COLORS)) {
             for (File file : files) {
                 String name = file.getName();
@@ -1421,13 +1485,10 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
                         && !endsWith(name, DOT_9PNG)) {
                     String baseName = getBaseName(name);
                     boolean isActionBarIcon = isActionBarIcon(context, folderName, baseName, file);
-                    if (isActionBarIcon || isNotificationIcon(baseName)) {
-                        Dimension size = checkColor(context, file, isActionBarIcon);
-
-                        // Store dimension for size check if we went to the trouble of reading image
-                        if (size != null && pixelSizes != null) {
-                            pixelSizes.put(file, size);
-                        }
+                    if ((isActionBarIcon || isNotificationIcon(baseName))
+                            && isColorCheckApplicable(context, file, isActionBarIcon)) {
+                        colorFiles.put(file, isActionBarIcon);
+                        decode.add(file);
                     }
                 }
             }
@@ -1438,9 +1499,32 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
                 String name = file.getName();
                 if (isLauncherIcon(folderName, getBaseName(name))) {
                     if (!endsWith(name, DOT_XML) && !endsWith(name, DOT_9PNG)) {
-                        checkLauncherShape(context, folderName, file);
+                        if (launcherFiles.add(file) && !colorFiles.containsKey(file)) {
+                            decode.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Decode in batches such that only a bounded number of images are in memory
+        for (int start = 0; start < decode.size(); start += IMAGE_DECODE_BATCH_SIZE) {
+            List<File> batch = decode.subList(start,
+                    Math.min(decode.size(), start + IMAGE_DECODE_BATCH_SIZE));
+            decodeImages(batch);
+            for (File file : batch) {
+                Boolean isActionBarIcon = colorFiles.get(file);
+                if (isActionBarIcon != null) {
+                    Dimension size = checkColor(context, file, isActionBarIcon);
+
+                    // Store dimension for size check if we went to the trouble of reading image
+                    if (size != null && pixelSizes != null) {
+                        pixelSizes.put(file, size);
                     }
                 }
+                if (launcherFiles.contains(file)) {
+                    checkLauncherShape(context, folderName, file);
+                }
             }
         }
 
@@ -1476,6 +1560,7 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
         }
 
         imageCache = null;
+        imageCacheBytes = 0;
     }
 
     private void checkWebpSupported(@NonNull Context context, @NonNull File[] files) {
@@ -1628,19 +1713,22 @@ public class IconDetector extends ResourceXmlDetector implements UastScanner {
      * Check whether the icons in the file are okay. Also return the image size
      * if known (for use by other checks)
      */
-    private Dimension checkColor(Context context, File file, boolean isActionBarIcon) {
+    private static boolean isColorCheckApplicable(Context context, File file,
+            boolean isActionBarIcon) {
         int folderVersion = context.getDriver().getResourceFolderVersion(file);
         if (isActionBarIcon) {
-            if (folderVersion != -1 && folderVersion < 11
-                    || !isAndroid30(context, folderVersion)) {
-                return null;
-            }
+            return !(folderVersion != -1 && folderVersion < 11
+                    || !isAndroid30(context, folderVersion));
         } else {
-            if (folderVersion != -1 && folderVersion < 9
+            return !(folderVersion != -1 && folderVersion < 9
                     || !isAndroid23(context, folderVersion)
-                        && !isAndroid30(context, folderVersion)) {
-                return null;
-            }
+                        && !isAndroid30(context, folderVersion));
+        }
+    }
+
+    private Dimension checkColor(Context context, File file, boolean isActionBarIcon) {
+        if (!isColorCheckApplicable(context, file, isActionBarIcon)) {
+            return null;
         }
 
         // TODO: This only checks icons that are known to be using the Holo style.
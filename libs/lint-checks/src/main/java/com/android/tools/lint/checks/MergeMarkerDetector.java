@@ -29,7 +29,9 @@ import com.android.tools.lint.detector.api.LintUtils;
 import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.Severity;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 
 /**
  * Looks for merge markers left behind in the source files.
@@ -61,6 +63,11 @@ public class MergeMarkerDetector extends Detector implements Detector.OtherFileS
         return Scope.OTHER_SCOPE;
     }
 
+    @Override
+    public List<String> getApplicableContentPatterns() {
+        return Arrays.asList("\n<<<<<<< ", "\n=======\n", "\n>>>>>>> ");
+    }
+
     @Override
     public void run(@NonNull Context context) {
         if (!context.getProject().getReportIssues()) {
@@ -43,14 +43,15 @@ import static com.android.SdkConstants.VIEW_FRAGMENT;
 import static com.android.utils.SdkUtils.endsWithIgnoreCase;
 import static com.google.common.base.Charsets.UTF_8;
 
-import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.resources.FolderTypeRelationship;
 import com.android.resources.ResourceFolderType;
 import com.android.resources.ResourceType;
 import com.android.resources.ResourceUrl;
 import com.android.tools.lint.client.api.DefaultConfiguration;
+import com.android.tools.lint.detector.api.BytePatternMatcher;
 import com.android.tools.lint.detector.api.LintUtils;
 import com.android.tools.lint.detector.api.Location;
 import com.google.common.base.Splitter;
@@ -59,11 +60,20 @@ import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import org.w3c.dom.Attr;
@@ -84,15 +94,55 @@ public class ResourceUsageModel {
     /** Map from resource type to map from resource name to resource object */
     private final Map<ResourceType, Map<String, Resource>> mTypeToName =
             Maps.newEnumMap(ResourceType.class);
-    /** Map from R field value to corresponding resource */
-    private final Map<Integer, Resource> mValueToResource =
+    /** Resource names, interned such that resources of different types share them */
+    private final Map<String, String> mNames =
             Maps.newHashMapWithExpectedSize(TYPICAL_RESOURCE_COUNT);
+    /** The resources of this model, indexed by their dense ids (see {@link Resource#mId}) */
+    private Resource[] mResourcesById = new Resource[TYPICAL_RESOURCE_COUNT];
+    private int mResourceCount;
+    /** Map from R field value to the id of the corresponding resource */
+    private final IntIntMap mValueToId = new IntIntMap(TYPICAL_RESOURCE_COUNT);
+    /**
+     * The references between resources in compressed sparse row form: the ids of the
+     * resources referenced by the resource with id {@code id} are stored at indices
+     * {@code mReferenceOffsets[id]} until {@code mReferenceOffsets[id + 1]} of
+     * {@link #mReferenceTargets}. Resources added since this was built have no entry.
+     */
+    private int[] mReferenceOffsets = new int[1];
+    private int[] mReferenceTargets = new int[0];
+    /**
+     * References added since {@link #mReferenceOffsets} was built, as pairs of source and
+     * target resource ids; merged into it by {@link #buildReferenceIndex()}
+     */
+    private int[] mReferenceEdges = new int[2 * TYPICAL_RESOURCE_COUNT];
+    private int mReferenceEdgeCount;
     /**
      * Next id suffix to be appended for the {@code <aapt:attr>} inlined resources created by
      * aapt
      */
     private int nextInlinedResourceSuffix;
 
+    /** The number of threads used to tokenize web and binary files */
+    private static final int TOKENIZER_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * The number of files tokenized on worker threads whose references may not have been
+     * recorded yet, beyond which they are recorded before tokenizing more files, to bound
+     * the memory used by the pending references
+     */
+    private static final int MAX_PENDING_FILES = 64;
+    /**
+     * The number of threads tokenizing files, or 1 to tokenize them as they are visited.
+     * Models whose class observes {@link #referencedString} tokenize the files as they are
+     * visited, such that the strings are reported in order, while the files are visited.
+     */
+    private int mTokenizerThreads = overridesReferencedString() ? 1 : TOKENIZER_THREADS;
+    /** Worker threads tokenizing files, created on demand */
+    private ThreadPoolExecutor mTokenizer;
+    /** Files being tokenized by {@link #mTokenizer}, and the resources they belong to */
+    private final List<Future<TokenizedReferences>> mPendingReferences = Lists.newArrayList();
+    private final List<Resource> mPendingFrom = Lists.newArrayList();
+
     public static String getFieldName(Element element) {
         return LintUtils.getFieldName(element.getAttribute(ATTR_NAME));
     }
@@ -135,7 +185,8 @@ public class ResourceUsageModel {
     @SuppressWarnings("unused") // Used by (temporary) copy in Gradle resource shrinker
     @Nullable
     public Resource getResource(@NonNull Integer value) {
-        return mValueToResource.get(value);
+        int id = mValueToId.get(value);
+        return id != -1 ? mResourcesById[id] : null;
     }
 
     @Nullable
@@ -263,9 +314,15 @@ public class ResourceUsageModel {
         /** Integer id location */
         public int value;
 
-        /** Resources this resource references. For example, a layout can reference another via
-         * an include; a style reference in a layout references that layout style, and so on. */
-        public List<Resource> references;
+        /** The model this resource was added to, if any */
+        private ResourceUsageModel mModel;
+        /** Dense id of this resource in {@link #mModel}, or -1 */
+        private int mId = -1;
+        /**
+         * References to resources which do not belong to the same model as this one, if
+         * any; references between resources of the same model are stored in the model
+         */
+        private List<Resource> mOtherReferences;
 
         /** Chained list of declaration locations */
         public Location locations;
@@ -384,14 +441,33 @@ public class ResourceUsageModel {
             this.locations = location;
         }
 
+        /** Resources this resource references. For example, a layout can reference another via
+         * an include; a style reference in a layout references that layout style, and so on. */
+        @NonNull
+        public List<Resource> getReferences() {
+            List<Resource> references = mModel != null
+                    ? mModel.getReferences(mId) : Collections.emptyList();
+            List<Resource> other = mOtherReferences;
+            if (other == null) {
+                return references;
+            }
+            List<Resource> all = Lists.newArrayList(references);
+            all.addAll(other);
+            return all;
+        }
+
         public void addReference(@Nullable Resource resource) {
             if (resource != null) {
-                if (references == null) {
-                    references = Lists.newArrayList();
-                } else if (references.contains(resource)) {
+                if (mModel != null && resource.mModel == mModel) {
+                    mModel.addReference(mId, resource.mId);
                     return;
                 }
-                references.add(resource);
+                if (mOtherReferences == null) {
+                    mOtherReferences = Lists.newArrayList();
+                } else if (mOtherReferences.contains(resource)) {
+                    return;
+                }
+                mOtherReferences.add(resource);
             }
         }
 
@@ -418,11 +494,13 @@ public class ResourceUsageModel {
     }
 
     public String dumpReferences() {
+        applyPendingReferences();
         StringBuilder sb = new StringBuilder(1000);
         sb.append("Resource Reference Graph:\n");
         for (Resource resource : mResources) {
-            if (resource.references != null) {
-                sb.append(resource).append(" => ").append(resource.references).append('\n');
+            List<Resource> references = resource.getReferences();
+            if (!references.isEmpty()) {
+                sb.append(resource).append(" => ").append(references).append('\n');
             }
         }
         return sb.toString();
@@ -430,6 +508,7 @@ public class ResourceUsageModel {
 
 
     public String dumpResourceModel() {
+        applyPendingReferences();
         StringBuilder sb = new StringBuilder(1000);
         Collections.sort(mResources, (resource1, resource2) -> {
             int delta = resource1.type.compareTo(resource2.type);
@@ -442,12 +521,10 @@ public class ResourceUsageModel {
         for (Resource resource : mResources) {
             sb.append(resource.getUrl()).append(" : reachable=").append(resource.isReachable());
             sb.append("\n");
-            if (resource.references != null) {
-                for (Resource referenced : resource.references) {
-                    sb.append("    ");
-                    sb.append(referenced.getUrl());
-                    sb.append("\n");
-                }
+            for (Resource referenced : resource.getReferences()) {
+                sb.append("    ");
+                sb.append(referenced.getUrl());
+                sb.append("\n");
             }
         }
 
@@ -455,12 +532,9 @@ public class ResourceUsageModel {
     }
 
     public List<Resource> findUnused(List<Resource> resources) {
+        applyPendingReferences();
         List<Resource> roots = findRoots(resources);
-
-        Map<Resource,Boolean> seen = new IdentityHashMap<>(resources.size());
-        for (Resource root : roots) {
-            visit(root, seen);
-        }
+        visit(roots);
 
         List<Resource> unused = Lists.newArrayListWithExpectedSize(resources.size());
         for (Resource resource : resources) {
@@ -491,17 +565,166 @@ public class ResourceUsageModel {
         return roots;
     }
 
-    private static void visit(Resource root, Map<Resource, Boolean> seen) {
-        if (seen.containsKey(root)) {
+    /**
+     * Marks the given resources, and all the resources they directly or indirectly
+     * reference, as reachable
+     */
+    private void visit(@NonNull List<Resource> roots) {
+        buildReferenceIndex();
+        BitSet seen = new BitSet(mResourceCount);
+        int[] stack = new int[64];
+        int size = 0;
+        // Roots, and resources referenced from resources of other models, are checked
+        // against the seen set when dequeued; resources of this model are checked when
+        // pushed onto the stack
+        ArrayDeque<Resource> pending = new ArrayDeque<>(roots);
+        Map<Resource, Boolean> otherSeen = null;
+        while (true) {
+            Resource resource;
+            if (size > 0) {
+                resource = mResourcesById[stack[--size]];
+            } else if (!pending.isEmpty()) {
+                resource = pending.poll();
+                if (resource.mModel == this) {
+                    if (seen.get(resource.mId)) {
+                        continue;
+                    }
+                    seen.set(resource.mId);
+                } else {
+                    if (otherSeen == null) {
+                        otherSeen = new IdentityHashMap<>();
+                    }
+                    if (otherSeen.put(resource, Boolean.TRUE) != null) {
+                        continue;
+                    }
+                }
+            } else {
+                break;
+            }
+
+            resource.setReachable(true);
+            int id = resource.mId;
+            if (resource.mModel == this && id + 1 < mReferenceOffsets.length) {
+                for (int i = mReferenceOffsets[id], end = mReferenceOffsets[id + 1]; i < end; i++) {
+                    int target = mReferenceTargets[i];
+                    if (!seen.get(target)) {
+                        seen.set(target);
+                        if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = target;
+                    }
+                }
+            }
+            if (resource.mOtherReferences != null) {
+                pending.addAll(resource.mOtherReferences);
+            }
+        }
+    }
+
+    /** Records a reference between the resources of this model with the given ids */
+    private void addReference(int from, int to) {
+        int count = mReferenceEdgeCount;
+        if (count > 0 && mReferenceEdges[count - 2] == from && mReferenceEdges[count - 1] == to) {
             return;
         }
-        seen.put(root, Boolean.TRUE);
-        root.setReachable(true);
-        if (root.references != null) {
-            for (Resource referenced : root.references) {
-                visit(referenced, seen);
+        if (count == mReferenceEdges.length) {
+            // Merge the pending references, which also drops duplicates, and grow the
+            // buffer in proportion to the index such that merging is amortized
+            buildReferenceIndex();
+            int capacity = 2 * (mReferenceTargets.length + mResourceCount);
+            if (mReferenceEdges.length < capacity) {
+                mReferenceEdges = new int[capacity];
             }
+            count = 0;
         }
+        mReferenceEdges[count++] = from;
+        mReferenceEdges[count++] = to;
+        mReferenceEdgeCount = count;
+    }
+
+    /** Returns the resources referenced by the resource of this model with the given id */
+    @NonNull
+    private List<Resource> getReferences(int id) {
+        buildReferenceIndex();
+        if (id + 1 >= mReferenceOffsets.length) {
+            return Collections.emptyList();
+        }
+        int start = mReferenceOffsets[id];
+        int end = mReferenceOffsets[id + 1];
+        if (start == end) {
+            return Collections.emptyList();
+        }
+        List<Resource> references = Lists.newArrayListWithExpectedSize(end - start);
+        for (int i = start; i < end; i++) {
+            references.add(mResourcesById[mReferenceTargets[i]]);
+        }
+        return references;
+    }
+
+    /**
+     * Merges the references added since the reference index was last built into it,
+     * dropping duplicate references while preserving the order they were added in
+     */
+    private void buildReferenceIndex() {
+        if (mReferenceEdgeCount == 0) {
+            return;
+        }
+        int n = mResourceCount;
+        int[] oldOffsets = mReferenceOffsets;
+        int oldCount = oldOffsets.length - 1;
+        int[] offsets = new int[n + 1];
+        for (int id = 0; id < oldCount; id++) {
+            offsets[id + 1] = oldOffsets[id + 1] - oldOffsets[id];
+        }
+        for (int i = 0; i < mReferenceEdgeCount; i += 2) {
+            offsets[mReferenceEdges[i] + 1]++;
+        }
+        for (int id = 0; id < n; id++) {
+            offsets[id + 1] += offsets[id];
+        }
+        int[] targets = new int[offsets[n]];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int id = 0; id < oldCount; id++) {
+            for (int i = oldOffsets[id]; i < oldOffsets[id + 1]; i++) {
+                targets[next[id]++] = mReferenceTargets[i];
+            }
+        }
+        for (int i = 0; i < mReferenceEdgeCount; i += 2) {
+            targets[next[mReferenceEdges[i]]++] = mReferenceEdges[i + 1];
+        }
+
+        // Compact each row in place, keeping the first reference to each target
+        int[] lastSource = next;
+        Arrays.fill(lastSource, -1);
+        int count = 0;
+        for (int id = 0; id < n; id++) {
+            int start = offsets[id];
+            int end = offsets[id + 1];
+            offsets[id] = count;
+            for (int i = start; i < end; i++) {
+                int target = targets[i];
+                if (lastSource[target] != id) {
+                    lastSource[target] = id;
+                    targets[count++] = target;
+                }
+            }
+        }
+        offsets[n] = count;
+
+        mReferenceOffsets = offsets;
+        mReferenceTargets = count == targets.length ? targets : Arrays.copyOf(targets, count);
+        mReferenceEdgeCount = 0;
+    }
+
+    @NonNull
+    private String intern(@NonNull String name) {
+        String interned = mNames.get(name);
+        if (interned == null) {
+            mNames.put(name, name);
+            return name;
+        }
+        return interned;
     }
 
     @NonNull
@@ -524,6 +747,7 @@ public class ResourceUsageModel {
             if (value != null) {
                 if (resource.value == -1) {
                     resource.value = realValue;
+                    mValueToId.put(realValue, resource.mId);
                 } else {
                     assert realValue == resource.value;
                 }
@@ -531,17 +755,23 @@ public class ResourceUsageModel {
             return resource;
         }
 
-        resource = new Resource(type, name, realValue);
+        resource = new Resource(type, intern(name), realValue);
+        resource.mModel = this;
+        resource.mId = mResourceCount;
+        if (mResourceCount == mResourcesById.length) {
+            mResourcesById = Arrays.copyOf(mResourcesById, 2 * mResourceCount);
+        }
+        mResourcesById[mResourceCount++] = resource;
         mResources.add(resource);
         if (realValue != -1) {
-            mValueToResource.put(realValue, resource);
+            mValueToId.put(realValue, resource.mId);
         }
         Map<String, Resource> nameMap = mTypeToName.get(type);
         if (nameMap == null) {
             nameMap = Maps.newHashMapWithExpectedSize(30);
             mTypeToName.put(type, nameMap);
         }
-        nameMap.put(LintUtils.getFieldName(name), resource);
+        nameMap.put(intern(LintUtils.getFieldName(name)), resource);
 
         // TODO: Assert that we don't set the same resource multiple times to different values.
         // Could happen if you pass in stale data!
@@ -652,6 +882,7 @@ public class ResourceUsageModel {
     }
 
     public void processToolsAttributes() {
+        applyPendingReferences();
         if (mKeepAttributes != null) {
             for (String keep : mKeepAttributes) {
                 processKeepAttributes(keep);
@@ -719,15 +950,19 @@ public class ResourceUsageModel {
         if (folderType == ResourceFolderType.RAW) {
             // Is this an HTML, CSS or JavaScript document bundled with the app?
             // If so tokenize and look for resource references.
+            // The text is read here since readText may depend on the current context
             String path = file.getPath();
             if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")) {
-                tokenizeHtml(from, readText(file));
+                String html = readText(file);
+                tokenizeLater(from, found -> scanHtml(found, html));
             } else if (endsWithIgnoreCase(path, ".css")) {
-                tokenizeCss(from, readText(file));
+                String css = readText(file);
+                tokenizeLater(from, found -> scanCss(found, css));
             } else if (endsWithIgnoreCase(path, ".js")) {
-                tokenizeJs(from, readText(file));
+                String js = readText(file);
+                tokenizeLater(from, found -> scanJs(found, js));
             } else if (file.isFile() && !LintUtils.isBitmapFile(file)) {
-                tokenizeUnknownBinary(from, file);
+                tokenizeLater(from, found -> scanUnknownBinary(found, file));
             }
         }
     }
@@ -762,7 +997,8 @@ public class ResourceUsageModel {
         recordResourceReferences(folderType, document.getDocumentElement(), from);
 
         if (folderType == ResourceFolderType.XML) {
-            tokenizeUnknownText(readText(file));
+            String text = readText(file);
+            tokenizeLater(null, found -> scanUnknownText(found, text));
         }
     }
 
@@ -1043,6 +1279,12 @@ public class ResourceUsageModel {
     }
 
     public void tokenizeHtml(@Nullable Resource from, @NonNull String html) {
+        TokenizedReferences found = new TokenizedReferences();
+        scanHtml(found, html);
+        apply(from, found);
+    }
+
+    private static void scanHtml(@NonNull TokenizedReferences found, @NonNull String html) {
         // Look for
         //    (1) URLs of the form /android_res/drawable/foo.ext
         //        which we will use to keep R.drawable.foo
@@ -1175,11 +1417,11 @@ public class ResourceUsageModel {
                         tag = html.substring(tagStart, offset).trim();
                     } else if (c == '>') {
                         tag = html.substring(tagStart, offset).trim();
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_TEXT;
                     } else if (c == '/') {
                         tag = html.substring(tagStart, offset).trim();
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_ENDING_TAG;
                     }
                     offset++;
@@ -1196,7 +1438,7 @@ public class ResourceUsageModel {
 
                 case STATE_BEFORE_ATTRIBUTE: {
                     if (c == '>') {
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_TEXT;
                     } else //noinspection StatementWithEmptyBody
                         if (c == '/') {
@@ -1210,7 +1452,7 @@ public class ResourceUsageModel {
                 }
                 case STATE_ATTRIBUTE_NAME: {
                     if (c == '>') {
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_TEXT;
                     } else if (c == '=') {
                         attribute = html.substring(attributeStart, offset);
@@ -1226,7 +1468,7 @@ public class ResourceUsageModel {
                     if (c == '=') {
                         state = STATE_ATTRIBUTE_AFTER_EQUALS;
                     } else if (c == '>') {
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_TEXT;
                     } else if (!Character.isWhitespace(c)) {
                         // Attribute value not specified (used for some boolean attributes)
@@ -1258,7 +1500,7 @@ public class ResourceUsageModel {
                 case STATE_ATTRIBUTE_VALUE_SINGLE: {
                     if (c == '\'') {
                         state = STATE_BEFORE_ATTRIBUTE;
-                        recordHtmlAttributeValue(from, tag, attribute,
+                        recordHtmlAttributeValue(found, tag, attribute,
                                 html.substring(valueStart, offset));
                     }
                     offset++;
@@ -1267,7 +1509,7 @@ public class ResourceUsageModel {
                 case STATE_ATTRIBUTE_VALUE_DOUBLE: {
                     if (c == '"') {
                         state = STATE_BEFORE_ATTRIBUTE;
-                        recordHtmlAttributeValue(from, tag, attribute,
+                        recordHtmlAttributeValue(found, tag, attribute,
                                 html.substring(valueStart, offset));
                     }
                     offset++;
@@ -1275,13 +1517,13 @@ public class ResourceUsageModel {
                 }
                 case STATE_ATTRIBUTE_VALUE_NONE: {
                     if (c == '>') {
-                        recordHtmlAttributeValue(from, tag, attribute,
+                        recordHtmlAttributeValue(found, tag, attribute,
                                 html.substring(valueStart, offset));
-                        endHtmlTag(from, html, offset, tag);
+                        endHtmlTag(found, html, offset, tag);
                         state = STATE_TEXT;
                     } else if (Character.isWhitespace(c)) {
                         state = STATE_BEFORE_ATTRIBUTE;
-                        recordHtmlAttributeValue(from, tag, attribute,
+                        recordHtmlAttributeValue(found, tag, attribute,
                                 html.substring(valueStart, offset));
                     }
                     offset++;
@@ -1293,26 +1535,32 @@ public class ResourceUsageModel {
         }
     }
 
-    private void endHtmlTag(@Nullable Resource from, @NonNull String html, int offset,
-            @Nullable String tag) {
+    private static void endHtmlTag(@NonNull TokenizedReferences found, @NonNull String html,
+            int offset, @Nullable String tag) {
         if ("script".equals(tag)) {
             int end = html.indexOf("</script>", offset + 1);
             if (end != -1) {
                 // Attempt to tokenize the text as JavaScript
                 String js = html.substring(offset + 1, end);
-                tokenizeJs(from, js);
+                scanJs(found, js);
             }
         } else if ("style".equals(tag)) {
             int end = html.indexOf("</style>", offset + 1);
             if (end != -1) {
                 // Attempt to tokenize the text as CSS
                 String css = html.substring(offset + 1, end);
-                tokenizeCss(from, css);
+                scanCss(found, css);
             }
         }
     }
 
     public void tokenizeJs(@Nullable Resource from, @NonNull String js) {
+        TokenizedReferences found = new TokenizedReferences();
+        scanJs(found, js);
+        apply(from, found);
+    }
+
+    private static void scanJs(@NonNull TokenizedReferences found, @NonNull String js) {
         // Simple JavaScript tokenizer: only looks for literal strings,
         // and records those as string references
         int length = js.length();
@@ -1383,7 +1631,7 @@ public class ResourceUsageModel {
                 }
                 case STATE_STRING_DOUBLE: {
                     if (c == '"') {
-                        recordJsString(js.substring(stringStart, offset));
+                        found.addString(js.substring(stringStart, offset));
                         state = STATE_INIT;
                     } else if (c == '\\') {
                         state = STATE_STRING_DOUBLE_QUOTED;
@@ -1398,7 +1646,7 @@ public class ResourceUsageModel {
                 }
                 case STATE_STRING_SINGLE: {
                     if (c == '\'') {
-                        recordJsString(js.substring(stringStart, offset));
+                        found.addString(js.substring(stringStart, offset));
                         state = STATE_INIT;
                     } else if (c == '\\') {
                         state = STATE_STRING_SINGLE_QUOTED;
@@ -1418,6 +1666,12 @@ public class ResourceUsageModel {
     }
 
     public void tokenizeCss(@Nullable Resource from, @NonNull String css) {
+        TokenizedReferences found = new TokenizedReferences();
+        scanCss(found, css);
+        apply(from, found);
+    }
+
+    private static void scanCss(@NonNull TokenizedReferences found, @NonNull String css) {
         // Simple CSS tokenizer: Only looks for URL references, and records those
         // filenames. Skips everything else (unrelated to images).
         int length = css.length();
@@ -1463,7 +1717,7 @@ public class ResourceUsageModel {
                                     offset++;
                                     end--;
                                 }
-                                recordCssUrl(from, css.substring(offset, end).trim());
+                                found.addFileUrl(css.substring(offset, end).trim());
                             }
                             offset = end + 1;
                             continue;
@@ -1495,21 +1749,25 @@ public class ResourceUsageModel {
         }
     }
 
-    private static byte[] sAndroidResBytes;
+    /** Matches the {@link #ANDROID_RES} prefix of resource URLs in binary files */
+    private static final BytePatternMatcher ANDROID_RES_MATCHER =
+            new BytePatternMatcher(ANDROID_RES.getBytes(UTF_8));
 
     /** Look through binary/unknown files looking for resource URLs */
     public void tokenizeUnknownBinary(@Nullable Resource from, @NonNull File file) {
+        TokenizedReferences found = new TokenizedReferences();
+        scanUnknownBinary(found, file);
+        apply(from, found);
+    }
+
+    private static void scanUnknownBinary(@NonNull TokenizedReferences found,
+            @NonNull File file) {
         try {
-            if (sAndroidResBytes == null) {
-                sAndroidResBytes = ANDROID_RES.getBytes(SdkConstants.UTF_8);
-            }
             byte[] bytes = Files.toByteArray(file);
             int index = 0;
             while (index != -1) {
-                index = indexOf(bytes, sAndroidResBytes, index);
+                index = ANDROID_RES_MATCHER.findEnd(bytes, index);
                 if (index != -1) {
-                    index += sAndroidResBytes.length;
-
                     // Find the end of the URL
                     int begin = index;
                     int end = begin;
@@ -1517,15 +1775,7 @@ public class ResourceUsageModel {
                         byte c = bytes[end];
                         if (c != '/' && !Character.isJavaIdentifierPart((char)c)) {
                             // android_res/raw/my_drawable.png ⇒ @raw/my_drawable
-                            String url = "@" + new String(bytes, begin, end - begin, UTF_8);
-                            Resource resource = getResourceFromUrl(url);
-                            if (resource != null) {
-                                if (from != null) {
-                                    from.addReference(resource);
-                                } else {
-                                    markReachable(resource);
-                                }
-                            }
+                            found.addUrl("@" + new String(bytes, begin, end - begin, UTF_8));
                             break;
                         }
                     }
@@ -1536,25 +1786,9 @@ public class ResourceUsageModel {
         }
     }
 
-    /**
-     * Returns the index of the given target array in the first array, looking from the given
-     * index
-     */
-    private static int indexOf(byte[] array, byte[] target, int fromIndex) {
-        outer:
-        for (int i = fromIndex; i < array.length - target.length + 1; i++) {
-            for (int j = 0; j < target.length; j++) {
-                if (array[i + j] != target[j]) {
-                    continue outer;
-                }
-            }
-            return i;
-        }
-        return -1;
-    }
-
     /** Look through text files of unknown structure looking for resource URLs */
-    private void tokenizeUnknownText(@NonNull String text) {
+    private static void scanUnknownText(@NonNull TokenizedReferences found,
+            @NonNull String text) {
         int index = 0;
         while (index != -1) {
             index = text.indexOf(ANDROID_RES, index);
@@ -1569,7 +1803,7 @@ public class ResourceUsageModel {
                     char c = text.charAt(end);
                     if (c != '/' && !Character.isJavaIdentifierPart(c)) {
                         // android_res/raw/my_drawable.png ⇒ @raw/my_drawable
-                        markReachable(getResourceFromUrl("@" + text.substring(begin, end)));
+                        found.addUrl("@" + text.substring(begin, end));
                         break;
                     }
                 }
@@ -1579,6 +1813,27 @@ public class ResourceUsageModel {
 
     /** Adds the resource identifiers found in the given Java source code into the reference map */
     public void tokenizeJavaCode(@NonNull String s) {
+        TokenizedReferences found = new TokenizedReferences();
+        scanJavaCode(found, s);
+        apply(null, found);
+    }
+
+    /**
+     * Adds the resource identifiers found in the given Java source file into the reference
+     * map. Unlike {@link #tokenizeJavaCode(String)}, the file may be read and tokenized on
+     * a worker thread, and files which cannot be read or tokenized are skipped.
+     */
+    public void tokenizeJavaFile(@NonNull File file) {
+        tokenizeLater(null, found -> {
+            try {
+                scanJavaCode(found, Files.toString(file, UTF_8));
+            } catch (Throwable ignore) {
+                // Tolerate parsing errors etc in these files; they're user sources
+            }
+        });
+    }
+
+    private static void scanJavaCode(@NonNull TokenizedReferences found, @NonNull String s) {
         if (s.length() <= 2) {
             return;
         }
@@ -1654,9 +1909,7 @@ public class ResourceUsageModel {
                                 index++;
                             }
                             if (index > begin) {
-                                String name = s.substring(begin, index);
-                                Resource resource = addResource(type, name, null);
-                                markReachable(resource);
+                                found.addField(type, s.substring(begin, index));
                             }
                         }
                         index--;
@@ -1680,10 +1933,36 @@ public class ResourceUsageModel {
     protected void referencedString(@NonNull String string) {
     }
 
-    private void recordCssUrl(@Nullable Resource from, @NonNull String value) {
-        if (!referencedUrl(from, value)) {
-            referencedString(value);
+    /** Returns true if the class of this model overrides {@link #referencedString} */
+    private boolean overridesReferencedString() {
+        for (Class<?> c = getClass(); c != ResourceUsageModel.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("referencedString", String.class);
+                return true;
+            } catch (NoSuchMethodException ignore) {
+                // Not in this class
+            }
         }
+        return false;
+    }
+
+    /**
+     * Returns true if the heap is running low, in which case files are tokenized as they
+     * are visited rather than on worker threads, such that the pending references don't
+     * pile up
+     */
+    protected boolean isLowOnMemory() {
+        return false;
+    }
+
+    /**
+     * Sets the number of threads tokenizing web and binary files, or 1 to tokenize them
+     * as they are visited
+     */
+    @VisibleForTesting
+    void setTokenizerThreads(int threads) {
+        applyPendingReferences();
+        mTokenizerThreads = threads;
     }
 
     /**
@@ -1710,32 +1989,273 @@ public class ResourceUsageModel {
         return false;
     }
 
-    private void recordHtmlAttributeValue(@Nullable Resource from, @Nullable String tagName,
-            @Nullable String attribute, @NonNull String value) {
+    private static void recordHtmlAttributeValue(@NonNull TokenizedReferences found,
+            @Nullable String tagName, @Nullable String attribute, @NonNull String value) {
         if ("href".equals(attribute) || "src".equals(attribute)) {
             // In general we'd need to unescape the HTML here (e.g. remove entities) but
             // those wouldn't be valid characters in the resource name anyway
-            if (!referencedUrl(from, value)) {
-                referencedString(value);
-            }
+            found.addFileUrl(value);
 
             // If this document includes another, record the reachability of that script/resource
-            if (from != null) {
-                from.addReference(getResourceFromFilePath(attribute));
+            found.addInclude(attribute);
+        }
+    }
+
+    /** Records the references found by tokenizing a file in the model */
+    private void apply(@Nullable Resource from, @NonNull TokenizedReferences found) {
+        for (int i = 0, n = found.size(); i < n; i++) {
+            Object value = found.getValue(i);
+            switch (found.getKind(i)) {
+                case TokenizedReferences.URL: {
+                    Resource resource = getResourceFromUrl((String) value);
+                    if (resource != null) {
+                        if (from != null) {
+                            from.addReference(resource);
+                        } else {
+                            markReachable(resource);
+                        }
+                    }
+                    break;
+                }
+                case TokenizedReferences.FILE_URL:
+                    if (!referencedUrl(from, (String) value)) {
+                        referencedString((String) value);
+                    }
+                    break;
+                case TokenizedReferences.STRING:
+                    referencedString((String) value);
+                    break;
+                case TokenizedReferences.INCLUDE:
+                    if (from != null) {
+                        from.addReference(getResourceFromFilePath((String) value));
+                    }
+                    break;
+                case TokenizedReferences.FIELD: {
+                    String name = (String) found.getValue(++i);
+                    markReachable(addResource((ResourceType) value, name, null));
+                    break;
+                }
+                default:
+                    assert false : found.getKind(i);
             }
         }
     }
 
-    private void recordJsString(@NonNull String string) {
-        referencedString(string);
+    /**
+     * Tokenizes a file with the given scanner and records the references found with
+     * {@link #apply}. When several processors are available (and this model doesn't
+     * observe {@link #referencedString}), the scanner runs on a worker thread, and the
+     * references are recorded by {@link #applyPendingReferences()}, in the order the files
+     * were submitted; the scanner must therefore not access the model. While the heap is
+     * running low (see {@link #isLowOnMemory()}), files are tokenized as they are visited.
+     */
+    private void tokenizeLater(@Nullable Resource from,
+            @NonNull Consumer<TokenizedReferences> scanner) {
+        boolean lowOnMemory = mTokenizerThreads > 1 && isLowOnMemory();
+        if (mTokenizerThreads <= 1 || lowOnMemory) {
+            if (lowOnMemory) {
+                // Scale back: record what the worker threads found so far, in order, and
+                // let the threads go
+                applyPendingReferences();
+                if (mTokenizer != null) {
+                    mTokenizer.shutdown();
+                    mTokenizer = null;
+                }
+            }
+            TokenizedReferences found = new TokenizedReferences();
+            scanner.accept(found);
+            apply(from, found);
+            return;
+        }
+        if (mPendingReferences.size() >= MAX_PENDING_FILES) {
+            applyPendingReferences();
+        }
+        if (mTokenizer == null) {
+            mTokenizer = new ThreadPoolExecutor(mTokenizerThreads, mTokenizerThreads,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Lint resource tokenizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mTokenizer.allowCoreThreadTimeOut(true);
+        }
+        mPendingFrom.add(from);
+        mPendingReferences.add(mTokenizer.submit(() -> {
+            TokenizedReferences found = new TokenizedReferences();
+            scanner.accept(found);
+            return found;
+        }));
+    }
+
+    /**
+     * Records the references found by the files tokenized on worker threads so far.
+     * <p>
+     * The references found in web and binary files (to other resources, and to R fields
+     * making resources reachable) are recorded after the files are visited when they are
+     * tokenized on worker threads: at the latest when the model is read through
+     * {@link #getResources()}, {@link #findUnused()} etc. Subclasses which read the state
+     * of the model otherwise, such as through {@link #getResource}, should call this first.
+     */
+    protected void applyPendingReferences() {
+        if (mPendingReferences.isEmpty()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < mPendingReferences.size(); i++) {
+                apply(mPendingFrom.get(i), mPendingReferences.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            mPendingFrom.clear();
+            mPendingReferences.clear();
+        }
     }
 
     public List<Resource> getResources() {
+        applyPendingReferences();
         return mResources;
     }
 
     @NonNull
     public Collection<Map<String, Resource>> getResourceMaps() {
+        applyPendingReferences();
         return mTypeToName.values();
     }
+
+    /**
+     * An open addressing hash map from int keys to non-negative int values, such as
+     * from R field values to resource ids, which avoids boxing the keys
+     */
+    private static final class IntIntMap {
+        private int[] mKeys;
+        /** The value of each slot, or -1 for empty slots */
+        private int[] mValues;
+        private int mSize;
+
+        IntIntMap(int expectedSize) {
+            int capacity = 4;
+            while (capacity < 2 * expectedSize) {
+                capacity <<= 1;
+            }
+            mKeys = new int[capacity];
+            mValues = new int[capacity];
+            Arrays.fill(mValues, -1);
+        }
+
+        /** Returns the value for the given key, or -1 if none */
+        int get(int key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int value = mValues[i];
+                if (value == -1 || mKeys[i] == key) {
+                    return value;
+                }
+            }
+        }
+
+        void put(int key, int value) {
+            if (2 * (mSize + 1) > mKeys.length) {
+                int[] keys = mKeys;
+                int[] values = mValues;
+                mKeys = new int[2 * keys.length];
+                mValues = new int[2 * keys.length];
+                Arrays.fill(mValues, -1);
+                mSize = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (values[i] != -1) {
+                        put(keys[i], values[i]);
+                    }
+                }
+            }
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (mValues[i] == -1) {
+                    mKeys[i] = key;
+                    mValues[i] = value;
+                    mSize++;
+                    return;
+                } else if (mKeys[i] == key) {
+                    mValues[i] = value;
+                    return;
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The references found by tokenizing a file, recorded without accessing the model
+     * such that files can be tokenized concurrently; see {@link #apply}
+     */
+    private static final class TokenizedReferences {
+        /** A resource URL, such as {@code @drawable/foo} */
+        static final byte URL = 0;
+        /** A file path or URL which may name a resource, or else is a referenced string */
+        static final byte FILE_URL = 1;
+        /** A string which may be used to look up resources by name */
+        static final byte STRING = 2;
+        /** A file path naming a resource which the tokenized file includes */
+        static final byte INCLUDE = 3;
+        /** A reference to an R field: the resource type, followed by the name */
+        static final byte FIELD = 4;
+
+        private byte[] mKinds = new byte[16];
+        private final List<Object> mValues = Lists.newArrayList();
+
+        void addUrl(@NonNull String url) {
+            add(URL, url);
+        }
+
+        void addFileUrl(@NonNull String url) {
+            add(FILE_URL, url);
+        }
+
+        void addString(@NonNull String string) {
+            add(STRING, string);
+        }
+
+        void addInclude(@NonNull String path) {
+            add(INCLUDE, path);
+        }
+
+        void addField(@NonNull ResourceType type, @NonNull String name) {
+            add(FIELD, type);
+            add(FIELD, name);
+        }
+
+        private void add(byte kind, @NonNull Object value) {
+            int size = mValues.size();
+            if (size == mKinds.length) {
+                mKinds = Arrays.copyOf(mKinds, 2 * size);
+            }
+            mKinds[size] = kind;
+            mValues.add(value);
+        }
+
+        int size() {
+            return mValues.size();
+        }
+
+        byte getKind(int index) {
+            return mKinds[index];
+        }
+
+        @NonNull
+        Object getValue(int index) {
+            return mValues.get(index);
+        }
+    }
 }
@@ -396,13 +396,9 @@ public class UnusedResourceDetector extends ResourceXmlDetector implements UastS
                 if (file.isDirectory()) {
                     recordInactiveJavaReferences(file);
                 } else if (file.getName().endsWith(DOT_JAVA)) {
-                    try {
-                        String java = Files.toString(file, UTF_8);
-                        model.tokenizeJavaCode(java);
-                    } catch (Throwable ignore) {
-                        // Tolerate parsing errors etc in these files; they're user
-                        // sources, and this is even for inactive source sets.
-                    }
+                    // Tolerates parsing errors etc in these files; they're user
+                    // sources, and this is even for inactive source sets.
+                    model.tokenizeJavaFile(file);
                 }
             }
         }
@@ -618,6 +614,11 @@ public class UnusedResourceDetector extends ResourceXmlDetector implements UastS
             }
         }
 
+        @Override
+        protected boolean isLowOnMemory() {
+            return context != null && context.getDriver().isLowOnMemory();
+        }
+
         @Override
         protected Resource declareResource(ResourceType type, String name, Node node) {
             Resource resource = super.declareResource(type, name, node);
@@ -27,22 +27,24 @@ import com.android.tools.lint.detector.api.JavaContext
 import com.android.tools.lint.detector.api.Scope
 import com.android.tools.lint.detector.api.Severity
 import com.android.tools.lint.detector.api.interprocedural.CallGraph
-import com.android.tools.lint.detector.api.interprocedural.CallGraphVisitor
 import com.android.tools.lint.detector.api.interprocedural.CallTarget
-import com.android.tools.lint.detector.api.interprocedural.ClassHierarchyVisitor
 import com.android.tools.lint.detector.api.interprocedural.ContextualEdge
 import com.android.tools.lint.detector.api.interprocedural.ContextualNode
 import com.android.tools.lint.detector.api.interprocedural.DispatchReceiver
+import com.android.tools.lint.detector.api.interprocedural.IncrementalCallGraphBuilder
 import com.android.tools.lint.detector.api.interprocedural.IntraproceduralDispatchReceiverEvaluator
 import com.android.tools.lint.detector.api.interprocedural.IntraproceduralDispatchReceiverVisitor
+import com.android.tools.lint.detector.api.interprocedural.LazyContextualCallGraph
 import com.android.tools.lint.detector.api.interprocedural.ParamContext
-import com.android.tools.lint.detector.api.interprocedural.buildContextualCallGraph
+import com.android.tools.lint.detector.api.interprocedural.nodesReaching
 import com.android.tools.lint.detector.api.interprocedural.searchForContextualPaths
 import com.android.tools.lint.detector.api.interprocedural.shortName
+import com.google.common.hash.Hashing
 import com.intellij.codeInsight.AnnotationUtil
 import com.intellij.psi.PsiModifierListOwner
 import org.jetbrains.uast.UFile
 import org.jetbrains.uast.getContainingFile
+import java.io.File
 import java.util.EnumSet
 import java.util.HashMap
 
@@ -51,10 +53,16 @@ data class AnnotatedCallPath(
         val sourceAnnotation: String,
         val sinkAnnotation: String)
 
-/** Returns a collection of call paths that violate thread annotations found in source code. */
+/**
+ * Returns a collection of call paths that violate thread annotations found in source code.
+ * If the contextual call graph explored for the search hits its budgets, such that some
+ * violations may be missed, [onTruncated] is called with it.
+ */
 fun searchForInterproceduralThreadAnnotationViolations(
         callGraph: CallGraph,
-        receiverEval: IntraproceduralDispatchReceiverEvaluator): Collection<AnnotatedCallPath> {
+        receiverEval: IntraproceduralDispatchReceiverEvaluator,
+        maxNodes: Int = LazyContextualCallGraph.DEFAULT_MAX_NODES,
+        onTruncated: (LazyContextualCallGraph) -> Unit = {}): Collection<AnnotatedCallPath> {
 
     fun PsiModifierListOwner.isAnnotatedWith(annotation: String) =
             AnnotationUtil.isAnnotated(
@@ -70,7 +78,27 @@ fun searchForInterproceduralThreadAnnotationViolations(
         is CallTarget.DefaultCtor -> element.isAnnotatedWith(annotation)
     }
 
-    val contextualGraph = callGraph.buildContextualCallGraph(receiverEval)
+    fun CallTarget.hasAnnotatedParams() = when (this) {
+        is CallTarget.Method -> element.uastParameters.any {
+            it.psi.isAnnotatedWith(UI_THREAD_ANNOTATION) ||
+                    it.psi.isAnnotatedWith(WORKER_THREAD_ANNOTATION)
+        }
+        is CallTarget.Lambda -> element.valueParameters.any {
+            it.psi.isAnnotatedWith(UI_THREAD_ANNOTATION) ||
+                    it.psi.isAnnotatedWith(WORKER_THREAD_ANNOTATION)
+        }
+        is CallTarget.DefaultCtor -> false
+    }
+
+    // Only nodes which may reach an annotated node, or a node taking an annotated
+    // parameter, can be part of a violation, so we explore just those.
+    val relevant = callGraph.nodesReaching {
+        it.target.isAnnotatedWith(UI_THREAD_ANNOTATION) ||
+                it.target.isAnnotatedWith(WORKER_THREAD_ANNOTATION) ||
+                it.target.hasAnnotatedParams()
+    }
+    val contextualGraph = LazyContextualCallGraph(callGraph, receiverEval, relevant, maxNodes)
+    contextualGraph.explore(relevant)
     val uiSearchNodes = contextualGraph.contextualNodes.filter {
         it.node.target.isAnnotatedWith(SupportAnnotationDetector.UI_THREAD_ANNOTATION)
     }
@@ -104,8 +132,12 @@ fun searchForInterproceduralThreadAnnotationViolations(
                 }
             }
 
-    val allUiSearchNodes = uiSearchNodes + paramSearchNodes(UI_THREAD_ANNOTATION)
-    val allWorkerSearchNodes = workerSearchNodes + paramSearchNodes(WORKER_THREAD_ANNOTATION)
+    val uiParamSearchNodes = paramSearchNodes(UI_THREAD_ANNOTATION)
+    val workerParamSearchNodes = paramSearchNodes(WORKER_THREAD_ANNOTATION)
+    val paramTargets = (uiParamSearchNodes + workerParamSearchNodes).map { it.node }.toSet()
+    contextualGraph.markRelevant(callGraph.nodesReaching { it in paramTargets })
+    val allUiSearchNodes = uiSearchNodes + uiParamSearchNodes
+    val allWorkerSearchNodes = workerSearchNodes + workerParamSearchNodes
     val uiPaths = contextualGraph.searchForContextualPaths(
             allUiSearchNodes,
             allWorkerSearchNodes)
@@ -115,15 +147,15 @@ fun searchForInterproceduralThreadAnnotationViolations(
             allUiSearchNodes)
             .map { AnnotatedCallPath(it, WORKER_THREAD_ANNOTATION, UI_THREAD_ANNOTATION) }
 
+    if (contextualGraph.isTruncated) {
+        onTruncated(contextualGraph)
+    }
     return uiPaths + workerPaths
 }
 
 class WrongThreadInterproceduralDetector : Detector(), Detector.UastScanner {
-    private val chaVisitor = ClassHierarchyVisitor()
-    private val receiverEvalVisitor =
-            IntraproceduralDispatchReceiverVisitor(chaVisitor.classHierarchy)
-    private val callGraphVisitor =
-            CallGraphVisitor(receiverEvalVisitor.receiverEval, chaVisitor.classHierarchy)
+    private var callGraphBuilder: IncrementalCallGraphBuilder? = null
+    private var receiverEvalVisitor: IntraproceduralDispatchReceiverVisitor? = null
     private val fileContexts = HashMap<UFile, JavaContext>()
     private var phase = State.BuildingClassHierarchy
 
@@ -131,6 +163,9 @@ class WrongThreadInterproceduralDetector : Detector(), Detector.UastScanner {
 
     override fun getApplicableUastTypes() = listOf(UFile::class.java)
 
+    // One pass over the source files for each analysis phase.
+    override fun getSourcePassCount() = State.values().size
+
     override fun beforeCheckFile(context: Context) {
         if (context is JavaContext) {
             context.uastFile?.let { fileContexts[it] = context }
@@ -141,14 +176,45 @@ class WrongThreadInterproceduralDetector : Detector(), Detector.UastScanner {
     override fun createUastHandler(context: JavaContext): UElementHandler =
             object : UElementHandler() {
                 override fun visitFile(uFile: UFile) {
+                    val builder = getCallGraphBuilder(context)
                     when (phase) {
-                        State.BuildingClassHierarchy -> uFile.accept(chaVisitor)
-                        State.EvaluatingReceivers -> uFile.accept(receiverEvalVisitor)
-                        State.BuildingCallGraph -> uFile.accept(callGraphVisitor)
+                        State.BuildingClassHierarchy -> builder.addToClassHierarchy(
+                                context.file, context.getContents() ?: "", uFile)
+                        State.EvaluatingReceivers -> uFile.accept(getReceiverEvalVisitor(builder))
+                        State.BuildingCallGraph -> builder.addToCallGraph(
+                                context.file, uFile, getReceiverEvalVisitor(builder).receiverEval)
                     }
                 }
             }
 
+    /**
+     * Returns the call graph builder, which caches the per-file contributions to the
+     * class hierarchy and call graph across lint runs in the lint cache directory.
+     */
+    private fun getCallGraphBuilder(context: Context): IncrementalCallGraphBuilder {
+        callGraphBuilder?.let { return it }
+
+        val project = context.project
+        val projectKey = Hashing.sha1()
+                .hashString(project.dir.path, Charsets.UTF_8)
+                .toString()
+        val cacheDir = context.client.getCacheDir(CACHE_NAME, true)?.let { File(it, projectKey) }
+        // Changes to the libraries or build target can change how source files resolve
+        val environment = project.getJavaLibraries(true)
+                .joinToString(separator = ",", prefix = "${project.buildSdk}:") {
+                    "${it.path}@${it.lastModified()}"
+                }
+        val builder = IncrementalCallGraphBuilder(cacheDir, environment)
+        callGraphBuilder = builder
+        return builder
+    }
+
+    private fun getReceiverEvalVisitor(
+            builder: IncrementalCallGraphBuilder): IntraproceduralDispatchReceiverVisitor =
+            receiverEvalVisitor
+                    ?: IntraproceduralDispatchReceiverVisitor(builder.classHierarchy)
+                            .also { receiverEvalVisitor = it }
+
     /** Advance the analysis phase, returning false when there are no more phase changes left. */
     private fun advanceState(): Boolean {
         when (phase) {
@@ -160,13 +226,27 @@ class WrongThreadInterproceduralDetector : Detector(), Detector.UastScanner {
     }
 
     override fun afterCheckProject(context: Context) {
+        val builder = getCallGraphBuilder(context)
+        if (phase == State.BuildingClassHierarchy) {
+            builder.finishClassHierarchy()
+        }
         if (advanceState()) {
             context.driver.requestRepeat(this, SCOPE)
             return
         }
+        builder.save()
         val badPaths = searchForInterproceduralThreadAnnotationViolations(
-                callGraphVisitor.callGraph,
-                receiverEvalVisitor.receiverEval)
+                builder.freezeCallGraph(),
+                getReceiverEvalVisitor(builder).receiverEval) { graph ->
+            context.client.log(Severity.WARNING, null,
+                    "The interprocedural thread analysis of %1\$s reached its budget of " +
+                            "%2\$d call graph nodes and %3\$d contexts per method: %4\$d " +
+                            "calls were not followed, and %5\$d were followed without " +
+                            "their argument context, so some thread annotation violations " +
+                            "may not be reported",
+                    context.project.name, graph.maxNodes, graph.maxContextsPerNode,
+                    graph.droppedEdgeCount, graph.generalizedEdgeCount)
+        }
         for ((searchNodes, sourceAnnotation, sinkAnnotation) in badPaths) {
             if (searchNodes.size == 1) {
                 // This means that a node in the graph was annotated with both UiThread and
@@ -192,6 +272,10 @@ class WrongThreadInterproceduralDetector : Detector(), Detector.UastScanner {
 
     companion object {
         val SCOPE: EnumSet<Scope> = EnumSet.of(Scope.ALL_JAVA_FILES)
+
+        /** Name of the lint cache directory holding the call graph contributions */
+        private const val CACHE_NAME = "call-graph"
+
         val ISSUE = Issue.create(
                 "WrongThreadInterprocedural",
                 "Wrong Thread (Interprocedural)",
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.ANDROID_URI;
+
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.ManifestDetector;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LintFix;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings("javadoc")
+public class BinaryReporterTest extends AbstractCheckTest {
+    private static Warning createWarning(Issue issue, String message, Severity severity,
+            Project project, String path, int line, int column, int offset, int endOffset) {
+        Warning warning = new Warning(issue, message, severity, project);
+        warning.line = line;
+        warning.offset = offset;
+        warning.endOffset = endOffset;
+        warning.path = path;
+        warning.file = new File(project.getDir(), path);
+        warning.location = Location.create(warning.file,
+                new DefaultPosition(line, column, offset),
+                new DefaultPosition(line, column + endOffset - offset, endOffset));
+        return warning;
+    }
+
+    public void testRoundTrip() throws Exception {
+        File file = new File(getTargetDir(), "results.bin");
+        try {
+            LintCliClient client = createClient();
+            client.flags.setQuiet(true);
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            Project project = Project.create(client, new File("/foo/bar/Foo"),
+                    new File("/foo/bar/Foo"));
+
+            Warning warning1 = createWarning(ManifestDetector.USES_SDK,
+                    "<uses-sdk> tag should specify a target API level",
+                    Severity.WARNING, project, "AndroidManifest.xml", 6, 4, 198, 236);
+            warning1.errorLine = "    <uses-sdk android:minSdkVersion=\"8\" />\n    ^\n";
+            Location secondary = Location.create(new File("/foo/bar/Foo/build.gradle"));
+            secondary.setMessage("Also declared here");
+            warning1.location.setSecondary(secondary);
+            warning1.quickfixData = LintFix.create().set()
+                    .todo(ANDROID_URI, "targetSdkVersion").build();
+
+            Warning warning2 = createWarning(HardcodedValuesDetector.ISSUE,
+                    "Hardcoded string \"Fooo\", should use @string resource",
+                    Severity.WARNING, project, "res/layout/main.xml", 11, 8, 377, 396);
+            warning2.quickfixData = LintFix.create().group(
+                    LintFix.create().name("Replace").replace().text("Fooo")
+                            .with("@string/foo").build(),
+                    LintFix.create().unset(ANDROID_URI, "text").build());
+
+            List<Warning> warnings = Arrays.asList(warning1, warning2);
+            for (boolean compressed : new boolean[] { false, true }) {
+                new BinaryReporter(client, file, compressed)
+                        .write(new Reporter.Stats(0, 2), warnings);
+
+                try (BinaryResultsReader reader = new BinaryResultsReader(client,
+                        new BuiltinIssueRegistry(), file, new BinaryResultsReader.SharedObjects())) {
+                    assertEquals(0, reader.getStats().errorCount);
+                    assertEquals(2, reader.getStats().warningCount);
+
+                    Warning read1 = reader.read();
+                    assertNotNull(read1);
+                    assertSame(ManifestDetector.USES_SDK, read1.issue);
+                    assertEquals(warning1, read1);
+                    assertEquals(Severity.WARNING, read1.severity);
+                    assertEquals(project.getDir(), read1.project.getDir());
+                    assertEquals("AndroidManifest.xml", read1.path);
+                    assertEquals(warning1.errorLine, read1.errorLine);
+                    assertEquals(198, read1.offset);
+                    assertEquals(236, read1.endOffset);
+                    assertSame(read1.file, read1.location.getFile());
+                    assertEquals(236, read1.location.getEnd().getOffset());
+                    Location readSecondary = read1.location.getSecondary();
+                    assertNotNull(readSecondary);
+                    assertEquals(secondary.getFile(), readSecondary.getFile());
+                    assertNull(readSecondary.getStart());
+                    assertEquals("Also declared here", readSecondary.getMessage());
+                    LintFix.SetAttribute set = (LintFix.SetAttribute) read1.quickfixData;
+                    LintFix.SetAttribute expectedSet =
+                            (LintFix.SetAttribute) warning1.quickfixData;
+                    assertEquals(ANDROID_URI, set.namespace);
+                    assertEquals("targetSdkVersion", set.attribute);
+                    assertEquals(expectedSet.value, set.value);
+                    assertEquals(expectedSet.dot, set.dot);
+                    assertEquals(expectedSet.mark, set.mark);
+
+                    Warning read2 = reader.read();
+                    assertNotNull(read2);
+                    assertEquals(warning2, read2);
+                    assertSame(read1.project, read2.project);
+                    assertNull(read2.errorLine);
+                    LintFix.LintFixGroup group = (LintFix.LintFixGroup) read2.quickfixData;
+                    assertEquals(LintFix.GroupType.ALTERNATIVES, group.type);
+                    assertEquals(2, group.fixes.size());
+                    LintFix.ReplaceString replace = (LintFix.ReplaceString) group.fixes.get(0);
+                    assertEquals("Replace", replace.getDisplayName());
+                    assertEquals("Fooo", replace.oldString);
+                    assertEquals("@string/foo", replace.replacement);
+                    LintFix.SetAttribute unset = (LintFix.SetAttribute) group.fixes.get(1);
+                    assertEquals("text", unset.attribute);
+                    assertNull(unset.value);
+
+                    assertNull(reader.read());
+                }
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testUnknownIssue() throws Exception {
+        File file = new File(getTargetDir(), "results.bin");
+        try {
+            LintCliClient client = createClient();
+            client.flags.setQuiet(true);
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            Project project = Project.create(client, new File("/foo/bar/Foo"),
+                    new File("/foo/bar/Foo"));
+            Issue custom = Issue.create("MyCustomIssue", "Custom issue", "Explanation",
+                    HardcodedValuesDetector.ISSUE.getCategory(), 4, Severity.ERROR,
+                    new Implementation(Detector.class, Scope.JAVA_FILE_SCOPE))
+                    .addMoreInfo("http://example.com/custom");
+            Warning warning = createWarning(custom, "Custom message", Severity.ERROR,
+                    project, "src/Foo.java", 1, 0, 10, 13);
+
+            new BinaryReporter(client, file, true).write(new Reporter.Stats(1, 0),
+                    Collections.singletonList(warning));
+
+            try (BinaryResultsReader reader = new BinaryResultsReader(client,
+                    new BuiltinIssueRegistry(), file, new BinaryResultsReader.SharedObjects())) {
+                Warning read = reader.read();
+                assertNotNull(read);
+                assertNotSame(custom, read.issue);
+                assertEquals("MyCustomIssue", read.issue.getId());
+                assertEquals(custom.getCategory(), read.issue.getCategory());
+                assertEquals(4, read.issue.getPriority());
+                assertEquals(Severity.ERROR, read.issue.getDefaultSeverity());
+                assertEquals(custom.getMoreInfo(), read.issue.getMoreInfo());
+                assertEquals(0, warning.compareTo(read));
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testMerge() throws Exception {
+        File file1 = new File(getTargetDir(), "results1.bin");
+        File file2 = new File(getTargetDir(), "results2.bin");
+        File xml = new File(getTargetDir(), "merged.xml");
+        try {
+            LintCliClient client = createClient();
+            client.flags.setQuiet(true);
+            //noinspection ResultOfMethodCallIgnored
+            file1.getParentFile().mkdirs();
+            Project app = Project.create(client, new File("/foo/bar/App"),
+                    new File("/foo/bar/App"));
+            Project lib = Project.create(client, new File("/foo/bar/Lib"),
+                    new File("/foo/bar/Lib"));
+
+            Warning appWarning = createWarning(HardcodedValuesDetector.ISSUE,
+                    "Hardcoded string \"App\", should use @string resource",
+                    Severity.WARNING, app, "res/layout/main.xml", 11, 8, 377, 396);
+            Warning libWarning = createWarning(HardcodedValuesDetector.ISSUE,
+                    "Hardcoded string \"Lib\", should use @string resource",
+                    Severity.WARNING, lib, "res/layout/lib.xml", 3, 8, 77, 96);
+            Warning manifestWarning = createWarning(ManifestDetector.USES_SDK,
+                    "<uses-sdk> tag should specify a target API level",
+                    Severity.ERROR, app, "AndroidManifest.xml", 6, 4, 198, 236);
+
+            // Both runs analyzed the library
+            List<Warning> warnings1 = Arrays.asList(appWarning, libWarning, manifestWarning);
+            Collections.sort(warnings1);
+            new BinaryReporter(client, file1, true).write(new Reporter.Stats(1, 2), warnings1);
+            List<Warning> warnings2 = Collections.singletonList(libWarning);
+            new BinaryReporter(client, file2, false).write(new Reporter.Stats(0, 1),
+                    warnings2);
+
+            client.flags.getReporters().clear();
+            client.flags.getReporters().add(new XmlReporter(client, xml));
+            client.flags.setSetExitCode(true);
+            int exitCode = client.mergeResults(new BuiltinIssueRegistry(),
+                    Arrays.asList(file2, file1));
+
+            assertEquals(LintCliFlags.ERRNO_ERRORS, exitCode);
+            assertEquals(3, client.warnings.size());
+            assertEquals(1, client.errorCount);
+            assertEquals(2, client.warningCount);
+            for (int i = 1; i < client.warnings.size(); i++) {
+                assertTrue(client.warnings.get(i - 1).compareTo(client.warnings.get(i)) <= 0);
+            }
+            assertSame(ManifestDetector.USES_SDK, client.warnings.get(0).issue);
+
+            String report = Files.toString(xml, Charsets.UTF_8);
+            assertEquals(3, report.split("<issue\n").length - 1);
+            assertTrue(report.contains("Hardcoded string &quot;Lib&quot;"));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file1.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file2.delete();
+            //noinspection ResultOfMethodCallIgnored
+            xml.delete();
+        }
+    }
+
+    public void testMergeCustomIssues() throws Exception {
+        File file1 = new File(getTargetDir(), "results1.bin");
+        File file2 = new File(getTargetDir(), "results2.bin");
+        File file3 = new File(getTargetDir(), "results3.bin");
+        try {
+            LintCliClient client = createClient();
+            client.flags.setQuiet(true);
+            //noinspection ResultOfMethodCallIgnored
+            file1.getParentFile().mkdirs();
+            Project project = Project.create(client, new File("/foo/bar/Foo"),
+                    new File("/foo/bar/Foo"));
+            // A custom category which sorts before all the builtin ones
+            Category parent = Category.create("Custom", 200);
+            Category category = Category.create(parent, "Checks", 200);
+            Issue custom = Issue.create("MyCustomIssue", "Custom issue", "Explanation",
+                    category, 4, Severity.WARNING,
+                    new Implementation(Detector.class, Scope.JAVA_FILE_SCOPE));
+            Warning custom1 = createWarning(custom, "Custom message 1", Severity.WARNING,
+                    project, "src/A.java", 1, 0, 10, 13);
+            Warning custom2 = createWarning(custom, "Custom message 2", Severity.WARNING,
+                    project, "src/B.java", 1, 0, 10, 13);
+            Warning custom3 = createWarning(custom, "Custom message 3", Severity.WARNING,
+                    project, "src/C.java", 1, 0, 10, 13);
+            Warning builtin = createWarning(HardcodedValuesDetector.ISSUE,
+                    "Hardcoded string \"Fooo\", should use @string resource",
+                    Severity.WARNING, project, "res/layout/main.xml", 11, 8, 377, 396);
+
+            // Each file has some of the warnings, such that the duplicates interleave
+            new BinaryReporter(client, file1, true).write(new Reporter.Stats(0, 4),
+                    Arrays.asList(custom1, custom2, custom3, builtin));
+            new BinaryReporter(client, file2, true).write(new Reporter.Stats(0, 2),
+                    Arrays.asList(custom1, custom3));
+            new BinaryReporter(client, file3, true).write(new Reporter.Stats(0, 3),
+                    Arrays.asList(custom2, custom3, builtin));
+
+            client.flags.getReporters().clear();
+            client.flags.getReporters().add(new TextReporter(client, client.flags,
+                    new StringWriter(), false));
+            client.mergeResults(new BuiltinIssueRegistry(), Arrays.asList(file2, file3, file1));
+
+            assertEquals(4, client.warnings.size());
+            assertEquals(4, client.warningCount);
+            for (int i = 1; i < client.warnings.size(); i++) {
+                assertTrue(client.warnings.get(i - 1).compareTo(client.warnings.get(i)) < 0);
+            }
+            Issue merged = client.warnings.get(0).issue;
+            assertEquals("MyCustomIssue", merged.getId());
+            for (int i = 0; i < 3; i++) {
+                assertSame(merged, client.warnings.get(i).issue);
+            }
+            assertEquals(category, merged.getCategory());
+            assertEquals(200, merged.getCategory().getPriority());
+            assertEquals(parent, merged.getCategory().getParent());
+            assertSame(HardcodedValuesDetector.ISSUE, client.warnings.get(3).issue);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file1.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file2.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file3.delete();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@SuppressWarnings("javadoc")
+public class IncrementalAnalysisTest extends AbstractCheckTest {
+    private static File createFile(File dir, String path, String contents) throws IOException {
+        File file = new File(dir, path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(contents, file, Charsets.UTF_8);
+        return file;
+    }
+
+    public void testScan() throws Exception {
+        File dir = new File(getTargetDir(), "incremental");
+        IncrementalAnalysis analysis = new IncrementalAnalysis(createClient());
+
+        File source = createFile(dir, "src/test/pkg/MyActivity.java", ""
+                + "package test.pkg;\n"
+                + "\n"
+                + "import android.app.Activity;\n"
+                + "\n"
+                + "public class MyActivity extends Activity {\n"
+                + "    int layout = R.layout.main;\n"
+                + "    int ok = android.R.string.ok;\n"
+                + "}\n");
+        assertEquals(Sets.newHashSet("+class/test.pkg.MyActivity", "+package/test.pkg",
+                "package/test.pkg", "class/android.app.Activity", "class/android.R",
+                "layout/main"), analysis.scan(source));
+
+        File layout = createFile(dir, "res/layout/main.xml", ""
+                + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <include layout=\"@layout/toolbar\" />\n"
+                + "    <test.pkg.MyView\n"
+                + "        android:id=\"@+id/view\"\n"
+                + "        android:text=\"@android:string/ok\"\n"
+                + "        style=\"@style/Widget.View\" />\n"
+                + "</LinearLayout>\n");
+        assertEquals(Sets.newHashSet("+layout/main", "layout/toolbar", "class/test.pkg.MyView",
+                "+id/view", "id/view", "style/Widget_View"), analysis.scan(layout));
+
+        File values = createFile(dir, "res/values-en/strings.xml", ""
+                + "<resources>\n"
+                + "    <string name=\"app_name\">App</string>\n"
+                + "    <string-array name=\"names\"><item>@string/app_name</item></string-array>\n"
+                + "    <style name=\"Widget.View\"><item name=\"android:x\">1</item></style>\n"
+                + "    <item name=\"extra\" type=\"id\" />\n"
+                + "</resources>\n");
+        assertEquals(Sets.newHashSet("+string/app_name", "+array/names", "+style/Widget_View",
+                "+id/extra", "string/app_name"), analysis.scan(values));
+
+        File manifest = createFile(dir, "AndroidManifest.xml", ""
+                + "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"test.pkg\">\n"
+                + "    <application android:icon=\"@mipmap/icon\">\n"
+                + "        <activity android:name=\".MyActivity\" />\n"
+                + "        <service android:name=\"MyService\" />\n"
+                + "    </application>\n"
+                + "</manifest>\n");
+        assertEquals(Sets.newHashSet("mipmap/icon", "class/test.pkg.MyActivity",
+                "class/test.pkg.MyService"), analysis.scan(manifest));
+
+        File icon = createFile(dir, "res/drawable-hdpi/icon.9.png", "");
+        assertEquals(Collections.singleton("+drawable/icon"), analysis.scan(icon));
+    }
+
+    public void testFindDependents() throws Exception {
+        File dir = new File(getTargetDir(), "incremental");
+        IncrementalAnalysis analysis = new IncrementalAnalysis(createClient());
+
+        File toolbar = createFile(dir, "res/layout/toolbar.xml", "<Toolbar />\n");
+        File main = new File(dir, "res/layout/main.xml");
+        File other = new File(dir, "res/layout/other.xml");
+        File activity = new File(dir, "src/test/pkg/MyActivity.java");
+        File deleted = new File(dir, "res/values/deleted.xml");
+        File manifest = new File(dir, "AndroidManifest.xml");
+
+        Map<File, Set<String>> index = new HashMap<>();
+        index.put(toolbar, Sets.newHashSet("+layout/toolbar"));
+        index.put(main, Sets.newHashSet("+layout/main", "layout/toolbar"));
+        index.put(other, Sets.newHashSet("+layout/other", "string/removed"));
+        index.put(activity, Sets.newHashSet("+class/test.pkg.MyActivity", "layout/main"));
+        index.put(deleted, Sets.newHashSet("+string/removed"));
+        index.put(manifest, Sets.newHashSet("class/test.pkg.MyActivity"));
+
+        // Layouts including the changed layout, and the files referencing those
+        assertEquals(Sets.newHashSet(main, activity, manifest),
+                analysis.findDependents(Collections.singleton(toolbar), index));
+        // References to resources defined before the change
+        assertEquals(Collections.singleton(other),
+                analysis.findDependents(Collections.singleton(deleted), index));
+        assertEquals(Collections.singleton(manifest),
+                analysis.findDependents(Collections.singleton(activity), index));
+        // Nothing references the manifest
+        assertEquals(Collections.<File>emptySet(),
+                analysis.findDependents(Collections.singleton(manifest), index));
+    }
+
+    public void testFindSamePackageDependents() throws Exception {
+        File dir = new File(getTargetDir(), "incremental");
+        IncrementalAnalysis analysis = new IncrementalAnalysis(createClient());
+
+        File helper = createFile(dir, "src/test/pkg/Helper.java", ""
+                + "package test.pkg;\n"
+                + "class Helper {\n"
+                + "    static final int SIZE = 5;\n"
+                + "}\n");
+        File user = createFile(dir, "src/test/pkg/User.java", ""
+                + "package test.pkg;\n"
+                + "class User {\n"
+                + "    int size = Helper.SIZE;\n"
+                + "}\n");
+        File qualified = createFile(dir, "src/test/other/Qualified.java", ""
+                + "package test.other;\n"
+                + "class Qualified {\n"
+                + "    int size = test.pkg.Helper.SIZE;\n"
+                + "}\n");
+        File unrelated = createFile(dir, "src/test/other/Unrelated.java", ""
+                + "package test.other2;\n"
+                + "class Unrelated {\n"
+                + "}\n");
+
+        Map<File, Set<String>> index = new HashMap<>();
+        for (File file : new File[] { helper, user, qualified, unrelated }) {
+            index.put(file, analysis.scan(file));
+        }
+
+        // Uses without imports: in the same package, or by fully qualified name
+        assertEquals(Sets.newHashSet(helper, user, qualified),
+                analysis.findDependents(Collections.singleton(helper), index));
+    }
+
+    public void testAffectsProjectChecks() throws Exception {
+        File dir = new File(getTargetDir(), "incremental").getCanonicalFile();
+        IncrementalAnalysis analysis = new IncrementalAnalysis(createClient());
+        List<File> roots = Collections.singletonList(dir);
+
+        File strings = createFile(dir, "res/values/strings.xml", ""
+                + "<resources>\n"
+                + "    <string name=\"app_name\">App</string>\n"
+                + "</resources>\n");
+        Map<File, Set<String>> index = new HashMap<>();
+        index.put(strings, analysis.scan(strings));
+
+        // Changing a value doesn't change the definitions and references
+        createFile(dir, "res/values/strings.xml", ""
+                + "<resources>\n"
+                + "    <string name=\"app_name\">My App</string>\n"
+                + "</resources>\n");
+        assertFalse(analysis.affectsProjectChecks(Collections.singleton(strings), index,
+                roots));
+
+        // Adding a string does, for example for the unused resources check
+        createFile(dir, "res/values/strings.xml", ""
+                + "<resources>\n"
+                + "    <string name=\"app_name\">My App</string>\n"
+                + "    <string name=\"title\">Title</string>\n"
+                + "</resources>\n");
+        assertTrue(analysis.affectsProjectChecks(Collections.singleton(strings), index,
+                roots));
+
+        // New files, and configuration files, in the analyzed projects
+        File layout = createFile(dir, "res/layout/main.xml", "<LinearLayout />\n");
+        assertTrue(analysis.affectsProjectChecks(Collections.singleton(layout), index,
+                roots));
+        File configuration = createFile(dir, "lint.xml", "<lint />\n");
+        assertTrue(analysis.affectsProjectChecks(Collections.singleton(configuration), index,
+                roots));
+
+        // Files outside the analyzed projects are ignored
+        File outside = new File(dir.getParentFile(), "outside/lint.xml");
+        assertFalse(analysis.affectsProjectChecks(Collections.singleton(outside), index,
+                roots));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class LintWorkerPoolTest extends TestCase {
+    public void testAssign() {
+        File a = new File("a");
+        File b = new File("b");
+        File c = new File("c");
+        File d = new File("d");
+        List<File> projects = Arrays.asList(a, b, c, d);
+        LintWorkerPool pool = new LintWorkerPool(Collections.emptyList(), 2);
+
+        // The largest project gets a worker to itself
+        List<List<File>> assigned = pool.assign(projects, new int[] { 10, 100, 30, 50 });
+        assertEquals(2, assigned.size());
+        assertEquals(Collections.singletonList(b), assigned.get(0));
+        assertEquals(Arrays.asList(a, c, d), assigned.get(1));
+
+        // Never more workers than projects
+        pool = new LintWorkerPool(Collections.emptyList(), 8);
+        assigned = pool.assign(Arrays.asList(a, b), new int[] { 1, 1 });
+        assertEquals(2, assigned.size());
+        assertEquals(Collections.singletonList(a), assigned.get(0));
+        assertEquals(Collections.singletonList(b), assigned.get(1));
+    }
+
+    public void testGroupProjects() throws IOException {
+        File root = Files.createTempDir();
+        try {
+            File app1 = createProject(root, "app1", "../lib");
+            File app2 = createProject(root, "app2", "../lib");
+            File lib = createProject(root, "lib", null);
+            File other = createProject(root, "other", null);
+            File app3 = createProject(root, "app3", "../lib2");
+            File app4 = createProject(root, "app4", "../lib2");
+            createProject(root, "lib2", null);
+            LintCliClient client = new LintCliClient(new LintCliFlags(), "test");
+
+            // Apps are grouped with their libraries, and apps sharing a library with each
+            // other, even if the library isn't analyzed itself
+            List<File> projects = Arrays.asList(lib, app1, other, app2, app3, app4);
+            List<List<File>> groups = LintWorkerPool.groupProjects(client, projects);
+            assertEquals(3, groups.size());
+            assertEquals(Arrays.asList(lib, app1, app2), groups.get(0));
+            assertEquals(Collections.singletonList(other), groups.get(1));
+            assertEquals(Arrays.asList(app3, app4), groups.get(2));
+
+            // The groups are never split over workers
+            LintWorkerPool pool = new LintWorkerPool(Collections.emptyList(), 4);
+            List<List<File>> assigned = pool.assignProjects(client, projects);
+            assertEquals(3, assigned.size());
+            for (List<File> worker : assigned) {
+                assertEquals(worker.contains(lib), worker.contains(app1));
+                assertEquals(worker.contains(lib), worker.contains(app2));
+            }
+        } finally {
+            deleteFile(root);
+        }
+    }
+
+    private static File createProject(File root, String name, String library)
+            throws IOException {
+        File dir = new File(root, name);
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        Files.write("<manifest package=\"test." + name + "\"/>\n",
+                new File(dir, "AndroidManifest.xml"), Charsets.UTF_8);
+        if (library != null) {
+            Files.write("android.library.reference.1=" + library + "\n",
+                    new File(dir, "project.properties"), Charsets.UTF_8);
+        }
+        File src = new File(dir, "src");
+        //noinspection ResultOfMethodCallIgnored
+        src.mkdirs();
+        Files.write("class Foo {}\n", new File(src, "Foo.java"), Charsets.UTF_8);
+        return dir;
+    }
+
+    private static void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFile(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -137,6 +137,38 @@ public class MainTest extends AbstractCheckTest {
         });
     }
 
+    public void testDisableBuiltinIssueOutsideCheckedIssues() throws Exception {
+        // SdCardPath is a valid issue id even though it is not one of the checked
+        // issues, so it should not be flagged as unknown
+        checkDriver(
+        // Expected output
+        "\n" +
+        "Scanning MainTest_testDisableBuiltinIssueOutsideCheckedIssues: .\n" +
+        "res/layout/accessibility.xml:4: Warning: Missing contentDescription attribute on image [ContentDescription]\n" +
+        "    <ImageView android:id=\"@+id/android_logo\" android:layout_width=\"wrap_content\" android:layout_height=\"wrap_content\" android:src=\"@drawable/android_button\" android:focusable=\"false\" android:clickable=\"false\" android:layout_weight=\"1.0\" />\n" +
+        "    ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
+        "res/layout/accessibility.xml:5: Warning: Missing contentDescription attribute on image [ContentDescription]\n" +
+        "    <ImageButton android:importantForAccessibility=\"yes\" android:id=\"@+id/android_logo2\" android:layout_width=\"wrap_content\" android:layout_height=\"wrap_content\" android:src=\"@drawable/android_button\" android:focusable=\"false\" android:clickable=\"false\" android:layout_weight=\"1.0\" />\n" +
+        "    ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
+        "0 errors, 2 warnings\n",
+
+        // Expected error
+        "",
+
+        // Expected exit code
+        ERRNO_SUCCESS,
+
+        // Args
+        new String[] {
+                "--check",
+                "ContentDescription,HardcodedText",
+                "--disable",
+                "SdCardPath",
+                getProjectDir(null, mAccessibility).getPath()
+
+        });
+    }
+
     public void testShowDescription() throws Exception {
         checkDriver(
         // Expected output
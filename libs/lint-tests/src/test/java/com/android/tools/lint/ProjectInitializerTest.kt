@@ -401,6 +401,62 @@ C.java:6: Warning: Do not hardcode "/sdcard/"; use Environment.getExternalStorag
                 null, null)
     }
 
+    @Test
+    fun testSourceRoots() {
+        val root = temp.newFolder()
+        fun sourceBytes(path: String, bytes: ByteArray): String {
+            val file = File(root, path)
+            file.parentFile.mkdirs()
+            Files.asByteSink(file).write(bytes)
+            return path
+        }
+        fun source(path: String, contents: String) =
+                sourceBytes(path, contents.toByteArray(Charsets.UTF_8))
+
+        val sources = listOf(
+                source("src1/test/pkg/A.java", """
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ */
+// package wrong;
+package test.pkg;
+
+class A {
+}"""),
+                source("src2/test/pkg2/B.kt", """
+@file:JvmName("Bs")
+@file:Suppress(
+        "unused", // not ) or "
+        "unchecked", /* ] */
+        "UNUSED_PARAMETER")
+
+/** package wrong */
+package test.pkg2
+
+fun b() {
+}"""),
+                source("src3/p/C.java", "\uFEFF@Deprecated package p;\nclass C {}"),
+                sourceBytes("src4/q/D.java", byteArrayOf(0xff.toByte(), 0xfe.toByte()) +
+                        "package q;\nclass D {}".toByteArray(Charsets.UTF_16LE)),
+                source("src5/E.java", "// package wrong;\nclass E {}"))
+
+        @Language("XML")
+        val descriptor = """
+            <project>
+            <module name="M" android="false">
+            ${sources.joinToString("\n") { "<src file=\"$it\" />" }}
+            </module>
+            </project>""".trimIndent()
+        val descriptorFile = File(root, "project.xml")
+        Files.asCharSink(descriptorFile, Charsets.UTF_8).write(descriptor)
+
+        val projects = computeMetadata(LintCliClient(), descriptorFile).projects
+        assertThat(projects).hasSize(1)
+        assertThat(projects[0].javaSourceFolders).containsExactly(File(root, "src1"),
+                File(root, "src2"), File(root, "src3"), File(root, "src4"),
+                File(root, "src5")).inOrder()
+    }
+
     companion object {
         @ClassRule
         @JvmField
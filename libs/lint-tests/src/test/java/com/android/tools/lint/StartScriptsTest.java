@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class StartScriptsTest extends TestCase {
+    /** The relevant lines of the Unix script generated by Gradle */
+    private static final String UNIX_SCRIPT = ""
+            + "#!/usr/bin/env sh\n"
+            + "DEFAULT_JVM_OPTS='\"-Xmx1024m\" "
+            + "\"-Dcom.android.tools.lint.bindir=MY_APP_HOME\"'\n"
+            + "eval set -- $DEFAULT_JVM_OPTS com.android.tools.lint.Main \"$APP_ARGS\"\n"
+            + "\n"
+            + "exec \"$JAVACMD\" \"$@\"\n";
+
+    /** The relevant lines of the Windows script generated by Gradle */
+    private static final String WINDOWS_SCRIPT = ""
+            + "@if \"%DEBUG%\" == \"\" @echo off\r\n"
+            + "set DEFAULT_JVM_OPTS=\"-Xmx1024m\" "
+            + "\"-Dcom.android.tools.lint.bindir=MY_APP_HOME\"\r\n"
+            + ":execute\r\n"
+            + "\"%JAVA_EXE%\" %DEFAULT_JVM_OPTS% %JAVA_OPTS% %LINT_OPTS% "
+            + "-classpath \"%CLASSPATH%\" com.android.tools.lint.Main %CMD_LINE_ARGS%\r\n";
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFile(dir);
+        super.tearDown();
+    }
+
+    private static void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFile(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    public void testRewriteUnixScript() {
+        String script = StartScripts.rewriteUnixScript(UNIX_SCRIPT);
+        assertFalse(script.contains(StartScripts.APP_HOME));
+        assertTrue(script.contains("\"-Dcom.android.tools.lint.bindir=$APP_HOME\""));
+        assertTrue(script.contains("STARTUP_ARCHIVE=$APP_HOME/lib/lint.jsa\n"));
+        // The archive is checked right before lint is run
+        assertTrue(script.endsWith("    fi\nfi\n\n" + StartScripts.UNIX_COMMAND + "\n"));
+    }
+
+    public void testRewriteWindowsScript() {
+        String script = StartScripts.rewriteWindowsScript(WINDOWS_SCRIPT);
+        assertFalse(script.contains(StartScripts.APP_HOME));
+        assertTrue(script.contains("\"-Dcom.android.tools.lint.bindir=%~dp0\\..\""));
+        assertTrue(script.contains("set STARTUP_ARCHIVE=%APP_HOME%\\lib\\lint.jsa\r\n"));
+        assertTrue(script.contains(":runLint\r\n\"%JAVA_EXE%\" %STARTUP_OPTS% "
+                + "%DEFAULT_JVM_OPTS% %JAVA_OPTS% %LINT_OPTS% -classpath"));
+        // The script keeps its line separators
+        assertFalse(script.replace("\r\n", "").contains("\n"));
+    }
+
+    public void testMissingCommand() {
+        try {
+            StartScripts.rewriteUnixScript("#!/usr/bin/env sh\njava \"$@\"\n");
+            fail("Expected the missing command to be reported");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(StartScripts.UNIX_COMMAND));
+        }
+        try {
+            StartScripts.rewriteWindowsScript("java %*\r\n");
+            fail("Expected the missing command to be reported");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(StartScripts.WINDOWS_COMMAND));
+        }
+    }
+
+    public void testMain() throws IOException {
+        File unixScript = new File(dir, "lint");
+        File windowsScript = new File(dir, "lint.bat");
+        Files.write(UNIX_SCRIPT, unixScript, Charsets.UTF_8);
+        Files.write(WINDOWS_SCRIPT, windowsScript, Charsets.UTF_8);
+        StartScripts.main(new String[] { unixScript.getPath(), windowsScript.getPath() });
+        assertEquals(StartScripts.rewriteUnixScript(UNIX_SCRIPT),
+                Files.toString(unixScript, Charsets.UTF_8));
+        assertEquals(StartScripts.rewriteWindowsScript(WINDOWS_SCRIPT),
+                Files.toString(windowsScript, Charsets.UTF_8));
+    }
+
+    /** Runs the archive check of the Unix script with a fake Java command */
+    public void testUnixScriptUsesArchive() throws Exception {
+        if (SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS
+                || !new File("/bin/sh").canExecute()) {
+            return;
+        }
+        File java = new File(dir, "java");
+        Files.write("#!/bin/sh\necho \"$LINT_JAVACMD\" \"$@\"\n", java, Charsets.UTF_8);
+        assertTrue(java.setExecutable(true));
+        assertTrue(java.setLastModified(System.currentTimeMillis() - 60000));
+        File lib = new File(dir, "lib");
+        assertTrue(lib.mkdirs());
+        File archive = new File(lib, StartupTrainer.ARCHIVE_NAME);
+        File jvmFile = StartupTrainer.getJvmFile(archive);
+
+        String command = java.getPath() + " -Xmx1024m Main";
+        assertEquals(command, runUnixScript(java));
+
+        // An archive created for this Java command is used
+        Files.write("", archive, Charsets.UTF_8);
+        Files.write(java.getPath() + "\n", jvmFile, Charsets.UTF_8);
+        assertEquals(java.getPath() + " -Xshare:auto -XX:SharedArchiveFile="
+                + archive.getPath() + " -Xmx1024m Main", runUnixScript(java));
+
+        // but not one created for another Java command
+        Files.write("/usr/bin/java\n", jvmFile, Charsets.UTF_8);
+        assertEquals(command, runUnixScript(java));
+
+        // nor one older than the Java command, which may have been updated since
+        Files.write(java.getPath() + "\n", jvmFile, Charsets.UTF_8);
+        assertTrue(archive.setLastModified(System.currentTimeMillis() - 120000));
+        assertEquals(command, runUnixScript(java));
+    }
+
+    @NonNull
+    private String runUnixScript(@NonNull File java) throws Exception {
+        File script = new File(dir, "lint");
+        Files.write(StartScripts.rewriteUnixScript(""
+                + "#!/bin/sh\n"
+                + "APP_HOME=" + dir.getPath() + "\n"
+                + "JAVACMD=" + java.getPath() + "\n"
+                + "set -- -Xmx1024m Main\n"
+                + "\n"
+                + StartScripts.UNIX_COMMAND + "\n"), script, Charsets.UTF_8);
+        Process process = new ProcessBuilder("/bin/sh", script.getPath())
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(ByteStreams.toByteArray(process.getInputStream()),
+                Charsets.UTF_8);
+        assertEquals(output, 0, process.waitFor());
+        return output.trim();
+    }
+}
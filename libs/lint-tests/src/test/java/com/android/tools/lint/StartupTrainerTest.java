@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class StartupTrainerTest extends TestCase {
+    public void testGetMajorVersion() {
+        assertEquals(8, StartupTrainer.getMajorVersion("1.8"));
+        assertEquals(9, StartupTrainer.getMajorVersion("9"));
+        assertEquals(10, StartupTrainer.getMajorVersion("10"));
+        assertEquals(11, StartupTrainer.getMajorVersion("11-ea"));
+        assertEquals(0, StartupTrainer.getMajorVersion("unknown"));
+    }
+
+    public void testGetJvmFile() {
+        File archive = new File("lib", StartupTrainer.ARCHIVE_NAME);
+        assertEquals(new File("lib", "lint.jsa.jvm"), StartupTrainer.getJvmFile(archive));
+    }
+}
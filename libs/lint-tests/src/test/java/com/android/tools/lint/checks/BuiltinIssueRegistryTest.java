@@ -22,6 +22,7 @@ import com.android.tools.lint.detector.api.Issue;
 import com.android.tools.lint.detector.api.Scope;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -68,6 +69,40 @@ public class BuiltinIssueRegistryTest extends TestCase {
         }
     }
 
+    public void testIndex() {
+        // Check that the index used for lazy issue lookup is in sync with the registry
+        List<String> ids = new ArrayList<>();
+        for (Issue issue : new BuiltinIssueRegistry().getIssues()) {
+            ids.add(issue.getId());
+        }
+        assertEquals(ids, new ArrayList<>(BuiltinIssueRegistry.getIndex().keySet()));
+        assertTrue(BuiltinIssueRegistry.isBuiltinIssueId("ContentDescription"));
+        assertFalse(BuiltinIssueRegistry.isBuiltinIssueId("NotAnIssue"));
+    }
+
+    public void testRestricted() {
+        BuiltinIssueRegistry full = new BuiltinIssueRegistry();
+        List<Issue> all = full.getIssues();
+        assertTrue(full.isIssueId("DuplicateIds"));
+        BuiltinIssueRegistry registry = new BuiltinIssueRegistry(
+                Arrays.asList("ContentDescription", "WrongThreadInterprocedural", "NotAnIssue"));
+        List<Issue> issues = registry.getIssues();
+        assertEquals(2, issues.size());
+        assertSame(AccessibilityDetector.ISSUE, issues.get(0));
+        assertSame(WrongThreadInterproceduralDetector.Companion.getISSUE(), issues.get(1));
+        assertTrue(registry.isIssueId("ContentDescription"));
+        assertFalse(registry.isIssueId("DuplicateIds"));
+        assertEquals(2, registry.getCategories().size());
+
+        // The registries don't see each other's issue caches, whichever is used first
+        assertTrue(full.isIssueId("DuplicateIds"));
+        assertTrue(full.getCategories().size() > 2);
+        BuiltinIssueRegistry other = new BuiltinIssueRegistry();
+        assertEquals(all.size(), other.getIssues().size());
+        assertTrue(other.isIssueId("DuplicateIds"));
+        assertFalse(registry.isIssueId("DuplicateIds"));
+    }
+
     private static void checkCapacity(TestIssueRegistry registry,
             EnumSet<Scope> scopeSet) {
         List<Issue> issuesForScope = registry.getIssuesForScope(scopeSet);
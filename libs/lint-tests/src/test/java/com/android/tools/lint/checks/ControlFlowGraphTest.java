@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.checks.ControlFlowGraph.Node;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+@SuppressWarnings("javadoc")
+public class ControlFlowGraphTest extends TestCase {
+    private final AbstractInsnNode load = new VarInsnNode(Opcodes.ILOAD, 0);
+    private final LabelNode elseLabel = new LabelNode();
+    private final LabelNode joinLabel = new LabelNode();
+    private final AbstractInsnNode branch = new JumpInsnNode(Opcodes.IFEQ, elseLabel);
+    private final AbstractInsnNode thenConst = new InsnNode(Opcodes.ICONST_1);
+    private final AbstractInsnNode thenStore = new VarInsnNode(Opcodes.ISTORE, 1);
+    private final AbstractInsnNode thenGoto = new JumpInsnNode(Opcodes.GOTO, joinLabel);
+    private final AbstractInsnNode elseConst = new InsnNode(Opcodes.ICONST_2);
+    private final AbstractInsnNode elseStore = new VarInsnNode(Opcodes.ISTORE, 1);
+    private final AbstractInsnNode result = new VarInsnNode(Opcodes.ILOAD, 1);
+    private final AbstractInsnNode ret = new InsnNode(Opcodes.IRETURN);
+
+    /**
+     * Creates the graph of {@code static int m(int x) { int y; if (x != 0) y = 1; else
+     * y = 2; return y; }}
+     */
+    @NonNull
+    private ControlFlowGraph createDiamond() throws Exception {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "(I)I", null, null);
+        method.maxLocals = 2;
+        method.maxStack = 1;
+        for (AbstractInsnNode instruction : new AbstractInsnNode[] { load, branch, thenConst,
+                thenStore, thenGoto, elseLabel, elseConst, elseStore, joinLabel, result,
+                ret }) {
+            method.instructions.add(instruction);
+        }
+        return ControlFlowGraph.create(null, createClass(), method);
+    }
+
+    @NonNull
+    private static ClassNode createClass() {
+        ClassNode classNode = new ClassNode();
+        classNode.name = "test/pkg/Test";
+        classNode.superName = "java/lang/Object";
+        return classNode;
+    }
+
+    public void testImmediateDominators() throws Exception {
+        ControlFlowGraph graph = createDiamond();
+        assertNull(graph.getImmediateDominator(graph.getNode(load)));
+        assertSame(graph.getNode(load), graph.getImmediateDominator(graph.getNode(branch)));
+        assertSame(graph.getNode(branch),
+                graph.getImmediateDominator(graph.getNode(thenConst)));
+        assertSame(graph.getNode(branch),
+                graph.getImmediateDominator(graph.getNode(elseLabel)));
+        // Both branches join, so neither dominates the join
+        assertSame(graph.getNode(branch),
+                graph.getImmediateDominator(graph.getNode(joinLabel)));
+        assertSame(graph.getNode(result), graph.getImmediateDominator(graph.getNode(ret)));
+    }
+
+    public void testDominates() throws Exception {
+        ControlFlowGraph graph = createDiamond();
+        assertTrue(graph.dominates(graph.getNode(load), graph.getNode(ret)));
+        assertTrue(graph.dominates(graph.getNode(branch), graph.getNode(ret)));
+        assertTrue(graph.dominates(graph.getNode(ret), graph.getNode(ret)));
+        assertFalse(graph.dominates(graph.getNode(thenStore), graph.getNode(ret)));
+        assertFalse(graph.dominates(graph.getNode(elseConst), graph.getNode(joinLabel)));
+        assertFalse(graph.dominates(graph.getNode(ret), graph.getNode(load)));
+    }
+
+    /** Checks dominance against its definition, with every pair of instructions */
+    public void testDominatesMatchesPaths() throws Exception {
+        ControlFlowGraph graph = createDiamond();
+        Node entry = graph.getNode(load);
+        List<Node> nodes = new ArrayList<>();
+        for (AbstractInsnNode instruction : new AbstractInsnNode[] { load, branch, thenConst,
+                thenStore, thenGoto, elseLabel, elseConst, elseStore, joinLabel, result,
+                ret }) {
+            nodes.add(graph.getNode(instruction));
+        }
+        for (Node dominator : nodes) {
+            for (Node node : nodes) {
+                boolean expected = dominator == node
+                        || !isReachableAvoiding(entry, node, dominator);
+                assertEquals(dominator + " dominates " + node, expected,
+                        graph.dominates(dominator, node));
+            }
+        }
+    }
+
+    public void testUnreachable() throws Exception {
+        ControlFlowGraph graph = createDiamond();
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "()V", null, null);
+        AbstractInsnNode first = new InsnNode(Opcodes.RETURN);
+        AbstractInsnNode dead = new InsnNode(Opcodes.NOP);
+        AbstractInsnNode deadReturn = new InsnNode(Opcodes.RETURN);
+        method.instructions.add(first);
+        method.instructions.add(dead);
+        method.instructions.add(deadReturn);
+        graph = ControlFlowGraph.create(graph, createClass(), method);
+
+        Node deadNode = graph.getNode(dead);
+        assertNull(graph.getImmediateDominator(deadNode));
+        assertFalse(graph.dominates(graph.getNode(first), deadNode));
+        assertFalse(graph.dominates(deadNode, deadNode));
+    }
+
+    /** Long methods are analyzed without recursing once per instruction */
+    public void testLongMethod() throws Exception {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "()V", null, null);
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            method.instructions.add(new InsnNode(Opcodes.NOP));
+        }
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        ControlFlowGraph graph = ControlFlowGraph.create(null, createClass(), method);
+
+        Node first = graph.getNode(method.instructions.getFirst());
+        Node last = graph.getNode(method.instructions.getLast());
+        assertTrue(graph.isConnected(first, last));
+        assertFalse(graph.isConnected(last, first));
+        assertTrue(graph.dominates(first, last));
+        assertSame(graph.getNode(method.instructions.get(count - 1)),
+                graph.getImmediateDominator(last));
+    }
+
+    /** Returns true if there is a path from {@code from} to {@code to} avoiding a node */
+    private static boolean isReachableAvoiding(@NonNull Node from, @NonNull Node to,
+            @NonNull Node avoid) {
+        if (from == avoid) {
+            return false;
+        }
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> queue = new ArrayDeque<>();
+        queue.add(from);
+        seen.add(from);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (node == to) {
+                return true;
+            }
+            List<Node> next = new ArrayList<>(node.successors);
+            next.addAll(node.exceptions);
+            for (Node successor : next) {
+                if (successor != avoid && seen.add(successor)) {
+                    queue.add(successor);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import com.android.ide.common.repository.GradleVersion;
+import com.android.testutils.TestUtils;
+import java.io.File;
+import junit.framework.TestCase;
+
+public class GradleArtifactCacheIndexTest extends TestCase {
+    public void testLookup() throws Exception {
+        File cacheHome = TestUtils.createTempDirDeletedOnExit();
+        File artifactDir = new File(cacheHome, "com.google.guava" + File.separator + "guava");
+        assertTrue(new File(artifactDir, "17.0").mkdirs());
+        assertTrue(new File(artifactDir, "21.0").mkdirs());
+        assertTrue(new File(artifactDir, "22.0-rc1").mkdirs());
+        File indexFile = new File(TestUtils.createTempDirDeletedOnExit(),
+                GradleArtifactCacheIndex.FILE_NAME);
+
+        GradleArtifactCacheIndex index = GradleArtifactCacheIndex.create(cacheHome, indexFile);
+        assertEquals(GradleVersion.parse("21.0"),
+                index.findHighestVersion("com.google.guava", "guava", null, false));
+        assertEquals(GradleVersion.parse("22.0-rc1"),
+                index.findHighestVersion("com.google.guava", "guava", null, true));
+        assertEquals(GradleVersion.parse("17.0"),
+                index.findHighestVersion("com.google.guava", "guava",
+                        version -> version.getMajor() < 20, false));
+        assertNull(index.findHighestVersion("com.google.guava", "unknown", null, false));
+        index.save();
+        assertTrue(indexFile.isFile());
+        // The temporary file it was written to was moved into place
+        assertEquals(1, indexFile.getParentFile().list().length);
+
+        // Reloaded index answers from the persisted entries
+        GradleArtifactCacheIndex reloaded = GradleArtifactCacheIndex.create(cacheHome, indexFile);
+        assertEquals(GradleVersion.parse("21.0"),
+                reloaded.findHighestVersion("com.google.guava", "guava", null, false));
+
+        // ...and picks up newly downloaded versions
+        assertTrue(new File(artifactDir, "23.0").mkdirs());
+        assertTrue(artifactDir.setLastModified(artifactDir.lastModified() + 2000));
+        assertEquals(GradleVersion.parse("23.0"),
+                reloaded.findHighestVersion("com.google.guava", "guava", null, false));
+
+        // Saving again replaces the existing index
+        reloaded.save();
+        assertEquals(GradleVersion.parse("23.0"), GradleArtifactCacheIndex.create(cacheHome,
+                indexFile).findHighestVersion("com.google.guava", "guava", null, false));
+        assertEquals(1, indexFile.getParentFile().list().length);
+    }
+}
@@ -33,8 +33,12 @@ import static com.android.tools.lint.checks.IconDetector.ICON_XML_AND_PNG;
 import static com.android.tools.lint.checks.IconDetector.WEBP_ELIGIBLE;
 import static com.android.tools.lint.checks.IconDetector.WEBP_UNSUPPORTED;
 
+import com.android.annotations.NonNull;
+import com.android.tools.lint.checks.infrastructure.TestLintClient;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Issue;
+import java.io.File;
+import java.io.IOException;
 
 @SuppressWarnings("javadoc")
 public class IconDetectorTest extends AbstractCheckTest {
@@ -726,6 +730,34 @@ public class IconDetectorTest extends AbstractCheckTest {
                 .expectClean();
     }
 
+    public void testDuplicatesReadThroughClient() throws Exception {
+        // Identical on disk, but the client supplies different contents for one of them
+        lint().files(
+                image("res/drawable-mdpi/foo.png", 72, 72).fill(10, 10, 20, 20, 0x00000000),
+                image("res/drawable-mdpi/bar.png", 72, 72).fill(10, 10, 20, 20, 0x00000000))
+                .issues(DUPLICATES_NAMES)
+                .run()
+                .expectWarningCount(1);
+
+        lint().files(
+                image("res/drawable-mdpi/foo.png", 72, 72).fill(10, 10, 20, 20, 0x00000000),
+                image("res/drawable-mdpi/bar.png", 72, 72).fill(10, 10, 20, 20, 0x00000000))
+                .issues(DUPLICATES_NAMES)
+                .client(new TestLintClient() {
+                    @NonNull
+                    @Override
+                    public byte[] readBytes(@NonNull File file) throws IOException {
+                        byte[] bytes = super.readBytes(file);
+                        if (file.getName().equals("bar.png")) {
+                            bytes[bytes.length - 1]++;
+                        }
+                        return bytes;
+                    }
+                })
+                .run()
+                .expectClean();
+    }
+
     public void testClaimedSize() throws Exception {
         // Check that icons which declare a dp size actually correspond to that dp size
         String expected = ""
@@ -16,7 +16,12 @@
 
 package com.android.tools.lint.checks;
 
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.checks.infrastructure.TestLintClient;
 import com.android.tools.lint.detector.api.Detector;
+import java.io.File;
 
 @SuppressWarnings("javadoc")
 public class MergeMarkerDetectorTest extends AbstractCheckTest {
@@ -78,4 +83,40 @@ public class MergeMarkerDetectorTest extends AbstractCheckTest {
 
                 ));
     }
+
+    private static final String MARKERS = ""
+            + "notes\n"
+            + "<<<<<<< HEAD\n"
+            + "a\n"
+            + "=======\n"
+            + "b\n"
+            + ">>>>>>> branch-a\n";
+
+    public void testUnsavedEdits() {
+        // The markers are only in the edited contents, not in the file on disk
+        lint().files(source("assets/notes.txt", "notes\n"))
+                .client(new TestLintClient() {
+                    @NonNull
+                    @Override
+                    public CharSequence readFile(@NonNull File file) {
+                        if (file.getName().equals("notes.txt")) {
+                            return MARKERS;
+                        }
+                        return super.readFile(file);
+                    }
+                })
+                .run()
+                .expectErrorCount(3);
+    }
+
+    public void testUtf16() {
+        byte[] text = MARKERS.getBytes(UTF_16BE);
+        byte[] bytes = new byte[text.length + 2];
+        bytes[0] = (byte) 0xfe;
+        bytes[1] = (byte) 0xff;
+        System.arraycopy(text, 0, bytes, 2, text.length);
+        lint().files(bytes("assets/notes.txt", bytes))
+                .run()
+                .expectErrorCount(3);
+    }
 }
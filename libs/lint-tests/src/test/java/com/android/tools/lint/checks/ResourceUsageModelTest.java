@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import com.android.annotations.NonNull;
+import com.android.resources.ResourceFolderType;
+import com.android.resources.ResourceType;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class ResourceUsageModelTest extends TestCase {
+    private static final int FILE_COUNT = 100;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFile(dir);
+        super.tearDown();
+    }
+
+    private File createFile(String path, String contents) throws IOException {
+        File file = new File(dir, path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(contents, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFile(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /** Visits the same files as each other model built by this method */
+    private void visitFiles(@NonNull ResourceUsageModel model) throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            model.visitBinaryResource(ResourceFolderType.DRAWABLE,
+                    createFile("res/drawable/icon" + i + ".png", ""));
+        }
+        for (int i = 0; i < FILE_COUNT; i++) {
+            model.visitBinaryResource(ResourceFolderType.RAW, createFile(
+                    "res/raw/page" + i + ".html", ""
+                            + "<html><body>\n"
+                            + "<img src=\"file:///android_res/drawable/icon" + i + ".png\">\n"
+                            + "</body></html>\n"));
+            model.visitBinaryResource(ResourceFolderType.RAW, createFile(
+                    "res/raw/script" + i + ".js", ""
+                            + "var icon = \"icon" + (FILE_COUNT - 1 - i) + "\";\n"));
+            model.tokenizeJavaFile(createFile("src/test/pkg/Class" + i + ".java", ""
+                    + "package test.pkg;\n"
+                    + "class Class" + i + " {\n"
+                    + "    int id = R.string.name" + i + ";\n"
+                    + "}\n"));
+        }
+    }
+
+    public void testConcurrentTokenizing() throws Exception {
+        ResourceUsageModel serial = new ResourceUsageModel();
+        serial.setTokenizerThreads(1);
+        visitFiles(serial);
+
+        ResourceUsageModel concurrent = new ResourceUsageModel();
+        concurrent.setTokenizerThreads(4);
+        visitFiles(concurrent);
+
+        // The files tokenized on worker threads give the same usage graph, recorded in
+        // the same order
+        assertEquals(serial.dumpReferences(), concurrent.dumpReferences());
+        assertEquals(serial.dumpResourceModel(), concurrent.dumpResourceModel());
+
+        ResourceUsageModel.Resource page = concurrent.getResource(ResourceType.RAW, "page7");
+        assertNotNull(page);
+        assertEquals(Collections.singletonList(
+                concurrent.getResource(ResourceType.DRAWABLE, "icon7")), page.getReferences());
+        ResourceUsageModel.Resource string = concurrent.getResource(ResourceType.STRING, "name5");
+        assertNotNull(string);
+        assertTrue(string.isReachable());
+    }
+
+    public void testScaleBackWhenLowOnMemory() throws Exception {
+        ResourceUsageModel serial = new ResourceUsageModel();
+        serial.setTokenizerThreads(1);
+        visitFiles(serial);
+
+        // The heap runs low halfway through: the files tokenized so far on worker threads
+        // are recorded first, and the rest are tokenized as they are visited
+        int[] checks = new int[1];
+        ResourceUsageModel model = new ResourceUsageModel() {
+            @Override
+            protected boolean isLowOnMemory() {
+                return ++checks[0] > FILE_COUNT;
+            }
+        };
+        model.setTokenizerThreads(4);
+        visitFiles(model);
+
+        assertTrue(checks[0] > FILE_COUNT);
+        assertEquals(serial.dumpReferences(), model.dumpReferences());
+        assertEquals(serial.dumpResourceModel(), model.dumpResourceModel());
+    }
+
+    public void testReferencedStringsAreSynchronous() throws Exception {
+        List<String> strings = new ArrayList<>();
+        ResourceUsageModel model = new ResourceUsageModel() {
+            @Override
+            protected void referencedString(@NonNull String string) {
+                strings.add(string);
+            }
+        };
+        // Models observing the strings tokenize the files as they are visited
+        model.setTokenizerThreads(4);
+        model.visitBinaryResource(ResourceFolderType.RAW,
+                createFile("res/raw/first.js", "var a = \"first\";\n"));
+        assertEquals(Arrays.asList("first"), strings);
+        model.visitBinaryResource(ResourceFolderType.RAW,
+                createFile("res/raw/second.js", "var b = \"second\";\n"));
+        assertEquals(Arrays.asList("first", "second"), strings);
+    }
+
+    public void testReferences() {
+        ResourceUsageModel model = new ResourceUsageModel();
+        ResourceUsageModel.Resource layout = model.addResource(ResourceType.LAYOUT, "main", null);
+        ResourceUsageModel.Resource include =
+                model.addResource(ResourceType.LAYOUT, "include", null);
+        ResourceUsageModel.Resource style = model.addResource(ResourceType.STYLE, "Theme", null);
+
+        layout.addReference(include);
+        layout.addReference(style);
+        layout.addReference(include);
+        layout.addReference(null);
+        assertEquals(Arrays.asList(include, style), layout.getReferences());
+        assertTrue(include.getReferences().isEmpty());
+
+        // References added later, after the reference index was built, are merged in
+        include.addReference(style);
+        layout.addReference(style);
+        assertEquals(Collections.singletonList(style), include.getReferences());
+        assertEquals(Arrays.asList(include, style), layout.getReferences());
+    }
+
+    public void testReferencesOutsideModel() {
+        ResourceUsageModel model = new ResourceUsageModel();
+        ResourceUsageModel.Resource layout = model.addResource(ResourceType.LAYOUT, "main", null);
+        ResourceUsageModel.Resource string = model.addResource(ResourceType.STRING, "app", null);
+        ResourceUsageModel.Resource other = new ResourceUsageModel.Resource(
+                ResourceType.DRAWABLE, "icon", -1);
+
+        layout.addReference(other);
+        layout.addReference(other);
+        layout.addReference(string);
+        assertEquals(Arrays.asList(string, other), layout.getReferences());
+
+        // Resources outside a model keep all their references themselves
+        other.addReference(string);
+        assertEquals(Collections.singletonList(string), other.getReferences());
+    }
+
+    public void testFindUnused() {
+        ResourceUsageModel model = new ResourceUsageModel();
+        // A long chain of references, which is marked reachable without recursing
+        ResourceUsageModel.Resource previous = null;
+        List<ResourceUsageModel.Resource> chain = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            ResourceUsageModel.Resource resource =
+                    model.addResource(ResourceType.STRING, "chain" + i, null);
+            if (previous != null) {
+                previous.addReference(resource);
+            }
+            chain.add(resource);
+            previous = resource;
+        }
+        // A cycle which isn't referenced from any root
+        ResourceUsageModel.Resource first = model.addResource(ResourceType.LAYOUT, "first", null);
+        ResourceUsageModel.Resource second =
+                model.addResource(ResourceType.LAYOUT, "second", null);
+        first.addReference(second);
+        second.addReference(first);
+        second.addReference(chain.get(5));
+
+        chain.get(0).setReachable(true);
+        assertEquals(Arrays.asList(first, second), model.findUnused());
+        for (ResourceUsageModel.Resource resource : chain) {
+            assertTrue(resource.isReachable());
+        }
+    }
+
+    public void testGetResourceByValue() {
+        ResourceUsageModel model = new ResourceUsageModel();
+        ResourceUsageModel.Resource icon =
+                model.addResource(ResourceType.DRAWABLE, "icon", "0x7f020000");
+        ResourceUsageModel.Resource name = model.addResource(ResourceType.STRING, "name", null);
+        assertSame(icon, model.getResource(0x7f020000));
+        assertNull(model.getResource(0x7f030000));
+
+        // The value can be assigned after the resource was first added
+        assertSame(name, model.addResource(ResourceType.STRING, "name", "0x7f030000"));
+        assertSame(name, model.getResource(0x7f030000));
+    }
+}
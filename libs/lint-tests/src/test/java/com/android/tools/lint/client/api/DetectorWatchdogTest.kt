@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.checks.AbstractCheckTest
+import com.android.tools.lint.detector.api.Category
+import com.android.tools.lint.detector.api.Context
+import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Implementation
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.JavaContext
+import com.android.tools.lint.detector.api.Scope
+import com.android.tools.lint.detector.api.Severity
+import com.intellij.openapi.progress.ProgressManager
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.UFile
+
+class DetectorWatchdogTest : AbstractCheckTest() {
+    fun testSlowDetector() {
+        SlowDetector.files.clear()
+        FastDetector.files.clear()
+        lint().files(
+                java("""
+package test.pkg;
+class Foo {
+}
+"""),
+                java("""
+package test.pkg;
+class Bar {
+}
+"""))
+                .configureOptions { flags ->
+                    flags.detectorTimeBudget = 200
+                    flags.isQuarantineSlowDetectors = true
+                }
+                .run()
+                .expectErrorCount(1)
+                .expectWarningCount(2)
+                .check { output ->
+                    assertTrue(output, output.contains("`SlowDetector` took more than " +
+                            "200 ms analyzing this file, so its analysis of the file was " +
+                            "canceled; the other checks were run on the file again; it was " +
+                            "disabled for the rest of the run [LintError]"))
+                }
+
+        // The slow detector was quarantined after the first file, and the other detector
+        // checked both files, reporting each issue once even though the first file was
+        // visited again
+        assertEquals(1, SlowDetector.files.size)
+        assertEquals(listOf("Bar.java", "Foo.java"), FastDetector.files.distinct().sorted())
+    }
+
+    fun testDetectorsFinishedBeforeTimeout() {
+        SlowFinishDetector.files.clear()
+        FastDetector.files.clear()
+        FastDetector.finished.clear()
+        lint().files(
+                java("""
+package test.pkg;
+class Foo {
+}
+"""))
+                .issues(SlowFinishDetector.ISSUE, FastDetector.ISSUE, IssueRegistry.LINT_ERROR)
+                .configureOptions { flags ->
+                    flags.detectorTimeBudget = 200
+                }
+                .run()
+                .expectErrorCount(1)
+                .expectWarningCount(1)
+
+        // Whether or not the fast detector finished the file before the slow one was
+        // canceled, it finished the file exactly once
+        assertEquals(listOf("Foo.java"), SlowFinishDetector.files)
+        assertEquals(listOf("Foo.java"), FastDetector.finished)
+    }
+
+    override fun getIssues(): List<Issue> = listOf(SlowDetector.ISSUE, FastDetector.ISSUE,
+            IssueRegistry.LINT_ERROR)
+
+    override fun getDetector(): Detector = SlowDetector()
+
+    class SlowDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(context.file.name)
+                        // Spins until canceled by the watchdog (or, if the watchdog
+                        // fails to cancel it, until the test times out below)
+                        val end = System.currentTimeMillis() + 30000
+                        while (System.currentTimeMillis() < end) {
+                            ProgressManager.checkCanceled()
+                            Thread.sleep(10)
+                        }
+                        fail("Not canceled")
+                    }
+                }
+
+        companion object {
+            val files = ArrayList<String>()
+
+            val ISSUE = Issue
+                    .create("_TestSlow", "test", "test", Category.LINT, 10, Severity.WARNING,
+                            Implementation(SlowDetector::class.java, Scope.JAVA_FILE_SCOPE))
+        }
+    }
+
+    /** Exceeds its budget once done visiting the file, in [afterCheckFile] */
+    class SlowFinishDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                    }
+                }
+
+        override fun afterCheckFile(context: Context) {
+            files.add(context.file.name)
+            val end = System.currentTimeMillis() + 30000
+            while (System.currentTimeMillis() < end) {
+                ProgressManager.checkCanceled()
+                Thread.sleep(10)
+            }
+            fail("Not canceled")
+        }
+
+        companion object {
+            val files = ArrayList<String>()
+
+            val ISSUE = Issue
+                    .create("_TestSlowFinish", "test", "test", Category.LINT, 10,
+                            Severity.WARNING, Implementation(SlowFinishDetector::class.java,
+                            Scope.JAVA_FILE_SCOPE))
+        }
+    }
+
+    class FastDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(context.file.name)
+                        val element: UElement = uFile
+                        context.report(ISSUE, element, context.getLocation(element), "Checked")
+                    }
+                }
+
+        override fun afterCheckFile(context: Context) {
+            finished.add(context.file.name)
+        }
+
+        companion object {
+            val files = ArrayList<String>()
+            val finished = ArrayList<String>()
+
+            val ISSUE = Issue
+                    .create("_TestFast", "test", "test", Category.LINT, 10, Severity.WARNING,
+                            Implementation(FastDetector::class.java, Scope.JAVA_FILE_SCOPE))
+        }
+    }
+}
@@ -18,11 +18,13 @@ package com.android.tools.lint.client.api
 import com.android.testutils.TestUtils
 import com.android.tools.lint.checks.AbstractCheckTest
 import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Scope
 import com.android.tools.lint.detector.api.Severity
 import com.google.common.truth.Truth.assertThat
 import java.io.File
 import java.io.StringWriter
 import java.util.Arrays
+import java.util.EnumSet
 
 class JarFileIssueRegistryTest : AbstractCheckTest() {
     fun testError() {
@@ -92,6 +94,31 @@ class JarFileIssueRegistryTest : AbstractCheckTest() {
         assertThat(registries.size).isEqualTo(1)
     }
 
+    fun testMetadataCache() {
+        val targetDir = TestUtils.createTempDirDeletedOnExit()
+        val file1 = base64gzip("lint.jar",
+                CustomRuleTest.LINT_JAR_BASE64_GZIP).createFile(targetDir)
+        val loggedWarnings = StringWriter()
+        val client = createClient(loggedWarnings)
+
+        // First load persists the metadata
+        val registry = getSingleRegistry(client, file1) ?: fail()
+        val checksum = LintJarMetadata.checksum(file1) ?: fail()
+        val metadata = LintJarMetadata.read(client, checksum) ?: fail()
+        assertEquals(registry.issues.size, metadata.issues.size)
+        assertEquals("AppCompatMethod", metadata.issues[0].id)
+        assertEquals(registry.issues[0].implementation.detectorClass.name,
+                metadata.issues[0].detectorClass)
+        assertEquals(registry.issues[0].implementation.scope, metadata.issues[0].scope)
+
+        // Jars without applicable issues are skipped without loading them
+        assertThat(JarFileIssueRegistry.get(client, listOf(file1),
+                EnumSet.of(Scope.PROGUARD_FILE))).isEmpty()
+        assertThat(JarFileIssueRegistry.get(client, listOf(file1),
+                EnumSet.copyOf(registry.issues[0].implementation.scope))).hasSize(1)
+        assertThat(loggedWarnings.toString()).isEmpty()
+    }
+
     override fun getDetector(): Detector? {
         fail("Not used in this test")
         return null
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.checks.AbstractCheckTest
+import com.android.tools.lint.detector.api.Category
+import com.android.tools.lint.detector.api.Context
+import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Implementation
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.JavaContext
+import com.android.tools.lint.detector.api.Scope
+import com.android.tools.lint.detector.api.Severity
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.UFile
+
+class LintDriverMultiPassTest : AbstractCheckTest() {
+    fun testRetainedFiles() {
+
+        MultiPassDetector.files.clear()
+        MultiPassDetector.parsers.clear()
+        lint().files(
+                java("""
+package test.pkg;
+@SuppressWarnings("ALL") class Foo {
+}
+"""),
+                java("""
+package test.pkg;
+@SuppressWarnings("ALL") class Bar {
+}
+"""))
+                .run()
+                .expectClean()
+
+        // The test client is a LintCliClient subclass, which creates a new parser for each pass
+        assertEquals(3, MultiPassDetector.parsers.map { System.identityHashCode(it) }.toSet().size)
+        // Each file should still have been visited once per pass, using the same parsed file
+        assertEquals(6, MultiPassDetector.files.size)
+        assertEquals(2, MultiPassDetector.files.map { System.identityHashCode(it) }.toSet().size)
+    }
+
+    override fun getIssues(): List<Issue> = listOf(MultiPassDetector.ISSUE)
+
+    override fun getDetector(): Detector = MultiPassDetector()
+
+    class MultiPassDetector : Detector(), Detector.UastScanner {
+        override fun getSourcePassCount() = 3
+
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(uFile)
+                        context.uastParser?.let { parsers.add(it) }
+                    }
+                }
+
+        override fun afterCheckProject(context: Context) {
+            if (context.driver.phase < sourcePassCount) {
+                context.driver.requestRepeat(this, Scope.JAVA_FILE_SCOPE)
+            }
+        }
+
+        companion object {
+            val files = ArrayList<UFile>()
+            val parsers = ArrayList<UastParser>()
+
+            val ISSUE = Issue
+                    .create("_TestMultiPass", "test", "test", Category.LINT, 10, Severity.WARNING,
+                            Implementation(MultiPassDetector::class.java,
+                                    Scope.JAVA_FILE_SCOPE))
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.checks.AbstractCheckTest
+import com.android.tools.lint.detector.api.Category
+import com.android.tools.lint.detector.api.Context
+import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Implementation
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.JavaContext
+import com.android.tools.lint.detector.api.Scope
+import com.android.tools.lint.detector.api.Severity
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.UFile
+import java.util.EnumSet
+
+class LintDriverShardTest : AbstractCheckTest() {
+    fun testShards() {
+        val perFile = ArrayList<String>()
+        for (shard in 0..1) {
+            PerFileDetector.files.clear()
+            CrossFileDetector.counts.clear()
+            MixedScopeDetector.files.clear()
+            lint().files(
+                    java("""
+package test.pkg;
+@SuppressWarnings("ALL") class Foo {
+}
+"""),
+                    java("""
+package test.pkg;
+@SuppressWarnings("ALL") class Bar {
+}
+"""),
+                    java("""
+package test.pkg;
+@SuppressWarnings("ALL") class Baz {
+}
+"""))
+                    .configureOptions { flags -> flags.setShard(shard, 2) }
+                    .run()
+                    .expectClean()
+
+            perFile.addAll(PerFileDetector.files)
+            if (shard == 0) {
+                // Detectors which gather state across files, or look at more than one
+                // kind of file, only run in the first shard, on all the files
+                assertEquals(listOf(3), CrossFileDetector.counts)
+                assertEquals(3, MixedScopeDetector.files.size)
+            } else {
+                assertTrue(CrossFileDetector.counts.isEmpty())
+                assertTrue(MixedScopeDetector.files.isEmpty())
+            }
+        }
+
+        // Detectors which only look at individual files see each file in exactly one shard
+        assertEquals(listOf("Bar.java", "Baz.java", "Foo.java"), perFile.sorted())
+    }
+
+    override fun getIssues(): List<Issue> = listOf(PerFileDetector.ISSUE,
+            CrossFileDetector.ISSUE, MixedScopeDetector.ISSUE)
+
+    override fun getDetector(): Detector = PerFileDetector()
+
+    class PerFileDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(context.file.name)
+                    }
+                }
+
+        companion object {
+            val files = ArrayList<String>()
+
+            val ISSUE = Issue
+                    .create("_TestPerFile", "test", "test", Category.LINT, 10, Severity.WARNING,
+                            Implementation(PerFileDetector::class.java,
+                                    Scope.JAVA_FILE_SCOPE))
+        }
+    }
+
+    class CrossFileDetector : Detector(), Detector.UastScanner {
+        private var count = 0
+
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        count++
+                    }
+                }
+
+        override fun afterCheckProject(context: Context) {
+            counts.add(count)
+        }
+
+        companion object {
+            val counts = ArrayList<Int>()
+
+            val ISSUE = Issue
+                    .create("_TestCrossFile", "test", "test", Category.LINT, 10,
+                            Severity.WARNING, Implementation(CrossFileDetector::class.java,
+                                    Scope.JAVA_FILE_SCOPE))
+        }
+    }
+
+    class MixedScopeDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(context.file.name)
+                    }
+                }
+
+        companion object {
+            val files = ArrayList<String>()
+
+            val ISSUE = Issue
+                    .create("_TestMixedScope", "test", "test", Category.LINT, 10,
+                            Severity.WARNING, Implementation(MixedScopeDetector::class.java,
+                                    EnumSet.of(Scope.JAVA_FILE, Scope.RESOURCE_FILE),
+                                    Scope.JAVA_FILE_SCOPE))
+        }
+    }
+}
@@ -110,6 +110,24 @@ public class LintDriverTest extends AbstractCheckTest {
         Disposer.dispose(unit.getSecond());
     }
 
+    public void testGetShard() {
+        // The assignment must be stable across lint processes
+        assertEquals(LintDriver.getShard("src/test/pkg/Foo.java", 4),
+                LintDriver.getShard(new String("src/test/pkg/Foo.java"), 4));
+        assertEquals(0, LintDriver.getShard("src/test/pkg/Foo.java", 1));
+
+        // and spread the files of a project over all the shards
+        int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            int shard = LintDriver.getShard("src/test/pkg/Foo" + i + ".java", counts.length);
+            assertTrue(shard >= 0 && shard < counts.length);
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > 150);
+        }
+    }
+
     @Override
     protected TestLintClient createClient() {
         return new TestLintClient() {
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.checks.AbstractCheckTest
+import com.android.tools.lint.checks.infrastructure.TestLintClient
+import com.android.tools.lint.detector.api.Category
+import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Implementation
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.JavaContext
+import com.android.tools.lint.detector.api.Scope
+import com.android.tools.lint.detector.api.Severity
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+import org.jetbrains.uast.UElement
+import org.jetbrains.uast.UFile
+
+class MemoryGovernorTest : AbstractCheckTest() {
+    fun testThresholds() {
+        val pools = thresholdPools()
+        if (pools.isEmpty()) {
+            // This JVM can't report collection usage; nothing to watch
+            return
+        }
+        val previous = pools.map { it.collectionUsageThreshold }
+
+        val governor = MemoryGovernor(0.001)
+        try {
+            for (pool in pools) {
+                assertEquals((pool.usage.max * 0.001).toLong(), pool.collectionUsageThreshold)
+            }
+
+            // Anything surviving a full collection is more than 0.1% of the heap
+            System.gc()
+            assertTrue(governor.isLowOnMemory)
+
+            // The notification arrives asynchronously, and is only reported once
+            var notified = false
+            val end = System.currentTimeMillis() + 10000
+            while (!notified && System.currentTimeMillis() < end) {
+                notified = governor.isUnderPressure()
+                Thread.sleep(10)
+            }
+            assertTrue(notified)
+            assertFalse(governor.isUnderPressure())
+        } finally {
+            governor.dispose()
+        }
+
+        assertFalse(governor.isLowOnMemory)
+        assertEquals(previous, pools.map { it.collectionUsageThreshold })
+    }
+
+    fun testDisabled() {
+        val pools = thresholdPools()
+        val previous = pools.map { it.collectionUsageThreshold }
+        val governor = MemoryGovernor(0.0)
+        System.gc()
+        assertFalse(governor.isLowOnMemory)
+        assertFalse(governor.isUnderPressure())
+        assertEquals(previous, pools.map { it.collectionUsageThreshold })
+        governor.dispose()
+    }
+
+    fun testTrimMemory() {
+        val governor = TestGovernor()
+        TrackingDetector.governor = governor
+        TrackingDetector.files.clear()
+        var trims = 0
+        val client = object : TestLintClient() {
+            override fun trimMemory() {
+                trims++
+                super.trimMemory()
+            }
+        }
+
+        lint().files(
+                java("""
+package test.pkg;
+class Foo {
+}
+"""),
+                java("""
+package test.pkg;
+class Bar {
+}
+"""))
+                .client(client)
+                .configureDriver { driver -> driver.memoryGovernor = governor }
+                .run()
+                .expectClean()
+
+        // The first file ran the heap low, so memory was trimmed once before the second
+        // file was analyzed, and the detector could see that the heap was running low
+        assertEquals(1, trims)
+        assertEquals(listOf(false, true), TrackingDetector.files.map { it.second })
+        TrackingDetector.governor = null
+    }
+
+    override fun getIssues(): List<Issue> = listOf(TrackingDetector.ISSUE)
+
+    override fun getDetector(): Detector = TrackingDetector()
+
+    private fun thresholdPools(): List<MemoryPoolMXBean> =
+            ManagementFactory.getMemoryPoolMXBeans().filter {
+                it.type == MemoryType.HEAP && it.isUsageThresholdSupported &&
+                        it.isCollectionUsageThresholdSupported &&
+                        (it.usage?.max ?: -1) > 0
+            }
+
+    /** Governor whose pressure is set by the test rather than by the heap */
+    class TestGovernor : MemoryGovernor(0.0) {
+        var pressure = false
+        var low = false
+
+        override fun isUnderPressure(): Boolean {
+            val pressure = this.pressure
+            this.pressure = false
+            return pressure
+        }
+
+        override val isLowOnMemory: Boolean
+            get() = low
+    }
+
+    class TrackingDetector : Detector(), Detector.UastScanner {
+        override fun getApplicableUastTypes(): List<Class<out UElement>>? =
+                listOf<Class<out UElement>>(UFile::class.java)
+
+        override fun createUastHandler(context: JavaContext): UElementHandler? =
+                object : UElementHandler() {
+                    override fun visitFile(uFile: UFile) {
+                        files.add(Pair(context.file.name, context.driver.isLowOnMemory))
+                        val governor = governor ?: return
+                        governor.pressure = true
+                        governor.low = true
+                    }
+                }
+
+        companion object {
+            val files = ArrayList<Pair<String, Boolean>>()
+            var governor: TestGovernor? = null
+
+            val ISSUE = Issue
+                    .create("_TestTracking", "test", "test", Category.LINT, 10,
+                            Severity.WARNING,
+                            Implementation(TrackingDetector::class.java,
+                                    Scope.JAVA_FILE_SCOPE))
+        }
+    }
+}
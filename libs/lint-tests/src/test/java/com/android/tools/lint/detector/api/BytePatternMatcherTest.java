@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.BitSet;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class BytePatternMatcherTest extends TestCase {
+    private static BytePatternMatcher create(String... patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+            bytes[i] = patterns[i].getBytes(UTF_8);
+        }
+        return new BytePatternMatcher(bytes);
+    }
+
+    public void testFindEnd() {
+        BytePatternMatcher matcher = create("android_res/");
+        byte[] bytes = "xx android_res/raw/a.png android_res/drawable/b".getBytes(UTF_8);
+        assertEquals(15, matcher.findEnd(bytes, 0));
+        assertEquals(37, matcher.findEnd(bytes, 15));
+        assertEquals(-1, matcher.findEnd(bytes, 37));
+        assertEquals(-1, matcher.findEnd(new byte[0], 0));
+    }
+
+    public void testOverlappingPatterns() {
+        // "he" ends inside "she", and "hers" shares a prefix with "he"
+        BytePatternMatcher matcher = create("he", "she", "his", "hers");
+        assertEquals(4, matcher.getPatternCount());
+        byte[] bytes = "ushers".getBytes(UTF_8);
+        assertEquals(4, matcher.findEnd(bytes, 0));
+
+        BitSet found = matcher.findAll(bytes);
+        assertTrue(found.get(0));
+        assertTrue(found.get(1));
+        assertFalse(found.get(2));
+        assertTrue(found.get(3));
+    }
+
+    public void testFindAll() {
+        BytePatternMatcher matcher = create("\n<<<<<<< ", "\n=======\n", "\n>>>>>>> ");
+        assertTrue(matcher.findAll("no markers\nhere\n".getBytes(UTF_8)).isEmpty());
+        BitSet found = matcher.findAll("a\n<<<<<<< HEAD\nb\n=======\nc\n".getBytes(UTF_8));
+        assertEquals(2, found.cardinality());
+        assertTrue(found.get(0));
+        assertTrue(found.get(1));
+    }
+
+    public void testFindAllChars() {
+        BytePatternMatcher matcher = create("\u00e9t\u00e9", "\u20ac", "\ud83d\ude00", "?x");
+        String text = "summer: \u00e9t\u00e9, \ud83d\ude00 \u20ac";
+        assertEquals(matcher.findAll(text.getBytes(UTF_8)), matcher.findAll(text));
+        assertEquals(3, matcher.findAll(text).cardinality());
+        assertTrue(matcher.findAll("ete euro").isEmpty());
+
+        // Unpaired surrogates are matched as '?', like in their encoding
+        String unpaired = "\ud83dx";
+        assertEquals(matcher.findAll(unpaired.getBytes(UTF_8)), matcher.findAll(unpaired));
+        assertTrue(matcher.findAll(unpaired).get(3));
+
+        // Strings and other character sequences give the same result
+        assertEquals(matcher.findAll(text), matcher.findAll(new StringBuilder(text)));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class ClassHierarchyIndexTest extends TestCase {
+    public void testClasses() {
+        ClassHierarchyIndex<String> index = ClassHierarchyIndex.<String>builder()
+                .add("android/app/Activity", "android/content/Context")
+                .add("test/pkg/MyActivity", "android/app/Activity")
+                .add("test/pkg/OtherActivity", "test/pkg/MyActivity")
+                .add("test/pkg/Foo", (String) null)
+                .build();
+
+        assertEquals(5, index.size());
+        assertTrue(index.isSubtypeOf("test/pkg/OtherActivity", "android/content/Context"));
+        assertTrue(index.isSubtypeOf("test/pkg/OtherActivity", "android/app/Activity"));
+        assertTrue(index.isSubtypeOf("test/pkg/MyActivity", "test/pkg/MyActivity"));
+        assertFalse(index.isSubtypeOf("android/app/Activity", "test/pkg/MyActivity"));
+        assertFalse(index.isSubtypeOf("test/pkg/Foo", "android/app/Activity"));
+        assertFalse(index.isSubtypeOf("test/pkg/Unknown", "android/app/Activity"));
+
+        assertEquals("android/content/Context", index.getRoot("test/pkg/OtherActivity"));
+        assertEquals("test/pkg/Foo", index.getRoot("test/pkg/Foo"));
+        assertNull(index.getRoot("test/pkg/Unknown"));
+
+        assertEquals(Arrays.asList("test/pkg/MyActivity", "test/pkg/OtherActivity"),
+                index.getAllSubtypes("android/app/Activity"));
+        assertTrue(index.getAllSubtypes("test/pkg/OtherActivity").isEmpty());
+    }
+
+    public void testInterfaces() {
+        // Object <- Base <- Sub, Base implements I2, I2 extends I1, Sub implements I3
+        ClassHierarchyIndex<String> index = ClassHierarchyIndex.<String>builder()
+                .add("I1", Collections.emptyList())
+                .add("I2", Collections.singletonList("I1"))
+                .add("I3", Collections.emptyList())
+                .add("Base", Arrays.asList("Object", "I2"))
+                .add("Sub", Arrays.asList("Base", "I3"))
+                .add("Other", Collections.singletonList("Object"))
+                .build();
+
+        assertTrue(index.isSubtypeOf("Sub", "I1"));
+        assertTrue(index.isSubtypeOf("Sub", "I2"));
+        assertTrue(index.isSubtypeOf("Sub", "I3"));
+        assertTrue(index.isSubtypeOf("Sub", "Object"));
+        assertTrue(index.isSubtypeOf("Base", "I1"));
+        assertFalse(index.isSubtypeOf("Base", "I3"));
+        assertFalse(index.isSubtypeOf("Other", "I1"));
+        assertFalse(index.isSubtypeOf("I1", "I2"));
+
+        assertEquals(new HashSet<>(Arrays.asList("I2", "Base", "Sub")),
+                new HashSet<>(index.getAllSubtypes("I1")));
+        assertEquals(new HashSet<>(Arrays.asList("Base", "Sub", "Other")),
+                new HashSet<>(index.getAllSubtypes("Object")));
+    }
+
+    public void testCycles() {
+        ClassHierarchyIndex<String> index = ClassHierarchyIndex.<String>builder()
+                .add("A", "B")
+                .add("B", "C")
+                .add("C", "A")
+                .build();
+
+        assertTrue(index.isSubtypeOf("A", "A"));
+        assertEquals(3, index.size());
+        // The cycle is broken somewhere, but the remaining edges are still indexed
+        int edges = 0;
+        for (String sub : Arrays.asList("A", "B", "C")) {
+            for (String sup : Arrays.asList("A", "B", "C")) {
+                if (!sub.equals(sup) && index.isSubtypeOf(sub, sup)) {
+                    edges++;
+                }
+            }
+        }
+        assertEquals(3, edges);
+    }
+}
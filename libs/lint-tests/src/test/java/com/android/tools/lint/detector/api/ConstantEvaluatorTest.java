@@ -22,7 +22,9 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.JavaRecursiveElementVisitor;
 import com.intellij.psi.PsiExpression;
+import com.intellij.psi.PsiField;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
 import com.intellij.psi.PsiLocalVariable;
 import java.io.File;
 import java.util.Arrays;
@@ -361,4 +363,95 @@ public class ConstantEvaluatorTest extends TestCase {
                         + "int z = condition ? 5 : -4;\n",
                 "z");
     }
-}
\ No newline at end of file
+
+    public void testBudget() throws Exception {
+        StringBuilder shortChain = new StringBuilder("int v0 = 1;\n");
+        for (int i = 1; i <= 20; i++) {
+            shortChain.append("int v").append(i).append(" = v").append(i - 1).append(" + 1;\n");
+        }
+        checkStatements(21, shortChain.toString(), "v20");
+
+        // Chains deeper than the evaluation budget are given up on
+        StringBuilder longChain = new StringBuilder("int v0 = 1;\n");
+        for (int i = 1; i <= 400; i++) {
+            longChain.append("int v").append(i).append(" = v").append(i - 1).append(" + 1;\n");
+        }
+        checkStatements(null, longChain.toString(), "v400");
+    }
+
+    public void testDepthLimit() throws Exception {
+        // Each nesting level is a parenthesized expression and a binary expression,
+        // so 50 levels stay within the maximum depth and 150 levels exceed it
+        String nested = nest(50);
+        String source = ""
+                + "package test.pkg;\n"
+                + "public class Test {\n"
+                + "    public void test() {\n"
+                + "        int shallow = " + nested + ";\n"
+                + "        int deep = " + nest(150) + ";\n"
+                + "    }\n"
+                + "}\n";
+        checkUast(51, source, "shallow");
+        checkPsi(51, source, "shallow");
+
+        // Expressions nested deeper than the limit are given up on rather than
+        // evaluated, even though they could be
+        checkUast(null, source, "deep");
+        checkPsi(null, source, "deep");
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment();
+    }
+
+    private static String nest(int levels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < levels; i++) {
+            sb.append("1 + (");
+        }
+        sb.append('1');
+        for (int i = 0; i < levels; i++) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    public void testFieldValuesKeyedByName() throws Exception {
+        @Language("JAVA")
+        String source = ""
+                + "package test.pkg;\n"
+                + "public class Test {\n"
+                + "    public static final int MY_INT_FIELD = 5;\n"
+                + "}\n";
+        ConstantEvaluationCache cache = new ConstantEvaluationCache();
+        int mode = ConstantEvaluationCache.mode(false, true);
+
+        Pair<JavaContext, Disposable> first =
+                LintUtilsTest.parsePsi(source, new File("src/test/pkg/Test.java"));
+        PsiField field = findField(first.getFirst(), "MY_INT_FIELD");
+        assertEquals("test.pkg.Test#MY_INT_FIELD", ConstantEvaluationCache.getFieldKey(field));
+        cache.putFieldValue(mode, field, 5);
+        Disposer.dispose(first.getSecond());
+
+        // The same field parsed again is found in the cache, without the cache
+        // retaining the first parse
+        Pair<JavaContext, Disposable> second =
+                LintUtilsTest.parsePsi(source, new File("src/test/pkg/Test.java"));
+        PsiField reparsed = findField(second.getFirst(), "MY_INT_FIELD");
+        assertNotSame(field, reparsed);
+        assertTrue(cache.hasFieldValue(mode, reparsed));
+        assertEquals(5, cache.getFieldValue(mode, reparsed));
+        assertFalse(cache.hasFieldValue(ConstantEvaluationCache.mode(true, true), reparsed));
+
+        cache.clear();
+        assertFalse(cache.hasFieldValue(mode, reparsed));
+        Disposer.dispose(second.getSecond());
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment();
+    }
+
+    private static PsiField findField(JavaContext context, String name) {
+        assertNotNull(context);
+        PsiJavaFile javaFile = (PsiJavaFile) context.getPsiFile();
+        assertNotNull(javaFile);
+        PsiField field = javaFile.getClasses()[0].findFieldByName(name, false);
+        assertNotNull(field);
+        return field;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.LintCoreApplicationEnvironment
+import com.android.tools.lint.detector.api.LintUtilsTest
+import com.intellij.openapi.util.Disposer
+import junit.framework.TestCase
+import org.jetbrains.uast.UCallExpression
+import org.jetbrains.uast.UFile
+import org.jetbrains.uast.UMethod
+import org.jetbrains.uast.visitor.AbstractUastVisitor
+import java.io.File
+
+class CompactCallGraphTest : TestCase() {
+    private val source = """
+package test.pkg;
+public class Test {
+    public void a() {
+        c();
+    }
+    public void b() {
+        c();
+    }
+    public void c() {
+        d();
+        e();
+    }
+    public void d() {
+    }
+    public void e() {
+        d();
+    }
+}
+"""
+
+    override fun tearDown() {
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment()
+        super.tearDown()
+    }
+
+    fun testFreeze() {
+        val pair = LintUtilsTest.parseUast(source, File("src/test/pkg/Test.java"))
+        val context = pair.first
+        val uFile = context.uastFile!!
+        val builder = IncrementalCallGraphBuilder(null)
+        builder.addToClassHierarchy(context.file, context.getContents()!!, uFile)
+        builder.finishClassHierarchy()
+        val receiverVisitor = IntraproceduralDispatchReceiverVisitor(builder.classHierarchy)
+        uFile.accept(receiverVisitor)
+        builder.addToCallGraph(context.file, uFile, receiverVisitor.receiverEval)
+
+        val graph = builder.callGraph
+        val expected = graph.dump()
+        val frozen = builder.freezeCallGraph()
+        assertEquals(expected, frozen.dump())
+        assertEquals(graph.nodes.size, frozen.size)
+
+        // The nodes of the frozen graph map back to the elements of the program
+        val c = findMethod(uFile, "c")
+        val node = frozen.getNode(c)
+        assertSame(node, frozen.node(frozen.getId(c)))
+        assertEquals(listOf("Test#d", "Test#e"), node.edges.map { it.node.shortName }.distinct().sorted())
+        assertEquals(listOf("d", "e"), node.edges.mapNotNull { it.call?.methodName }.distinct().sorted())
+
+        Disposer.dispose(pair.second)
+    }
+
+    /**
+     * Checks that the search on node and edge ids finds the same paths as the search on
+     * [ContextualEdge]s it implements, where edges from different nodes with the same
+     * target and cause are the same search state
+     */
+    fun testSearchStates() {
+        val pair = LintUtilsTest.parseUast(source, File("src/test/pkg/Test.java"))
+        val uFile = pair.first.uastFile!!
+        val graph = MutableCallGraph()
+        fun node(name: String) = ContextualNode(graph.getNode(findMethod(uFile, name)),
+                ParamContext.EMPTY)
+        val a = node("a")
+        val b = node("b")
+        val c = node("c")
+        val d = node("d")
+        val e = node("e")
+        val callC = findCall(uFile, "c")
+        val callD = findCall(uFile, "d")
+        val callE = findCall(uFile, "e")
+
+        val contextualGraph = MutableContextualCallGraph()
+        // a and b reach c through the same cause, as two contexts of a method do
+        // through the same call
+        contextualGraph.setOutEdges(a, listOf(ContextualEdge(c, callC)))
+        contextualGraph.setOutEdges(b, listOf(ContextualEdge(c, callC)))
+        contextualGraph.setOutEdges(c, listOf(ContextualEdge(d, callD), ContextualEdge(e, callE)))
+        contextualGraph.setOutEdges(e, listOf(ContextualEdge(d, callD)))
+        contextualGraph.setOutEdges(d, emptyList())
+
+        val sources = listOf(a, b)
+        val sinks = listOf(d, e)
+        val paths = contextualGraph.searchForContextualPaths(sources, sinks)
+
+        val sinkSet = sinks.toSet()
+        val expected = searchForPaths(
+                sources = sources.map { ContextualEdge(it, it.node.target.element) },
+                isSink = { it.contextualNode in sinkSet },
+                getNeighbors = { contextualGraph.outEdges(it.contextualNode) })
+        assertEquals(expected, paths)
+        assertEquals(listOf(listOf(a, c, d)),
+                paths.map { path -> path.map { it.contextualNode } })
+
+        Disposer.dispose(pair.second)
+    }
+
+    private fun findMethod(uFile: UFile, name: String): UMethod =
+            uFile.classes.first().methods.first { it.name == name }
+
+    private fun findCall(uFile: UFile, name: String): UCallExpression {
+        var found: UCallExpression? = null
+        uFile.accept(object : AbstractUastVisitor() {
+            override fun visitCallExpression(node: UCallExpression): Boolean {
+                if (found == null && node.methodName == name) {
+                    found = node
+                }
+                return super.visitCallExpression(node)
+            }
+        })
+        return found!!
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.LintCoreApplicationEnvironment
+import com.android.tools.lint.detector.api.LintUtilsTest
+import com.intellij.openapi.util.Disposer
+import junit.framework.TestCase
+import org.jetbrains.uast.UClass
+import org.jetbrains.uast.UMethod
+import org.jetbrains.uast.toUElementOfType
+import java.io.File
+
+class DispatchReceiverCacheTest : TestCase() {
+    override fun tearDown() {
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment()
+        super.tearDown()
+    }
+
+    fun testReceiversKeyedByPsi() {
+        val pair = LintUtilsTest.parseUast("""
+package test.pkg;
+public class Test {
+    public void run() {
+    }
+}
+class Sub extends Test {
+    @Override
+    public void run() {
+    }
+}
+""", File("src/test/pkg/Test.java"))
+        val uFile = pair.first.uastFile!!
+        val test = uFile.classes.first { it.name == "Test" }
+        val sub = uFile.classes.first { it.name == "Sub" }
+        val run = test.methods.first { it.name == "run" }
+
+        val cache = DispatchReceiverCache()
+        val receivers = cache.receiversFor(ParamContext.EMPTY)
+        val result = listOf(DispatchReceiver.Class(sub))
+        receivers.put(run, result)
+
+        // Converting the same PSI to UAST again creates another element, which
+        // finds the same entry
+        val reconverted = run.psi!!.toUElementOfType<UMethod>()!!
+        assertNotSame(run, reconverted)
+        assertSame(result, receivers[reconverted])
+        assertNull(receivers[sub.methods.first { it.name == "run" }])
+        assertSame(receivers, cache.receiversFor(ParamContext.EMPTY))
+        assertNull(cache.receiversFor(ParamContext(emptyList(), DispatchReceiver.Class(sub)))
+                .get(run))
+
+        // Method refinements are found for the re-converted elements too
+        val target = cache.refineToTarget(DispatchReceiver.Class(sub), run)
+        assertNotNull(target)
+        assertEquals("Sub", target!!.element.containingClass?.name)
+        val subAgain = sub.psi!!.toUElementOfType<UClass>()!!
+        assertSame(target, cache.refineToTarget(DispatchReceiver.Class(subAgain), reconverted))
+
+        Disposer.dispose(pair.second)
+    }
+}
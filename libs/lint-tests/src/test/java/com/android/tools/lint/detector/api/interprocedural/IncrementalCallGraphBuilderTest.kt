@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.LintCliClient
+import com.android.tools.lint.LintCoreApplicationEnvironment
+import com.android.tools.lint.checks.infrastructure.TestIssueRegistry
+import com.android.tools.lint.client.api.LintDriver
+import com.android.tools.lint.client.api.LintRequest
+import com.android.tools.lint.detector.api.JavaContext
+import com.android.tools.lint.detector.api.LintUtilsTest
+import com.android.tools.lint.detector.api.Scope
+import com.google.common.io.Files
+import com.intellij.openapi.util.Disposer
+import junit.framework.TestCase
+import java.io.File
+
+class IncrementalCallGraphBuilderTest : TestCase() {
+    private lateinit var cacheDir: File
+
+    override fun setUp() {
+        super.setUp()
+        cacheDir = Files.createTempDir()
+    }
+
+    override fun tearDown() {
+        cacheDir.deleteRecursively()
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment()
+        super.tearDown()
+    }
+
+    fun testSaveKeepsEntriesOfOtherFiles() {
+        val a = LintUtilsTest.parseUast("""
+package test.pkg;
+public class A {
+    public void a() {
+        b();
+    }
+    private void b() {
+    }
+}
+""", File("src/test/pkg/A.java"))
+        val b = LintUtilsTest.parseUast("""
+package test.pkg;
+public class B {
+    public void b() {
+    }
+}
+""", File("src/test/pkg/B.java"))
+        val fileA = a.first.file
+        val fileB = b.first.file
+
+        build(a.first, b.first)
+        assertEquals(setOf(fileA.path, fileB.path), cachedPaths())
+
+        // The entries of unchanged files are reused without being written again
+        cacheDir.listFiles().forEach { it.setLastModified(0) }
+        build(a.first, b.first)
+        assertTrue(cacheDir.listFiles().all { it.lastModified() == 0L })
+
+        // A run analyzing a subset of the files keeps the entries of the others
+        build(a.first)
+        assertEquals(setOf(fileA.path, fileB.path), cachedPaths())
+
+        // The previous entry of a changed file is replaced
+        build(a.first, contents = mapOf(fileA to a.first.getContents().toString() + "\n"))
+        assertEquals(2, cacheDir.listFiles().size)
+        assertEquals(setOf(fileA.path, fileB.path), cachedPaths())
+
+        // The entries of deleted files are removed
+        assertTrue(fileB.delete())
+        build(a.first)
+        assertEquals(setOf(fileA.path), cachedPaths())
+
+        Disposer.dispose(a.second)
+        Disposer.dispose(b.second)
+    }
+
+    fun testSupertypeChangedInOtherFile() {
+        val dir = Files.createTempDir()
+        val sources = mutableMapOf(
+                "src/test/pkg/C.java" to "package test.pkg;\npublic class C { public void m() {} }",
+                "src/test/pkg/D.java" to "package test.pkg;\npublic class D { public void m() {} }",
+                "src/test/pkg/B.java" to "package test.pkg;\npublic class B extends D {}",
+                "src/test/pkg/E.java" to
+                        "package test.pkg;\npublic class E extends B { public void m() {} }")
+        try {
+            parse(dir, sources) { contexts ->
+                val hierarchy = build(*contexts.toTypedArray()).classHierarchy
+                assertEquals(listOf("E"), overrides(hierarchy, contexts, "D"))
+                assertEquals(emptyList<String>(), overrides(hierarchy, contexts, "C"))
+            }
+
+            // Only B changes, but the cached override in the unchanged E must not be reused
+            sources["src/test/pkg/B.java"] = "package test.pkg;\npublic class B extends C {}"
+            parse(dir, sources) { contexts ->
+                val hierarchy = build(*contexts.toTypedArray()).classHierarchy
+                assertEquals(emptyList<String>(), overrides(hierarchy, contexts, "D"))
+                assertEquals(listOf("E"), overrides(hierarchy, contexts, "C"))
+            }
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    /** Returns the names of the classes overriding method m of the given class */
+    private fun overrides(hierarchy: ClassHierarchy, contexts: List<JavaContext>,
+            className: String): List<String> {
+        val method = contexts.first { it.file.name == "$className.java" }
+                .uastFile!!.classes.first().methods.first { it.name == "m" }
+        return hierarchy.allOverridesOf(method).mapNotNull { it.containingClass?.name }.toList()
+    }
+
+    /** Writes the given sources into [dir] and parses them together as one project */
+    private fun parse(dir: File, sources: Map<String, String>,
+            check: (List<JavaContext>) -> Unit) {
+        for ((path, source) in sources) {
+            val file = File(dir, path)
+            file.parentFile.mkdirs()
+            file.writeText(source)
+        }
+        val files = sources.keys.map { File(dir, it) }
+        val client = LintCliClient()
+        val project = client.getProject(dir, dir)
+        client.initializeProjects(listOf(project))
+        try {
+            val driver = LintDriver(TestIssueRegistry(), LintCliClient(),
+                    LintRequest(client, files))
+            driver.scope = Scope.JAVA_FILE_SCOPE
+            val contexts = files.map { JavaContext(driver, project, null, it) }
+            val parser = client.getUastParser(project)!!
+            parser.prepare(contexts)
+            for (context in contexts) {
+                context.uastParser = parser
+                context.uastFile = parser.parse(context)
+            }
+            check(contexts)
+        } finally {
+            client.disposeProjects(listOf(project))
+        }
+    }
+
+    /** Builds the call graph of the given files the way the lint detectors do */
+    private fun build(vararg contexts: JavaContext,
+            contents: Map<File, String> = emptyMap()): IncrementalCallGraphBuilder {
+        val builder = IncrementalCallGraphBuilder(cacheDir)
+        for (context in contexts) {
+            builder.addToClassHierarchy(context.file,
+                    contents[context.file] ?: context.getContents()!!, context.uastFile!!)
+        }
+        builder.finishClassHierarchy()
+        val receiverVisitor = IntraproceduralDispatchReceiverVisitor(builder.classHierarchy)
+        for (context in contexts) {
+            context.uastFile!!.accept(receiverVisitor)
+        }
+        for (context in contexts) {
+            builder.addToCallGraph(context.file, context.uastFile!!, receiverVisitor.receiverEval)
+        }
+        builder.save()
+        return builder
+    }
+
+    /** Returns the paths of the source files with entries in the cache */
+    private fun cachedPaths(): Set<String> =
+            cacheDir.listFiles().mapTo(HashSet()) { entry ->
+                entry.readLines().first { it.startsWith("path\t") }.substringAfter('\t')
+            }
+}
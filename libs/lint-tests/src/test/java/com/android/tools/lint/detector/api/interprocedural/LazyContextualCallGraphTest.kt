@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api.interprocedural
+
+import com.android.tools.lint.LintCoreApplicationEnvironment
+import com.android.tools.lint.checks.searchForInterproceduralThreadAnnotationViolations
+import com.android.tools.lint.detector.api.LintUtilsTest
+import com.intellij.openapi.util.Disposer
+import junit.framework.TestCase
+import org.jetbrains.uast.UFile
+import java.io.File
+
+class LazyContextualCallGraphTest : TestCase() {
+    private val source = """
+package test.pkg;
+public class Test {
+    public void a() {
+        c();
+    }
+    public void b() {
+        run(() -> d());
+        run(() -> e());
+    }
+    public void c() {
+        d();
+        e();
+    }
+    public void d() {
+    }
+    public void e() {
+        d();
+    }
+    public void run(Runnable runnable) {
+        runnable.run();
+    }
+}
+"""
+
+    override fun tearDown() {
+        LintCoreApplicationEnvironment.disposeApplicationEnvironment()
+        super.tearDown()
+    }
+
+    fun testNodeBudget() {
+        analyze { callGraph, receiverEval ->
+            fun explore(maxNodes: Int): LazyContextualCallGraph {
+                val graph = LazyContextualCallGraph(callGraph, receiverEval, callGraph.nodes,
+                        maxNodes = maxNodes)
+                graph.explore(callGraph.nodes)
+                return graph
+            }
+
+            val complete = explore(LazyContextualCallGraph.DEFAULT_MAX_NODES)
+            assertFalse(complete.isTruncated)
+            val size = complete.contextualNodes.size
+
+            // Exactly at the limit nothing is dropped
+            val atLimit = explore(size)
+            assertFalse(atLimit.isTruncated)
+            assertEquals(0, atLimit.droppedEdgeCount)
+            assertEquals(size, atLimit.contextualNodes.size)
+
+            // One node short, the edges into the missing node are dropped and counted
+            val truncated = explore(size - 1)
+            assertTrue(truncated.isTruncated)
+            assertTrue(truncated.droppedEdgeCount > 0)
+            assertEquals(size - 1, truncated.contextualNodes.size)
+        }
+    }
+
+    fun testContextBudget() {
+        analyze { callGraph, receiverEval ->
+            val run = callGraph.nodes.first { it.shortName == "Test#run" }
+
+            val complete = LazyContextualCallGraph(callGraph, receiverEval, callGraph.nodes)
+            complete.explore(callGraph.nodes)
+            assertFalse(complete.isTruncated)
+            // run is specialized on each lambda passed to it, besides the empty context
+            assertTrue(complete.contextualNodes.count { it.node == run } > 1)
+
+            // With a single context per method, the calls passing lambdas are followed
+            // into the empty context instead
+            val limited = LazyContextualCallGraph(callGraph, receiverEval, callGraph.nodes,
+                    maxContextsPerNode = 1)
+            limited.explore(callGraph.nodes)
+            assertTrue(limited.isTruncated)
+            assertEquals(0, limited.droppedEdgeCount)
+            assertTrue(limited.generalizedEdgeCount > 0)
+            assertEquals(listOf(ParamContext.EMPTY),
+                    limited.contextualNodes.filter { it.node == run }.map { it.paramContext })
+        }
+    }
+
+    fun testTruncationReported() {
+        analyze { callGraph, receiverEval ->
+            var reported: LazyContextualCallGraph? = null
+            searchForInterproceduralThreadAnnotationViolations(callGraph, receiverEval,
+                    maxNodes = 1) { reported = it }
+            assertNotNull(reported)
+            assertTrue(reported!!.droppedEdgeCount > 0)
+
+            reported = null
+            searchForInterproceduralThreadAnnotationViolations(callGraph, receiverEval) {
+                reported = it
+            }
+            assertNull(reported)
+        }
+    }
+
+    private fun analyze(
+            check: (CallGraph, IntraproceduralDispatchReceiverEvaluator) -> Unit) {
+        val pair = LintUtilsTest.parseUast(source, File("src/test/pkg/Test.java"))
+        val context = pair.first
+        val uFile: UFile = context.uastFile!!
+        val builder = IncrementalCallGraphBuilder(null)
+        builder.addToClassHierarchy(context.file, context.getContents()!!, uFile)
+        builder.finishClassHierarchy()
+        val receiverVisitor = IntraproceduralDispatchReceiverVisitor(builder.classHierarchy)
+        uFile.accept(receiverVisitor)
+        builder.addToCallGraph(context.file, uFile, receiverVisitor.receiverEval)
+
+        check(builder.freezeCallGraph(), receiverVisitor.receiverEval)
+
+        Disposer.dispose(pair.second)
+    }
+}